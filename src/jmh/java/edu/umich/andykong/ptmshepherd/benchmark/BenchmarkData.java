@@ -0,0 +1,147 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.benchmark;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.core.AAMasses;
+import edu.umich.andykong.ptmshepherd.core.Spectrum;
+
+/**
+ * Seeded synthetic inputs shared by the benchmarks, so every run measures the same data
+ */
+public class BenchmarkData {
+
+	public static final long SEED = 20240101L;
+	private static final String residues = "ACDEFGHIKLMNPQRSTVWY";
+	private static boolean paramsLoaded = false;
+
+	/* Loads the default params into PTMShepherd, which spectrum scoring and glyco assignment read */
+	public static synchronized void loadDefaultParams() throws Exception {
+		if (paramsLoaded)
+			return;
+		File dir = Files.createTempDirectory("shepherd-jmh").toFile();
+		File config = new File(dir, "shepherd.config");
+		try (PrintWriter out = new PrintWriter(config)) {
+			out.println("dataset = bench " + new File(dir, "psm.tsv").getAbsolutePath() + " " + dir.getAbsolutePath());
+			out.println("output_path = " + dir.getAbsolutePath());
+			out.println("threads = 1");
+		}
+		PTMShepherd.init(new String[] {config.getAbsolutePath()});
+		PTMShepherd.executorService.shutdown();
+		paramsLoaded = true;
+	}
+
+	public static String peptide(Random r, int len) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < len; i++)
+			sb.append(residues.charAt(r.nextInt(residues.length())));
+		return sb.toString();
+	}
+
+	public static Spectrum spectrum(Random r, String seq, int nPeaks, int charge) {
+		return spectrum(r, seq, nPeaks, charge, new double[0], new float[0]);
+	}
+
+	/**
+	 * Spectrum of nPeaks noise peaks plus the singly charged b and y ions of seq and the extra peaks, sorted by m/z
+	 */
+	public static Spectrum spectrum(Random r, String seq, int nPeaks, int charge, double [] extraMz, float [] extraInts) {
+		float [] mz = new float[nPeaks + 2 * (seq.length() - 1) + extraMz.length];
+		float [] ints = new float[mz.length];
+		int n = 0;
+		for (int i = 0; i < extraMz.length; i++, n++) {
+			mz[n] = (float) extraMz[i];
+			ints[n] = extraInts[i];
+		}
+		for (int i = 0; i < nPeaks; i++, n++) {
+			mz[n] = 100 + 1900 * r.nextFloat();
+			ints[n] = 1000 * r.nextFloat();
+		}
+		double b = AAMasses.monoisotopic_nterm_mass;
+		double y = AAMasses.monoisotopic_cterm_mass + 2 * AAMasses.monoisotopic_nterm_mass;
+		for (int i = 0; i < seq.length() - 1; i++) {
+			b += AAMasses.monoisotopic_masses[seq.charAt(i) - 'A'];
+			y += AAMasses.monoisotopic_masses[seq.charAt(seq.length() - 1 - i) - 'A'];
+			mz[n] = (float) b;
+			ints[n++] = 2000 + 1000 * r.nextFloat();
+			mz[n] = (float) y;
+			ints[n++] = 2000 + 1000 * r.nextFloat();
+		}
+		sortByMz(mz, ints);
+		double precursor = AAMasses.getMonoisotopicNeutralMass(seq);
+		return new Spectrum("bench.1.1." + charge, 1, charge, 2, precursor, 10.0, mz, ints);
+	}
+
+	private static void sortByMz(float [] mz, float [] ints) {
+		Integer [] order = new Integer[mz.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Float.compare(mz[a], mz[b]));
+		float [] smz = new float[mz.length];
+		float [] sints = new float[mz.length];
+		for (int i = 0; i < order.length; i++) {
+			smz[i] = mz[order[i]];
+			sints[i] = ints[order[i]];
+		}
+		System.arraycopy(smz, 0, mz, 0, mz.length);
+		System.arraycopy(sints, 0, ints, 0, ints.length);
+	}
+
+	/* Delta masses clustered around a few common modifications, like an open search */
+	public static float [] deltaMasses(Random r, int n) {
+		float [] modMasses = {0f, 15.9949f, 79.9663f, 42.0106f, 0.984f, -17.0265f, 203.0794f, 1.00335f};
+		float [] res = new float[n];
+		for (int i = 0; i < n; i++) {
+			if (r.nextDouble() < 0.2)
+				res[i] = -150 + 650 * r.nextFloat();
+			else
+				res[i] = modMasses[r.nextInt(modMasses.length)] + (float) (r.nextGaussian() * 0.002);
+		}
+		return res;
+	}
+
+	/* Matched ion probabilities in the signed format of PoissonBinomialLikelihood, one row per site */
+	public static double [][] ionProbs(Random r, int sites, int ions) {
+		double [][] res = new double[sites][ions];
+		for (int i = 0; i < sites; i++) {
+			for (int j = 0; j < ions; j++) {
+				double p = 0.05 + 0.9 * r.nextDouble();
+				res[i][j] = r.nextBoolean() ? p : -p;
+			}
+		}
+		return res;
+	}
+
+	/* Random PMFs of small count variables */
+	public static double [][] pmfs(Random r, int n, int len) {
+		double [][] res = new double[n][len];
+		for (int i = 0; i < n; i++) {
+			double sum = 0;
+			for (int j = 0; j < len; j++)
+				sum += (res[i][j] = r.nextDouble());
+			for (int j = 0; j < len; j++)
+				res[i][j] /= sum;
+		}
+		return res;
+	}
+}
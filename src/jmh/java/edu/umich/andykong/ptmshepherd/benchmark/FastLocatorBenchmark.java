@@ -0,0 +1,77 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.umich.andykong.ptmshepherd.core.FastLocator;
+
+/**
+ * Assignment of PSM delta masses to picked peaks
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FastLocatorBenchmark {
+
+	private static final int BATCH = 4096;
+
+	@Param({"0", "1"})
+	public int precursorUnits; // Da, ppm
+
+	@Param({"500"})
+	public int nPeaks;
+
+	private FastLocator locator;
+	private float [] dmasses;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(BenchmarkData.SEED);
+		double [] apexes = new double[nPeaks];
+		for (int i = 0; i < nPeaks; i++)
+			apexes[i] = -150 + 650 * r.nextDouble();
+		Arrays.sort(apexes);
+		double [][] peaks = new double[3][nPeaks];
+		for (int i = 0; i < nPeaks; i++) {
+			peaks[0][i] = apexes[i];
+			peaks[1][i] = apexes[i] - 0.01;
+			peaks[2][i] = apexes[i] + 0.01;
+		}
+		double tol = (precursorUnits == 0) ? 0.01 : 20;
+		locator = new FastLocator(peaks, tol, precursorUnits);
+		dmasses = BenchmarkData.deltaMasses(r, BATCH);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int getIndex() {
+		int found = 0;
+		for (float m : dmasses) {
+			if (locator.getIndex(m) >= 0)
+				found++;
+		}
+		return found;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.benchmark;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.umich.andykong.ptmshepherd.core.AAMasses;
+import edu.umich.andykong.ptmshepherd.core.Spectrum;
+import edu.umich.andykong.ptmshepherd.glyco.GlycanAssignmentResult;
+import edu.umich.andykong.ptmshepherd.glyco.GlycanCandidate;
+import edu.umich.andykong.ptmshepherd.glyco.GlycoAnalysis;
+import edu.umich.andykong.ptmshepherd.glyco.GlycoParams;
+import edu.umich.andykong.ptmshepherd.peakpicker.PeakAnnotator;
+
+/**
+ * First pass glycan assignment of N-glycopeptide PSMs against the default N-glycan database
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GlycoBenchmark {
+
+	private static final int BATCH = 32;
+	private static final double HEXNAC = 203.07937, HEX = 162.05282, FUC = 146.057909, NEUAC = 291.095417;
+	// {HexNAc, Hex, Fuc, NeuAc} of common N-glycans
+	private static final int [][] compositions = {{2, 5, 0, 0}, {2, 9, 0, 0}, {4, 5, 1, 0}, {4, 5, 0, 2}, {5, 6, 1, 1}, {3, 4, 1, 0}};
+
+	private GlycoAnalysis ga;
+	private ArrayList<GlycanCandidate> glycanDatabase;
+	private Spectrum [] specs;
+	private String [] seqs;
+	private float [] pepMasses;
+	private float [] deltaMasses;
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkData.loadDefaultParams();
+		GlycoParams gp = new GlycoParams("", "", "");
+		gp.initIsotopeProbs("");
+		gp.massProbScaling = GlycoAnalysis.DEFAULT_MASS_PROB_SCALING;
+		gp.randomGenerator = new Random(BenchmarkData.SEED);
+		gp.decoyType = GlycoAnalysis.DEFAULT_GLYCO_DECOY_TYPE;
+		gp.glycoPPMtol = GlycoAnalysis.DEFAULT_GLYCO_PPM_TOL;
+		gp.glycoIsotopes = GlycoParams.parseGlycoIsotopesParam();
+		gp.nGlycan = true;
+		gp.glycoYnorm = true;
+		gp.absScoreErrorParam = GlycoAnalysis.DEFAULT_GLYCO_ABS_SCORE_BASE;
+		gp.glycoFDR = GlycoAnalysis.DEFAULT_GLYCO_FDR;
+		gp.defaultProp = GlycoAnalysis.DEFAULT_GLYCO_PROPENSITY;
+		gp.numThreads = 1;
+
+		// the internal default database, as main loads it when glycodatabase is empty
+		File db = File.createTempFile("glyco_db", ".txt");
+		db.deleteOnExit();
+		try (InputStream in = PeakAnnotator.class.getResourceAsStream("glyco_mods_20210127.txt")) {
+			Files.copy(in, db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		glycanDatabase = gp.parseGlycanDatabaseFile(db.getAbsolutePath());
+		gp.glycoDatabase = glycanDatabase;
+		ga = new GlycoAnalysis("bench", glycanDatabase, gp);
+
+		Random r = new Random(BenchmarkData.SEED);
+		specs = new Spectrum[BATCH];
+		seqs = new String[BATCH];
+		pepMasses = new float[BATCH];
+		deltaMasses = new float[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			seqs[i] = BenchmarkData.peptide(r, 6) + "N" + BenchmarkData.peptide(r, 1) + "T" + BenchmarkData.peptide(r, 6);
+			pepMasses[i] = (float) AAMasses.getMonoisotopicNeutralMass(seqs[i]);
+			int [] comp = compositions[r.nextInt(compositions.length)];
+			deltaMasses[i] = (float) (comp[0] * HEXNAC + comp[1] * HEX + comp[2] * FUC + comp[3] * NEUAC);
+			specs[i] = glycoSpectrum(r, seqs[i], pepMasses[i]);
+		}
+	}
+
+	/* Peptide spectrum plus oxonium ions and singly charged Y ions of the N-glycan core */
+	private static Spectrum glycoSpectrum(Random r, String seq, double pepMass) {
+		double [] cores = {0, HEXNAC, 2 * HEXNAC, 2 * HEXNAC + HEX, 2 * HEXNAC + 2 * HEX, 2 * HEXNAC + 3 * HEX};
+		double [] mz = new double[cores.length + 2];
+		float [] ints = new float[mz.length];
+		for (int i = 0; i < cores.length; i++) {
+			mz[i] = pepMass + cores[i] + AAMasses.protMass;
+			ints[i] = 2000 + 1000 * r.nextFloat();
+		}
+		mz[cores.length] = HEXNAC + AAMasses.protMass;
+		ints[cores.length] = 5000;
+		mz[cores.length + 1] = HEXNAC + HEX + AAMasses.protMass;
+		ints[cores.length + 1] = 3000;
+		return BenchmarkData.spectrum(r, seq, 200, 3, mz, ints);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void assignGlycanToPSM(Blackhole bh) {
+		for (int i = 0; i < BATCH; i++) {
+			GlycanAssignmentResult res = new GlycanAssignmentResult(seqs[i], deltaMasses[i], pepMasses[i], "", specs[i].scanName);
+			bh.consume(ga.assignGlycanToPSM(specs[i], res, glycanDatabase, 0.01, 0));
+		}
+	}
+}
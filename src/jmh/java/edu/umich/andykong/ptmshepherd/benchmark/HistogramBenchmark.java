@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.umich.andykong.ptmshepherd.peakpicker.Histogram;
+import edu.umich.andykong.ptmshepherd.peakpicker.Prominence;
+
+/**
+ * Delta mass histogram construction with the default smoothing and bin widths, and peak prominence over the result
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistogramBenchmark {
+
+	private static final int BIN_DIVS = 5000; // histo_bindivs default
+	private static final int SMOOTH_BINS = 2 * 2 + 1; // histo_smoothbins default, as main passes it
+
+	@Param({"100000", "1000000"})
+	public int nPsms;
+
+	private float [] dmasses;
+	private double [] intensities;
+	private double [] histo;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(BenchmarkData.SEED);
+		dmasses = BenchmarkData.deltaMasses(r, nPsms);
+		intensities = new double[nPsms];
+		Arrays.fill(intensities, 1.0);
+		histo = new Histogram(dmasses, intensities, nPsms, BIN_DIVS, SMOOTH_BINS).histo;
+	}
+
+	@Benchmark
+	public double [] construct() {
+		return new Histogram(dmasses, intensities, nPsms, BIN_DIVS, SMOOTH_BINS).histo;
+	}
+
+	@Benchmark
+	public double [] prominence() {
+		return Prominence.computeProminence(histo);
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.umich.andykong.ptmshepherd.iterativelocalization.Convolution;
+import edu.umich.andykong.ptmshepherd.iterativelocalization.PoissonBinomialLikelihood;
+
+/**
+ * Site probability math of iterative localization
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalizationBenchmark {
+
+	@Param({"10", "40"})
+	public int nIons;
+
+	private double [][] pmfs;
+	private double [][] ionProbs;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(BenchmarkData.SEED);
+		pmfs = BenchmarkData.pmfs(r, nIons, 2);
+		ionProbs = BenchmarkData.ionProbs(r, 6, nIons);
+	}
+
+	@Benchmark
+	public double [] convolve() {
+		return Convolution.convolve(pmfs);
+	}
+
+	@Benchmark
+	public double [] probXMax() {
+		return PoissonBinomialLikelihood.calculateProbXMax(ionProbs);
+	}
+
+	@Benchmark
+	public double probXGreaterThanY() {
+		return PoissonBinomialLikelihood.calculateProbXGreaterThanY(ionProbs[0], ionProbs[1]);
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+
+/**
+ * End-to-end benchmark: generates a {@link SyntheticDataset} per scale, runs PTM-Shepherd on it in a fresh JVM and
+ * turns its shepherd_perf.json into per-stage throughput. Results are appended to out/macrobenchmark.tsv.
+ *
+ * Usage: MacroBenchmark --out dir [--scales 10000,100000,1000000] [--threads 8] [--jvmArgs "-Xmx16g"]
+ *        [--params "key=value;key=value"] plus any {@link SyntheticDataset} option except --psms
+ */
+public class MacroBenchmark {
+
+	private static final Pattern entryPattern = Pattern.compile("\"kind\": \"(\\w+)\", \"name\": \"((?:[^\"\\\\]|\\\\.)*)\".*" +
+			"\"wallMs\": (-?\\d+), \"cpuMs\": (-?\\d+), \"allocatedBytes\": (-?\\d+), \"readBytes\": (-?\\d+), " +
+			"\"writtenBytes\": (-?\\d+), \"peakHeapBytes\": (-?\\d+)");
+	private static final Pattern totalPattern = Pattern.compile("^  \"wallMs\": (\\d+),");
+
+	public static void main(String [] args) throws Exception {
+		HashMap<String, String> opts = SyntheticDataset.parseArgs(args);
+		if (!opts.containsKey("out"))
+			throw new IllegalArgumentException("--out is required");
+		File out = new File(opts.get("out"));
+		String [] scales = opts.getOrDefault("scales", "10000,100000,1000000").split(",");
+		File report = new File(out, "macrobenchmark.tsv");
+		boolean newReport = !report.exists();
+		Files.createDirectories(out.toPath());
+
+		try (PrintWriter rep = new PrintWriter(new FileWriter(report, true))) {
+			if (newReport)
+				rep.println("psms\truns\tkind\tname\twallMs\tpsmsPerSec\tspectraPerSec\tcpuMs\tallocatedBytes\treadBytes\twrittenBytes\tpeakHeapBytes");
+			for (String scale : scales) {
+				args = withOption(args, "psms", scale.trim());
+				SyntheticDataset sd = SyntheticDataset.fromArgs(args);
+				File scaleDir = new File(out, "psms" + sd.psms);
+				File dataDir = new File(scaleDir, "data");
+				File outDir = new File(scaleDir, "out");
+				System.out.printf("Generating %d PSMs in %d runs\n", sd.psms, sd.runs);
+				ArrayList<String []> datasets = sd.generate(dataDir);
+
+				File config = new File(scaleDir, "shepherd.config");
+				try (PrintWriter cfg = new PrintWriter(config)) {
+					for (String [] ds : datasets)
+						cfg.printf("dataset = %s %s %s\n", ds[0], ds[1], dataDir.getAbsolutePath());
+					cfg.printf("output_path = %s\n", outDir.getAbsolutePath());
+					cfg.printf("threads = %s\n", opts.getOrDefault("threads", "0"));
+					for (String kv : opts.getOrDefault("params", "").split(";")) {
+						if (kv.contains("="))
+							cfg.println(kv.trim().replaceFirst("=", " = "));
+					}
+				}
+
+				System.out.printf("Running PTM-Shepherd on %d PSMs\n", sd.psms);
+				runShepherd(config, opts.getOrDefault("jvmArgs", ""), new File(scaleDir, "shepherd.log"));
+				for (String line : summarize(new File(outDir, PTMShepherd.outputDirName + PTMShepherd.perfReportName), sd.psms)) {
+					rep.println(sd.psms + "\t" + sd.runs + "\t" + line);
+					System.out.println("\t" + line);
+				}
+				rep.flush();
+			}
+		}
+	}
+
+	/* Runs PTM-Shepherd in a child JVM on this JVM's classpath so every scale starts from a clean heap */
+	private static void runShepherd(File config, String jvmArgs, File log) throws IOException, InterruptedException {
+		ArrayList<String> cmd = new ArrayList<>();
+		cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		for (String a : jvmArgs.trim().split("\\s+")) {
+			if (!a.isEmpty())
+				cmd.add(a);
+		}
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(PTMShepherd.class.getName());
+		cmd.add(config.getAbsolutePath());
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start();
+		int rc = p.waitFor();
+		if (rc != 0)
+			throw new IOException("PTM-Shepherd exited with " + rc + ", see " + log);
+	}
+
+	/**
+	 * @return one tab separated line per stage of the perf report, plus the whole run, with throughput per second
+	 */
+	static ArrayList<String> summarize(File perfReport, int psms) throws IOException {
+		ArrayList<String> res = new ArrayList<>();
+		for (String line : Files.readAllLines(perfReport.toPath())) {
+			Matcher tm = totalPattern.matcher(line);
+			if (tm.find()) {
+				res.add(format("total", "total", Long.parseLong(tm.group(1)), psms, "-1\t-1\t-1\t-1\t-1"));
+				continue;
+			}
+			Matcher m = entryPattern.matcher(line);
+			if (!m.find() || !m.group(1).equals("stage"))
+				continue;
+			res.add(format(m.group(1), m.group(2), Long.parseLong(m.group(3)), psms,
+					String.join("\t", m.group(4), m.group(5), m.group(6), m.group(7), m.group(8))));
+		}
+		return res;
+	}
+
+	/* One spectrum is generated per PSM, so both throughputs share the count */
+	private static String format(String kind, String name, long wallMs, int psms, String rest) {
+		double perSec = psms / Math.max(wallMs / 1000.0, 0.001);
+		return String.format("%s\t%s\t%d\t%.1f\t%.1f\t%s", kind, name, wallMs, perSec, perSec, rest);
+	}
+
+	private static String [] withOption(String [] args, String key, String value) {
+		ArrayList<String> res = new ArrayList<>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].equals("--" + key)) {
+				res.add(args[i]);
+				res.add(args[i + 1]);
+			}
+		}
+		res.add("--" + key);
+		res.add(value);
+		return res.toArray(new String[0]);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.umich.andykong.ptmshepherd.core.Spectrum;
+
+/**
+ * Fragment ion scoring and peak conditioning of a batch of synthetic spectra
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpectrumBenchmark {
+
+	private static final int BATCH = 64;
+
+	@Param({"150", "1000"})
+	public int nPeaks;
+
+	private Spectrum [] specs;
+	private String [] seqs;
+	private float [][] mods;
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkData.loadDefaultParams();
+		Random r = new Random(BenchmarkData.SEED);
+		specs = new Spectrum[BATCH];
+		seqs = new String[BATCH];
+		mods = new float[BATCH][];
+		for (int i = 0; i < BATCH; i++) {
+			seqs[i] = BenchmarkData.peptide(r, 8 + r.nextInt(17));
+			mods[i] = new float[seqs[i].length()];
+			specs[i] = BenchmarkData.spectrum(r, seqs[i], nPeaks, 2 + r.nextInt(2));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public float getHyper() {
+		float sum = 0;
+		for (int i = 0; i < BATCH; i++)
+			sum += specs[i].getHyper(seqs[i], mods[i], 20.0);
+		return sum;
+	}
+
+	/* Conditions copies, as the analyses do, so every invocation starts from the raw peaks */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int condition() {
+		int kept = 0;
+		for (int i = 0; i < BATCH; i++) {
+			Spectrum s = specs[i].copy();
+			s.condition(150, 0.01);
+			kept += s.peakMZ.length;
+		}
+		return kept;
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import edu.umich.andykong.ptmshepherd.core.AAMasses;
+import edu.umich.andykong.ptmshepherd.utils.Peptide;
+
+/**
+ * Deterministic synthetic open search results: psm.tsv files in the FragPipe layout and MSFragger-style
+ * run_calibrated.mgf spectra holding the b/y ions of each PSM, with the mass shift on one residue so localization has
+ * something to find. PSMs are written as they are generated, so memory use does not grow with the PSM count.
+ *
+ * Usage: SyntheticDataset --out dir [--psms 100000] [--runs 4] [--datasets 1] [--seed 1] [--noisePeaks 40]
+ *        [--shifts 0:0.6,15.9949:0.1,...] [--background 0.1] [--glyco 0.0]
+ */
+public class SyntheticDataset {
+
+	static final String psmHeader = "Spectrum\tSpectrum File\tPeptide\tModified Peptide\tPeptide Length\tCharge\tRetention\t" +
+			"Observed Mass\tCalibrated Observed Mass\tObserved M/Z\tCalibrated Observed M/Z\tCalculated Peptide Mass\t" +
+			"Calculated M/Z\tDelta Mass\tExpectation\tHyperscore\tProbability\tIntensity\tAssigned Modifications\t" +
+			"Is Unique\tProtein";
+	private static final String residues = "ACDEFGHIKLMNPQRSTVWY";
+	private static final double HEXNAC = 203.07937, HEX = 162.05282, FUC = 146.057909, NEUAC = 291.095417;
+	// {HexNAc, Hex, Fuc, NeuAc} of common N-glycans
+	private static final int [][] glycans = {{2, 5, 0, 0}, {2, 9, 0, 0}, {4, 5, 1, 0}, {4, 5, 0, 2}, {5, 6, 1, 1}, {3, 4, 1, 0}};
+
+	public int psms = 100000;
+	public int runs = 4;
+	public int datasets = 1;
+	public long seed = 1;
+	public int noisePeaks = 40;
+	public String shifts = "0:0.6,15.9949:0.1,79.9663:0.05,42.0106:0.05,0.984:0.05,-17.0265:0.05,1.00335:0.1";
+	public double background = 0.1; // fraction of PSMs with a uniform random shift
+	public double glyco = 0.0; // fraction of PSMs carrying an N-glycan on a sequon
+
+	private double [] shiftMasses;
+	private double [] shiftCumProbs;
+
+	public static SyntheticDataset fromArgs(String [] args) {
+		SyntheticDataset sd = new SyntheticDataset();
+		HashMap<String, String> opts = parseArgs(args);
+		sd.psms = Integer.parseInt(opts.getOrDefault("psms", String.valueOf(sd.psms)));
+		sd.runs = Integer.parseInt(opts.getOrDefault("runs", String.valueOf(sd.runs)));
+		sd.datasets = Integer.parseInt(opts.getOrDefault("datasets", String.valueOf(sd.datasets)));
+		sd.seed = Long.parseLong(opts.getOrDefault("seed", String.valueOf(sd.seed)));
+		sd.noisePeaks = Integer.parseInt(opts.getOrDefault("noisePeaks", String.valueOf(sd.noisePeaks)));
+		sd.shifts = opts.getOrDefault("shifts", sd.shifts);
+		sd.background = Double.parseDouble(opts.getOrDefault("background", String.valueOf(sd.background)));
+		sd.glyco = Double.parseDouble(opts.getOrDefault("glyco", String.valueOf(sd.glyco)));
+		return sd;
+	}
+
+	/* --key value pairs */
+	static HashMap<String, String> parseArgs(String [] args) {
+		HashMap<String, String> opts = new HashMap<>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--"))
+				throw new IllegalArgumentException("Expected --option, found " + args[i]);
+			opts.put(args[i].substring(2), args[i + 1]);
+		}
+		return opts;
+	}
+
+	private void parseShifts() {
+		String [] sp = shifts.split(",");
+		shiftMasses = new double[sp.length];
+		shiftCumProbs = new double[sp.length];
+		double sum = 0;
+		for (int i = 0; i < sp.length; i++) {
+			String [] kv = sp[i].split(":");
+			shiftMasses[i] = Double.parseDouble(kv[0]);
+			sum += Double.parseDouble(kv[1]);
+			shiftCumProbs[i] = sum;
+		}
+		for (int i = 0; i < sp.length; i++)
+			shiftCumProbs[i] /= sum;
+	}
+
+	/**
+	 * Writes the dataset into dir
+	 * @return {dataset name, psm.tsv path} of every dataset, with dir as each one's spectral directory
+	 */
+	public ArrayList<String []> generate(File dir) throws IOException {
+		parseShifts();
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		Random r = new Random(seed);
+		int runsPerDataset = Math.max(1, runs / datasets);
+		int totalRuns = runsPerDataset * datasets;
+
+		PrintWriter [] mgfs = new PrintWriter[totalRuns];
+		int [] scans = new int[totalRuns];
+		for (int i = 0; i < totalRuns; i++)
+			mgfs[i] = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, runName(i) + "_calibrated.mgf")), 1 << 20));
+		ArrayList<String []> res = new ArrayList<>();
+		PrintWriter [] psmOuts = new PrintWriter[datasets];
+		for (int d = 0; d < datasets; d++) {
+			File psmFile = new File(dir, "dataset" + d + "_psm.tsv");
+			psmOuts[d] = new PrintWriter(new BufferedWriter(new FileWriter(psmFile), 1 << 20));
+			psmOuts[d].println(psmHeader);
+			res.add(new String [] {"dataset" + d, psmFile.getAbsolutePath()});
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < psms; i++) {
+			int run = i % totalRuns;
+			int scan = ++scans[run];
+			writePSM(r, runName(run), scan, psmOuts[run / runsPerDataset], mgfs[run], sb);
+		}
+
+		for (PrintWriter pw : mgfs)
+			pw.close();
+		for (PrintWriter pw : psmOuts)
+			pw.close();
+		return res;
+	}
+
+	static String runName(int run) {
+		return String.format("run%03d", run);
+	}
+
+	private void writePSM(Random r, String run, int scan, PrintWriter psmOut, PrintWriter mgf, StringBuilder sb) {
+		boolean isGlyco = r.nextDouble() < glyco;
+		String seq = peptide(r, 7 + r.nextInt(18), isGlyco);
+		float [] mods = new float[seq.length()];
+		double shift;
+		int site = r.nextInt(seq.length());
+		if (isGlyco) {
+			int [] g = glycans[r.nextInt(glycans.length)];
+			shift = g[0] * HEXNAC + g[1] * HEX + g[2] * FUC + g[3] * NEUAC;
+			site = seq.indexOf('N');
+		} else if (r.nextDouble() < background)
+			shift = -150 + 650 * r.nextDouble();
+		else
+			shift = pickShift(r);
+		mods[site] = (float) shift;
+
+		int charge = 2 + r.nextInt(3);
+		double pepMass = AAMasses.getMonoisotopicNeutralMass(seq);
+		double obsMass = pepMass + shift + pepMass * 5e-6 * r.nextGaussian();
+		double obsMZ = (obsMass + charge * AAMasses.protMass) / charge;
+		double calcMZ = (pepMass + charge * AAMasses.protMass) / charge;
+		double rt = 600 + 5400 * r.nextDouble();
+		String specName = String.format("%s.%05d.%05d.%d", run, scan, scan, charge);
+
+		sb.setLength(0);
+		sb.append(specName).append('\t').append(run).append(".pep.xml\t").append(seq).append('\t').append(seq)
+				.append('\t').append(seq.length()).append('\t').append(charge).append('\t').append(String.format("%.4f", rt))
+				.append('\t').append(String.format("%.4f", obsMass)).append('\t').append(String.format("%.4f", obsMass))
+				.append('\t').append(String.format("%.4f", obsMZ)).append('\t').append(String.format("%.4f", obsMZ))
+				.append('\t').append(String.format("%.4f", pepMass)).append('\t').append(String.format("%.4f", calcMZ))
+				.append('\t').append(String.format("%.4f", obsMass - pepMass))
+				.append('\t').append(String.format("%.3e", Math.pow(10, -2 - 6 * r.nextDouble())))
+				.append('\t').append(String.format("%.3f", 15 + 30 * r.nextDouble()))
+				.append("\t1.0000\t").append(String.format("%.1f", Math.exp(14 + 2 * r.nextGaussian())))
+				.append("\t\ttrue\tsp|P").append(String.format("%05d", r.nextInt(20000))).append("|SYN_HUMAN");
+		psmOut.println(sb);
+
+		// spectrum: most b/y ions carrying the shift at its site, glycan Y ions and oxonium ions, and noise
+		ArrayList<Float> frags = Peptide.calculatePeptideFragments(seq, mods, "by", Math.min(2, charge - 1));
+		ArrayList<float []> peaks = new ArrayList<>(frags.size() + noisePeaks + 8);
+		for (float f : frags) {
+			if (r.nextDouble() < 0.7)
+				peaks.add(new float [] {f, (float) (1000 + 9000 * r.nextDouble())});
+		}
+		if (isGlyco) {
+			double [] cores = {0, HEXNAC, 2 * HEXNAC, 2 * HEXNAC + HEX, 2 * HEXNAC + 3 * HEX};
+			for (double c : cores)
+				peaks.add(new float [] {(float) (pepMass + c + AAMasses.protMass), (float) (3000 + 3000 * r.nextDouble())});
+			peaks.add(new float [] {(float) (HEXNAC + AAMasses.protMass), 8000});
+			peaks.add(new float [] {(float) (HEXNAC + HEX + AAMasses.protMass), 4000});
+		}
+		for (int i = 0; i < noisePeaks; i++)
+			peaks.add(new float [] {(float) (100 + 1900 * r.nextDouble()), (float) (1000 * r.nextDouble())});
+		peaks.sort((a, b) -> Float.compare(a[0], b[0]));
+
+		sb.setLength(0);
+		sb.append("BEGIN IONS\nTITLE=").append(specName).append("\nRTINSECONDS=").append(String.format("%.4f", rt))
+				.append("\nPEPMASS=").append(String.format("%.5f", obsMZ)).append("\nCHARGE=").append(charge).append("+\n");
+		for (float [] p : peaks)
+			sb.append(p[0]).append(' ').append(p[1]).append('\n');
+		sb.append("END IONS");
+		mgf.println(sb);
+	}
+
+	private double pickShift(Random r) {
+		double p = r.nextDouble();
+		int i = Arrays.binarySearch(shiftCumProbs, p);
+		if (i < 0)
+			i = -i - 1;
+		return shiftMasses[Math.min(i, shiftMasses.length - 1)] + 0.001 * r.nextGaussian();
+	}
+
+	/* Random tryptic-like peptide, glycopeptides get an N-X-S/T sequon */
+	private static String peptide(Random r, int len, boolean sequon) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < len - 1; i++) {
+			char c = residues.charAt(r.nextInt(residues.length()));
+			sb.append((c == 'N' || c == 'K' || c == 'R') ? 'A' : c); // keep N for the sequon and K/R for the C-terminus
+		}
+		if (sequon) {
+			int pos = r.nextInt(len - 3);
+			sb.setCharAt(pos, 'N');
+			sb.setCharAt(pos + 2, r.nextBoolean() ? 'S' : 'T');
+		}
+		sb.append(r.nextBoolean() ? 'K' : 'R');
+		return sb.toString();
+	}
+
+	public static void main(String [] args) throws Exception {
+		HashMap<String, String> opts = parseArgs(args);
+		if (!opts.containsKey("out"))
+			throw new IllegalArgumentException("--out is required");
+		for (String [] ds : fromArgs(args).generate(new File(opts.get("out"))))
+			System.out.printf("dataset = %s %s %s\n", ds[0], ds[1], new File(opts.get("out")).getAbsolutePath());
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.benchmark;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.umich.andykong.ptmshepherd.utils.TsvCursor;
+import edu.umich.andykong.ptmshepherd.utils.TsvLineReader;
+
+/**
+ * Reading a .rawlocalize-shaped table with String.split against TsvCursor. Run with -prof gc to compare the
+ * allocation rate, e.g. -Djmh.args="TsvParseBenchmark -p nLines=10000000 -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TsvParseBenchmark {
+
+	@Param({"1000000"})
+	public int nLines;
+
+	private File table;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Random r = new Random(BenchmarkData.SEED);
+		table = Files.createTempFile("shepherd-jmh", ".rawlocalize").toFile();
+		table.deleteOnExit();
+		float [] dmasses = BenchmarkData.deltaMasses(r, nLines);
+		try (PrintWriter out = new PrintWriter(table)) {
+			out.println("Spectrum\tPeptide\tMods\tMass Shift\tLocalized Peptide\tBase Score\tBest Score\tBase Frags\tBest Frags");
+			for (int i = 0; i < nLines; i++) {
+				String pep = BenchmarkData.peptide(r, 8 + r.nextInt(12));
+				out.printf("run.%d.%d.2\t%s\t\t%.4f\t%s\t%.2f\t%.2f\t%d\t%d\n", i, i, pep, dmasses[i], pep.toLowerCase(),
+						r.nextDouble() * 50, r.nextDouble() * 60, r.nextInt(20), r.nextInt(24));
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		table.delete();
+	}
+
+	@Benchmark
+	public double split() throws Exception {
+		double sum = 0;
+		try (BufferedReader in = new BufferedReader(new FileReader(table))) {
+			String cline;
+			in.readLine();
+			while ((cline = in.readLine()) != null) {
+				String [] sp = cline.split("\\t");
+				sum += Double.parseDouble(sp[3]) + Double.parseDouble(sp[5]) + Integer.parseInt(sp[8]) + sp[4].length();
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double cursor() throws Exception {
+		double sum = 0;
+		TsvCursor sp = new TsvCursor();
+		try (TsvLineReader in = new TsvLineReader(table)) {
+			in.next(sp);
+			while (in.next(sp))
+				sum += sp.parseDouble(3) + sp.parseDouble(5) + sp.parseInt(8) + sp.length(4);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Column edits to a psm.tsv that have not been written to disk yet. Each edit inserts or replaces one column, with a
+ * value per data row, and all edits are applied to the file in one sequential pass by {@link #merge}.
+ */
+public class PSMColumnJournal {
+
+	private static class Edit {
+		final int col; // column index in the layout left by the preceding edits
+		final String header; // header of an inserted column, null for a replaced column
+		final String [] vals; // value by data row, null keeps the current value or leaves an inserted cell empty
+
+		Edit(int col, String header, String [] vals) {
+			this.col = col;
+			this.header = header;
+			this.vals = vals;
+		}
+	}
+
+	private final ArrayList<Edit> edits = new ArrayList<>();
+
+	public void insertColumn(int col, String header, String [] vals) {
+		edits.add(new Edit(col, header, vals));
+	}
+
+	public void replaceColumn(int col, String [] vals) {
+		edits.add(new Edit(col, null, vals));
+	}
+
+	public int size() {
+		return edits.size();
+	}
+
+	public boolean isEmpty() {
+		return edits.isEmpty();
+	}
+
+	/* Header line after edits [from, to) */
+	String [] applyHeaders(String [] headers, int from, int to) {
+		ArrayList<String> res = new ArrayList<>(Arrays.asList(headers));
+		for (int i = from; i < to; i++) {
+			Edit e = edits.get(i);
+			if (e.header != null)
+				res.add(e.col, e.header);
+		}
+		return res.toArray(new String[0]);
+	}
+
+	/* Data row after edits [from, to) */
+	String applyRow(int row, String line, int from, int to) {
+		ArrayList<String> sp = new ArrayList<>(Arrays.asList(line.split("\t", -1)));
+		for (int i = from; i < to; i++) {
+			Edit e = edits.get(i);
+			if (e.header != null)
+				sp.add(e.col, (e.vals[row] == null) ? "" : e.vals[row]);
+			else if (e.vals[row] != null)
+				sp.set(e.col, e.vals[row]);
+		}
+		return String.join("\t", sp);
+	}
+
+	/**
+	 * Applies all edits to f in one pass and clears the journal. Rows are counted the way PSMFile reads them,
+	 * skipping empty lines.
+	 */
+	public void merge(File f) throws IOException {
+		if (edits.isEmpty())
+			return;
+		File tmp = new File(f.getPath() + ".tmp");
+		try (BufferedReader in = new BufferedReader(new FileReader(f), 1 << 22);
+			 PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmp), 1 << 22))) {
+			out.println(String.join("\t", applyHeaders(in.readLine().split("\t"), 0, edits.size())));
+			String cline;
+			int row = 0;
+			while ((cline = in.readLine()) != null) {
+				if (cline.length() > 0)
+					out.println(applyRow(row++, cline, 0, edits.size()));
+			}
+			if (out.checkError())
+				throw new IOException("could not write " + tmp);
+		}
+		Files.move(tmp.toPath(), Paths.get(f.getPath()), StandardCopyOption.REPLACE_EXISTING);
+		edits.clear();
+	}
+}
@@ -19,10 +19,12 @@ package edu.umich.andykong.ptmshepherd;
 import edu.umich.andykong.ptmshepherd.core.AAMasses;
 import edu.umich.andykong.ptmshepherd.core.FastLocator;
 import edu.umich.andykong.ptmshepherd.core.Spectrum;
+import edu.umich.andykong.ptmshepherd.core.SpectrumKey;
 import edu.umich.andykong.ptmshepherd.glyco.GlycanCandidate;
 import edu.umich.andykong.ptmshepherd.glyco.GlycoAnalysis;
 import edu.umich.andykong.ptmshepherd.glyco.GlycoParams;
 import edu.umich.andykong.ptmshepherd.localization.SiteLocalization;
+import edu.umich.andykong.ptmshepherd.utils.FileFingerprint;
 import edu.umich.andykong.ptmshepherd.utils.StringParsingUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import umich.ms.glyco.Glycan;
@@ -34,7 +36,6 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.zip.CRC32;
 
 import static edu.umich.andykong.ptmshepherd.PTMShepherd.concatIonTypes;
 import static edu.umich.andykong.ptmshepherd.PTMShepherd.reNormName;
@@ -48,8 +49,11 @@ public class PSMFile {
 	public int dMassCol, precursorCol, assignedModCol, observedModCol, fraggerLocCol, peptideCol, modPeptideCol, deltaMassCol, calcMZcol, peptideCalcMassCol, chargeCol;
 	public String prefType;
 
-	private HashMap<String, Integer> scanToLine;
+	private PSMIndex index; // spectrum lookups, opened on first use
+	private PSMTable table;
+	private final PSMColumnJournal journal = new PSMColumnJournal(); // column edits not yet written to fname
 	public File fname;
+	private long bytes; // estimated memory when read
 	boolean alreadyWarned;
 
 	public PSMFile(String fn) throws Exception {
@@ -66,6 +70,7 @@ public class PSMFile {
 		private String spec;
 		private String fileName;
 		private int specNum;
+		private long specKey = SpectrumKey.NONE;
 		private String pep;
 		private ArrayList<ImmutablePair<Integer, Float>> mods;
 		private float [] modArr;
@@ -133,6 +138,15 @@ public class PSMFile {
 			return this.spec;
 		}
 
+		/* SpectrumKey of the spectrum name, parsed once */
+		public long getSpecKey() {
+			if (this.spLine == null)
+				this.calculateSpLine();
+			if (this.specKey == SpectrumKey.NONE)
+				this.specKey = SpectrumKey.parse(spLine.get(getColumn("Spectrum")));
+			return this.specKey;
+		}
+
 		public int getSpecNum() {
 			if (this.spLine == null)
 				this.calculateSpLine();
@@ -254,7 +268,7 @@ public class PSMFile {
 		return res;
 	}
 
-	private static String removeCalTag(String fileBaseName) {
+	static String removeCalTag(String fileBaseName) {
 		if (fileBaseName.contains("_calibrated"))
 			return fileBaseName.replace("_calibrated", "");
 		else if (fileBaseName.contains("_uncalibrated"))
@@ -263,17 +277,9 @@ public class PSMFile {
 			return fileBaseName;
 	}
 	
+	/* Content checksum of a file, see FileFingerprint for the cached variant */
 	public static String getCRC32(File f) throws Exception {
-		CRC32 crc = new CRC32();
-		byte [] buf = new byte[1024*1024];
-		int nread = 0;
-		DataInputStream dis = new DataInputStream(new FileInputStream(f));
-		while(dis.available() > 0) {
-			nread = dis.read(buf);
-			crc.update(buf,0,nread);
-		}
-		dis.close();
-		return Long.toHexString(crc.getValue()) + Long.toHexString(f.length());
+		return FileFingerprint.compute(f);
 	}
 
 	/**
@@ -297,13 +303,10 @@ public class PSMFile {
 	}
 
 	public HashSet<String> getRunNames() {
+		PSMTable table = getTable();
 		HashSet<String> res = new HashSet<>();
-		int col = getColumn("Spectrum");
-		for(int i = 0; i < data.size(); i++) {
-			String [] sp = data.get(i).split("\t");
-			String d = sp[col];
-			res.add(d.substring(0, d.indexOf(".")));
-		}
+		for(int i = 0; i < table.run.cardinality(); i++)
+			res.add(table.run.getValue(i));
 		return res;
 	}
 
@@ -322,70 +325,56 @@ public class PSMFile {
 		}
 		return mappings;
 	}
+
+	/**
+	 * Returns the columnar view of this file, parsing it on first use
+	 * @return PSMTable shared by all callers
+	 */
+	public synchronized PSMTable getTable() {
+		if (this.table == null)
+			this.table = new PSMTable(this);
+		return this.table;
+	}
 	
-	public ArrayList<Float> getMassDiffs() {
-		ArrayList<Float> res = new ArrayList<>();
-		int col = getColumn("Delta Mass");
-		if (col == -1) {
-			col = getColumn("Adjusted Delta Mass");
-		}
-		if (col == -1) {
-			col = getColumn("Original Delta Mass");
-		}
-		this.dMassCol = col;
-		for(int i = 0; i < data.size(); i++) {
-			String [] sp = data.get(i).split("\t");
-			res.add(Float.parseFloat(sp[col]));
-		}
+	public float [] getMassDiffs() {
+		double [] dMasses = getTable().deltaMass;
+		float [] res = new float[dMasses.length];
+		for (int i = 0; i < dMasses.length; i++)
+			res[i] = (float) dMasses[i];
 		return res;
 	}
 
-	public ArrayList<Double> getIntensities() {
+	public double [] getIntensities() {
 		/* set up initial properties */
 		int intPeaks = Integer.parseInt(PTMShepherd.getParam("histo_intensity"));
-		int intCol = getColumn("Intensity");
-		ArrayList<Double> ints = new ArrayList<>();
+		PSMTable table = getTable();
+		double [] ints = new double[table.size];
 
 		/* if no intensity column or intensity no wanted, just get spectral counts */
-		if (intCol == -1 || intPeaks == 0) {
+		if (table.intensity == null || intPeaks == 0) {
 			if (intPeaks == 1)
 				System.out.printf("\tCould not identify 'Intensity' column in %s. Defaulting to spectral counts.", this.fname);
-			for (int i = 0; i < this.data.size(); i++) {
-				String[] sp = this.data.get(i).split("\t");
-				ints.add(1.0);
-			}
+			Arrays.fill(ints, 1.0);
 		}
 		/* if intensity column found, collect counts */
 		else {
 			double total = 0;
-			for (int i = 0; i < this.data.size(); i++) {
-				String[] sp = this.data.get(i).split("\t");
-				double cInt = Double.parseDouble(sp[intCol]);
-				ints.add(cInt);
-				total += cInt;
+			for (int i = 0; i < table.size; i++) {
+				ints[i] = table.intensity[i];
+				total += ints[i];
 			}
 			/* if column is invalid, redo calculation with spectral counts */
 			if (total < 1) {
-				ints = new ArrayList<>();
 				System.out.printf("\tEmpty 'Intensity' column in %s. Defaulting to spectral counts.", this.fname);
-				for (int i = 0; i < this.data.size(); i++) {
-					String[] sp = this.data.get(i).split("\t");
-					ints.add(1.0);
-				}
+				Arrays.fill(ints, 1.0);
 			}
 		}
 
 		return ints;
 	}
 
-	public ArrayList<Float> getPrecursorMasses() {
-		ArrayList<Float> precs = new ArrayList<>();
-		int col = getPrecursorCol();
-		for (int i = 0; i < data.size(); i++) {
-			String [] sp = data.get(i).split("\t");
-			precs.add(Float.parseFloat(sp[col]));
-		}
-		return precs;
+	public float [] getPrecursorMasses() {
+		return getTable().precursorMass;
 	}
 
 	public int getPrecursorCol() {
@@ -395,73 +384,13 @@ public class PSMFile {
 		return col;
 	}
 
+	/* Maps each run of the analysis to its preferred spectral file below path */
 	public static void getMappings(File path, HashMap<String,File> mappings, HashSet<String> runNames) {
-		// File priority list, this will return the first one matched so insertion order must be consistent
-		LinkedHashMap<String, Integer> priorities = new LinkedHashMap<>();
-		priorities.put(".mzBIN_cache", 20);
-		priorities.put("_calibrated.mzML", 19);
-		priorities.put("_uncalibrated.mzML", 18);
-		priorities.put("_calibrated.mgf", 17);
-		priorities.put("_uncalibrated.mgf", 16);
-		priorities.put(".mzML", 15);
-		priorities.put(".mzXML", 14);
-		priorities.put(".mzBIN", 13);
-		priorities.put(".mgf", 4);
-		priorities.put(".raw", 1);
-		priorities.put("None", 0);
-
-		// Recursively search all directories
-		if(path.isDirectory()) {
-			File [] ls = path.listFiles();
-			// get mapping for each file
-			for(int i = 0; i < ls.length; i++) {
-				getMappings(ls[i],mappings, runNames);
-			}
-		} else { // see if valid file ext
-			String matchedKey = getMatchingExtension(path, priorities);
-			if (matchedKey != null) { // end of name exists in priorities map
-				String rawFileName = removeCalTag(splitName(path.getName())[0]);
-				// If raw file not part of this analysis, continue
-				if (!mappings.containsKey(rawFileName))
-					return;
-				// New raw file info
-				int newRawFilePriority = priorities.get(matchedKey);
-				// Existing raw file info
-				File previousRawFile = mappings.getOrDefault(rawFileName, null);
-				if (previousRawFile == null) // no file mapped yet
-					mappings.put(rawFileName, path);
-				else { // Compare and replace if appropriate
-					int previousRawFilePriority = priorities.get(getMatchingExtension(previousRawFile, priorities));
-					if (newRawFilePriority > previousRawFilePriority) {
-						mappings.put(rawFileName, path);
-					}
-				}
-			}
-		}
-	}
-
-	private static String getMatchingExtension(File file, HashMap<String, Integer> priority) {
-		for (String key : priority.keySet()) {
-			if (file.getName().endsWith(key)) {
-				return key;  // Returns the extension key if the file name ends with it
-			}
-		}
-		return null;  // No matching extension found
+		SpectralFileCatalog.forPath(path).resolve(mappings);
 	}
 
-
 	public TreeMap<String, Integer> getMS2Counts() {
-		TreeMap<String, Integer> cnts = new TreeMap<>();
-		int col = getColumn("Spectrum");
-		for(int i = 0; i < data.size(); i++) {
-			String [] sp = data.get(i).split("\t");
-			String d = sp[col];
-			String crun = d.substring(0, d.indexOf("."));
-			if (!cnts.containsKey(crun))
-				cnts.put(crun, 0);
-			cnts.put(crun, cnts.get(crun) + 1);
-		}
-		return cnts;
+		return getTable().getRunCounts();
 	}
 
 	/* Merges the rawglyco table onto the existing psm.tsv
@@ -470,21 +399,27 @@ public class PSMFile {
 	*/
 	public void mergeGlycoTable(File glyf, int numColsToUse, GlycoParams glycoParams) throws Exception {
 		BufferedReader in = new BufferedReader(new FileReader(glyf), 1 << 22);
-		String tempFoutName = this.fname + ".glyco.tmp";
-		PrintWriter out = new PrintWriter(new FileWriter(tempFoutName));
 		String[] glyHeaders = in.readLine().split("\t");
 
-		/* Get glyco data */
-		HashMap<String, String[]> glyLines = new HashMap<>();
+		/* Get glyco data, placed by PSM row through the row index */
+		String [][] glyLines = new String[this.data.size()][];
 		String cgline;
 		int gSpecCol = 0; //todo: should be dynamically calculated
+		int pSpecCol = getColumn("Spectrum");
+		int nGlyLines = 0;
 		while ((cgline = in.readLine()) != null) {
 			String[] sp = cgline.split("\t", -1);
-			glyLines.put(sp[gSpecCol], sp);
+			if (sp.length == 1 && sp[0].equals("COMPLETE"))
+				continue;
+			nGlyLines++;
+			int row = findRow(sp[gSpecCol]);
+			// spectrum keys must match exactly, the index also matches renormed names
+			if (row != -1 && PSMIndex.field(this.data.get(row), pSpecCol).equals(sp[gSpecCol]))
+				glyLines[row] = sp;
 		}
 		in.close();
 
-		if (glyLines.size() < 2) {
+		if (nGlyLines == 0) {
 			// no glycan information found (empty file or only line is "COMPLETE") - do not edit PSM table
 			PTMShepherd.print("Warning: no modified spectra found, no glycans written to PSM table. Check input data and parameters");
 			return;
@@ -523,64 +458,73 @@ public class PSMFile {
 		int glycanScoreCol = mergeFromCol + 1;
 		int glycanQvalCol = mergeFromCol + 2;
 
-		ArrayList<String> newHeaders = new ArrayList<>(Arrays.asList(this.headers));
 		// add after observed mod column (observedModCol + 1)
 		boolean hasPreviousGlycoInfo = hasGlycanAssignmentsWritten();
-		if (!hasPreviousGlycoInfo) {
-			// do not add glyco headers if the PSM table already has them
-			newHeaders.addAll(observedModCol + 1, Arrays.asList(glyHeaders).subList(mergeFromCol, mergeFromCol + numColsToUse));
+		int nInserted = hasPreviousGlycoInfo ? 0 : numColsToUse; // do not add glyco headers if the PSM table already has them
+		if (!hasPreviousGlycoInfo)
 			fraggerLocCol = fraggerLocCol + numColsToUse;
-		}
-		out.println(String.join("\t", newHeaders));
-
-		/* Match glycolines on PSM spectrum keys */
-		int pSpecCol = getColumn("Spectrum");
-		for (String cpline : this.data) {
-			ArrayList<String> newLine = new ArrayList<>(Arrays.asList(cpline.split("\t")));
-			String pSpec = newLine.get(pSpecCol);
-			if (!hasPreviousGlycoInfo) {
-				// add columns for glycan score and q-value before proceeding (for all lines, whether glycan-containing or not)
-				for (int i=0; i < numColsToUse; i++) {
-					newLine.add(observedModCol + 1 + i, "");
-				}
-			}
-
+		int nCols = this.headers.length + nInserted;
+		String [][] colVals = new String[nCols][];
+
+		/* Match glycolines on PSM spectrum keys, keeping only the cells that change as column edits */
+		for (int row = 0; row < this.data.size(); row++) {
+			if (glyLines[row] == null)
+				continue; // inserted cells stay empty, nothing else changes
+			ArrayList<String> newLine = new ArrayList<>(Arrays.asList(this.data.get(row).split("\t", -1)));
+			// add columns for glycan score and q-value before proceeding (for all lines, whether glycan-containing or not)
+			for (int i = 0; i < nInserted; i++)
+				newLine.add(observedModCol + 1 + i, "");
+			ArrayList<String> oldLine = new ArrayList<>(newLine);
+
+			ArrayList<String> glyLine = new ArrayList<>(Arrays.asList(glyLines[row]));
 			// check if a glycan was found
-			if (glyLines.containsKey(pSpec)) {
-				ArrayList<String> glyLine = new ArrayList<>(Arrays.asList(glyLines.get(pSpec)));
-				if (glyLine.get(mergeFromCol).length() > 0) {
-					String rawGlycan = glyLine.get(mergeFromCol);
-					String observedGlycan;
-					String glycanScore = glyLine.get(glycanScoreCol);
-					if (rawGlycan.contains("Decoy")) {
-						if (!glycoParams.printGlycoDecoys) {
-							// report best target glycan instead of decoy (q-value will be reported as 1)
-							rawGlycan = glyLine.get(bestTargetGlycanCol);
-							glycanScore = glyLine.get(bestTargetScoreCol);
-						}
-					} 
-					if (rawGlycan.contains("FailFDR")) {
-						observedGlycan = rawGlycan.replace("FailFDR_", "");
-					} else {
-						observedGlycan = rawGlycan;
+			if (glyLine.get(mergeFromCol).length() > 0) {
+				String rawGlycan = glyLine.get(mergeFromCol);
+				String observedGlycan;
+				String glycanScore = glyLine.get(glycanScoreCol);
+				if (rawGlycan.contains("Decoy")) {
+					if (!glycoParams.printGlycoDecoys) {
+						// report best target glycan instead of decoy (q-value will be reported as 1)
+						rawGlycan = glyLine.get(bestTargetGlycanCol);
+						glycanScore = glyLine.get(bestTargetScoreCol);
 					}
+				} 
+				if (rawGlycan.contains("FailFDR")) {
+					observedGlycan = rawGlycan.replace("FailFDR_", "");
+				} else {
+					observedGlycan = rawGlycan;
+				}
 
-					// add the final glycan info to the line
-					newLine.set(observedModCol + 1, observedGlycan);
-					newLine.set(observedModCol + 2, glycanScore);
-					newLine.set(observedModCol + 3, glyLine.get(glycanQvalCol));
-					int charge = Integer.parseInt(newLine.get(chargeCol));
-					if (glycoParams.writeGlycansToAssignedMods) {
-						newLine = writeGlycanToAssignedMod(newLine, rawGlycan, charge, glycoParams);
-					}
+				// add the final glycan info to the line
+				newLine.set(observedModCol + 1, observedGlycan);
+				newLine.set(observedModCol + 2, glycanScore);
+				newLine.set(observedModCol + 3, glyLine.get(glycanQvalCol));
+				int charge = Integer.parseInt(newLine.get(chargeCol));
+				if (glycoParams.writeGlycansToAssignedMods) {
+					newLine = writeGlycanToAssignedMod(newLine, rawGlycan, charge, glycoParams);
+				}
+			}
+			for (int c = 0; c < Math.min(nCols, newLine.size()); c++) {
+				if (!newLine.get(c).equals(oldLine.get(c))) {
+					if (colVals[c] == null)
+						colVals[c] = new String[this.data.size()];
+					colVals[c][row] = newLine.get(c);
 				}
 			}
-			out.println(String.join("\t", newLine));
 		}
-		out.close();
 
-		/* Move old file onto new file */
-		Files.move(Paths.get(tempFoutName), Paths.get(String.valueOf(this.fname)), StandardCopyOption.REPLACE_EXISTING);
+		/* Inserted glyco columns first, then replaced cells in the new layout */
+		int first = journal.size();
+		for (int i = 0; i < nInserted; i++) {
+			int c = observedModCol + 1 + i;
+			journal.insertColumn(c, glyHeaders[mergeFromCol + i], (colVals[c] == null) ? new String[this.data.size()] : colVals[c]);
+		}
+		for (int c = 0; c < nCols; c++) {
+			boolean inserted = c > observedModCol && c <= observedModCol + nInserted;
+			if (!inserted && colVals[c] != null)
+				journal.replaceColumn(c, colVals[c]);
+		}
+		applyJournal(first);
 	}
 
 	/**
@@ -837,13 +781,9 @@ public class PSMFile {
 		}
 
 		FastLocator locator = new FastLocator(peakBounds, precTol, precUnits);
-		String tempFoutName = this.fname + ".iq.tmp";
-		PrintWriter out = new PrintWriter(new FileWriter(tempFoutName));
-
-		/* Write the new header */
-		out.println(String.join("\t", this.headers) + "\tTheoretical Modification Mass");
 
 		/* For each line in the file, find the peak apex from the delta mass*/
+		String [] vals = new String[this.data.size()];
 		for (int i = 0; i < this.data.size(); i++) {
 			String[] sp = this.data.get(i).split("\t");
 			double dmass = Double.parseDouble(sp[this.dMassCol]);
@@ -852,14 +792,12 @@ public class PSMFile {
 				theoreticalDmass = dmass;
 			else
 				theoreticalDmass = peakBounds[0][locator.getIndex(dmass)];
-			out.println(this.data.get(i) + "\t" + String.format("%.4f", theoreticalDmass));
+			vals[i] = String.format("%.4f", theoreticalDmass);
 		}
 
-		out.close();
-
-		this.fname.delete();
-		File newFileName = new File(tempFoutName);
-		newFileName.renameTo(this.fname);
+		int first = journal.size();
+		journal.insertColumn(this.headers.length, "Theoretical Modification Mass", vals);
+		applyJournal(first);
 	}
 
 	public PSMFile(File f) throws Exception {
@@ -887,13 +825,40 @@ public class PSMFile {
 		for (int i = 0; i < this.data.size(); i++) {
 			PSM tPSM = this.getRawLine(i);
 			psms.add(tPSM);
+			this.bytes += 2L * this.data.get(i).length() + 200; // row text, PSM and PSMTable entries
 		}
 	}
 
-	private void constructScanToLineMap() {
-		this.scanToLine = new HashMap<>();
-		for (int i = 0; i < this.psms.size(); i++)
-			this.scanToLine.put(this.psms.get(i).getSpec(), i);
+	/* Rough memory of this file as read, used to bound how many files are kept loaded */
+	public long estimateBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Row index of the psm.tsv on disk, built or reopened on first use. Pending edits never change row order or
+	 * spectrum names, so the index stays valid until flush() rewrites the file.
+	 */
+	public synchronized PSMIndex getIndex() throws IOException {
+		if (this.index == null) {
+			this.index = PSMIndex.open(this.fname);
+			if (this.index.size() != this.data.size()) {
+				// stale sidecar with a matching size and time stamp, rebuild it once
+				this.index.close();
+				this.index = null;
+				deleteIndexFile();
+				this.index = PSMIndex.open(this.fname);
+			}
+			if (this.index.size() != this.data.size())
+				PTMShepherd.die(String.format("Row index of %s has %d rows, expected %d",
+						this.fname, this.index.size(), this.data.size()));
+		}
+		return this.index;
+	}
+
+	/* Row of a spectrum in this.data, checked against the in-memory rows, -1 if absent */
+	private int findRow(String spec) throws IOException {
+		int specCol = getColumn("Spectrum");
+		return getIndex().findRow(spec, row -> PSMIndex.field(this.data.get(row), specCol));
 	}
 
     public void annotateMassDiffs(String [] annotations) throws IOException {
@@ -907,40 +872,59 @@ public class PSMFile {
 		if (annoCol == -1)
 			annoCol = this.headers.length - 1;
 
-		/* write annotations to lines */
-		ArrayList<String> newLines = new ArrayList<>();
-		for (int i = 0; i < this.data.size(); i++) {
-			ArrayList<String> sp = new ArrayList<String>(Arrays.asList(this.data.get(i).split("\t")));
-			if (overwrite == true)
-				sp.set(annoCol, annotations[i]);
-			else
-				sp.add(annoCol, annotations[i]);
-			newLines.add(String.join("\t", sp));
-		}
+		/* record annotations as a column edit, written with the other edits by flush() */
+		int first = journal.size();
+		if (overwrite)
+			journal.replaceColumn(annoCol, annotations);
+		else
+			journal.insertColumn(annoCol, "Observed Modifications", annotations);
+		applyJournal(first);
+    }
 
-		/* fix up headers */
-		if (overwrite == false) {
-			ArrayList<String> heads = new ArrayList<>(Arrays.asList(this.headers));
-			heads.add(annoCol, "Observed Modifications");
-			heads.toArray(this.headers);
-		}
+	/* Applies journal edits from first onwards to the in-memory rows so later stages see them before flush() */
+	private void applyJournal(int first) {
+		int last = journal.size();
+		this.headers = journal.applyHeaders(this.headers, first, last);
+		for (int i = 0; i < this.data.size(); i++)
+			this.data.set(i, journal.applyRow(i, this.data.get(i), first, last));
+		resetRows();
+	}
 
-		/* write output */
-		String tempFoutName = this.fname + ".anno.tmp";
-		PrintWriter out = new PrintWriter(new FileWriter(tempFoutName));
+	/**
+	 * Writes pending column edits to the file on disk in one pass
+	 */
+	public synchronized void flush() throws IOException {
+		if (journal.size() == 0)
+			return;
+		// the index holds the psm.tsv open, which would keep it from being replaced on Windows,
+		// and its row offsets no longer match the rewritten file
+		if (this.index != null) {
+			this.index.close();
+			this.index = null;
+		}
+		journal.merge(this.fname);
+		deleteIndexFile();
+	}
 
-		/* write the new header */
-		out.println(String.join("\t", this.headers));
-		/* write file lines */
-		for (int i = 0; i < newLines.size(); i ++)
-			out.println(newLines.get(i));
+	private void deleteIndexFile() throws IOException {
+		File idxFile = PSMIndex.indexFile(this.fname);
+		if (!idxFile.delete() && idxFile.exists())
+			throw new IOException(String.format("Could not delete stale row index %s", idxFile));
+	}
 
-		/* close and rename temp file */
-		out.close();
-		this.fname.delete();
-		File newFileName = new File(tempFoutName);
-		newFileName.renameTo(this.fname);
-    }
+	/* Drops per-row caches after this.data or this.headers have been replaced */
+	private void resetRows() {
+		int col = getColumn("Delta Mass");
+		if (col == -1)
+			col = getColumn("Adjusted Delta Mass");
+		if (col == -1)
+			col = getColumn("Original Delta Mass");
+		this.dMassCol = col;
+		this.psms = new ArrayList<>();
+		for (int i = 0; i < this.data.size(); i++)
+			this.psms.add(this.getRawLine(i));
+		this.table = null;
+	}
 
 	/**
 	 * Parse the location index from an Assigned Modification in the PSM table. If location is C-term,
@@ -986,62 +970,37 @@ public class PSMFile {
     	return Double.parseDouble(massSplits[0]);
 	}
 
-	/**
-	 * @param indx		insertion index
-	 * @param newHead	new header to be inserted
-	 * @return			-1 if header not already present and successfully inserted, header index if already present
-	 */
-	private int addHeader(int indx, String newHead) {
-		// Check if column already exists
-		int oldHeaderIndx = getColumn(newHead);
-
-		// If header doesn't already exist, edit headers
-		if (oldHeaderIndx == -1) {
-			ArrayList<String> newHeaders = new ArrayList<String>(Arrays.asList(this.headers));
-			newHeaders.add(indx, newHead);
-			this.headers = newHeaders.toArray(new String[newHeaders.size()]);
-		} else {
-			System.out.printf("\t%s found in headers, overwriting existing column%n", newHead);
-		}
-
-		return oldHeaderIndx;
-	}
-
-	public void addColumn(int colIndx, String newHead, ArrayList<String> keys, ArrayList<String> vals) {
+	public void addColumn(int colIndx, String newHead, ArrayList<String> keys, ArrayList<String> vals) throws IOException {
 		// Check that PSM table editing will not fail
 		if (vals.size() != this.data.size() || keys.size() != data.size()) {
 			throw new ArrayIndexOutOfBoundsException("Input arrays and PSM table are not the same length, " +
 					"editing PSM table will fail\n");
 		}
 
-		// Check that the scan to line mapping has been constructed
-		if (this.scanToLine == null)
-			constructScanToLineMap();
-
 		//TODO if column not found and inserting to the right, it will insert at the beginning of the table
 		// This fixes it, but the error message should be different. Not sure how to check colIndx
 		if (colIndx == 0)
 			throw new ArrayIndexOutOfBoundsException("\tSpectrum is a protected column, refusing to overwrite\n");
 
+		// Order values by row
+		String [] rowVals = new String[this.data.size()];
+		for (int i = 0; i < keys.size(); i++) {
+			int row = findRow(keys.get(i)); // names are renormed by the index
+			if (row == -1)
+				throw new IllegalArgumentException(String.format("Spectrum %s not found in %s", keys.get(i), this.fname));
+			rowVals[row] = vals.get(i);
+		}
+
 		// Check that header doesn't already exist
-		int existingHeaderIndx = addHeader(colIndx, newHead);
+		int existingHeaderIndx = getColumn(newHead);
+		int first = journal.size();
 		if (existingHeaderIndx == -1) {
-			for (int i = 0; i < keys.size(); i++) {
-				String specKey = reNormName(keys.get(i)); // Automatically check for renormed name and apply
-				int rowIndx = this.scanToLine.get(specKey);
-				PSM tPSM = this.getLine(rowIndx);
-				tPSM.addValAtColumn(newHead, vals.get(i));
-				tPSM.updateLine();
-			}
+			journal.insertColumn(colIndx, newHead, rowVals);
 		} else {
-			for (int i = 0; i < keys.size(); i++) {
-				String specKey = reNormName(keys.get(i)); // Automatically check for renormed name and apply
-				int rowIndx = this.scanToLine.get(specKey);
-				PSM tPSM = this.getLine(rowIndx);
-				tPSM.replaceValAtColumn(newHead, vals.get(i));
-				tPSM.updateLine();
-			}
+			System.out.printf("\t%s found in headers, overwriting existing column%n", newHead);
+			journal.replaceColumn(existingHeaderIndx, rowVals);
 		}
+		applyJournal(first);
 	}
 
 	/**
@@ -1090,20 +1049,25 @@ public class PSMFile {
 		return values;
 	}
 
+	/**
+	 * Writes the table. With overwrite, pending column edits are merged into the file on disk, otherwise the
+	 * in-memory rows are written next to it as a .tmp file.
+	 */
 	public void save(boolean overwrite) throws IOException {
+		if (overwrite) {
+			flush();
+			return;
+		}
 		String tempFoutName = this.fname + ".tmp";
 		PrintWriter out = new PrintWriter(new FileWriter(tempFoutName));
 
 		// Write lines to .tmp file file
 		out.println(headersToString());
 		for (int i = 0; i < this.data.size(); i++) {
-			out.println(this.getLine(i).toString());
+			out.println(this.data.get(i));
 		}
 
 		out.close();
-
-		if (overwrite)
-			Files.move(Paths.get(tempFoutName), Paths.get(String.valueOf(this.fname)), StandardCopyOption.REPLACE_EXISTING);
 	}
 
 	private String headersToString() {
@@ -0,0 +1,344 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Row index of a psm.tsv, kept next to it as a .psmidx file: byte offset and length of each data row, its scan
+ * number, and 64-bit hashes of the normalized spectrum names with a sorted lookup table. The index is read into
+ * one buffer of 32 bytes per row, so rows are found by spectrum name in O(log n) and read from disk one at a time,
+ * without the rows or a map of names on the heap. It is not memory-mapped, a mapping cannot be released on demand
+ * and would keep the file from being replaced on Windows. Rows are numbered like PSMFile.data, skipping empty lines.
+ * The index is rebuilt when the psm.tsv no longer has the size and modification time it was built from.
+ */
+public class PSMIndex implements Closeable {
+
+	private static final int MAGIC = 0x50534d49; // PSMI
+	private static final int VERSION = 1;
+	private static final int HEADER = 4 + 4 + 8 + 8 + 4 + 4; // magic, version, size, mtime, rows, spectrum column
+
+	private final File psmFile;
+	private final FileChannel psm;
+	private final ByteBuffer idx;
+	private final int rows;
+	private final int specCol;
+	private final int startsPos, lengthsPos, scansPos, hashesPos, keysPos;
+	private ByteBuffer rowBuf = ByteBuffer.allocate(1 << 12);
+
+	private PSMIndex(File psmFile, File idxFile) throws IOException {
+		this.psmFile = psmFile;
+		try (FileChannel ch = FileChannel.open(idxFile.toPath(), StandardOpenOption.READ)) {
+			if (ch.size() > Integer.MAX_VALUE)
+				throw new IOException(String.format("%s is too large to load", idxFile));
+			idx = ByteBuffer.allocate((int) ch.size());
+			while (idx.hasRemaining()) {
+				if (ch.read(idx) < 0)
+					throw new EOFException(String.format("%s is truncated", idxFile));
+			}
+		}
+		rows = idx.getInt(24);
+		specCol = idx.getInt(28);
+		startsPos = HEADER;
+		lengthsPos = startsPos + 8 * rows;
+		scansPos = lengthsPos + 4 * rows;
+		hashesPos = scansPos + 4 * rows;
+		keysPos = hashesPos + 8 * rows;
+		psm = FileChannel.open(psmFile.toPath(), StandardOpenOption.READ);
+	}
+
+	public static File indexFile(File psmFile) {
+		return new File(psmFile.getPath() + ".psmidx");
+	}
+
+	/**
+	 * Opens the index of psmFile, building it first if it is missing or out of date
+	 */
+	public static PSMIndex open(File psmFile) throws IOException {
+		File idxFile = indexFile(psmFile);
+		if (!isCurrent(psmFile, idxFile))
+			build(psmFile, idxFile);
+		return new PSMIndex(psmFile, idxFile);
+	}
+
+	private static boolean isCurrent(File psmFile, File idxFile) throws IOException {
+		if (!idxFile.isFile() || idxFile.length() < HEADER)
+			return false;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(idxFile))) {
+			return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == psmFile.length()
+					&& in.readLong() == psmFile.lastModified();
+		}
+	}
+
+	/* Reads psmFile once, byte by byte, and writes the index to idxFile */
+	static void build(File psmFile, File idxFile) throws IOException {
+		long size = psmFile.length(), mtime = psmFile.lastModified();
+		long [] starts = new long[1024];
+		int [] lengths = new int[1024];
+		int [] scans = new int[1024];
+		long [] hashes = new long[1024];
+		int n = 0, specCol = -1;
+		try (InputStream in = new FileInputStream(psmFile)) {
+			byte [] buf = new byte[1 << 16];
+			int lim = 0, pos = 0; // unread bytes are buf[pos, lim)
+			long bufStart = 0; // file offset of buf[0]
+			boolean header = true, eof = false;
+			while (true) {
+				int end = pos;
+				while (end < lim && buf[end] != '\n' && buf[end] != '\r')
+					end++;
+				if (end == lim && !eof) {
+					// line continues past the buffer, keep it and read more
+					if (pos > 0) {
+						System.arraycopy(buf, pos, buf, 0, lim - pos);
+						bufStart += pos;
+						lim -= pos;
+						pos = 0;
+					}
+					if (lim == buf.length)
+						buf = Arrays.copyOf(buf, buf.length * 2);
+					int r = in.read(buf, lim, buf.length - lim);
+					if (r < 0)
+						eof = true;
+					else
+						lim += r;
+					continue;
+				}
+				int len = end - pos;
+				if (len > 0) {
+					if (header) {
+						specCol = Arrays.asList(new String(buf, pos, len, StandardCharsets.UTF_8).split("\t")).indexOf("Spectrum");
+						if (specCol == -1)
+							throw new IOException(String.format("No Spectrum column in %s", psmFile));
+						header = false;
+					} else {
+						if (n == starts.length) {
+							starts = Arrays.copyOf(starts, n * 2);
+							lengths = Arrays.copyOf(lengths, n * 2);
+							scans = Arrays.copyOf(scans, n * 2);
+							hashes = Arrays.copyOf(hashes, n * 2);
+						}
+						String spec = normName(field(buf, pos, end, specCol));
+						starts[n] = bufStart + pos;
+						lengths[n] = len;
+						scans[n] = scanNum(spec);
+						hashes[n] = hash(spec);
+						n++;
+					}
+				}
+				if (end == lim)
+					break; // end of file
+				// a \r\n break leaves an empty line, which is skipped like any other
+				pos = end + 1;
+			}
+		}
+
+		// lookup keys are the upper half of the hash over the row, sorted as plain longs
+		long [] keys = new long[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = (hashes[i] & 0xffffffff00000000L) | i;
+		Arrays.sort(keys);
+
+		File tmp = new File(idxFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(size);
+			out.writeLong(mtime);
+			out.writeInt(n);
+			out.writeInt(specCol);
+			for (int i = 0; i < n; i++)
+				out.writeLong(starts[i]);
+			for (int i = 0; i < n; i++)
+				out.writeInt(lengths[i]);
+			for (int i = 0; i < n; i++)
+				out.writeInt(scans[i]);
+			for (int i = 0; i < n; i++)
+				out.writeLong(hashes[i]);
+			for (int i = 0; i < n; i++)
+				out.writeLong(keys[i]);
+		}
+		if (!tmp.renameTo(idxFile)) {
+			if (!idxFile.delete() && idxFile.exists())
+				throw new IOException(String.format("Could not replace %s", idxFile));
+			if (!tmp.renameTo(idxFile))
+				throw new IOException(String.format("Could not write %s", idxFile));
+		}
+	}
+
+	public int size() {
+		return rows;
+	}
+
+	/* Scan number of a row, -1 if its spectrum name has none */
+	public int scanNum(int row) {
+		return idx.getInt(scansPos + 4 * checkRow(row));
+	}
+
+	public long offset(int row) {
+		return idx.getLong(startsPos + 8 * checkRow(row));
+	}
+
+	/**
+	 * Row with the given spectrum name, which is normalized like PSMFile.PSM.getSpec()
+	 * @return row index, -1 if the table has no such spectrum
+	 */
+	public int findRow(String spectrum) throws IOException {
+		try {
+			return findRow(spectrum, row -> {
+				try {
+					return field(readRow(row), specCol);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Row with the given spectrum name, confirming hash matches with rowSpectrum, which gives the Spectrum field of a
+	 * row. Callers holding the rows in memory use this to avoid reading the psm.tsv.
+	 * @return row index, -1 if the table has no such spectrum
+	 */
+	public int findRow(String spectrum, IntFunction<String> rowSpectrum) {
+		String name = normName(spectrum);
+		long h = hash(name);
+		long hi = h >> 32;
+		// first key with the same upper half
+		int lo = 0, hiIdx = rows;
+		while (lo < hiIdx) {
+			int mid = (lo + hiIdx) >>> 1;
+			if ((key(mid) >> 32) < hi)
+				lo = mid + 1;
+			else
+				hiIdx = mid;
+		}
+		for (int i = lo; i < rows && (key(i) >> 32) == hi; i++) {
+			int row = (int) key(i);
+			if (idx.getLong(hashesPos + 8 * row) == h && normName(rowSpectrum.apply(row)).equals(name))
+				return row;
+		}
+		return -1;
+	}
+
+	private long key(int i) {
+		return idx.getLong(keysPos + 8 * i);
+	}
+
+	/* Reads one data row from the psm.tsv, without its line break */
+	public synchronized String readRow(int row) throws IOException {
+		long start = offset(row);
+		int len = idx.getInt(lengthsPos + 4 * row);
+		if (rowBuf.capacity() < len)
+			rowBuf = ByteBuffer.allocate(Math.max(len, rowBuf.capacity() * 2));
+		rowBuf.clear().limit(len);
+		while (rowBuf.hasRemaining()) {
+			if (psm.read(rowBuf, start + rowBuf.position()) < 0)
+				throw new EOFException(String.format("%s is shorter than its index", psmFile));
+		}
+		return new String(rowBuf.array(), 0, len, StandardCharsets.UTF_8);
+	}
+
+	private int checkRow(int row) {
+		if (row < 0 || row >= rows)
+			throw new IndexOutOfBoundsException(String.format("Row %d out of bounds for %d rows", row, rows));
+		return row;
+	}
+
+	/* Closes the psm.tsv, which must happen before the file is replaced */
+	@Override
+	public void close() throws IOException {
+		psm.close();
+	}
+
+	/* Spectrum names as PSMFile keys them, names without run and scan fields are kept as they are */
+	private static String normName(String spec) {
+		int dot = spec.indexOf('.');
+		if (dot < 0 || spec.indexOf('.', dot + 1) < 0)
+			return spec;
+		return PTMShepherd.reNormName(spec);
+	}
+
+	/* Scan number of a normalized name, run.scan.scan */
+	private static int scanNum(String name) {
+		int end = name.lastIndexOf('.');
+		int start = (end > 0) ? name.lastIndexOf('.', end - 1) : -1;
+		if (start < 0)
+			return -1;
+		try {
+			return Integer.parseInt(name.substring(start + 1, end));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/* FNV-1a over the chars, then the MurmurHash3 finalizer to spread the upper half */
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static String field(byte [] b, int from, int to, int col) {
+		int start = from;
+		for (int c = 0; c < col; c++) {
+			while (start < to && b[start] != '\t')
+				start++;
+			start++;
+		}
+		if (start > to)
+			return "";
+		int end = start;
+		while (end < to && b[end] != '\t')
+			end++;
+		return new String(b, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	static String field(String line, int col) {
+		int start = 0;
+		for (int c = 0; c < col && start >= 0; c++) {
+			start = line.indexOf('\t', start);
+			if (start >= 0)
+				start++;
+		}
+		if (start < 0)
+			return "";
+		int end = line.indexOf('\t', start);
+		return line.substring(start, (end < 0) ? line.length() : end);
+	}
+
+	/* Spectrum field of a row held in memory */
+	public String spectrumOf(String line) {
+		return field(line, specCol);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Streams the rows of a psm.tsv in fixed-size batches for stages that need a single pass over the PSMs. A reader
+ * thread splits the next batches while the caller works on the current one, and blocks once a few batches are
+ * waiting, so memory stays bounded by the batch size rather than the size of the file.
+ */
+public final class PSMReader implements AutoCloseable {
+
+	public static final int QUEUED_BATCHES = 4;
+
+	private static final ArrayList<String []> END = new ArrayList<>();
+
+	public final File fname;
+	public final String [] headers;
+	public final int dMassCol;
+
+	private final BufferedReader in;
+	private final int batchSize;
+	private final ArrayBlockingQueue<ArrayList<String []>> queue;
+	private final Thread reader;
+	private volatile Exception failure;
+	private volatile boolean closed;
+	private boolean done;
+
+	/**
+	 * Opens a psm.tsv file and starts reading it in the background
+	 * @param batchSize maximum number of rows handed out at once
+	 */
+	public static PSMReader open(File f, int batchSize) throws IOException {
+		PSMReader pr = new PSMReader(f, batchSize);
+		pr.reader.start(); // only once the reader is fully constructed
+		return pr;
+	}
+
+	private PSMReader(File f, int batchSize) throws IOException {
+		this.fname = f;
+		this.in = new BufferedReader(new FileReader(f), 1 << 22);
+		String header = in.readLine();
+		if (header == null) {
+			in.close();
+			throw new IOException("Empty PSM file " + f);
+		}
+		this.headers = header.split("\t");
+		int col = getColumn("Delta Mass");
+		if (col == -1)
+			col = getColumn("Adjusted Delta Mass");
+		if (col == -1)
+			col = getColumn("Original Delta Mass");
+		this.dMassCol = col;
+		this.batchSize = Math.max(1, batchSize);
+		this.queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+		this.reader = new Thread(this::read, "psm-reader-" + f.getName());
+		this.reader.setDaemon(true);
+	}
+
+	public int getColumn(String head) {
+		for (int i = 0; i < headers.length; i++)
+			if (headers[i].equals(head))
+				return i;
+		return -1;
+	}
+
+	public int getPrecursorCol() {
+		int col = getColumn("Calibrated Observed Mass");
+		if (col == -1)
+			col = getColumn("Observed Mass");
+		return col;
+	}
+
+	/**
+	 * Returns the next rows, each split on tabs, waiting for the reader thread if needed
+	 * @return next batch, null once every row was returned
+	 */
+	public ArrayList<String []> nextBatch() throws Exception {
+		if (done)
+			return null;
+		ArrayList<String []> batch = queue.take();
+		if (batch == END) {
+			done = true;
+			if (failure != null)
+				throw failure;
+			return null;
+		}
+		return batch;
+	}
+
+	private void read() {
+		try {
+			ArrayList<String []> batch = new ArrayList<>(batchSize);
+			String cline;
+			while (!closed && (cline = in.readLine()) != null) {
+				if (cline.length() == 0)
+					continue;
+				batch.add(cline.split("\t", -1));
+				if (batch.size() == batchSize) {
+					queue.put(batch);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			if (!batch.isEmpty() && !closed)
+				queue.put(batch);
+		} catch (InterruptedException e) {
+			return;
+		} catch (Exception e) {
+			failure = e;
+		}
+		try {
+			queue.put(END);
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	/* Stops the reader thread, also when the batches were not all read */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		in.close();
+	}
+}
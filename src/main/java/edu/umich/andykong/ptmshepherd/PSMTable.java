@@ -0,0 +1,215 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+import edu.umich.andykong.ptmshepherd.utils.StringDictionary;
+import edu.umich.andykong.ptmshepherd.utils.TsvCursor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Columnar view of a psm.tsv file. Numeric columns are stored as primitive arrays and string columns
+ * are dictionary encoded, so the table is parsed once and shared by every stage instead of each stage
+ * re-splitting the raw lines.
+ */
+public class PSMTable {
+
+	public final int size;
+
+	/* numeric columns, null if the column is absent from the psm.tsv */
+	public final double [] deltaMass;
+	public final float [] precursorMass;
+	public final double [] intensity;
+	public final float [] rt;
+	public final int [] charge;
+	public final int [] scanNum; // parsed from the Spectrum column, -1 if it cannot be parsed
+
+	/* dictionary encoded string columns, null if the column is absent from the psm.tsv */
+	public final StringColumn spectrum;
+	public final StringColumn run;
+	public final StringColumn peptide;
+	public final StringColumn modifiedPeptide;
+	public final StringColumn mods;
+
+	/**
+	 * Dictionary encoded string column. Each row holds an int code into a list of distinct values. Columns backed by
+	 * a StringDictionary keep its shared String instances, so tables of all datasets hold one copy of each value.
+	 */
+	public static class StringColumn {
+		final int [] codes;
+		final ArrayList<String> values;
+		final HashMap<String, Integer> index;
+		final StringDictionary shared;
+
+		StringColumn(int size) {
+			this(size, null);
+		}
+
+		StringColumn(int size, StringDictionary shared) {
+			this.codes = new int[size];
+			this.values = new ArrayList<>();
+			this.index = new HashMap<>();
+			this.shared = shared;
+		}
+
+		void set(int row, String value) {
+			Integer code = index.get(value);
+			if (code == null) {
+				if (shared != null)
+					value = shared.get(shared.id(value));
+				code = values.size();
+				values.add(value);
+				index.put(value, code);
+			}
+			codes[row] = code;
+		}
+
+		public String get(int row) {
+			return values.get(codes[row]);
+		}
+
+		public int getCode(int row) {
+			return codes[row];
+		}
+
+		public String getValue(int code) {
+			return values.get(code);
+		}
+
+		/**
+		 * @return code of the value, or -1 if the value never appears in the column
+		 */
+		public int lookup(String value) {
+			return index.getOrDefault(value, -1);
+		}
+
+		public int cardinality() {
+			return values.size();
+		}
+	}
+
+	public PSMTable(PSMFile pf) {
+		this.size = pf.data.size();
+
+		int specCol = pf.getColumn("Spectrum");
+		int pepCol = pf.getColumn("Peptide");
+		int modPepCol = pf.getColumn("Modified Peptide");
+		int modCol = pf.getColumn("Assigned Modifications");
+		int dMassCol = pf.dMassCol;
+		int precCol = pf.getPrecursorCol();
+		int intCol = pf.getColumn("Intensity");
+		int rtCol = pf.getColumn("Retention");
+		int chargeCol = pf.getColumn("Charge");
+
+		this.deltaMass = (dMassCol == -1) ? null : new double[size];
+		this.precursorMass = (precCol == -1) ? null : new float[size];
+		this.intensity = (intCol == -1) ? null : new double[size];
+		this.rt = (rtCol == -1) ? null : new float[size];
+		this.charge = (chargeCol == -1) ? null : new int[size];
+		this.scanNum = (specCol == -1) ? null : new int[size];
+		this.spectrum = (specCol == -1) ? null : new StringColumn(size);
+		this.run = (specCol == -1) ? null : new StringColumn(size);
+		this.peptide = (pepCol == -1) ? null : new StringColumn(size, StringDictionary.PEPTIDES);
+		this.modifiedPeptide = (modPepCol == -1) ? null : new StringColumn(size, StringDictionary.MODIFIED_PEPTIDES);
+		this.mods = (modCol == -1) ? null : new StringColumn(size);
+
+		TsvCursor sp = new TsvCursor();
+		for (int i = 0; i < size; i++) {
+			sp.reset(pf.data.get(i));
+			if (deltaMass != null)
+				deltaMass[i] = sp.parseDouble(dMassCol);
+			if (precursorMass != null)
+				precursorMass[i] = sp.parseFloat(precCol);
+			if (intensity != null)
+				intensity[i] = sp.isEmpty(intCol) ? 0 : sp.parseDouble(intCol);
+			if (rt != null)
+				rt[i] = sp.parseFloat(rtCol);
+			if (charge != null)
+				charge[i] = sp.parseInt(chargeCol);
+			if (spectrum != null) {
+				String spec = sp.get(specCol);
+				spectrum.set(i, spec);
+				run.set(i, spec.substring(0, spec.indexOf(".")));
+				scanNum[i] = parseScanNum(spec);
+			}
+			if (peptide != null)
+				peptide.set(i, sp.get(pepCol));
+			if (modifiedPeptide != null)
+				modifiedPeptide.set(i, sp.get(modPepCol));
+			if (mods != null)
+				mods.set(i, sp.get(modCol));
+		}
+	}
+
+	/* Spectrum names are run.scan.scan.charge */
+	static int parseScanNum(String spec) {
+		int p = spec.indexOf('.');
+		int q = spec.indexOf('.', p + 1);
+		if (p == -1 || q == -1)
+			return -1;
+		try {
+			return Integer.parseInt(spec.substring(p + 1, q));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Groups row indices by the run (spectral file) they came from
+	 * @return run name -> list of row indices
+	 */
+	public HashMap<String, ArrayList<Integer>> getRunMappings() {
+		HashMap<String, ArrayList<Integer>> mappings = new HashMap<>();
+		for (int i = 0; i < size; i++) {
+			String bn = run.get(i);
+			if (!mappings.containsKey(bn))
+				mappings.put(bn, new ArrayList<>());
+			mappings.get(bn).add(i);
+		}
+		return mappings;
+	}
+
+	/**
+	 * @param rows row indices, e.g. the rows of one run from {@link #getRunMappings()}
+	 * @return sorted distinct scan numbers referenced by these rows
+	 */
+	public ArrayList<Integer> getScanNums(List<Integer> rows) {
+		TreeSet<Integer> scans = new TreeSet<>();
+		for (int row : rows) {
+			if (scanNum[row] != -1)
+				scans.add(scanNum[row]);
+		}
+		return new ArrayList<>(scans);
+	}
+
+	/**
+	 * @return run name -> number of rows from that run
+	 */
+	public TreeMap<String, Integer> getRunCounts() {
+		int [] cnts = new int[run.cardinality()];
+		for (int i = 0; i < size; i++)
+			cnts[run.getCode(i)]++;
+		TreeMap<String, Integer> res = new TreeMap<>();
+		for (int i = 0; i < cnts.length; i++)
+			res.put(run.getValue(i), cnts[i]);
+		return res;
+	}
+}
@@ -21,7 +21,10 @@ import static java.lang.System.out;
 import edu.umich.andykong.ptmshepherd.cleaner.CombinedExperimentsSummary;
 import edu.umich.andykong.ptmshepherd.cleaner.CombinedTable;
 import edu.umich.andykong.ptmshepherd.core.MXMLReader;
+import edu.umich.andykong.ptmshepherd.core.MzBinCache;
 import edu.umich.andykong.ptmshepherd.core.Spectrum;
+import edu.umich.andykong.ptmshepherd.core.SpectrumCache;
+import edu.umich.andykong.ptmshepherd.core.SpectrumKey;
 import edu.umich.andykong.ptmshepherd.diagnosticanalysis.DiagnosticExtractor;
 import edu.umich.andykong.ptmshepherd.diagnosticmining.DiagnosticAnalysis;
 import edu.umich.andykong.ptmshepherd.diagnosticmining.DiagnosticPeakPicker;
@@ -32,6 +35,7 @@ import edu.umich.andykong.ptmshepherd.glyco.GlycoParams;
 import edu.umich.andykong.ptmshepherd.glyco.GlycoProfile;
 import edu.umich.andykong.ptmshepherd.iterativelocalization.IterativeLocalizer;
 import edu.umich.andykong.ptmshepherd.localization.LocalizationProfile;
+import edu.umich.andykong.ptmshepherd.localization.LocalizationRecord;
 import edu.umich.andykong.ptmshepherd.localization.SiteLocalization;
 import edu.umich.andykong.ptmshepherd.peakpicker.Histogram;
 import edu.umich.andykong.ptmshepherd.peakpicker.MS2Counts;
@@ -39,9 +43,18 @@ import edu.umich.andykong.ptmshepherd.peakpicker.ModSummary;
 import edu.umich.andykong.ptmshepherd.peakpicker.PeakAnnotator;
 import edu.umich.andykong.ptmshepherd.peakpicker.PeakPicker;
 import edu.umich.andykong.ptmshepherd.peakpicker.PeakSummary;
+import edu.umich.andykong.ptmshepherd.pipeline.PerfRecorder;
+import edu.umich.andykong.ptmshepherd.pipeline.SpectralPipeline;
+import edu.umich.andykong.ptmshepherd.pipeline.StageGraph;
+import edu.umich.andykong.ptmshepherd.pipeline.TaskScheduler;
 import edu.umich.andykong.ptmshepherd.specsimilarity.SimRTAnalysis;
 import edu.umich.andykong.ptmshepherd.specsimilarity.SimRTProfile;
+import edu.umich.andykong.ptmshepherd.utils.FileFingerprint;
+import edu.umich.andykong.ptmshepherd.utils.IntList;
+import edu.umich.andykong.ptmshepherd.utils.StringDictionary;
+import edu.umich.andykong.ptmshepherd.utils.TsvCursor;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -53,18 +66,22 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import umich.ms.fileio.filetypes.mzbin.MZBINFile;
 import umich.ms.fileio.filetypes.mzbin.MZBINFile.MZBINSpectrum;
 
@@ -78,8 +95,15 @@ public class PTMShepherd {
 	static HashMap<String,HashMap<String,File>> mzMap;
 	static HashMap<String,Integer> datasetMS2;
 	static ArrayList<String> cacheFiles;
+	static LinkedHashMap<String,PSMFile> psmFiles; // loaded psm.tsv files, least recently used first
+	static long psmFileBytes; // estimated memory of psmFiles
 	private static String outputPath;
 	public static ExecutorService executorService;
+	static MzBinCache mzBinCache; // shared spectral cache directory, null if not configured
+	static PerfRecorder perf; // stage and unit costs, written to shepherd_perf.json
+	static ShepherdConfig config; // typed parameters for spectrum and PSM loops
+	static volatile boolean embedded; // set while a ShepherdSession runs, so fatal errors throw instead of exiting
+	static String [] runArgs; // arguments of the current run, passed on to shard workers
 	private static final long glycoRandomSeed = 1364955171;
 
 	// filenames for output files
@@ -106,13 +130,83 @@ public class PTMShepherd {
 	public static final String diagMineName = ".diagmine.tsv";
 	public static final String diagIonsExtractName = ".diagnosticIons.tsv";
 	public static final String glycoMassListName = "glyco_masses_list.txt";
+	public static final String stageCacheName = "shepherd_cache.tsv";
+	public static final String fingerprintIndexName = "shepherd_fingerprints.tsv";
+	public static final String perfReportName = "shepherd_perf.json";
 
 
 	public static String getParam(String key) {
 		return params.getOrDefault(key, "");
 	}
+
+	/* Typed parameters, built by init */
+	public static ShepherdConfig getConfig() {
+		return config;
+	}
+
+	/* Recorder of the current run's stage and unit costs, null outside of main */
+	public static PerfRecorder getPerfRecorder() {
+		return perf;
+	}
+
+	/**
+	 * Returns the parsed psm.tsv at this path, reading it only on first use so stages share one copy. Files over the
+	 * psm_cacheMB budget are flushed and dropped least recently used first, callers only hold on to a PSMFile while
+	 * they use it and a dropped file is read again, edits included, on its next use.
+	 */
+	public static synchronized PSMFile getPSMFile(String path) throws Exception {
+		String key = new File(path).getAbsolutePath();
+		PSMFile pf = psmFiles.get(key);
+		if (pf == null) {
+			pf = new PSMFile(new File(path));
+			psmFiles.put(key, pf);
+			psmFileBytes += pf.estimateBytes();
+			evictPSMFiles(key);
+		}
+		return pf;
+	}
+
+	/* Flushes and drops least recently used psm.tsv files until they fit psm_cacheMB, never the one just read */
+	private static void evictPSMFiles(String keep) throws IOException {
+		long memoryMB = Long.parseLong(params.get("psm_cacheMB"));
+		long maxBytes = (memoryMB > 0) ? memoryMB << 20 : Runtime.getRuntime().maxMemory() / 4;
+		Iterator<Map.Entry<String,PSMFile>> it = psmFiles.entrySet().iterator();
+		while (psmFileBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String,PSMFile> e = it.next();
+			if (e.getKey().equals(keep))
+				continue;
+			e.getValue().flush();
+			psmFileBytes -= e.getValue().estimateBytes();
+			it.remove();
+		}
+	}
+
+	/* Flushes and drops the shared copy of a psm.tsv, if any, before the file is rewritten in place */
+	private static synchronized void releasePSMFile(String path) throws IOException {
+		PSMFile pf = psmFiles.remove(new File(path).getAbsolutePath());
+		if (pf != null) {
+			pf.flush();
+			psmFileBytes -= pf.estimateBytes();
+		}
+	}
+
+	/* Writes the column edits stages made to the shared copies, one pass per psm.tsv */
+	public static synchronized void flushPSMFiles() throws IOException {
+		for (PSMFile pf : psmFiles.values())
+			pf.flush();
+	}
+
 	public static void die(String s) {
+		if (embedded)
+			throw new ShepherdException(s); // run() flushes the psm.tsv files
 		System.err.println("Fatal error: " + s);
+		//Keep the psm.tsv files consistent with the stage outputs already written
+		try {
+			if (psmFiles != null)
+				flushPSMFiles();
+		} catch (Exception e) {
+			System.err.println("Could not write pending psm.tsv edits: " + e);
+		}
 		System.exit(1);
 	}
 	
@@ -179,13 +273,26 @@ public class PTMShepherd {
 		}
 
 		HashMap<String,String> overrides = new HashMap<>();
+		runArgs = args.clone();
+		perf = null;
+		mzBinCache = null;
+		SpectralFileCatalog.clear();
+		LocalizationRecord.clearGlobalNorms();
+		SpectrumCache.reset(); // its readers hold SpectrumKey keys
+		SpectrumKey.clear();
+		StringDictionary.clearAll();
 		params = new HashMap<>();
 		datasets = new TreeMap<>();
 		mzMap = new HashMap<>();
 		datasetMS2 = new HashMap<>();
+		psmFiles = new LinkedHashMap<>(16, 0.75f, true);
+		psmFileBytes = 0;
 		
 		//default values
 		params.put("threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+		params.put("parallel_tasks", "1"); //datasets or runs processed at once, 0 = one per thread
+		params.put("parallel_memoryMB", "0"); //memory budget for admitting parallel tasks, 0 = half the max heap
+		params.put("parallel_stages", "1"); //independent pipeline stages run at once
 		params.put("histo_bindivs", "5000"); //number of divisions in histogram
 		params.put("histo_smoothbins", "2"); //smoothing factor
 		params.put("histo_normalizeTo", "psms"); //changing default normalization to "psms" instead of "scans"
@@ -217,6 +324,10 @@ public class PTMShepherd {
 		params.put("spectra_condRatio", "0.00001");
 		params.put("spectra_maxfragcharge", "2");//todo
 		params.put("spectra_maxPrecursorCharge", "4");
+		params.put("spectra_cacheMB", "0"); //memory budget for keeping decoded runs between stages, 0 = off
+		params.put("spectra_partialRead", "true"); //decode only PSM-referenced scans from mzBIN files
+		params.put("spectra_cacheDir", ""); //directory of conditioned spectra shared across runs, empty = off
+		params.put("spectra_cacheDirMB", "20480"); //size cap of spectra_cacheDir, 0 = unlimited
 		//TODO add precursor removal
 
 		params.put("compare_betweenRuns", "true");
@@ -273,6 +384,17 @@ public class PTMShepherd {
 		params.put("output_extended_diagmine", "false");
 		params.put("output_path", "");
 		params.put("run_from_old", "false");
+		params.put("cache_stageOutputs", "false"); //keep per-dataset outputs and reuse them while the dataset's inputs and params are unchanged
+		params.put("psm_streaming", "false"); //read psm.tsv files in bounded batches for histograms, MS2 counts and peak summaries
+		params.put("psm_streamBatch", "65536"); //rows per batch when streaming psm.tsv files
+		params.put("psm_cacheMB", "0"); //memory for psm.tsv files shared between stages, 0 = a quarter of the max heap
+		params.put("intermediate_format", "tsv"); //tsv, binary or binary_deflate for .rawlocalize, .rawsimrt and .diagnosticIons.tsv
+		params.put("outofcore_mode", "false"); //inter-run similarity/RT reads one run at a time, spilling zero bin spectra to disk
+		params.put("outofcore_memoryMB", "0"); //memory for zero bin spectra per partition, 0 = a quarter of the max heap
+		params.put("shard_workers", "0"); //worker processes for the per-dataset stages, 0 or 1 = run everything in this process
+		params.put("shard_workerMemMB", "0"); //max heap of each worker, 0 = this process's max heap divided by the workers
+		params.put("shard_phase", ""); //set by the coordinator, phase a worker runs
+		params.put("shard_datasets", ""); //set by the coordinator, datasets a worker runs it for
 		params.put("max_adducts", "1");
 		
 		//load parameters
@@ -290,6 +412,9 @@ public class PTMShepherd {
 			params.put(ckey, overrides.get(ckey));
 		}
 
+		if (!params.get("shard_datasets").isEmpty())
+			datasets.keySet().retainAll(Arrays.asList(params.get("shard_datasets").split(",")));
+
 		if(datasets.size() == 0)
 			die("no datasets specified!");
 		if(datasets.containsKey(combinedName))
@@ -305,9 +430,15 @@ public class PTMShepherd {
 		else
 			outputPath = params.get("output_path");
 
+		try {
+			config = ShepherdConfig.fromParams(params);
+		} catch (IllegalArgumentException e) {
+			die("invalid parameter: " + e.getMessage());
+		}
+
 		makeOutputDir(outputPath);
 
-		executorService = Executors.newFixedThreadPool(Integer.parseInt(params.get("threads")));
+		executorService = Executors.newFixedThreadPool(config.threads);
 	}
 
 	private static void printAnnotationFiles() throws Exception {
@@ -322,6 +453,8 @@ public class PTMShepherd {
 
 	public static void main(String [] args) throws Exception {
 		Locale.setDefault(new Locale("en","US"));
+		if (args.length >= 2 && args[0].equals("--client"))
+			System.exit(ShepherdDaemon.submit(Paths.get(args[1]), Arrays.copyOfRange(args, 2, args.length)));
 		out.println();
 		out.printf("%s version %s\n",name,version);
 		out.println("(c) 2022 University of Michigan\n");
@@ -337,34 +470,106 @@ public class PTMShepherd {
 					"\t\tjava -jar ptmshepherd-%s-.jar --annotate\n", version);
 			out.printf("\tTo run PTM-Shepherd:\n" +
 					"\t\tjava -jar ptmshepherd-%s-.jar config_file.txt\n", version);
+			out.printf("\tTo keep PTM-Shepherd running and send it analyses over a Unix socket:\n" +
+					"\t\tjava -jar ptmshepherd-%s-.jar --daemon socket_file\n" +
+					"\t\tjava -jar ptmshepherd-%s-.jar --client socket_file config_file.txt\n", version, version);
 			out.println();
 			System.exit(0);
 		}
 
+		if (args.length == 2 && args[0].equals("--daemon")) {
+			new ShepherdDaemon(Paths.get(args[1])).serve();
+			return;
+		}
+
+		run(args);
+	}
+
+	/**
+	 * Runs one analysis with the given command line arguments, leaving nothing running when it returns. Called by
+	 * main and by ShepherdSession, which keeps the JVM and parsed databases warm between runs.
+	 */
+	public static void run(String [] args) throws Exception {
 		init(args);
+		try {
+			runAnalysis();
+		} catch (Throwable t) {
+			executorService.shutdownNow();
+			//Keep the psm.tsv files consistent with the stage outputs already written
+			try {
+				if (psmFiles != null)
+					flushPSMFiles();
+			} catch (IOException e) {
+				t.addSuppressed(e);
+			}
+			throw t;
+		} finally {
+			if (perf != null)
+				perf.close();
+			SpectrumCache.getInstance().clear();
+			if (mzBinCache != null)
+				mzBinCache.close();
+			executorService.shutdown();
+		}
+	}
+
+	private static void runAnalysis() throws Exception {
 
 		//TODO initialize program blocks here so that they can be accessed outside their modules and stored internally
 		PeakAnnotator pa = new PeakAnnotator();
 
+		perf = new PerfRecorder();
+
 		//Get mzData mapping
 		print("Finding spectral data");
-		getMzDataMapping();
+		perf.record("stage", "discovery", PTMShepherd::getMzDataMapping);
 		print("Done finding spectral data\n");
 
+		//Shard workers run one phase for their datasets, the coordinator does the rest
+		if (!params.get("shard_phase").isEmpty()) {
+			mzBinCache = MzBinCache.fromParams();
+			runShardPhase(params.get("shard_phase"));
+			return;
+		}
+
+		//Fingerprint each dataset's inputs so unchanged datasets can keep their per-dataset outputs
+		boolean cacheStageOutputs = Boolean.parseBoolean(params.get("cache_stageOutputs"));
+		//.rawglyco is not kept, the glyco stage rewrites it in place with its FDR and propensity passes
+		List<String> cachedExts = Arrays.asList(histoName, ms2countsName, rawLocalizeName, rawSimRTName, diagIonsExtractName);
+		StageCache stageCache = new StageCache(new File(normFName(stageCacheName)));
+		HashMap<String,String> datasetKeys = new HashMap<>();
+		HashMap<File,String> psmFingerprints = new HashMap<>();
+		for (String ds : datasets.keySet()) {
+			ArrayList<File> dsPsmFiles = new ArrayList<>();
+			for (String [] dsDatum : datasets.get(ds)) {
+				File psmf = new File(dsDatum[0]);
+				dsPsmFiles.add(psmf);
+				psmFingerprints.put(psmf, stageCache.psmFingerprint(psmf));
+			}
+			datasetKeys.put(ds, stageCache.datasetKey(dsPsmFiles, mzMap.get(ds).values(), params));
+		}
+
 		//After knowing where all files should be, remove ones from old runs
 		if(!Boolean.parseBoolean(params.get("run_from_old"))) {
 			List<String> filesToDelete = Arrays.asList(peaksName,
-				peakSummaryAnnotatedName, peakSummaryName, combinedTSVName);
+				peakSummaryAnnotatedName, peakSummaryName, combinedTSVName, combinedHistoName);
 			for (String f : filesToDelete) {
 				Path p = Paths.get(normFName(f)).toAbsolutePath().normalize();
 				deleteFile(p, true);
 			}
 
-			// delete dataset files with specific extensions
+			// delete dataset files with specific extensions, keeping the outputs of unchanged datasets if caching
 			List<String> extsToDelete = Arrays
 					.asList(histoName, locProfileName, glycoProfileName, ms2countsName, simRTProfileName, rawLocalizeName, rawSimRTName, rawGlycoName, modSummaryName, diagIonsExtractName);
 			for (String ds : datasets.keySet()) {
+				boolean reuse = cacheStageOutputs && stageCache.isValid(ds, datasetKeys.get(ds));
+				if (reuse)
+					print("Reusing previous results for unchanged dataset " + ds);
+				else
+					stageCache.removeDataset(ds);
 				for (String ext : extsToDelete) {
+					if (reuse && cachedExts.contains(ext))
+						continue;
 					Path p = Paths.get(normFName(ds + ext)).toAbsolutePath().normalize();
 					deleteFile(p, true);
 				}
@@ -383,455 +588,453 @@ public class PTMShepherd {
 				Path p = Paths.get(outputPath + dsTmp + ext).toAbsolutePath().normalize();
 				deleteFile(p, true);
 			}
+			if (cacheStageOutputs)
+				stageCache.save();
 			print("");
 		}
 
+		mzBinCache = MzBinCache.fromParams();
+		ShardCoordinator shards = ShardCoordinator.fromParams();
+
+		//Pipeline stages, each one starts once the stages it depends on are done
+		StageGraph stages = new StageGraph();
+		stages.setRecorder(perf);
+		File combinedHisto = new File(normFName(combinedHistoName));
+		File peaks = new File(normFName(peaksName));
+		File peaksummary = new File(normFName(peakSummaryName));
+		File peakannotated = new File(normFName(peakSummaryAnnotatedName));
+		boolean glycoMode = Boolean.parseBoolean(params.get("run_glyco_mode"));
+		GlycoParams glycoParams = glycoMode ? parseGlycoParams() : null;
+		AtomicBoolean calcIntensity = new AtomicBoolean(false);
+		boolean streamPSMs = Boolean.parseBoolean(params.get("psm_streaming"));
+
 		// Cache spectral data
-		print("Caching spectral data");
-		rewriteDataToMzBin();
-		print("Done caching spectral data\n");
+		stages.addStage("cache", () -> {
+			if (shards != null)
+				shards.runPhase(ShardCoordinator.SPECTRA);
+			print("Caching spectral data");
+			rewriteDataToMzBin();
+			print("Done caching spectral data\n");
+		});
+
+		//Count MS2 scans, in scans mode they are counted from the cached spectral files
+		//With shards they are read back from the files the workers wrote
+		String [] ms2Deps = params.get("histo_normalizeTo").equals("scans") || shards != null ? new String[] {"cache"} : new String[0];
+		stages.addStage("ms2counts", () -> {
+			countMS2Scans();
+		}, ms2Deps);
 
-		
-		//Count MS2 scans
-		for(String ds : datasets.keySet()) {
-			File countsFile = new File(normFName(ds+ms2countsName));
-			int sumMS2 = 0;
-			TreeMap<String,Integer> counts = new TreeMap<>();
-			if(!countsFile.exists()) {
-				print("Counting MS2 scans for dataset " + ds);
-				if (params.get("histo_normalizeTo").equals("psms")) {
+		//Generate histograms
+		stages.addStage("histogram", () -> {
+			if(!combinedHisto.exists()) {
+				print("Creating combined histogram");
+				int [] range = writeDatasetHistograms();
+				Histogram combined = new Histogram(range[0],range[1],config.histoBinDivs);
+				for(String ds : datasets.keySet()) {
+					File histoFile = new File(normFName(ds+histoName));
+					Histogram h = Histogram.readHistogram(histoFile);
+					combined.mergeHistogram(h, ds);
+				}
+				combined.writeHistogram(combinedHisto);
+				combined.writeCombinedTSV(new File(normFName(combinedTSVName)));
+				print("Done creating combined histogram\n");
+			} else
+				print("Combined histogram found\n");
+		}, "ms2counts");
+
+		//Perform peak detection
+		stages.addStage("peakpicking", () -> {
+			if (peaks.exists()) {
+				print("Deleting old peaks.tsv file at: " + peaks.toString() + "\n");
+			}
+			print("Running peak picking");
+			Histogram combined = Histogram.readHistogram(combinedHisto);
+			PeakPicker pp = new PeakPicker();
+			pp.pickPeaks(combined.getOffsets(), combined.histo, Double.parseDouble(params.get("peakpicking_promRatio")),
+					Double.parseDouble(params.get("peakpicking_background")),
+					Integer.parseInt(params.get("peakpicking_topN")), params.get("mass_offsets"), params.get("isotope_error"),
+					Integer.parseInt(params.get("peakpicking_mass_units")), Double.parseDouble(params.get("peakpicking_width")),
+					Integer.parseInt(params.get("precursor_mass_units")), Double.parseDouble(params.get("precursor_tol")));
+			pp.writeTSV(new File(normFName(peaksName)));
+			print("\tPicked top " + pp.getPeaks().length + " peaks");
+
+			//PSM assignment
+			if(!peaksummary.exists()) {
+				PeakSummary ps = new PeakSummary(peaks,Integer.parseInt(params.get("precursor_mass_units")),
+						Double.parseDouble(params.get("precursor_tol")), params.get("mass_offsets"),
+						Integer.parseInt(params.get("peakpicking_minPsm")), Integer.parseInt(params.get("histo_intensity")));
+				for(String ds : datasets.keySet()) {
+					ps.reset();
 					ArrayList<String []> dsData = datasets.get(ds);
-					for (int i  = 0; i < dsData.size(); i++) {
-						File tpf = new File(dsData.get(i)[0]);
-						PSMFile pf = new PSMFile(tpf);
-						counts = pf.getMS2Counts();
-					}
-				} else if (params.get("histo_normalizeTo").equals("scans")) {
-					for (String crun : mzMap.get(ds).keySet()) {
-						File tf = mzMap.get(ds).get(crun);
-						int cnt = MS2Counts.countMS2Scans(tf, Integer.parseInt(params.get("threads")));
-						print(String.format("\t%s - %d scans", crun, cnt));
-						counts.put(crun, cnt);
+					for(int i = 0; i < dsData.size(); i++) {
+						if (streamPSMs) {
+							streamPeakSummary(ps, new File(dsData.get(i)[0]));
+						} else {
+							PSMFile pf = getPSMFile(dsData.get(i)[0]);
+							ps.appendPSMs(pf);
+						}
 					}
+					ps.commit(ds,datasetMS2.get(ds));
 				}
-				PrintWriter out = new PrintWriter(new FileWriter(countsFile));
-				for (String cf : counts.keySet()) {
-					sumMS2 += counts.get(cf);
-					out.printf("%s\t%d\n", cf, counts.get(cf));
-				}
-				out.close();
-			} else {
-				BufferedReader in = new BufferedReader(new FileReader(countsFile));
-				String cline;
-				while((cline = in.readLine())!= null) {
-					String [] sp = cline.split("\t");
-					int v = Integer.parseInt(sp[1]);
-					counts.put(sp[0], v);
-					sumMS2 += v;
-				}
-				in.close();
-			}
-			for(String crun : mzMap.get(ds).keySet()) {
-				if(!counts.containsKey(crun) || counts.get(crun) <= 0)
-					die("Invalid MS2 counts for run " + crun + " in dataset " + ds);
+				ps.writeTSVSummary(peaksummary);
+				print("\tCreated summary table");
 			}
-			datasetMS2.put(ds, sumMS2);
-			print("\t" + datasetMS2.get(ds) +" MS2 scans present in dataset " + ds);
-			print("Done counting MS2 scans for dataset " + ds + "\n");
-		}
+			print("Done running peak picking\n");
+		}, "histogram");
 
-		//Generate histograms
-		File combinedHisto = new File(normFName(combinedHistoName));
-		if(!combinedHisto.exists()) {
-			print("Creating combined histogram");
-			int min = 1 << 30;
-			int max = -1*(1<<30);
-
-			for(String ds : datasets.keySet()) {
-				File histoFile = new File(normFName(ds+histoName));
-				if(!histoFile.exists()) {
+		//Assign peak IDs
+		stages.addStage("peakannotation", () -> {
+			if(!peakannotated.exists()) {
+				//written under its final name only once the psm.tsv files hold the annotations, so run_from_old redoes a partial stage
+				File annotatedTmp = new File(peakannotated.getPath() + ".tmp");
+				pa.init(params.get("varmod_masses"), params.get("annotation_file").trim());
+				pa.annotateTSV(peaksummary, annotatedTmp, params.get("mass_offsets"), params.get("isotope_error"), config.annotationTol);
+				print("Annotated summary table\n");
+				print("Mapping modifications back into PSM lists\n");
+				for(String ds : datasets.keySet()) {
 					ArrayList<String []> dsData = datasets.get(ds);
-					ArrayList<Float> vals = new ArrayList<>();
-					ArrayList<Double> ints =  new ArrayList<>();
 					for(int i = 0; i < dsData.size(); i++) {
-						PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-						vals.addAll(pf.getMassDiffs());
-						ints.addAll(pf.getIntensities());
+						pa.loadAnnotatedFile(annotatedTmp, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units")));
+						if (streamPSMs) {
+							streamMassDiffAnnotations(pa, dsData.get(i)[0]);
+							continue;
+						}
+						PSMFile pf = getPSMFile(dsData.get(i)[0]);
+						float [] dmasses = pf.getMassDiffs();
+						float [] precs = pf.getPrecursorMasses();
+						pf.annotateMassDiffs(pa.getDeltaMassMappings(dmasses, precs, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units"))));
 					}
-					Histogram chisto = new Histogram(vals, ints, datasetMS2.get(ds), Integer.parseInt(params.get("histo_bindivs")),Integer.parseInt(params.get("histo_smoothbins"))*2+1);
-					min = Math.min(min, chisto.start);
-					max = Math.max(max, chisto.end);
-					chisto.writeHistogram(histoFile);
-					print(String.format("\tGenerated histogram file for dataset %s [%d - %d]",ds,chisto.start,chisto.end));
-				} else {
-					Histogram h = Histogram.readHistogramHeader(histoFile);
-					min = Math.min(min, h.start);
-					max = Math.max(max, h.end);
-					print(String.format("\tFound histogram file for dataset %s [%d - %d]",ds,h.start,h.end));
 				}
+				flushPSMFiles();
+				File modSummary = new File(normFName(globalName + modSummaryName));
+				ModSummary ms = new ModSummary(annotatedTmp, datasets.keySet());
+				ms.toFile(modSummary);
+				print("Created modification summary\n");
+				Files.move(annotatedTmp.toPath(), peakannotated.toPath(), StandardCopyOption.REPLACE_EXISTING);
 			}
+		}, "peakpicking", "cache");
 
-			Histogram combined = new Histogram(min,max,Integer.parseInt(params.get("histo_bindivs")));
-			for(String ds : datasets.keySet()) {
-				File histoFile = new File(normFName(ds+histoName));
-				Histogram h = Histogram.readHistogram(histoFile);
-				combined.mergeHistogram(h, ds);
+		//PTMiner-style iterative localization
+		stages.addStage("iterloc", () -> {
+			Boolean iterLocMode = Boolean.parseBoolean(params.get("iterloc_mode"));
+			if (iterLocMode) {
+				out.println("Beginning iterative localization");
+				long t1 = System.currentTimeMillis();
+				double peakBoundaries[][] = PeakSummary.readPeakBounds(peaksummary);
+				IterativeLocalizer IterLoc = new IterativeLocalizer(peakBoundaries,
+						Double.parseDouble(params.get("precursor_tol")),
+						Integer.parseInt(params.get("precursor_mass_units")),
+						datasets, mzMap, Integer.parseInt(params.get("threads")),
+						params.get("localization_allowed_res"), Float.parseFloat(params.get("spectra_ppmtol")),
+						concatIonTypes(), Double.parseDouble(params.get("iterloc_convergeCriterion")),
+						Integer.parseInt(params.get("iterloc_maxEpoch"))
+				);
+				IterLoc.localize();
+				flushPSMFiles();
+				out.println("Done\n");
+			}
+		}, "peakannotation");
+
+		//Localization, similarity/RT, diagnostic and first pass glyco annotation share a single read of each run
+		stages.addStage("annotation", () -> {
+			if (shards != null) {
+				//workers read the psm.tsv files, so they need this run's annotations on disk
+				flushPSMFiles();
+				shards.runPhase(ShardCoordinator.ANNOTATION);
 			}
-			combined.writeHistogram(combinedHisto);
-			combined.writeCombinedTSV(new File(normFName(combinedTSVName)));
-			print("Done creating combined histogram\n");
-		} else
-			print("Combined histogram found\n");
+			if (annotateSpectra(peaksummary, glycoParams))
+				calcIntensity.set(true);
+		}, "iterloc");
 
-		//Perform peak detection
-		File peaks = new File(normFName(peaksName));
-		if (peaks.exists()) {
-			print("Deleting old peaks.tsv file at: " + peaks.toString() + "\n");
-		}
-		print("Running peak picking");
-		Histogram combined = Histogram.readHistogram(combinedHisto);
-		PeakPicker pp = new PeakPicker();
-		pp.pickPeaks(combined.getOffsets(), combined.histo, Double.parseDouble(params.get("peakpicking_promRatio")),
-				Double.parseDouble(params.get("peakpicking_background")),
-				Integer.parseInt(params.get("peakpicking_topN")), params.get("mass_offsets"), params.get("isotope_error"),
-				Integer.parseInt(params.get("peakpicking_mass_units")), Double.parseDouble(params.get("peakpicking_width")),
-				Integer.parseInt(params.get("precursor_mass_units")), Double.parseDouble(params.get("precursor_tol")));
-		pp.writeTSV(new File(normFName(peaksName)));
-		print("\tPicked top " + pp.getPeaks().length + " peaks");
-
-		//PSM assignment
-		File peaksummary = new File(normFName(peakSummaryName));
-		if(!peaksummary.exists()) {
-			PeakSummary ps = new PeakSummary(peaks,Integer.parseInt(params.get("precursor_mass_units")),
-					Double.parseDouble(params.get("precursor_tol")), params.get("mass_offsets"),
-					Integer.parseInt(params.get("peakpicking_minPsm")), Integer.parseInt(params.get("histo_intensity")));
+		//Localization analysis
+		stages.addStage("localization", () -> {
+			//Perform initial annotation
+			print("Begin localization annotation");
 			for(String ds : datasets.keySet()) {
-				ps.reset();
+				SiteLocalization sl = new SiteLocalization(ds);
+				if(sl.isComplete())
+					continue;
 				ArrayList<String []> dsData = datasets.get(ds);
 				for(int i = 0; i < dsData.size(); i++) {
-					PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-					ps.appendPSMs(pf);
+					PSMFile pf = getPSMFile(dsData.get(i)[0]);
+					sl.localizePSMs(pf, mzMap.get(ds));
 				}
-				ps.commit(ds,datasetMS2.get(ds));
+				sl.complete();
 			}
-			ps.writeTSVSummary(peaksummary);
-			print("\tCreated summary table");
-		}
-		print("Done running peak picking\n");
+			print("Done\n");
 
-		//Assign peak IDs
-		File peakannotated = new File(normFName(peakSummaryAnnotatedName));
-		if(!peakannotated.exists()) {
-			pa.init(params.get("varmod_masses"), params.get("annotation_file").trim());
-			pa.annotateTSV(peaksummary, peakannotated, params.get("mass_offsets"), params.get("isotope_error"), Double.parseDouble(params.get("annotation_tol")));
-			print("Annotated summary table\n");
-			print("Mapping modifications back into PSM lists\n");
+			//Localization summaries
+			double [][] peakBounds = PeakSummary.readPeakBounds(peaksummary);
+			LocalizationProfile loc_global = new LocalizationProfile(peakBounds, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units"))); //TODO
 			for(String ds : datasets.keySet()) {
-				ArrayList<String []> dsData = datasets.get(ds);
-				for(int i = 0; i < dsData.size(); i++) {
-					PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-					pa.loadAnnotatedFile(peakannotated, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units")));
-					ArrayList<Float> dmasses = pf.getMassDiffs();
-					ArrayList<Float> precs = pf.getPrecursorMasses();
-					pf.annotateMassDiffs(pa.getDeltaMassMappings(dmasses, precs, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units"))));
-				}
+				LocalizationProfile loc_current = new LocalizationProfile(peakBounds, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units"))); //TODO
+				SiteLocalization sl = new SiteLocalization(ds);
+				LocalizationProfile [] loc_targets = {loc_global, loc_current};
+				sl.updateLocalizationProfiles(loc_targets); //this is where the localization is actually happening
+				loc_current.writeProfile(normFName(ds+locProfileName));
 			}
-			File modSummary = new File(normFName(globalName + modSummaryName));
-			ModSummary ms = new ModSummary(peakannotated, datasets.keySet());
-			ms.toFile(modSummary);
-			print("Created modification summary\n");
-		}
-
-		//PTMiner-style iterative localization
-		Boolean iterLocMode = Boolean.parseBoolean(params.get("iterloc_mode"));
-		if (iterLocMode) {
-			out.println("Beginning iterative localization");
-			long t1 = System.currentTimeMillis();
-			double peakBoundaries[][] = PeakSummary.readPeakBounds(peaksummary);
-			IterativeLocalizer IterLoc = new IterativeLocalizer(peakBoundaries,
-					Double.parseDouble(params.get("precursor_tol")),
-					Integer.parseInt(params.get("precursor_mass_units")),
-					datasets, mzMap, Integer.parseInt(params.get("threads")),
-					params.get("localization_allowed_res"), Float.parseFloat(params.get("spectra_ppmtol")),
-					concatIonTypes(), Double.parseDouble(params.get("iterloc_convergeCriterion")),
-					Integer.parseInt(params.get("iterloc_maxEpoch"))
-			);
-			IterLoc.localize();
-			out.println("Done\n");
-		}
-		
-		//Localization analysis
-		//Perform initial annotation
-		print("Begin localization annotation");
-		for(String ds : datasets.keySet()) {
-			SiteLocalization sl = new SiteLocalization(ds);
-			if(sl.isComplete())
-				continue;
-			ArrayList<String []> dsData = datasets.get(ds);
-			for(int i = 0; i < dsData.size(); i++) {
-				PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-				sl.localizePSMs(pf, mzMap.get(ds));
-			}
-			sl.complete();
-		}
-		print("Done\n");
-
-		//Localization summaries
-		double [][] peakBounds = PeakSummary.readPeakBounds(peaksummary);
-		LocalizationProfile loc_global = new LocalizationProfile(peakBounds, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units"))); //TODO
-		for(String ds : datasets.keySet()) {
-			LocalizationProfile loc_current = new LocalizationProfile(peakBounds, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units"))); //TODO
-			SiteLocalization sl = new SiteLocalization(ds);
-			LocalizationProfile [] loc_targets = {loc_global, loc_current};
-			sl.updateLocalizationProfiles(loc_targets); //this is where the localization is actually happening
-			loc_current.writeProfile(normFName(ds+locProfileName));
-		}
-		loc_global.writeProfile(normFName(globalName + locProfileName));
-		print("Created localization reports\n");
+			loc_global.writeProfile(normFName(globalName + locProfileName));
+			print("Created localization reports\n");
+		}, "annotation");
 
 		//Spectra similarity analysis with retention time analysis
-
-		//Perform similarity and RT annotation
-		print("Begin similarity and retention time annotation");
-		boolean calcIntensity = false;
-		for(String ds : datasets.keySet()) {
-			SimRTAnalysis sra = new SimRTAnalysis(ds);
-			if(sra.isComplete())
-				continue;
-			ArrayList<String []> dsData = datasets.get(ds);
-			for(int i = 0; i < dsData.size(); i++) {
-				PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-				sra.simrtPSMs(pf, mzMap.get(ds),Boolean.parseBoolean(params.get("compare_betweenRuns")));
+		stages.addStage("simrt", () -> {
+			//Perform similarity and RT annotation
+			print("Begin similarity and retention time annotation");
+			annotateSimRT(calcIntensity);
+			print("Done\n");
+
+			//SimRT summaries
+			double [][] peakBounds = PeakSummary.readPeakBounds(peaksummary);
+			SimRTProfile simrt_global = new SimRTProfile(peakBounds, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units")), calcIntensity.get()); //TODO add units
+			for(String ds : datasets.keySet()) {
+				SimRTProfile simrt_current = new SimRTProfile(peakBounds, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units")), calcIntensity.get()); //TODO add units
+				SimRTAnalysis sra = new SimRTAnalysis(ds);
+				SimRTProfile [] simrt_targets = {simrt_global, simrt_current};
+				sra.updateSimRTProfiles(simrt_targets);
+				simrt_current.writeProfile(normFName(ds+simRTProfileName));
 			}
-			sra.complete();
-			calcIntensity = sra.getCalcIntensity();
-		}
-		print("Done\n");
-
-		//SimRT summaries
-		SimRTProfile simrt_global = new SimRTProfile(peakBounds, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units")), calcIntensity); //TODO add units
-		for(String ds : datasets.keySet()) {
-			SimRTProfile simrt_current = new SimRTProfile(peakBounds, Double.parseDouble(params.get("precursor_tol")), Integer.parseInt(params.get("precursor_mass_units")), calcIntensity); //TODO add units
-			SimRTAnalysis sra = new SimRTAnalysis(ds);
-			SimRTProfile [] simrt_targets = {simrt_global, simrt_current};
-			sra.updateSimRTProfiles(simrt_targets);
-			simrt_current.writeProfile(normFName(ds+simRTProfileName));
-		}
-		simrt_global.writeProfile(normFName(globalName + simRTProfileName));
-		print("Created similarity/RT reports\n");
+			simrt_global.writeProfile(normFName(globalName + simRTProfileName));
+			print("Created similarity/RT reports\n");
+		}, "annotation");
 
 		//Diagnostic mining
-		boolean diagMineMode = Boolean.parseBoolean(params.get("run_diagmine_mode"));
-		if (diagMineMode) {
-			out.println("Beginning diagnostic ion mining");
-			long t1 = System.currentTimeMillis();
-			double peakBoundaries[][] = PeakSummary.readPeakBounds(peaksummary);
-			for (String ds : datasets.keySet()) {
-				out.println("\tPreprocessing dataset " + ds);
-				DiagnosticAnalysis da = new DiagnosticAnalysis(ds);
-				//if (da.isComplete()) {
-				//	System.out.println("\tFound existing data for dataset " + ds);
-				//	continue;
-				//}
-				da.initializeBinBoundaries(peakBoundaries);
-				ArrayList<String[]> dsData = datasets.get(ds);
-				for (int i = 0; i < dsData.size(); i++) {
-					PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-					da.diagIonsPSMs(pf, mzMap.get(ds), executorService, Integer.parseInt(params.get("threads")));
+		stages.addStage("diagmine", () -> {
+			boolean diagMineMode = Boolean.parseBoolean(params.get("run_diagmine_mode"));
+			if (diagMineMode) {
+				out.println("Beginning diagnostic ion mining");
+				long t1 = System.currentTimeMillis();
+				double peakBoundaries[][] = PeakSummary.readPeakBounds(peaksummary);
+				for (String ds : datasets.keySet()) {
+					out.println("\tPreprocessing dataset " + ds);
+					DiagnosticAnalysis da = new DiagnosticAnalysis(ds);
+					//if (da.isComplete()) {
+					//	System.out.println("\tFound existing data for dataset " + ds);
+					//	continue;
+					//}
+					da.initializeBinBoundaries(peakBoundaries);
+					ArrayList<String[]> dsData = datasets.get(ds);
+					for (int i = 0; i < dsData.size(); i++) {
+						PSMFile pf = getPSMFile(dsData.get(i)[0]);
+						da.diagIonsPSMs(pf, mzMap.get(ds), executorService, Integer.parseInt(params.get("threads")));
+					}
+					//da.complete();
+					long t2 = System.currentTimeMillis();
+					out.printf("\tDone preprocessing dataset %s - %d ms total\n", ds, t2-t1);
 				}
-				//da.complete();
-				long t2 = System.currentTimeMillis();
-				out.printf("\tDone preprocessing dataset %s - %d ms total\n", ds, t2-t1);
-			}
-			DiagnosticPeakPicker dpp = new DiagnosticPeakPicker(Double.parseDouble(getParam("diagmine_minSignal")), peakBoundaries, Double.parseDouble(params.get("precursor_tol")),
-					Integer.parseInt(params.get("precursor_mass_units")), params.get("diagmine_ionTypes"),Float.parseFloat(params.get("spectra_tol")), Integer.parseInt(params.get("precursor_maxCharge")),
-					Double.parseDouble(params.get("diagmine_maxP")), Double.parseDouble(params.get("diagmine_minAuc")), Double.parseDouble(params.get("diagmine_minSpecDiff")), Double.parseDouble(params.get("diagmine_minFoldChange")), Integer.parseInt(params.get("diagmine_minIonsPerSpec")),
-					Integer.parseInt(params.get("diagmine_twoTailedTests")), Integer.parseInt(params.get("spectra_condPeaks")), Double.parseDouble(params.get("spectra_condRatio")), pa.getPeakApexMappings());
-			for (String ds : datasets.keySet()) {
-				ArrayList<String[]> dsData = datasets.get(ds);
-				for (int i = 0; i < dsData.size(); i++) {
-					PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-					dpp.addPepkeysToIndex(pf);
+				DiagnosticPeakPicker dpp = new DiagnosticPeakPicker(Double.parseDouble(getParam("diagmine_minSignal")), peakBoundaries, Double.parseDouble(params.get("precursor_tol")),
+						Integer.parseInt(params.get("precursor_mass_units")), params.get("diagmine_ionTypes"),Float.parseFloat(params.get("spectra_tol")), Integer.parseInt(params.get("precursor_maxCharge")),
+						Double.parseDouble(params.get("diagmine_maxP")), Double.parseDouble(params.get("diagmine_minAuc")), Double.parseDouble(params.get("diagmine_minSpecDiff")), Double.parseDouble(params.get("diagmine_minFoldChange")), Integer.parseInt(params.get("diagmine_minIonsPerSpec")),
+						Integer.parseInt(params.get("diagmine_twoTailedTests")), Integer.parseInt(params.get("spectra_condPeaks")), Double.parseDouble(params.get("spectra_condRatio")), pa.getPeakApexMappings());
+				for (String ds : datasets.keySet()) {
+					ArrayList<String[]> dsData = datasets.get(ds);
+					for (int i = 0; i < dsData.size(); i++) {
+						PSMFile pf = getPSMFile(dsData.get(i)[0]);
+						dpp.addPepkeysToIndex(pf);
+					}
 				}
-			}
-			out.println("\tIdentifying candidate ions");
-			dpp.filterPepkeys();
-			dpp.process(executorService, Integer.parseInt(getParam("threads")));
-			out.println("\tDone identifying candidate ions");
-			out.println("\tExtracting ions from spectra");
-			dpp.initDiagProfRecs();
-			for (String ds : datasets.keySet()) {
-				ArrayList<String[]> dsData = datasets.get(ds);
-				for (int i = 0; i < dsData.size(); i++) {
-					PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-					dpp.diagIonsPSMs(pf, mzMap.get(ds), executorService);
+				out.println("\tIdentifying candidate ions");
+				dpp.filterPepkeys();
+				dpp.process(executorService, Integer.parseInt(getParam("threads")));
+				out.println("\tDone identifying candidate ions");
+				out.println("\tExtracting ions from spectra");
+				dpp.initDiagProfRecs();
+				for (String ds : datasets.keySet()) {
+					ArrayList<String[]> dsData = datasets.get(ds);
+					for (int i = 0; i < dsData.size(); i++) {
+						PSMFile pf = getPSMFile(dsData.get(i)[0]);
+						dpp.diagIonsPSMs(pf, mzMap.get(ds), executorService);
+					}
 				}
+				dpp.print(normFName(globalName + diagMineName));
+				out.println("Done mining diagnostic ions\n");
 			}
-			dpp.print(normFName(globalName + diagMineName));
-			out.println("Done mining diagnostic ions\n");
-		}
+		}, "annotation");
 
 		// diagnostic ion extraction (original glyco/labile mode)
-		boolean extractDiagnosticIons = Boolean.parseBoolean(params.get("run_diagextract_mode"));
-		if (extractDiagnosticIons) {
-			System.out.println("Beginning diagnostic ion extraction");
-			int numThreads = Integer.parseInt(params.get("threads"));
-			for (String ds : datasets.keySet()) {
-				DiagnosticExtractor da = new DiagnosticExtractor(ds);
-				if (da.isDiagnosticComplete()) {
-					print(String.format("\tDiagnostic extraction already done for dataset %s, skipping", ds));
-					continue;
+		stages.addStage("diagextract", () -> {
+			boolean extractDiagnosticIons = Boolean.parseBoolean(params.get("run_diagextract_mode"));
+			if (extractDiagnosticIons) {
+				System.out.println("Beginning diagnostic ion extraction");
+				int numThreads = Integer.parseInt(params.get("threads"));
+				for (String ds : datasets.keySet()) {
+					DiagnosticExtractor da = new DiagnosticExtractor(ds);
+					if (da.isDiagnosticComplete()) {
+						print(String.format("\tDiagnostic extraction already done for dataset %s, skipping", ds));
+						continue;
+					}
+					ArrayList<String[]> dsData = datasets.get(ds);
+					for (int i = 0; i < dsData.size(); i++) {
+						PSMFile pf = getPSMFile(dsData.get(i)[0]);
+						da.extractDiagPSMs(pf, mzMap.get(ds), executorService, numThreads);
+					}
+					da.completeDiagnostic();
 				}
-				ArrayList<String[]> dsData = datasets.get(ds);
-				for (int i = 0; i < dsData.size(); i++) {
-					PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-					da.extractDiagPSMs(pf, mzMap.get(ds), executorService, numThreads);
+				// calculate glycoprofile after all other diagnostic extraction analysis is done
+				double [][] peakBounds = PeakSummary.readPeakBounds(peaksummary);
+				GlycoProfile glyProGLobal = new GlycoProfile(peakBounds, Integer.parseInt(params.get("precursor_mass_units")), Double.parseDouble(params.get("precursor_tol")));
+				for (String ds : datasets.keySet()) {
+					GlycoProfile glyProCurr = new GlycoProfile(peakBounds, Integer.parseInt(params.get("precursor_mass_units")), Double.parseDouble(params.get("precursor_tol")));
+					DiagnosticExtractor da = new DiagnosticExtractor(ds);
+					GlycoProfile[] gaTargets = {glyProGLobal, glyProCurr};
+					da.updateGlycoProfiles(gaTargets);
+					glyProCurr.writeProfile(PTMShepherd.normFName(ds + glycoProfileName));
 				}
-				da.completeDiagnostic();
-			}
-			// calculate glycoprofile after all other diagnostic extraction analysis is done
-			GlycoProfile glyProGLobal = new GlycoProfile(peakBounds, Integer.parseInt(params.get("precursor_mass_units")), Double.parseDouble(params.get("precursor_tol")));
-			for (String ds : datasets.keySet()) {
-				GlycoProfile glyProCurr = new GlycoProfile(peakBounds, Integer.parseInt(params.get("precursor_mass_units")), Double.parseDouble(params.get("precursor_tol")));
-				DiagnosticExtractor da = new DiagnosticExtractor(ds);
-				GlycoProfile[] gaTargets = {glyProGLobal, glyProCurr};
-				da.updateGlycoProfiles(gaTargets);
-				glyProCurr.writeProfile(PTMShepherd.normFName(ds + glycoProfileName));
+				glyProGLobal.writeProfile(PTMShepherd.normFName(globalName + glycoProfileName));
+				System.out.println("Done with diagnostic ion extraction\n");
 			}
-			glyProGLobal.writeProfile(PTMShepherd.normFName(globalName + glycoProfileName));
-			System.out.println("Done with diagnostic ion extraction\n");
-		}
+		}, "annotation");
 
 		//Combine tables
-		out.println("Combining and cleaning reports");
-		CombinedTable gct = new CombinedTable(globalName);
-		gct.writeCombinedTable(Integer.parseInt(params.get("histo_intensity")), calcIntensity);
-		for (String ds : datasets.keySet()){
-			out.println("Writing combined table for dataset " + ds);
-			CombinedTable cct = new CombinedTable(ds);
-			cct.writeCombinedTable(Integer.parseInt(params.get("histo_intensity")), calcIntensity);
-		}
+		stages.addStage("combined", () -> {
+			out.println("Combining and cleaning reports");
+			CombinedTable gct = new CombinedTable(globalName);
+			gct.writeCombinedTable(Integer.parseInt(params.get("histo_intensity")), calcIntensity.get());
+			for (String ds : datasets.keySet()){
+				out.println("Writing combined table for dataset " + ds);
+				CombinedTable cct = new CombinedTable(ds);
+				cct.writeCombinedTable(Integer.parseInt(params.get("histo_intensity")), calcIntensity.get());
+			}
+		}, "localization", "simrt", "diagmine", "diagextract");
 
 		//Glycan assignment
-		boolean glycoMode = Boolean.parseBoolean(params.get("run_glyco_mode"));
-		if (glycoMode) {
-			System.out.println("Beginning glycan assignment");
-			boolean alreadyPrintedParams = false;
-			GlycoParams glycoParams = parseGlycoParams();
-			String glycoMassFilePath = normFName(glycoMassListName);
-			GlycoParams.writeGlycanMassList(glycoParams.glycoDatabase, glycoMassFilePath);
-
-			// Glyco: first pass
-			for (String ds : datasets.keySet()) {
-				GlycoAnalysis ga = new GlycoAnalysis(ds, glycoParams.glycoDatabase, glycoParams);
-				if (ga.isGlycoComplete()) {
-					print(String.format("\tGlyco analysis already done for dataset %s, skipping", ds));
-					continue;
-				}
+		stages.addStage("glyco", () -> {
+			if (glycoMode) {
+				System.out.println("Beginning glycan assignment");
+				boolean alreadyPrintedParams = false;
+				String glycoMassFilePath = normFName(glycoMassListName);
+				GlycoParams.writeGlycanMassList(glycoParams.glycoDatabase, glycoMassFilePath);
+
+				// Glyco: first pass
+				for (String ds : datasets.keySet()) {
+					GlycoAnalysis ga = new GlycoAnalysis(ds, glycoParams.glycoDatabase, glycoParams);
+					if (ga.isGlycoComplete()) {
+						print(String.format("\tGlyco analysis already done for dataset %s, skipping", ds));
+						continue;
+					}
 
-				// print params here to avoid printing if the analysis is already done/not being run
-				if (!alreadyPrintedParams) {
-					glycoParams.printGlycoParams();
-					alreadyPrintedParams = true;
-				}
-				ArrayList<String[]> dsData = datasets.get(ds);
-				for (int i = 0; i < dsData.size(); i++) {
-					PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-					ga.glycoPSMs(pf, mzMap.get(ds), executorService, glycoParams.numThreads);
+					// print params here to avoid printing if the analysis is already done/not being run
+					if (!alreadyPrintedParams) {
+						glycoParams.printGlycoParams();
+						alreadyPrintedParams = true;
+					}
+					ArrayList<String[]> dsData = datasets.get(ds);
+					for (int i = 0; i < dsData.size(); i++) {
+						PSMFile pf = getPSMFile(dsData.get(i)[0]);
+						ga.glycoPSMs(pf, mzMap.get(ds), executorService, glycoParams.numThreads);
+					}
+					ga.completeGlyco();
 				}
-				ga.completeGlyco();
-			}
 
-			// second pass: calculate glycan FDR and update results
-			for (String ds : datasets.keySet()) {
-				GlycoAnalysis ga = new GlycoAnalysis(ds, glycoParams.glycoDatabase, glycoParams);
-				if (!glycoParams.useNewFDR) {
-					ga.computeGlycanFDROld(glycoParams.glycoFDR,true);
-				} else {
-					if (glycoParams.useNonCompFDR) {
-						ga.useNonCompFDR = true;
-						ga.computeGlycanFDR(glycoParams.glycoFDR);
+				// second pass: calculate glycan FDR and update results
+				for (String ds : datasets.keySet()) {
+					GlycoAnalysis ga = new GlycoAnalysis(ds, glycoParams.glycoDatabase, glycoParams);
+					if (!glycoParams.useNewFDR) {
+						ga.computeGlycanFDROld(glycoParams.glycoFDR,true);
 					} else {
-						boolean firstFDRsuccess = ga.computeGlycanFDROld(glycoParams.glycoFDR, false);
-						if (!firstFDRsuccess) {
+						if (glycoParams.useNonCompFDR) {
 							ga.useNonCompFDR = true;
 							ga.computeGlycanFDR(glycoParams.glycoFDR);
+						} else {
+							boolean firstFDRsuccess = ga.computeGlycanFDROld(glycoParams.glycoFDR, false);
+							if (!firstFDRsuccess) {
+								ga.useNonCompFDR = true;
+								ga.computeGlycanFDR(glycoParams.glycoFDR);
+							}
 						}
 					}
-				}
 
-				if (glycoParams.useGlycanFragmentProbs) {
-					// second pass - calculate fragment propensities, regenerate database, and re-run
-					HashMap<String, GlycanCandidateFragments> fragmentDB = ga.computeGlycanFragmentProbs(glycoParams);
-					ArrayList<GlycanCandidate> propensityGlycanDB = glycoParams.updateGlycanDatabase(fragmentDB, glycoParams.glycoDatabase);
-
-					// run glyco PSM-level analysis with the new database
-					GlycoAnalysis ga2 = new GlycoAnalysis(ds, propensityGlycanDB, glycoParams);
-					ga2.glycanMassBinMap = ga.glycanMassBinMap;
-					ga2.useFragmentSpecificProbs = true;
-					ga2.defaultPropensity = glycoParams.defaultProp;
-					ArrayList<String[]> dsData = datasets.get(ds);
-					for (String[] dsDatum : dsData) {
-						PSMFile pf = new PSMFile(new File(dsDatum[0]));
-						ga2.glycoPSMs(pf, mzMap.get(ds), executorService, glycoParams.numThreads);
-					}
-					if (!glycoParams.useNewFDR) {
-						ga2.computeGlycanFDROld(glycoParams.glycoFDR, true);
-					} else {
-						if (glycoParams.useNonCompFDR) {
-							ga2.useNonCompFDR = true;
-							ga2.computeGlycanFDR(glycoParams.glycoFDR);
+					if (glycoParams.useGlycanFragmentProbs) {
+						// second pass - calculate fragment propensities, regenerate database, and re-run
+						HashMap<String, GlycanCandidateFragments> fragmentDB = ga.computeGlycanFragmentProbs(glycoParams);
+						ArrayList<GlycanCandidate> propensityGlycanDB = glycoParams.updateGlycanDatabase(fragmentDB, glycoParams.glycoDatabase);
+
+						// run glyco PSM-level analysis with the new database
+						GlycoAnalysis ga2 = new GlycoAnalysis(ds, propensityGlycanDB, glycoParams);
+						ga2.glycanMassBinMap = ga.glycanMassBinMap;
+						ga2.useFragmentSpecificProbs = true;
+						ga2.defaultPropensity = glycoParams.defaultProp;
+						ArrayList<String[]> dsData = datasets.get(ds);
+						for (String[] dsDatum : dsData) {
+							PSMFile pf = getPSMFile(dsDatum[0]);
+							ga2.glycoPSMs(pf, mzMap.get(ds), executorService, glycoParams.numThreads);
+						}
+						if (!glycoParams.useNewFDR) {
+							ga2.computeGlycanFDROld(glycoParams.glycoFDR, true);
 						} else {
-							boolean firstFDRsuccess2 = ga2.computeGlycanFDROld(glycoParams.glycoFDR, false);
-							if (!firstFDRsuccess2) {
+							if (glycoParams.useNonCompFDR) {
 								ga2.useNonCompFDR = true;
 								ga2.computeGlycanFDR(glycoParams.glycoFDR);
+							} else {
+								boolean firstFDRsuccess2 = ga2.computeGlycanFDROld(glycoParams.glycoFDR, false);
+								if (!firstFDRsuccess2) {
+									ga2.useNonCompFDR = true;
+									ga2.computeGlycanFDR(glycoParams.glycoFDR);
+								}
 							}
 						}
+						ga2.completeGlyco();
 					}
-					ga2.completeGlyco();
 				}
-			}
 
-			/* Save best glycan information from glyco report to psm tables */
-			for (String ds : datasets.keySet()) {
-				ArrayList<String[]> dsData = datasets.get(ds);
-				for (int i = 0; i < dsData.size(); i++) {
-					PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-					pf.mergeGlycoTable(new File(normFName(ds + rawGlycoName)), GlycoAnalysis.NUM_ADDED_GLYCO_PSM_COLUMNS, glycoParams);
+				/* Save best glycan information from glyco report to psm tables */
+				for (String ds : datasets.keySet()) {
+					ArrayList<String[]> dsData = datasets.get(ds);
+					for (int i = 0; i < dsData.size(); i++) {
+						PSMFile pf = getPSMFile(dsData.get(i)[0]);
+						pf.mergeGlycoTable(new File(normFName(ds + rawGlycoName)), GlycoAnalysis.NUM_ADDED_GLYCO_PSM_COLUMNS, glycoParams);
+					}
 				}
-			}
 
-			print("Created glyco reports");
-			print("Done with glycan assignment\n");
-		}
+				print("Created glyco reports");
+				print("Done with glycan assignment\n");
+			}
+		}, "combined");
 
 		/* Make psm table IonQuant compatible */
-		if (Boolean.parseBoolean(params.get("prep_for_ionquant"))) {
-			out.println("Prepping PSM tables for IonQuant");
-			for (String ds : datasets.keySet()) {
-				ArrayList<String[]> dsData = datasets.get(ds);
-				for (int i = 0; i < dsData.size(); i++) {
-					PSMFile pf = new PSMFile(new File(dsData.get(i)[0]));
-					pf.preparePsmTableForIonQuant(peakBounds, Integer.parseInt(params.get("precursor_mass_units")), Double.parseDouble(params.get("precursor_tol")));
+		stages.addStage("ionquant", () -> {
+			if (Boolean.parseBoolean(params.get("prep_for_ionquant"))) {
+				out.println("Prepping PSM tables for IonQuant");
+				double [][] peakBounds = PeakSummary.readPeakBounds(peaksummary);
+				for (String ds : datasets.keySet()) {
+					ArrayList<String[]> dsData = datasets.get(ds);
+					for (int i = 0; i < dsData.size(); i++) {
+						PSMFile pf = getPSMFile(dsData.get(i)[0]);
+						pf.preparePsmTableForIonQuant(peakBounds, Integer.parseInt(params.get("precursor_mass_units")), Double.parseDouble(params.get("precursor_tol")));
+					}
 				}
+				out.println("Done");
 			}
-			out.println("Done");
-		}
+		}, "glyco");
 
 		/* Make experiment-level table */
-		if (Boolean.parseBoolean(params.get("output_extended"))) {
-			out.println("Creating experiment-level profile report");
-			CombinedExperimentsSummary cs = new CombinedExperimentsSummary(normFName("combined_experiment_profile.tsv"));
-			cs.initializeExperimentSummary(normFName(globalName + profileName), Integer.parseInt(params.get("histo_intensity")));
-			cs.addLocalizationSummary(normFName(globalName + locProfileName), combinedName);
-			cs.addSimilarityRTSummary(normFName(globalName + simRTProfileName), combinedName, calcIntensity);
-			for (String ds : datasets.keySet()) {
-				cs.addExperimentSummary(normFName(ds + profileName), ds);
-				cs.addLocalizationSummary(normFName(ds + locProfileName), ds);
-				cs.addSimilarityRTSummary(normFName(ds + simRTProfileName), ds, calcIntensity);
+		stages.addStage("experimentsummary", () -> {
+			if (Boolean.parseBoolean(params.get("output_extended"))) {
+				out.println("Creating experiment-level profile report");
+				CombinedExperimentsSummary cs = new CombinedExperimentsSummary(normFName("combined_experiment_profile.tsv"));
+				cs.initializeExperimentSummary(normFName(globalName + profileName), Integer.parseInt(params.get("histo_intensity")));
+				cs.addLocalizationSummary(normFName(globalName + locProfileName), combinedName);
+				cs.addSimilarityRTSummary(normFName(globalName + simRTProfileName), combinedName, calcIntensity.get());
+				for (String ds : datasets.keySet()) {
+					cs.addExperimentSummary(normFName(ds + profileName), ds);
+					cs.addLocalizationSummary(normFName(ds + locProfileName), ds);
+					cs.addSimilarityRTSummary(normFName(ds + simRTProfileName), ds, calcIntensity.get());
+				}
+				cs.printFile();
 			}
-			cs.printFile();
+		}, "ionquant");
+
+		stages.run(Integer.parseInt(params.get("parallel_stages")));
+		flushPSMFiles();
+		perf.write(new File(normFName(perfReportName)));
+
+		//Record what this run's outputs were computed from, and the psm.tsv files as this run left them
+		if (cacheStageOutputs) {
+			for (String ds : datasets.keySet())
+				stageCache.setDatasetKey(ds, datasetKeys.get(ds));
+			for (File psmf : psmFingerprints.keySet())
+				stageCache.setPsmAlias(psmf, psmFingerprints.get(psmf));
+			stageCache.save();
 		}
 
 		List<String> filesToDelete = Arrays.asList(normFName(peaksName), normFName(peakSummaryAnnotatedName),
@@ -851,6 +1054,8 @@ public class PTMShepherd {
 		}
 		for (String ds : datasets.keySet()) {
 			for (String ext : extsToDelete) {
+				if (cacheStageOutputs && cachedExts.contains(ext))
+					continue;
 				Path p = Paths.get(normFName(ds + ext)).toAbsolutePath().normalize();
 				deleteFile(p, true);
 			}
@@ -864,6 +1069,8 @@ public class PTMShepherd {
 				//System.out.println("Writing combined table for dataset " + ds);
 				//CombinedTable.writeCombinedTable(ds);
 				for (String ext : extsToDelete) {
+					if (cacheStageOutputs && cachedExts.contains(ext))
+						continue;
 					Path p = Paths.get(normFName(ds + ext)).toAbsolutePath().normalize();
 					deleteFile(p, true);
 				}
@@ -907,12 +1114,240 @@ public class PTMShepherd {
 		for (String ds : datasets.keySet()) {
 			for (String crun : mzMap.get(ds).keySet()) {
 				File mzbf = mzMap.get(ds).get(crun);
+				if (mzBinCache != null && mzBinCache.contains(mzbf))
+					continue;
 				Path mzbpath = mzbf.toPath().toAbsolutePath();
 				deleteFile(mzbpath, true);
 			}
 		}
 
-		executorService.shutdown();
+		if (Long.parseLong(params.get("spectra_cacheMB")) > 0)
+			print(SpectrumCache.getInstance().getStats());
+	}
+
+	/* One phase of a shard worker, run for the datasets in shard_datasets. The outputs are the same per-dataset files a
+	 * single process writes, so the coordinator finds them complete and only merges them. */
+	private static void runShardPhase(String phase) throws Exception {
+		switch (phase) {
+			case ShardCoordinator.SPECTRA:
+				rewriteDataToMzBin();
+				countMS2Scans();
+				writeDatasetHistograms();
+				break;
+			case ShardCoordinator.ANNOTATION:
+				rewriteDataToMzBin();
+				boolean glycoMode = Boolean.parseBoolean(params.get("run_glyco_mode"));
+				annotateSpectra(new File(normFName(peakSummaryName)), glycoMode ? parseGlycoParams() : null);
+				if (Boolean.parseBoolean(params.get("compare_betweenRuns")))
+					annotateSimRT(new AtomicBoolean());
+				break;
+			default:
+				die("Unknown shard phase " + phase);
+		}
+	}
+
+	/* Counts or reads back the MS2 scans of every dataset into datasetMS2 */
+	private static void countMS2Scans() throws Exception {
+		boolean streamPSMs = Boolean.parseBoolean(params.get("psm_streaming"));
+		for(String ds : datasets.keySet()) {
+			File countsFile = new File(normFName(ds+ms2countsName));
+			int sumMS2 = 0;
+			TreeMap<String,Integer> counts = new TreeMap<>();
+			if(!countsFile.exists()) {
+				print("Counting MS2 scans for dataset " + ds);
+				if (params.get("histo_normalizeTo").equals("psms")) {
+					ArrayList<String []> dsData = datasets.get(ds);
+					for (int i  = 0; i < dsData.size(); i++) {
+						if (streamPSMs) {
+							counts = streamRunCounts(new File(dsData.get(i)[0]));
+						} else {
+							PSMFile pf = getPSMFile(dsData.get(i)[0]);
+							counts = pf.getMS2Counts();
+						}
+					}
+				} else if (params.get("histo_normalizeTo").equals("scans")) {
+					TaskScheduler scheduler = TaskScheduler.fromParams();
+					TreeMap<String,Integer> runCounts = counts;
+					for (String crun : mzMap.get(ds).keySet()) {
+						File tf = mzMap.get(ds).get(crun);
+						scheduler.submit("ms2counts:" + crun, TaskScheduler.estimateBytes(Arrays.asList(tf)), () -> {
+							int cnt = MS2Counts.countMS2Scans(tf, config.threads);
+							print(String.format("\t%s - %d scans", crun, cnt));
+							synchronized (runCounts) {
+								runCounts.put(crun, cnt);
+							}
+						});
+					}
+					scheduler.awaitAll();
+				}
+				PrintWriter out = new PrintWriter(new FileWriter(countsFile));
+				for (String cf : counts.keySet()) {
+					sumMS2 += counts.get(cf);
+					out.printf("%s\t%d\n", cf, counts.get(cf));
+				}
+				out.close();
+			} else {
+				BufferedReader in = new BufferedReader(new FileReader(countsFile));
+				String cline;
+				while((cline = in.readLine())!= null) {
+					String [] sp = cline.split("\t");
+					int v = Integer.parseInt(sp[1]);
+					counts.put(sp[0], v);
+					sumMS2 += v;
+				}
+				in.close();
+			}
+			for(String crun : mzMap.get(ds).keySet()) {
+				if(!counts.containsKey(crun) || counts.get(crun) <= 0)
+					die("Invalid MS2 counts for run " + crun + " in dataset " + ds);
+			}
+			datasetMS2.put(ds, sumMS2);
+			print("\t" + datasetMS2.get(ds) +" MS2 scans present in dataset " + ds);
+			print("Done counting MS2 scans for dataset " + ds + "\n");
+		}
+	}
+
+	/* Writes the histogram of every dataset that does not have one yet, returns the combined {min, max} range */
+	private static int [] writeDatasetHistograms() throws Exception {
+		boolean streamPSMs = Boolean.parseBoolean(params.get("psm_streaming"));
+		int min = 1 << 30;
+		int max = -1*(1<<30);
+		for(String ds : datasets.keySet()) {
+			File histoFile = new File(normFName(ds+histoName));
+			if(!histoFile.exists()) {
+				ArrayList<String []> dsData = datasets.get(ds);
+				Histogram chisto;
+				if (streamPSMs) {
+					chisto = streamHistogram(dsData, datasetMS2.get(ds));
+				} else {
+					int nVals = 0;
+					for(int i = 0; i < dsData.size(); i++)
+						nVals += getPSMFile(dsData.get(i)[0]).getTable().size;
+					float [] vals = new float[nVals];
+					double [] ints = new double[nVals];
+					int off = 0;
+					for(int i = 0; i < dsData.size(); i++) {
+						PSMFile pf = getPSMFile(dsData.get(i)[0]);
+						float [] cVals = pf.getMassDiffs();
+						System.arraycopy(cVals, 0, vals, off, cVals.length);
+						System.arraycopy(pf.getIntensities(), 0, ints, off, cVals.length);
+						off += cVals.length;
+					}
+					chisto = new Histogram(vals, ints, datasetMS2.get(ds), config.histoBinDivs, config.histoSmoothBins*2+1);
+				}
+				min = Math.min(min, chisto.start);
+				max = Math.max(max, chisto.end);
+				chisto.writeHistogram(histoFile);
+				print(String.format("\tGenerated histogram file for dataset %s [%d - %d]",ds,chisto.start,chisto.end));
+			} else {
+				Histogram h = Histogram.readHistogramHeader(histoFile);
+				min = Math.min(min, h.start);
+				max = Math.max(max, h.end);
+				print(String.format("\tFound histogram file for dataset %s [%d - %d]",ds,h.start,h.end));
+			}
+		}
+		return new int[] {min, max};
+	}
+
+	/* Similarity/RT annotation of the datasets annotateSpectra left incomplete (all of them for inter-run comparisons) */
+	private static void annotateSimRT(AtomicBoolean calcIntensity) throws Exception {
+		for(String ds : datasets.keySet()) {
+			SimRTAnalysis sra = new SimRTAnalysis(ds);
+			if(sra.isComplete()) {
+				//reused or written by a shard worker
+				if (sra.hasIntensityColumns())
+					calcIntensity.set(true);
+				continue;
+			}
+			ArrayList<String []> dsData = datasets.get(ds);
+			for(int i = 0; i < dsData.size(); i++) {
+				PSMFile pf = getPSMFile(dsData.get(i)[0]);
+				sra.simrtPSMs(pf, mzMap.get(ds),Boolean.parseBoolean(params.get("compare_betweenRuns")));
+			}
+			sra.complete();
+			if (sra.getCalcIntensity())
+				calcIntensity.set(true);
+		}
+	}
+
+	/* Runs the per-PSM spectral annotations of every dataset in one pass so each run's spectra are read once.
+	 * Datasets are independent and are annotated concurrently when parallel_tasks allows it.
+	 * Each analysis is marked complete here, so its own section in main only handles what is left
+	 * (inter-run similarity, which needs all runs in memory at once). Returns whether SimRT found intensities. */
+	private static boolean annotateSpectra(File peaksummary, GlycoParams glycoParams) throws Exception {
+		boolean interRun = Boolean.parseBoolean(params.get("compare_betweenRuns"));
+		boolean diagMineMode = Boolean.parseBoolean(params.get("run_diagmine_mode"));
+		boolean extractDiagnosticIons = Boolean.parseBoolean(params.get("run_diagextract_mode"));
+		int numThreads = Integer.parseInt(params.get("threads"));
+		AtomicBoolean calcIntensity = new AtomicBoolean(false);
+		boolean alreadyPrintedParams = false;
+
+		print("Begin spectral annotation");
+		TaskScheduler scheduler = TaskScheduler.fromParams();
+		for (String ds : datasets.keySet()) {
+			SpectralPipeline pipeline = new SpectralPipeline();
+			SiteLocalization sl = new SiteLocalization(ds);
+			boolean runLoc = !sl.isComplete();
+			if (runLoc)
+				pipeline.addVisitor(sl);
+			SimRTAnalysis sra = new SimRTAnalysis(ds);
+			boolean runSimRT = !interRun && !sra.isComplete();
+			if (!interRun && !runSimRT && sra.hasIntensityColumns()) //reused or written by a shard worker
+				calcIntensity.set(true);
+			if (runSimRT)
+				pipeline.addVisitor(sra);
+			DiagnosticAnalysis da = null;
+			if (diagMineMode) {
+				da = new DiagnosticAnalysis(ds);
+				da.initializeBinBoundaries(PeakSummary.readPeakBounds(peaksummary));
+				da.executorService = executorService;
+				pipeline.addVisitor(da);
+			}
+			DiagnosticExtractor de = new DiagnosticExtractor(ds);
+			boolean runDiagExtract = extractDiagnosticIons && !de.isDiagnosticComplete();
+			if (runDiagExtract) {
+				de.executorService = executorService;
+				pipeline.addVisitor(de);
+			}
+			GlycoAnalysis ga = null;
+			if (glycoParams != null) {
+				ga = new GlycoAnalysis(ds, glycoParams.glycoDatabase, glycoParams);
+				if (!ga.isGlycoComplete()) {
+					if (!alreadyPrintedParams) {
+						glycoParams.printGlycoParams();
+						alreadyPrintedParams = true;
+					}
+					ga.executorService = executorService;
+					pipeline.addVisitor(ga);
+				} else
+					ga = null;
+			}
+			if (pipeline.isEmpty())
+				continue;
+
+			final GlycoAnalysis fga = ga;
+			scheduler.submit("annotation:" + ds, TaskScheduler.estimateBytes(mzMap.get(ds).values()), () -> {
+				print("\tAnnotating dataset " + ds);
+				ArrayList<String []> dsData = datasets.get(ds);
+				for (int i = 0; i < dsData.size(); i++)
+					pipeline.processPSMFile(getPSMFile(dsData.get(i)[0]), mzMap.get(ds));
+
+				if (runLoc)
+					sl.complete();
+				if (runSimRT) {
+					sra.complete();
+					if (sra.getCalcIntensity())
+						calcIntensity.set(true);
+				}
+				if (runDiagExtract)
+					de.completeDiagnostic();
+				if (fga != null)
+					fga.completeGlyco();
+			});
+		}
+		scheduler.awaitAll();
+		print("Done\n");
+		return calcIntensity.get();
 	}
 
 	private static void deleteFile(Path p, boolean printOnDeletion) throws IOException {
@@ -923,6 +1358,7 @@ public class PTMShepherd {
 
 	private static void getMzDataMapping() throws Exception {
 		cacheFiles = new ArrayList<>();
+		FileFingerprint fingerprints = new FileFingerprint(new File(normFName(fingerprintIndexName)));
 
 		// Get true paths to mzData
 		for(String ds : datasets.keySet()) {
@@ -930,13 +1366,15 @@ public class PTMShepherd {
 			mzMap.put(ds, new HashMap<>());
 			for(int i = 0; i < dsData.size(); i++) {
 				File tpf = new File(dsData.get(i)[0]);
-				String crc = PSMFile.getCRC32(tpf);
+				String crc = fingerprints.get(tpf);
 				File cacheFile = new File(normFName("cache-"+crc+".txt"));
 				cacheFiles.add(crc);
 				HashSet<String> fNames;
 				if(!cacheFile.exists()) {
-					PSMFile pf = new PSMFile(tpf);
-					fNames = pf.getRunNames();
+					if (Boolean.parseBoolean(params.get("psm_streaming")))
+						fNames = new HashSet<>(streamRunCounts(tpf).keySet());
+					else
+						fNames = getPSMFile(dsData.get(i)[0]).getRunNames();
 					PrintWriter out = new PrintWriter(new FileWriter(cacheFile));
 					for(String cn : fNames)
 						out.println(cn);
@@ -953,8 +1391,8 @@ public class PTMShepherd {
 					mzMap.get(ds).put(cname, null);
 				}
 				PTMShepherd.print("\tIndexing data from " + ds);
-				PSMFile pf = new PSMFile(dsData.get(i)[0]);
-				PSMFile.getMappings(new File(dsData.get(i)[1]), mzMap.get(ds), pf.getRunNames());
+				// the spectral directory is scanned once, datasets sharing it resolve against the same catalog
+				SpectralFileCatalog.forPath(new File(dsData.get(i)[1])).resolve(mzMap.get(ds));
 			}
 			// Assure that mzData was found
 			for(String crun : mzMap.get(ds).keySet()) {
@@ -963,36 +1401,42 @@ public class PTMShepherd {
 				}
 			}
 		}
+		fingerprints.save();
 	}
 
 	// Rewrite mzData to MZBIN files
+	/* Runs are independent, so they are cached concurrently when parallel_tasks allows it */
 	private static void rewriteDataToMzBin() throws Exception {
+		TaskScheduler scheduler = TaskScheduler.fromParams();
+		HashSet<String> scheduled = new HashSet<>();
+		boolean streamPSMs = Boolean.parseBoolean(params.get("psm_streaming"));
 		for(String ds : datasets.keySet()) {
 			ArrayList<String []> dsData = datasets.get(ds);
 			for(int i = 0; i < dsData.size(); i++) {
 				PTMShepherd.print("\tCaching data from " + ds);
-				PSMFile pf = new PSMFile(dsData.get(i)[0]);
-				rewriteMzDataToMzBin(pf, mzMap.get(ds), Integer.parseInt(params.get("spectra_condPeaks")), Float.parseFloat(params.get("spectra_condRatio")));
-				PTMShepherd.print("\tDone caching data from " + ds);
+				HashMap<String, IntList> runScans = streamPSMs ? streamRunScans(new File(dsData.get(i)[0]))
+						: getRunScans(getPSMFile(dsData.get(i)[0]).getTable());
+				rewriteMzDataToMzBin(runScans, mzMap.get(ds), Integer.parseInt(params.get("spectra_condPeaks")), Float.parseFloat(params.get("spectra_condRatio")), scheduler, scheduled);
 			}
 		}
+		scheduler.awaitAll();
 	}
 
-	private static void rewriteMzDataToMzBin(PSMFile pf, HashMap<String, File> mzMappings, int topNPeaks, float minPeakRatio) throws Exception {
-		// Get PSM scan num -> spectral file mapping
-		HashMap<String, ArrayList<Integer>> mappings = new HashMap<>();
-		int specCol = pf.getColumn("Spectrum");
-		for (int i = 0; i < pf.data.size(); i++) {
-			String[] sp = pf.data.get(i).split("\t");
-			String bn = sp[specCol].substring(0, sp[specCol].indexOf(".")); //fraction
-			if (!mappings.containsKey(bn))
-				mappings.put(bn, new ArrayList<>());
-			mappings.get(bn).add(i);
-		}
+	/* Scan number of each row by run, in row order, -1 for rows without one */
+	private static HashMap<String, IntList> getRunScans(PSMTable table) {
+		HashMap<String, IntList> runScans = new HashMap<>();
+		for (int i = 0; i < table.size; i++)
+			runScans.computeIfAbsent(table.run.get(i), k -> new IntList()).add(table.scanNum[i]);
+		return runScans;
+	}
 
-		// Loop through spectral files -> indexed lines in PSM -> process each line
-		HashMap<Integer, String> linesWithoutSpectra = new HashMap<>();
-		for (String cf : mappings.keySet()) { //for file in relevant spectral files
+	/**
+	 * @param runScans scan numbers of the PSMs of each run, from getRunScans or streamRunScans
+	 */
+	private static void rewriteMzDataToMzBin(HashMap<String, IntList> runScans, HashMap<String, File> mzMappings, int topNPeaks, float minPeakRatio,
+											 TaskScheduler scheduler, HashSet<String> scheduled) throws Exception {
+		// Loop through spectral files -> scans of PSMs -> process each scan
+		for (String cf : runScans.keySet()) { //for file in relevant spectral files
 			// Check to see if an mzBIN_cache file was discovered
 			if (mzMappings.get(cf).toString().endsWith(mzBinFilename)) {
 				System.out.println("\t\tFound existing cached spectral data for " + cf);
@@ -1004,29 +1448,55 @@ public class PTMShepherd {
 				mzMappings.put(cf, new File(normFName(cf + mzBinFilename)));
 				continue;
 			}
-			long t1 = System.currentTimeMillis();
-			MXMLReader mr = new MXMLReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")));
-			ArrayList<MZBINSpectrum> specs = new ArrayList<>(); // Holds parsed spectra
-			mr.readFully();
-			long t2 = System.currentTimeMillis();
-			ArrayList<Integer> clines = mappings.get(cf); //lines corr to curr spec file
-			for (int i = 0; i < clines.size(); i++) {//for relevant line in curr spec file
-				String line = pf.data.get(clines.get(i));
-				String [] sp = line.split("\\t");
-				String specName = sp[specCol];
-				Spectrum spec =  mr.getSpectrum(reNormName(specName));
-				if (spec == null)
-					linesWithoutSpectra.put(i, line);
-				else {
-					spec.condition(topNPeaks, minPeakRatio); // TODO Why aren't these being saved as conditioned spectra?
-					specs.add(spec.toMZBINSpectrum());
-				}
+			// Skip runs already queued by another psm.tsv
+			else if (!scheduled.add(normFName(cf + mzBinFilename)))
+				continue;
+			File mzFile = mzMappings.get(cf);
+			// Shared cache directory holds every conditioned MS2 scan of the run, so any psm.tsv can reuse it
+			if (mzBinCache != null) {
+				scheduler.submit("cache:" + cf, TaskScheduler.estimateBytes(Arrays.asList(mzFile)), () -> {
+					long t1 = System.currentTimeMillis();
+					File cached = mzBinCache.get(MzBinCache.key(mzFile, topNPeaks, minPeakRatio), cf, () -> {
+						MXMLReader mr = new MXMLReader(mzFile, Integer.parseInt(PTMShepherd.getParam("threads")));
+						mr.readFully();
+						ArrayList<MZBINSpectrum> specs = new ArrayList<>(mr.specs.length);
+						for (Spectrum spec : mr.specs) {
+							spec.condition(topNPeaks, minPeakRatio);
+							specs.add(spec.toMZBINSpectrum());
+						}
+						PTMShepherd.print(String.format("\t\t%s - added %d spectra to the spectral cache", mzFile, specs.size()));
+						return specs;
+					});
+					PTMShepherd.print(String.format("\t\t%s - %s (%d ms)", mzFile, cached, System.currentTimeMillis() - t1));
+					synchronized (mzMappings) {
+						mzMappings.put(cf, cached);
+					}
+				});
+				continue;
 			}
-			long t3 = System.currentTimeMillis();
-			PTMShepherd.print(String.format("\t\t%s - %d (%d ms, %d ms)", mzMappings.get(cf), clines.size(), t2-t1,t3-t2));
-			MZBINFile mzbinFile = new MZBINFile(normFName(cf + mzBinFilename), specs, "", "");
-			mzbinFile.writeMZBIN();
-			mzMappings.put(cf, new File(normFName(cf + mzBinFilename)));
+			scheduler.submit("cache:" + cf, TaskScheduler.estimateBytes(Arrays.asList(mzFile)), () -> {
+				long t1 = System.currentTimeMillis();
+				MXMLReader mr = new MXMLReader(mzFile, Integer.parseInt(PTMShepherd.getParam("threads")));
+				ArrayList<MZBINSpectrum> specs = new ArrayList<>(); // Holds parsed spectra
+				mr.readFully();
+				long t2 = System.currentTimeMillis();
+				IntList scans = runScans.get(cf); //scans of PSMs of curr spec file
+				int runId = SpectrumKey.runId(cf);
+				for (int i = 0; i < scans.size(); i++) {//for relevant PSM in curr spec file
+					Spectrum spec = (scans.get(i) == -1) ? null : mr.getSpectrum(SpectrumKey.of(runId, scans.get(i)));
+					if (spec != null) {
+						spec.condition(topNPeaks, minPeakRatio); // TODO Why aren't these being saved as conditioned spectra?
+						specs.add(spec.toMZBINSpectrum());
+					}
+				}
+				long t3 = System.currentTimeMillis();
+				PTMShepherd.print(String.format("\t\t%s - %d (%d ms, %d ms)", mzFile, scans.size(), t2-t1,t3-t2));
+				MZBINFile mzbinFile = new MZBINFile(normFName(cf + mzBinFilename), specs, "", "");
+				mzbinFile.writeMZBIN();
+				synchronized (mzMappings) {
+					mzMappings.put(cf, new File(normFName(cf + mzBinFilename)));
+				}
+			});
 		}
 	}
 
@@ -1044,8 +1514,7 @@ public class PTMShepherd {
 			in.close();
 			out.close();
 		} catch (Exception ex) {
-			System.out.println(ex);
-			System.exit(1);
+			die("Could not extract " + fout + ": " + ex);
 		}
 	}
 
@@ -1089,8 +1558,7 @@ public class PTMShepherd {
 
 			}
 		} catch (Exception e) {
-			out.println("Error creating output directory. Terminating.");
-			System.exit(1);
+			die("Error creating output directory. Terminating.");
 		}
 	}
 
@@ -1125,21 +1593,152 @@ public class PTMShepherd {
 		return String.format("%s.%d.%d.%s",sp[0],sn,sn,sp[3]);
 	}
 
+	/* Histogram of a dataset's mass shifts, built from one batch of PSMs at a time */
+	private static Histogram streamHistogram(ArrayList<String []> dsData, int expSize) throws Exception {
+		int intPeaks = Integer.parseInt(params.get("histo_intensity"));
+		int batchSize = Integer.parseInt(params.get("psm_streamBatch"));
+		Histogram.Accumulator acc = new Histogram.Accumulator(config.histoBinDivs, config.histoSmoothBins*2+1);
+		for (String [] dsDatum : dsData) {
+			try (PSMReader pr = PSMReader.open(new File(dsDatum[0]), batchSize)) {
+				int intCol = pr.getColumn("Intensity");
+				if (intCol == -1 && intPeaks == 1)
+					System.out.printf("\tCould not identify 'Intensity' column in %s. Defaulting to spectral counts.", pr.fname);
+				// intensities fall back to spectral counts if a file's intensities are empty, so both are kept per file
+				boolean useInts = intCol != -1 && intPeaks != 0;
+				Histogram.Accumulator counts = useInts ? new Histogram.Accumulator(config.histoBinDivs, config.histoSmoothBins*2+1) : acc;
+				Histogram.Accumulator ints = useInts ? new Histogram.Accumulator(config.histoBinDivs, config.histoSmoothBins*2+1) : null;
+				double total = 0;
+				ArrayList<String []> batch;
+				while ((batch = pr.nextBatch()) != null) {
+					for (String [] sp : batch) {
+						float dm = (float) Double.parseDouble(sp[pr.dMassCol]);
+						counts.add(dm, 1.0);
+						if (useInts) {
+							double in = sp[intCol].isEmpty() ? 0 : Double.parseDouble(sp[intCol]);
+							ints.add(dm, in);
+							total += in;
+						}
+					}
+				}
+				if (useInts) {
+					if (total < 1) {
+						System.out.printf("\tEmpty 'Intensity' column in %s. Defaulting to spectral counts.", pr.fname);
+						acc.addAll(counts);
+					} else {
+						acc.addAll(ints);
+					}
+				}
+			}
+		}
+		return acc.build(expSize);
+	}
+
+	/* Number of PSMs per run of a psm.tsv, read one batch at a time */
+	private static TreeMap<String,Integer> streamRunCounts(File psmf) throws Exception {
+		TreeMap<String,Integer> counts = new TreeMap<>();
+		try (PSMReader pr = PSMReader.open(psmf, Integer.parseInt(params.get("psm_streamBatch")))) {
+			int specCol = pr.getColumn("Spectrum");
+			ArrayList<String []> batch;
+			while ((batch = pr.nextBatch()) != null) {
+				for (String [] sp : batch) {
+					String spec = sp[specCol];
+					counts.merge(spec.substring(0, spec.indexOf(".")), 1, Integer::sum);
+				}
+			}
+		}
+		return counts;
+	}
+
+	/* Scan number of each row by run, in row order, read one batch at a time */
+	private static HashMap<String, IntList> streamRunScans(File psmf) throws Exception {
+		HashMap<String, IntList> runScans = new HashMap<>();
+		try (PSMReader pr = PSMReader.open(psmf, Integer.parseInt(params.get("psm_streamBatch")))) {
+			int specCol = pr.getColumn("Spectrum");
+			ArrayList<String []> batch;
+			while ((batch = pr.nextBatch()) != null) {
+				for (String [] sp : batch) {
+					String spec = sp[specCol];
+					long key = SpectrumKey.parse(spec);
+					runScans.computeIfAbsent(spec.substring(0, spec.indexOf(".")), k -> new IntList())
+							.add((key == SpectrumKey.NONE) ? -1 : SpectrumKey.scanNum(key));
+				}
+			}
+		}
+		return runScans;
+	}
+
+	/**
+	 * Writes the Observed Modifications column of a psm.tsv like PSMFile.annotateMassDiffs, but rewrites the file
+	 * one batch at a time instead of loading it. A shared copy of the file is flushed and dropped first.
+	 */
+	private static void streamMassDiffAnnotations(PeakAnnotator pa, String path) throws Exception {
+		releasePSMFile(path);
+		File psmf = new File(path);
+		File tmp = new File(path + ".tmp");
+		double precTol = Double.parseDouble(params.get("precursor_tol"));
+		int precUnits = Integer.parseInt(params.get("precursor_mass_units"));
+		try (PSMReader pr = PSMReader.open(psmf, Integer.parseInt(params.get("psm_streamBatch")));
+			 PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmp), 1 << 22))) {
+			/* overwrite Observed Modifications col if exists, else insert it at Assigned Modifications */
+			int annoCol = pr.getColumn("Observed Modifications");
+			boolean overwrite = true;
+			if (annoCol == -1) {
+				annoCol = pr.getColumn("Assigned Modifications");
+				overwrite = false;
+			}
+			if (annoCol == -1)
+				annoCol = pr.headers.length - 1;
+			int precCol = pr.getPrecursorCol();
+
+			ArrayList<String> headers = new ArrayList<>(Arrays.asList(pr.headers));
+			if (!overwrite)
+				headers.add(annoCol, "Observed Modifications");
+			out.println(String.join("\t", headers));
+			ArrayList<String []> batch;
+			while ((batch = pr.nextBatch()) != null) {
+				float [] dmasses = new float[batch.size()];
+				float [] precs = (precCol == -1) ? null : new float[batch.size()];
+				for (int i = 0; i < batch.size(); i++) {
+					dmasses[i] = (float) Double.parseDouble(batch.get(i)[pr.dMassCol]);
+					if (precs != null)
+						precs[i] = Float.parseFloat(batch.get(i)[precCol]);
+				}
+				String [] annotations = pa.getDeltaMassMappings(dmasses, precs, precTol, precUnits);
+				for (int i = 0; i < batch.size(); i++) {
+					ArrayList<String> sp = new ArrayList<>(Arrays.asList(batch.get(i)));
+					if (overwrite)
+						sp.set(annoCol, annotations[i]);
+					else
+						sp.add(annoCol, annotations[i]);
+					out.println(String.join("\t", sp));
+				}
+			}
+			if (out.checkError())
+				throw new IOException("could not write " + tmp);
+		}
+		Files.move(tmp.toPath(), psmf.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		File idxFile = PSMIndex.indexFile(psmf);
+		if (!idxFile.delete() && idxFile.exists())
+			throw new IOException(String.format("Could not delete stale row index %s", idxFile));
+	}
+
+	/* Assigns the PSMs of a psm.tsv to peaks, read one batch at a time */
+	private static void streamPeakSummary(PeakSummary ps, File psmf) throws Exception {
+		try (PSMReader pr = PSMReader.open(psmf, Integer.parseInt(params.get("psm_streamBatch")))) {
+			int pepCol = pr.getColumn("Peptide");
+			int intCol = pr.getColumn("Intensity");
+			ArrayList<String []> batch;
+			while ((batch = pr.nextBatch()) != null) {
+				for (String [] sp : batch) {
+					double intensity = (intCol == -1 || sp[intCol].isEmpty()) ? 0 : Double.parseDouble(sp[intCol]);
+					ps.appendPSM(Double.parseDouble(sp[pr.dMassCol]), sp[pepCol], intensity);
+				}
+			}
+		}
+	}
+
 	public static String concatIonTypes() {
-		StringBuffer sb = new StringBuffer();
-		if (params.get("iontype_a").equals("1"))
-			sb.append("a");
-		if (params.get("iontype_b").equals("1"))
-			sb.append("b");
-		if (params.get("iontype_c").equals("1"))
-			sb.append("c");
-		if (params.get("iontype_x").equals("1"))
-			sb.append("x");
-		if (params.get("iontype_y").equals("1"))
-			sb.append("y");
-		if (params.get("iontype_z").equals("1"))
-			sb.append("z");
-		return sb.toString();
+		return config.getIonTypes();
 	}
 	private static GlycoParams parseGlycoParams() {
 		String glycanResidueDB = getParam("glyco_residue_list");
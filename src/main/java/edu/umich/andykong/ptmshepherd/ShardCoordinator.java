@@ -0,0 +1,179 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package edu.umich.andykong.ptmshepherd;
+
+import edu.umich.andykong.ptmshepherd.pipeline.TaskScheduler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static edu.umich.andykong.ptmshepherd.PTMShepherd.die;
+import static edu.umich.andykong.ptmshepherd.PTMShepherd.getParam;
+import static edu.umich.andykong.ptmshepherd.PTMShepherd.normFName;
+import static edu.umich.andykong.ptmshepherd.PTMShepherd.print;
+
+/**
+ * Runs the per-dataset phases of an analysis in worker processes on this machine, each one for a shard of the datasets.
+ * Workers are PTM-Shepherd runs with the same arguments plus the shard_phase and shard_datasets params. They write the
+ * usual per-dataset files (mzBIN caches, MS2 counts, histograms, .rawlocalize, .rawsimrt, .rawglyco and diagnostic
+ * ion tables), which the coordinator then finds complete and merges into the combined reports as a single run would.
+ */
+public class ShardCoordinator {
+
+	public static final String SPECTRA = "spectra"; // spectral caching, MS2 counts and histograms
+	public static final String ANNOTATION = "annotation"; // localization, similarity/RT, diagnostic extraction and first pass glyco
+
+	private final List<List<String>> shards;
+	private final long workerMemMB;
+	private final int workerThreads;
+
+	ShardCoordinator(List<List<String>> shards, long workerMemMB, int workerThreads) {
+		this.shards = shards;
+		this.workerMemMB = workerMemMB;
+		this.workerThreads = workerThreads;
+	}
+
+	/* Builds a coordinator from the shard_workers and shard_workerMemMB params, null if the run is not sharded */
+	public static ShardCoordinator fromParams() {
+		int nWorkers = Integer.parseInt(getParam("shard_workers"));
+		if (nWorkers < 2 || !getParam("shard_phase").isEmpty())
+			return null;
+		HashMap<String, Collection<String>> runs = new HashMap<>();
+		HashMap<String, Long> bytes = new HashMap<>();
+		for (String ds : PTMShepherd.datasets.keySet()) {
+			if (ds.contains(",")) {
+				print("Dataset names with commas cannot be sharded, running in a single process");
+				return null;
+			}
+			runs.put(ds, PTMShepherd.mzMap.get(ds).keySet());
+			bytes.put(ds, TaskScheduler.estimateBytes(PTMShepherd.mzMap.get(ds).values()));
+		}
+		List<List<String>> shards = split(groupByRuns(runs), bytes, nWorkers);
+		if (shards.size() < 2)
+			return null;
+
+		long memMB = Long.parseLong(getParam("shard_workerMemMB"));
+		if (memMB <= 0)
+			memMB = Math.max(1024, (Runtime.getRuntime().maxMemory() >> 20) / shards.size());
+		int threads = Math.max(1, Integer.parseInt(getParam("threads")) / shards.size());
+		return new ShardCoordinator(shards, memMB, threads);
+	}
+
+	/**
+	 * Groups datasets that share a run, so two workers never cache the same run at once
+	 * @param runs dataset -> names of its runs
+	 */
+	public static List<List<String>> groupByRuns(Map<String, ? extends Collection<String>> runs) {
+		HashMap<String, String> parent = new HashMap<>(); // dataset -> dataset it was merged into
+		HashMap<String, String> owner = new HashMap<>(); // run -> first dataset seen with it
+		for (String ds : new TreeMap<>(runs).keySet()) {
+			parent.put(ds, ds);
+			for (String run : runs.get(ds)) {
+				String prev = owner.putIfAbsent(run, ds);
+				if (prev != null)
+					parent.put(root(parent, ds), root(parent, prev));
+			}
+		}
+		TreeMap<String, List<String>> groups = new TreeMap<>();
+		for (String ds : new TreeMap<>(runs).keySet())
+			groups.computeIfAbsent(root(parent, ds), k -> new ArrayList<>()).add(ds);
+		return new ArrayList<>(groups.values());
+	}
+
+	private static String root(HashMap<String, String> parent, String ds) {
+		while (!parent.get(ds).equals(ds))
+			ds = parent.get(ds);
+		return ds;
+	}
+
+	/**
+	 * Splits groups of datasets into at most n shards of similar size, largest group first into the lightest shard
+	 * @param bytes dataset -> estimated size of its spectral files
+	 * @return non-empty shards, each a sorted list of datasets
+	 */
+	public static List<List<String>> split(List<List<String>> groups, Map<String, Long> bytes, int n) {
+		ArrayList<List<String>> sorted = new ArrayList<>(groups);
+		HashMap<List<String>, Long> groupBytes = new HashMap<>();
+		for (List<String> group : sorted) {
+			long sum = 0;
+			for (String ds : group)
+				sum += bytes.getOrDefault(ds, 0L);
+			groupBytes.put(group, sum);
+		}
+		sorted.sort((a, b) -> Long.compare(groupBytes.get(b), groupBytes.get(a)));
+
+		int nShards = Math.min(n, sorted.size());
+		List<List<String>> shards = new ArrayList<>();
+		long [] load = new long[nShards];
+		for (int i = 0; i < nShards; i++)
+			shards.add(new ArrayList<>());
+		for (int g = 0; g < sorted.size(); g++) {
+			List<String> group = sorted.get(g);
+			int lightest = Math.min(g, nShards - 1); // the first groups each start a shard
+			if (g >= nShards)
+				for (int i = 0; i < nShards; i++)
+					if (load[i] < load[lightest])
+						lightest = i;
+			shards.get(lightest).addAll(group);
+			load[lightest] += groupBytes.get(group);
+		}
+		for (List<String> shard : shards)
+			Collections.sort(shard);
+		return shards;
+	}
+
+	/* Runs one phase in a worker per shard and waits for all of them, a failed worker is fatal */
+	public void runPhase(String phase) throws Exception {
+		print(String.format("Running %s phase in %d worker processes", phase, shards.size()));
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		ArrayList<Process> workers = new ArrayList<>();
+		ArrayList<File> logs = new ArrayList<>();
+		try {
+			for (int i = 0; i < shards.size(); i++) {
+				List<String> cmd = new ArrayList<>(Arrays.asList(java, "-Xmx" + workerMemMB + "m",
+						"-cp", System.getProperty("java.class.path"), PTMShepherd.class.getName()));
+				cmd.addAll(Arrays.asList(PTMShepherd.runArgs));
+				// later overrides win, these keep workers from deleting or mining anything themselves
+				cmd.addAll(Arrays.asList("--shard_phase", phase, "--shard_datasets", String.join(",", shards.get(i)),
+						"--shard_workers", "0", "--run_from_old", "true", "--cache_stageOutputs", "false",
+						"--run_diagmine_mode", "false", "--threads", String.valueOf(workerThreads)));
+				File log = new File(normFName("shard-" + i + "." + phase + ".log"));
+				print(String.format("\tShard %d: %s (log in %s)", i, String.join(", ", shards.get(i)), log.getPath()));
+				workers.add(new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start());
+				logs.add(log);
+			}
+			for (int i = 0; i < workers.size(); i++) {
+				int exitCode = workers.get(i).waitFor();
+				if (exitCode != 0)
+					die(String.format("Shard %d failed in the %s phase with exit code %d, see %s", i, phase, exitCode, logs.get(i).getPath()));
+			}
+		} finally {
+			for (Process p : workers)
+				if (p.isAlive())
+					p.destroyForcibly();
+		}
+		print(String.format("Done with %s phase\n", phase));
+	}
+}
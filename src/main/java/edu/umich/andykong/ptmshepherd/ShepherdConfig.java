@@ -0,0 +1,169 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+import java.util.Map;
+
+import edu.umich.andykong.ptmshepherd.utils.IntermediateTable;
+
+/**
+ * Typed, validated snapshot of the parameters read in spectrum and PSM loops, built once after the parameter file is
+ * read so the loops neither look up nor parse strings. Missing or malformed values fail when the config is built.
+ */
+public class ShepherdConfig {
+
+	public final int threads;
+	public final double precursorTol;
+	public final int precursorMassUnits; // 0 = Da, 1 = ppm
+	public final double spectraPpmTol;
+	public final int spectraCondPeaks;
+	public final double spectraCondRatio;
+	public final int spectraMaxFragCharge;
+	public final int spectraMaxPrecursorCharge;
+	public final String nIonTypes; // enabled ion types out of "abc"
+	public final String cIonTypes; // enabled ion types out of "xyz"
+	public final int histoBinDivs;
+	public final int histoSmoothBins;
+	public final double annotationTol;
+	public final String localizationAllowedRes;
+	public final boolean capYIonsNormalize;
+	public final boolean diagIonsNormalize;
+	public final String intermediateFormat; // tsv, binary or binary_deflate
+	private final double [] capYShifts;
+	private final double [] diagIons;
+	private final double [] remainderMasses;
+
+	private ShepherdConfig(Map<String, String> params) {
+		threads = parseInt(params, "threads", 1);
+		precursorTol = parseDouble(params, "precursor_tol", 0);
+		precursorMassUnits = parseFlag(params, "precursor_mass_units");
+		spectraPpmTol = parseDouble(params, "spectra_ppmtol", Double.MIN_VALUE);
+		spectraCondPeaks = parseInt(params, "spectra_condPeaks", 1);
+		spectraCondRatio = parseDouble(params, "spectra_condRatio", 0);
+		spectraMaxFragCharge = parseInt(params, "spectra_maxfragcharge", 1);
+		spectraMaxPrecursorCharge = parseInt(params, "spectra_maxPrecursorCharge", 1);
+		nIonTypes = ionTypes(params, "abc");
+		cIonTypes = ionTypes(params, "xyz");
+		if (nIonTypes.isEmpty() && cIonTypes.isEmpty())
+			throw new IllegalArgumentException("at least one iontype_* parameter must be enabled");
+		histoBinDivs = parseInt(params, "histo_bindivs", 1);
+		histoSmoothBins = parseInt(params, "histo_smoothbins", 0);
+		annotationTol = parseDouble(params, "annotation_tol", 0);
+		localizationAllowedRes = params.getOrDefault("localization_allowed_res", "").trim();
+		capYIonsNormalize = parseFlag(params, "glyco_cap_y_ions_normalize") == 1;
+		diagIonsNormalize = parseFlag(params, "glyco_diag_ions_normalize") == 1;
+		capYShifts = parseMasses(params, "cap_y_ions");
+		diagIons = parseMasses(params, "diag_ions");
+		remainderMasses = parseMasses(params, "remainder_masses");
+		intermediateFormat = params.getOrDefault("intermediate_format", IntermediateTable.TSV).trim();
+		if (!IntermediateTable.isValidFormat(intermediateFormat))
+			throw new IllegalArgumentException(String.format("intermediate_format must be %s, %s or %s, got \"%s\"",
+					IntermediateTable.TSV, IntermediateTable.BINARY, IntermediateTable.BINARY_DEFLATE, intermediateFormat));
+	}
+
+	/**
+	 * Builds the config from string parameters
+	 * @throws IllegalArgumentException naming the first missing or invalid parameter
+	 */
+	public static ShepherdConfig fromParams(Map<String, String> params) {
+		return new ShepherdConfig(params);
+	}
+
+	public double [] getCapYShifts() {
+		return capYShifts.clone();
+	}
+
+	public double [] getDiagIons() {
+		return diagIons.clone();
+	}
+
+	public double [] getRemainderMasses() {
+		return remainderMasses.clone();
+	}
+
+	/* Enabled ion types, N-terminal first, e.g. "by" */
+	public String getIonTypes() {
+		return nIonTypes + cIonTypes;
+	}
+
+	private static String get(Map<String, String> params, String key) {
+		String v = params.get(key);
+		if (v == null || v.trim().isEmpty())
+			throw new IllegalArgumentException(String.format("missing value for parameter %s", key));
+		return v.trim();
+	}
+
+	private static int parseInt(Map<String, String> params, String key, int min) {
+		String v = get(params, key);
+		int res;
+		try {
+			res = Integer.parseInt(v);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("%s must be an integer, got \"%s\"", key, v));
+		}
+		if (res < min)
+			throw new IllegalArgumentException(String.format("%s must be at least %d, got %d", key, min, res));
+		return res;
+	}
+
+	private static double parseDouble(Map<String, String> params, String key, double min) {
+		String v = get(params, key);
+		double res;
+		try {
+			res = Double.parseDouble(v);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("%s must be a number, got \"%s\"", key, v));
+		}
+		if (Double.isNaN(res) || res < min)
+			throw new IllegalArgumentException(String.format("%s must be at least %s, got %s", key,
+					(min == Double.MIN_VALUE) ? "> 0" : String.valueOf(min), v));
+		return res;
+	}
+
+	private static int parseFlag(Map<String, String> params, String key) {
+		String v = get(params, key);
+		if (!v.equals("0") && !v.equals("1"))
+			throw new IllegalArgumentException(String.format("%s must be 0 or 1, got \"%s\"", key, v));
+		return v.charAt(0) - '0';
+	}
+
+	private static String ionTypes(Map<String, String> params, String types) {
+		StringBuilder sb = new StringBuilder();
+		for (char t : types.toCharArray()) {
+			if (parseFlag(params, "iontype_" + t) == 1)
+				sb.append(t);
+		}
+		return sb.toString();
+	}
+
+	/* Mass list separated by commas, spaces or slashes, empty if not set */
+	private static double [] parseMasses(Map<String, String> params, String key) {
+		String v = params.getOrDefault(key, "").trim();
+		if (v.isEmpty())
+			return new double[0];
+		String [] sp = v.split(",| |/");
+		double [] res = new double[sp.length];
+		for (int i = 0; i < sp.length; i++) {
+			try {
+				res[i] = Double.parseDouble(sp[i]);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(String.format("%s must be a list of masses, got \"%s\"", key, sp[i]));
+			}
+		}
+		return res;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Keeps one JVM running and runs the analyses sent to it over a Unix domain socket, one at a time.
+ *
+ * A client writes one argument per line followed by an empty line, then reads the analysis output until a line
+ * "EXIT code". Parameter file paths are made absolute by the client, paths inside parameter files are resolved
+ * against the daemon's working directory.
+ */
+public class ShepherdDaemon {
+
+	public static final String exitPrefix = "EXIT ";
+
+	private final Path socketPath;
+
+	public ShepherdDaemon(Path socketPath) {
+		this.socketPath = socketPath;
+	}
+
+	/* Serves analyses until the process is stopped */
+	public void serve() throws IOException {
+		Files.deleteIfExists(socketPath);
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(socketPath));
+			socketPath.toFile().deleteOnExit();
+			PTMShepherd.print("Waiting for analyses on " + socketPath);
+			while (true) {
+				try (SocketChannel ch = server.accept()) {
+					handle(ch);
+				} catch (IOException e) {
+					System.err.println("Lost connection to client: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void handle(SocketChannel ch) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+		ArrayList<String> args = new ArrayList<>();
+		String cline;
+		while ((cline = in.readLine()) != null && !cline.isEmpty())
+			args.add(cline);
+
+		PrintStream log = new PrintStream(Channels.newOutputStream(ch), true, "UTF-8");
+		long t0 = System.currentTimeMillis();
+		int code = 0;
+		try {
+			new ShepherdSession(log).run(args.toArray(new String[0]));
+		} catch (ShepherdException | IllegalArgumentException e) {
+			log.println("Fatal error: " + e.getMessage());
+			code = 1;
+		} catch (Exception e) {
+			e.printStackTrace(log);
+			code = 1;
+		}
+		log.println(exitPrefix + code);
+		log.flush();
+		PTMShepherd.print(String.format("Finished analysis %s (exit code %d, %d ms)", String.join(" ", args), code,
+				System.currentTimeMillis() - t0));
+	}
+
+	/**
+	 * Sends an analysis to a running daemon and copies its output to stdout
+	 * @param args parameter files and --key value overrides, as on the command line
+	 * @return exit code of the analysis
+	 */
+	public static int submit(Path socketPath, String [] args) throws IOException {
+		try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].startsWith("--") && i + 1 < args.length) {
+					sb.append(args[i]).append('\n').append(args[++i]).append('\n');
+				} else {
+					sb.append(new File(args[i].trim()).getAbsolutePath()).append('\n');
+				}
+			}
+			sb.append('\n');
+			Channels.newOutputStream(ch).write(sb.toString().getBytes(StandardCharsets.UTF_8));
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+			String cline;
+			while ((cline = in.readLine()) != null) {
+				if (cline.startsWith(exitPrefix))
+					return Integer.parseInt(cline.substring(exitPrefix.length()).trim());
+				System.out.println(cline);
+			}
+		}
+		System.err.println("Fatal error: daemon closed the connection before the analysis finished");
+		return 1;
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+/**
+ * Fatal error of an analysis run through {@link ShepherdSession}, thrown by {@link PTMShepherd#die} instead of
+ * exiting the JVM.
+ */
+public class ShepherdException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public ShepherdException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+import java.io.PrintStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs PTM-Shepherd analyses inside a running JVM. Fatal errors are thrown as {@link ShepherdException} instead of
+ * exiting, and the JIT-compiled code and parsed modification tables stay warm for the next analysis.
+ *
+ * Analyses share PTMShepherd's static state, so analyses started from several threads run one after another.
+ */
+public class ShepherdSession {
+
+	private static final ReentrantLock lock = new ReentrantLock();
+
+	private final PrintStream log;
+
+	public ShepherdSession() {
+		this(System.out);
+	}
+
+	/**
+	 * @param log stream that receives the analysis output while it runs
+	 */
+	public ShepherdSession(PrintStream log) {
+		this.log = log;
+	}
+
+	/**
+	 * Runs one analysis and waits for it to finish
+	 * @param args parameter files and --key value overrides, as on the command line
+	 */
+	public void run(String... args) throws Exception {
+		if (args.length == 0 || args[0].equals("--config") || args[0].equals("--annotate"))
+			throw new IllegalArgumentException("expected a parameter file");
+		lock.lock();
+		PrintStream stdout = System.out;
+		try {
+			System.setOut(log);
+			PTMShepherd.embedded = true;
+			PTMShepherd.run(args);
+		} finally {
+			PTMShepherd.embedded = false;
+			log.flush();
+			System.setOut(stdout);
+			lock.unlock();
+		}
+	}
+}
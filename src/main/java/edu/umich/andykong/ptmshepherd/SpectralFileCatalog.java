@@ -0,0 +1,175 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Index of the spectral files below a directory, built once per directory and shared by every psm.tsv that points at it.
+ * Each run name maps to its preferred spectral file according to the extension priorities, so resolving a run is a
+ * single lookup instead of a directory scan.
+ */
+public class SpectralFileCatalog {
+
+	// File priority list, a file matching several extensions takes the highest priority
+	private static final String [] extensions = {".mzBIN_cache", "_calibrated.mzML", "_uncalibrated.mzML",
+			"_calibrated.mgf", "_uncalibrated.mgf", ".mzML", ".mzXML", ".mzBIN", ".mgf", ".raw"};
+	private static final int [] extensionPriorities = {20, 19, 18, 17, 16, 15, 14, 13, 4, 1};
+	private static final SuffixTrie extensionTrie = new SuffixTrie();
+	static {
+		for (int i = 0; i < extensions.length; i++)
+			extensionTrie.add(extensions[i], extensionPriorities[i]);
+	}
+
+	private static final ConcurrentHashMap<String, SpectralFileCatalog> catalogs = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<String, File> runFiles; // run name -> preferred spectral file
+
+	private SpectralFileCatalog() {
+		this.runFiles = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Returns the catalog of a spectral directory (or single spectral file), scanning it on first use only
+	 */
+	public static SpectralFileCatalog forPath(File path) {
+		String key = path.getAbsoluteFile().toPath().normalize().toString();
+		return catalogs.computeIfAbsent(key, k -> {
+			SpectralFileCatalog c = new SpectralFileCatalog();
+			if (path.isDirectory())
+				ForkJoinPool.commonPool().invoke(c.new DirectoryScan(path.toPath()));
+			else if (path.isFile())
+				c.add(path);
+			return c;
+		});
+	}
+
+	/* Forgets all scanned directories, e.g. after new spectral files were written */
+	public static void clear() {
+		catalogs.clear();
+	}
+
+	/**
+	 * Priority of a spectral file name from its extension
+	 * @return priority, or -1 if it is not a spectral file
+	 */
+	public static int getPriority(String fileName) {
+		return extensionTrie.match(fileName);
+	}
+
+	private void add(File f) {
+		String name = f.getName();
+		if (getPriority(name) < 0)
+			return;
+		String runName = PSMFile.removeCalTag(PSMFile.splitName(name)[0]);
+		runFiles.merge(runName, f, SpectralFileCatalog::preferred);
+	}
+
+	/* Higher priority wins; ties go to the lexicographically smaller path so the result does not depend on scan order */
+	private static File preferred(File a, File b) {
+		int pa = getPriority(a.getName());
+		int pb = getPriority(b.getName());
+		if (pa != pb)
+			return (pa > pb) ? a : b;
+		return (a.getPath().compareTo(b.getPath()) <= 0) ? a : b;
+	}
+
+	/**
+	 * @return preferred spectral file of this run, null if there is none
+	 */
+	public File get(String runName) {
+		return runFiles.get(runName);
+	}
+
+	/**
+	 * Fills in the spectral file of every run in mappings, replacing an existing entry only by a higher priority file
+	 * @param mappings run name -> spectral file, null for runs still to be found
+	 */
+	public void resolve(HashMap<String, File> mappings) {
+		for (Map.Entry<String, File> e : mappings.entrySet()) {
+			File f = runFiles.get(e.getKey());
+			if (f == null)
+				continue;
+			if (e.getValue() == null || getPriority(f.getName()) > getPriority(e.getValue().getName()))
+				e.setValue(f);
+		}
+	}
+
+	/* Lists one directory and scans its subdirectories in parallel */
+	private class DirectoryScan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final transient Path dir;
+
+		DirectoryScan(Path dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		protected void compute() {
+			ArrayList<DirectoryScan> subdirs = new ArrayList<>();
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+				for (Path p : ds) {
+					if (Files.isDirectory(p))
+						subdirs.add(new DirectoryScan(p));
+					else
+						add(p.toFile());
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			invokeAll(subdirs);
+		}
+	}
+
+	/**
+	 * Trie over reversed extensions, matching every extension a name ends with in one pass over its last characters
+	 */
+	static class SuffixTrie {
+		private final HashMap<Character, SuffixTrie> children = new HashMap<>();
+		private int priority = -1;
+
+		void add(String suffix, int priority) {
+			SuffixTrie node = this;
+			for (int i = suffix.length() - 1; i >= 0; i--)
+				node = node.children.computeIfAbsent(suffix.charAt(i), c -> new SuffixTrie());
+			node.priority = priority;
+		}
+
+		/* Highest priority among the extensions the name ends with, -1 if none */
+		int match(String name) {
+			int best = -1;
+			SuffixTrie node = this;
+			for (int i = name.length() - 1; i >= 0 && node != null; i--) {
+				node = node.children.get(name.charAt(i));
+				if (node != null)
+					best = Math.max(best, node.priority);
+			}
+			return best;
+		}
+	}
+}
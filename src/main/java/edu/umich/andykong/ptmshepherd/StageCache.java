@@ -0,0 +1,161 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Manifest of the fingerprints that per-dataset stage outputs were computed from. A dataset whose fingerprint
+ * (psm.tsv files, spectral files and parameters) is unchanged since the last run keeps its outputs, so only new or
+ * changed datasets are recomputed.
+ *
+ * psm.tsv files are rewritten by PTM-Shepherd itself, so the manifest also remembers the fingerprint each psm.tsv
+ * had when the run finished and maps it back to the fingerprint of the original input.
+ */
+public class StageCache {
+
+	/* Parameters that only affect speed or which files are kept, not the results */
+	private static final HashSet<String> nonSemanticParams = new HashSet<>(Arrays.asList("threads",
+			"parallel_tasks", "parallel_memoryMB", "parallel_stages", "spectra_cacheMB", "spectra_partialRead",
+			"run_from_old", "cache_stageOutputs", "output_extended", "output_extended_diagmine", "shard_workers",
+			"shard_workerMemMB", "shard_phase", "shard_datasets", "outofcore_mode", "outofcore_memoryMB",
+			"psm_cacheMB", "spectra_cacheDir", "spectra_cacheDirMB", "psm_streaming", "psm_streamBatch",
+			"intermediate_format"));
+
+	private final File manifest;
+	private final HashMap<String, String> datasetKeys; // dataset -> fingerprint of its inputs
+	private final HashMap<String, String[]> psmAliases; // psm.tsv path -> {fingerprint at end of run, original fingerprint}
+
+	public StageCache(File manifest) throws IOException {
+		this.manifest = manifest;
+		this.datasetKeys = new HashMap<>();
+		this.psmAliases = new HashMap<>();
+		if (!manifest.exists())
+			return;
+		try (BufferedReader in = new BufferedReader(new FileReader(manifest))) {
+			String cline;
+			while ((cline = in.readLine()) != null) {
+				String [] sp = cline.split("\t");
+				if (sp[0].equals("dataset") && sp.length == 3)
+					datasetKeys.put(sp[1], sp[2]);
+				else if (sp[0].equals("psm") && sp.length == 4)
+					psmAliases.put(sp[1], new String[] {sp[2], sp[3]});
+			}
+		}
+	}
+
+	/**
+	 * Cheap fingerprint of a file's identity and contents
+	 */
+	public static String fingerprint(File f) {
+		return f.getAbsolutePath() + "|" + f.length() + "|" + f.lastModified();
+	}
+
+	/**
+	 * Fingerprint of a psm.tsv as originally given to PTM-Shepherd, seeing through the rewrites of a previous run
+	 */
+	public synchronized String psmFingerprint(File f) {
+		String fp = fingerprint(f);
+		String [] alias = psmAliases.get(f.getAbsolutePath());
+		if (alias != null && alias[0].equals(fp))
+			return alias[1];
+		return fp;
+	}
+
+	/**
+	 * @param psmFiles psm.tsv files of the dataset
+	 * @param spectralFiles spectral files of the dataset's runs
+	 * @param params run parameters, of which only those that change results are used
+	 * @return hash identifying the inputs of one dataset
+	 */
+	public String datasetKey(Collection<File> psmFiles, Collection<File> spectralFiles, Map<String, String> params) {
+		StringBuilder sb = new StringBuilder();
+		for (File f : psmFiles)
+			sb.append("psm\t").append(psmFingerprint(f)).append("\n");
+		TreeMap<String, String> sortedFps = new TreeMap<>();
+		for (File f : spectralFiles)
+			sortedFps.put(f.getAbsolutePath(), fingerprint(f));
+		for (String fp : sortedFps.values())
+			sb.append("spec\t").append(fp).append("\n");
+		for (Map.Entry<String, String> e : new TreeMap<>(params).entrySet()) {
+			if (!nonSemanticParams.contains(e.getKey()))
+				sb.append(e.getKey()).append("=").append(e.getValue()).append("\n");
+		}
+		return hash(sb.toString());
+	}
+
+	private static String hash(String s) {
+		try {
+			byte [] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+				sb.append(String.format("%02x", digest[i]));
+			return sb.toString();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return true if the dataset's outputs were computed from exactly these inputs
+	 */
+	public synchronized boolean isValid(String ds, String key) {
+		return key.equals(datasetKeys.get(ds));
+	}
+
+	public synchronized void setDatasetKey(String ds, String key) {
+		datasetKeys.put(ds, key);
+	}
+
+	public synchronized void removeDataset(String ds) {
+		datasetKeys.remove(ds);
+	}
+
+	/**
+	 * Remembers that this psm.tsv, as it is now, derives from the input with the given original fingerprint
+	 */
+	public synchronized void setPsmAlias(File f, String originalFingerprint) {
+		psmAliases.put(f.getAbsolutePath(), new String[] {fingerprint(f), originalFingerprint});
+	}
+
+	/* Writes to a temp file first so an interrupted run never leaves a truncated manifest */
+	public synchronized void save() throws IOException {
+		File tmp = new File(manifest.getPath() + ".tmp");
+		try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+			for (String ds : new TreeMap<>(datasetKeys).keySet())
+				out.printf("dataset\t%s\t%s\n", ds, datasetKeys.get(ds));
+			for (String path : new TreeMap<>(psmAliases).keySet())
+				out.printf("psm\t%s\t%s\t%s\n", path, psmAliases.get(path)[0], psmAliases.get(path)[1]);
+		}
+		Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
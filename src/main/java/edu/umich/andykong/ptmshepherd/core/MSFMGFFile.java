@@ -16,6 +16,8 @@
 
 package edu.umich.andykong.ptmshepherd.core;
 
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+
 import java.io.*;
 import java.lang.reflect.Array;
 import java.util.*;
@@ -270,9 +272,8 @@ public class MSFMGFFile {
                 }
             }
         } catch (Exception e) {
-            System.out.printf("Malformed scan: %s\n", block.get(1));
             e.printStackTrace();
-            System.exit(1);
+            PTMShepherd.die(String.format("Malformed scan: %s", block.get(1)));
         }
 
         float[] peakmzArr = new float[peakmz.size()];
@@ -19,7 +19,9 @@ package edu.umich.andykong.ptmshepherd.core;
 import edu.umich.andykong.ptmshepherd.PTMShepherd;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,14 +47,66 @@ public class MXMLReader {
 	
 	int nSpecs;
 	public Spectrum [] specs;
-	HashMap<String,Spectrum> specsByName;
-	HashMap<String,Spectrum> specsByStrippedName;
+	long [] keyTable; // SpectrumKey of each slot, open addressing, NONE for an empty slot
+	Spectrum [] specTable;
+	HashSet<Integer> loadedScans; // null if the whole file was read
 
+	/**
+	 * @param specName spectrum name as in psm.tsv or normalized by PTMShepherd.reNormName
+	 * @return the spectrum, null if it was not read
+	 */
 	public Spectrum getSpectrum(String specName) {
-		return specsByStrippedName.get(specName);
-//		return specsByName.get(specName);
+		return getSpectrum(SpectrumKey.parse(specName));
+	}
+
+	public Spectrum getSpectrum(long key) {
+		if (keyTable == null || key == SpectrumKey.NONE)
+			return null;
+		int mask = keyTable.length - 1;
+		for (int i = slot(key, mask); keyTable[i] != SpectrumKey.NONE; i = (i + 1) & mask) {
+			if (keyTable[i] == key)
+				return specTable[i];
+		}
+		return null;
+	}
+
+	/* Keys the spectra read by their names, a later spectrum with the same name replaces an earlier one */
+	private void indexSpecs(boolean calTagged) {
+		int cap = Integer.highestOneBit(Math.max(2 * specs.length, 16) - 1) << 1;
+		keyTable = new long[cap];
+		Arrays.fill(keyTable, SpectrumKey.NONE);
+		specTable = new Spectrum[cap];
+		int mask = cap - 1;
+		for (Spectrum spec : specs) {
+			long key = SpectrumKey.parse(calTagged ? removeCalTag(spec.scanName) : spec.scanName);
+			if (key == SpectrumKey.NONE)
+				continue;
+			int i = slot(key, mask);
+			while (keyTable[i] != SpectrumKey.NONE && keyTable[i] != key)
+				i = (i + 1) & mask;
+			keyTable[i] = key;
+			specTable[i] = spec;
+		}
+	}
+
+	private static int slot(long key, int mask) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h >>> 32) & mask;
 	}
 	
+	/**
+	 * Rough heap footprint of the spectra held by this reader, used to budget the SpectrumCache
+	 * @return estimated size in bytes
+	 */
+	public long estimateBytes() {
+		if (specs == null)
+			return 0;
+		long bytes = 0;
+		for (Spectrum s : specs)
+			bytes += s.estimateBytes();
+		return bytes;
+	}
+
 	public String stripName(String specName) {
 		String [] sp = specName.split(".");
 		if(sp.length == 4) 
@@ -79,7 +133,34 @@ public class MXMLReader {
 		this.threads = threads;
 	}
 	
+	public static boolean supportsPartialRead(File f) {
+		String fn = f.toPath().getFileName().toString().toLowerCase();
+		return fn.endsWith(".mzbin") || fn.endsWith(".mzbin_cache");
+	}
+
+	/**
+	 * Reads only the given scans when the format is indexed (mzBIN), and the whole file otherwise
+	 * @param scanNums sorted scan numbers needed by the caller
+	 */
+	public void readScans(List<Integer> scanNums) throws Exception {
+		if (supportsPartialRead(f) && Boolean.parseBoolean(PTMShepherd.getParam("spectra_partialRead")))
+			readPartially(new ArrayList<>(scanNums));
+		else
+			readFully();
+	}
+
+	/**
+	 * @param scanNums scans to check, or null for the whole file
+	 * @return true if every one of these scans was read (always true after readFully)
+	 */
+	public boolean hasScans(Collection<Integer> scanNums) {
+		if (loadedScans == null)
+			return true;
+		return scanNums != null && loadedScans.containsAll(scanNums);
+	}
+
 	public void readFully() throws Exception {
+		loadedScans = null;
 		String fn = f.toPath().getFileName().toString().toLowerCase();
 		LCMSDataSource<?> source = null;
 		MZBINFile mzbinSource = null;
@@ -99,30 +180,18 @@ public class MXMLReader {
 			mzbinSource = new MZBINFile(Integer.parseInt(PTMShepherd.getParam("threads")), f, true);
 		}
 		if ((mzbinSource == null) && (mgfSource == null) && (source == null)) {
-			System.out.println("Cannot read mzFile with unrecognized extension: " + f.getName());
-			System.exit(1);
+			PTMShepherd.die("Cannot read mzFile with unrecognized extension: " + f.getName());
 		}
 
-		specsByName = new HashMap<>();
-		specsByStrippedName = new HashMap<>();
 		if (mzbinSource == null && mgfSource == null) { //if filetype is not mzBin
 			readFully(source);
-			for(int i = 0; i < specs.length; i++) {
-				specsByName.put(removeCalTag(specs[i].scanName), specs[i]);
-				specsByStrippedName.put(removeCalTag(stripChargeState(specs[i].scanName)), specs[i]);
-			}
+			indexSpecs(true);
 		} else if (mgfSource == null) {
 			readAsMzBIN(mzbinSource);
-			for(int i = 0; i < specs.length; i++){
-				specsByName.put(specs[i].scanName, specs[i]);
-				specsByStrippedName.put(stripChargeState(specs[i].scanName), specs[i]);
-			}
+			indexSpecs(false);
 		} else {
 			readAsFraggerMGF(mgfSource);
-			for(int i = 0; i < specs.length; i++) {
-				specsByName.put(specs[i].scanName, specs[i]);
-				specsByStrippedName.put(stripChargeState(specs[i].scanName), specs[i]);
-			}
+			indexSpecs(false);
 		}
 	}
 
@@ -198,17 +267,12 @@ public class MXMLReader {
 			mzbinSource.loadMZBINScans(PTMShepherd.executorService, this.threads, scanNums);
 		}
 		if (mzbinSource == null) {
-			System.out.println("Cannot partially read non-mzBin file: " + f.getName());
-			System.exit(1);
+			PTMShepherd.die("Cannot partially read non-mzBin file: " + f.getName());
 		}
 
-		specsByName = new HashMap<>();
-		specsByStrippedName = new HashMap<>();
+		loadedScans = new HashSet<>(scanNums);
 		readAsPartialMzBIN(mzbinSource);
-		for(int i = 0; i < specs.length; i++) {
-			specsByName.put(specs[i].scanName, specs[i]);
-			specsByStrippedName.put(stripChargeState(specs[i].scanName), specs[i]);
-		}
+		indexSpecs(false);
 	}
 
 	//400ngHeLaosmoothCE20-52lowguessSRIG450easy4_30tbl1_0NOexp12scansi_A1_01_3366.109793.109793.2
@@ -0,0 +1,236 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import umich.ms.fileio.filetypes.mzbin.MZBINFile;
+import umich.ms.fileio.filetypes.mzbin.MZBINFile.MZBINSpectrum;
+
+/**
+ * Cache directory of conditioned mzBIN files shared by every PTM-Shepherd invocation on a machine. Entries are keyed by
+ * the spectral file's fingerprint and the conditioning params, so re-runs and parameter sweeps on the same raw data skip
+ * re-parsing it. Each entry is a directory holding one run.mzBIN_cache file, keeping the run name readers derive from it.
+ *
+ * Several processes may share the directory. Entries are built under an exclusive lock on key.lock and published by an
+ * atomic rename, and a process holds a shared lock on every entry it uses until {@link #close()}, so eviction by
+ * another process skips them.
+ */
+public class MzBinCache {
+
+	private static final String version = "1"; // bump when the cached content changes
+
+	public interface Builder {
+		ArrayList<MZBINSpectrum> build() throws Exception;
+	}
+
+	private final File dir;
+	private final long maxBytes;
+	private final HashMap<String, FileLock> heldLocks; // key -> shared lock held while this process uses the entry
+	private final ConcurrentHashMap<String, Object> keyMonitors;
+
+	/**
+	 * @param dir cache directory, created if missing
+	 * @param maxBytes size cap, least recently used entries are evicted beyond it
+	 */
+	public MzBinCache(File dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.heldLocks = new HashMap<>();
+		this.keyMonitors = new ConcurrentHashMap<>();
+		Files.createDirectories(dir.toPath());
+	}
+
+	/* Builds the cache from the spectra_cacheDir and spectra_cacheDirMB params, null if no directory is set */
+	public static MzBinCache fromParams() throws IOException {
+		String path = PTMShepherd.getParam("spectra_cacheDir").replaceAll("['\"]", "");
+		if (path.isEmpty())
+			return null;
+		long mb = Long.parseLong(PTMShepherd.getParam("spectra_cacheDirMB"));
+		return new MzBinCache(new File(path), mb <= 0 ? Long.MAX_VALUE : mb << 20);
+	}
+
+	/**
+	 * @return cache key of a spectral file conditioned with these params
+	 */
+	public static String key(File spectralFile, int condPeaks, double condRatio) {
+		String s = String.join("|", version, spectralFile.getName(), String.valueOf(spectralFile.length()),
+				String.valueOf(spectralFile.lastModified()), String.valueOf(condPeaks), String.valueOf(condRatio));
+		try {
+			byte [] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+				sb.append(String.format("%02x", digest[i]));
+			return sb.toString();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the cached mzBIN of a run, building and publishing it first if no process has done so yet
+	 * @param key from {@link #key(File, int, double)}
+	 * @param runName run the spectra belong to, used as the file name
+	 * @param builder produces the spectra to cache on a miss
+	 * @return cached run.mzBIN_cache file, valid until {@link #close()}
+	 */
+	public File get(String key, String runName, Builder builder) throws Exception {
+		File entry = new File(dir, key);
+		File cached = new File(entry, runName + PTMShepherd.mzBinFilename);
+		File lockFile = new File(dir, key + ".lock");
+
+		// file locks only exclude other processes, threads of this one are serialized per key
+		synchronized (keyMonitors.computeIfAbsent(key, k -> new Object())) {
+			synchronized (this) {
+				if (heldLocks.containsKey(key) && cached.exists())
+					return cached;
+			}
+			return getLocked(key, entry, cached, lockFile, builder);
+		}
+	}
+
+	private File getLocked(String key, File entry, File cached, File lockFile, Builder builder) throws Exception {
+		FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+		try {
+			while (true) {
+				FileLock lock = channel.lock(0, Long.MAX_VALUE, false);
+				try {
+					if (!cached.exists()) {
+						File tmp = new File(dir, key + ".tmp-" + UUID.randomUUID());
+						Files.createDirectories(tmp.toPath());
+						MZBINFile mzbinFile = new MZBINFile(new File(tmp, cached.getName()).getAbsolutePath(), builder.build(), "", "");
+						mzbinFile.writeMZBIN();
+						deleteRecursively(entry); // leftover of an interrupted eviction
+						try {
+							Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+						} catch (AtomicMoveNotSupportedException e) {
+							Files.move(tmp.toPath(), entry.toPath());
+						}
+					}
+					entry.setLastModified(System.currentTimeMillis()); // recency for eviction
+				} catch (Exception e) {
+					lock.release();
+					throw e;
+				}
+
+				// swap to a shared lock kept while in use so other processes do not evict it,
+				// evict() of this process is locked out meanwhile
+				synchronized (this) {
+					lock.release();
+					FileLock shared = channel.lock(0, Long.MAX_VALUE, true);
+					if (cached.exists()) {
+						heldLocks.put(key, shared);
+						break;
+					}
+					shared.release(); // evicted by another process between the two locks, build it again
+				}
+			}
+		} catch (Exception e) {
+			channel.close();
+			throw e;
+		}
+		evict();
+		return cached;
+	}
+
+	/**
+	 * @return true if the file lives in this cache, so it must not be deleted with the run's outputs
+	 */
+	public boolean contains(File f) {
+		return f.getAbsoluteFile().toPath().normalize().startsWith(dir.getAbsoluteFile().toPath().normalize());
+	}
+
+	/* Deletes least recently used entries not in use by any process until the cache fits its size cap */
+	public synchronized void evict() throws IOException {
+		File [] entries = dir.listFiles(File::isDirectory);
+		if (entries == null)
+			return;
+		long total = 0;
+		for (File e : entries)
+			total += sizeOf(e);
+		if (total <= maxBytes)
+			return;
+
+		Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+		for (File e : entries) {
+			if (total <= maxBytes)
+				break;
+			String key = e.getName();
+			if (heldLocks.containsKey(key) || key.contains(".tmp-"))
+				continue;
+			File lockFile = new File(dir, key + ".lock");
+			try (FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel()) {
+				FileLock lock;
+				try {
+					lock = channel.tryLock();
+				} catch (OverlappingFileLockException ex) { // being built by another thread of this process
+					continue;
+				}
+				if (lock == null) // in use by another process
+					continue;
+				long size = sizeOf(e);
+				deleteRecursively(e);
+				total -= size;
+				lock.release();
+			}
+			// the lock file is kept, deleting it could let two processes lock different files for one key
+		}
+	}
+
+	/* Releases this process's hold on the entries it used */
+	public synchronized void close() throws IOException {
+		for (FileLock lock : heldLocks.values())
+			lock.channel().close();
+		heldLocks.clear();
+	}
+
+	private static long sizeOf(File entry) {
+		long size = 0;
+		File [] files = entry.listFiles();
+		if (files != null) {
+			for (File f : files)
+				size += f.length();
+		}
+		return size;
+	}
+
+	private static void deleteRecursively(File f) throws IOException {
+		File [] files = f.listFiles();
+		if (files != null) {
+			for (File c : files)
+				deleteRecursively(c);
+		}
+		Files.deleteIfExists(f.toPath());
+	}
+}
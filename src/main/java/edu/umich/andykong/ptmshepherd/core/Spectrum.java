@@ -22,6 +22,7 @@ import static edu.umich.andykong.ptmshepherd.core.MXMLReader.stripChargeState;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Floats;
 import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.ShepherdConfig;
 
 import java.util.*;
 
@@ -50,6 +51,9 @@ public class Spectrum implements Comparable<Spectrum> {
 			fact[i] = (float)(fact[i-1] + Math.log(i));
 	}
 
+	private Spectrum() {
+	}
+
 	//this constructor parses batmass compatible filetypes
 	public Spectrum(int nfrags) {
 		peakMZ = new float[nfrags];
@@ -87,6 +91,27 @@ public class Spectrum implements Comparable<Spectrum> {
 		norm = -1;
 	}
 
+	/**
+	 * Shallow copy for callers that condition a spectrum shared with other analyses.
+	 * Peak arrays are shared, which is safe because conditioning replaces them rather than writing into them.
+	 */
+	public Spectrum copy() {
+		Spectrum s = new Spectrum();
+		s.scanName = scanName;
+		s.scanNum = scanNum;
+		s.charge = charge;
+		s.msLevel = msLevel;
+		s.precursorMass = precursorMass;
+		s.rt = rt;
+		s.peakMZ = peakMZ;
+		s.peakInt = peakInt;
+		s.monoMass = monoMass;
+		s.targetMass = targetMass;
+		s.norm = -1;
+		s.basePeakInt = basePeakInt;
+		return s;
+	}
+
 	public MZBINFile.MZBINSpectrum toMZBINSpectrum() {
 		return new MZBINFile.MZBINSpectrum(scanNum, scanName, peakMZ.length, (float) rt, (float) precursorMass, msLevel, charge, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, precursorMass, 0, 0, Doubles.toArray(Floats.asList(peakMZ)), peakInt);
 	}
@@ -128,6 +153,11 @@ public class Spectrum implements Comparable<Spectrum> {
 		return (getSimilarity(s, ppmTol) / (n1 * n2));
 	}
 	
+	/* Rough heap size: object, name and table slot + float mz/int pairs */
+	public long estimateBytes() {
+		return 224 + 8L * peakMZ.length;
+	}
+
 	public double averageSimilarity(Collection<Spectrum> specs, double ppmTol) {
 		double sum = 0;
 		for(Spectrum s : specs) {
@@ -221,7 +251,8 @@ public class Spectrum implements Comparable<Spectrum> {
 		float score = 0.0f;
 		float iB = 0.0f, iY = 0.0f;
 		int nB = 0, nY = 0;
-		int maxCharge = Math.min(Integer.parseInt(PTMShepherd.getParam("spectra_maxfragcharge")), charge);
+		ShepherdConfig config = PTMShepherd.getConfig();
+		int maxCharge = Math.min(config.spectraMaxFragCharge, charge);
 
 		float [] aaMasses = AAMasses.monoisotopic_masses;
 		float [] fragTypeShifts = AAMasses.ionTypeShifts;
@@ -231,25 +262,12 @@ public class Spectrum implements Comparable<Spectrum> {
 		int fP = 0;
 		int cLen = seq.length();
 
-		ArrayList<Character> nIonTypes = new ArrayList<>();
-		ArrayList<Character> cIonTypes = new ArrayList<>();
-
-		if (PTMShepherd.getParam("iontype_a").trim().equals("1"))
-			nIonTypes.add('a');
-		if (PTMShepherd.getParam("iontype_b").trim().equals("1"))
-			nIonTypes.add('b');
-		if (PTMShepherd.getParam("iontype_c").trim().equals("1"))
-			nIonTypes.add('c');
-		if (PTMShepherd.getParam("iontype_x").trim().equals("1"))
-			cIonTypes.add('x');
-		if (PTMShepherd.getParam("iontype_y").trim().equals("1"))
-			cIonTypes.add('y');
-		if (PTMShepherd.getParam("iontype_z").trim().equals("1"))
-			cIonTypes.add('z');
-
+		String nIonTypes = config.nIonTypes;
+		String cIonTypes = config.cIonTypes;
 
 		float nTermMass;
-		for (Character iType : nIonTypes) {
+		for (int t = 0; t < nIonTypes.length(); t++) {
+			char iType = nIonTypes.charAt(t);
 			nTermMass = fragTypeShifts[iType - 'a'];
 			for (int ccharge = 1; ccharge <= maxCharge; ccharge++) {
 				double cmass = AAMasses.monoisotopic_nterm_mass + nTermMass;
@@ -271,7 +289,8 @@ public class Spectrum implements Comparable<Spectrum> {
 			}
 		}
 		float cTermMass;
-		for (Character iType : cIonTypes) {
+		for (int t = 0; t < cIonTypes.length(); t++) {
+			char iType = cIonTypes.charAt(t);
 			cTermMass = fragTypeShifts[iType - 'x' + 3];
 			for (int ccharge = 1; ccharge <= maxCharge; ccharge++) {
 				//double cmass = (AAMasses.monoisotopic_cterm_mass + (ccharge+1)*AAMasses.monoisotopic_nterm_mass) / ccharge;
@@ -307,6 +326,7 @@ public class Spectrum implements Comparable<Spectrum> {
 		float iB = 0.0f, iY = 0.0f;
 		int nB = 0, nY = 0;
 		int maxCharge = (charge==2)?1:2;
+		ShepherdConfig config = PTMShepherd.getConfig();
 
 		float [] aaMasses = AAMasses.monoisotopic_masses;
 		float [] fragTypeShifts = AAMasses.ionTypeShifts;
@@ -316,24 +336,12 @@ public class Spectrum implements Comparable<Spectrum> {
 		int fP = 0;
 		int cLen = seq.length();
 
-		ArrayList<Character> nIonTypes = new ArrayList<>();
-		ArrayList<Character> cIonTypes = new ArrayList<>();
-
-		if (PTMShepherd.getParam("iontype_a").trim().equals("1"))
-			nIonTypes.add('a');
-		if (PTMShepherd.getParam("iontype_b").trim().equals("1"))
-			nIonTypes.add('b');
-		if (PTMShepherd.getParam("iontype_c").trim().equals("1"))
-			nIonTypes.add('c');
-		if (PTMShepherd.getParam("iontype_x").trim().equals("1"))
-			cIonTypes.add('x');
-		if (PTMShepherd.getParam("iontype_y").trim().equals("1"))
-			cIonTypes.add('y');
-		if (PTMShepherd.getParam("iontype_z").trim().equals("1"))
-			cIonTypes.add('z');
+		String nIonTypes = config.nIonTypes;
+		String cIonTypes = config.cIonTypes;
 
 		float nTermMass;
-		for (Character iType : nIonTypes) {
+		for (int t = 0; t < nIonTypes.length(); t++) {
+			char iType = nIonTypes.charAt(t);
 			nTermMass = fragTypeShifts[iType - 'a'];
 			for (int ccharge = 1; ccharge <= maxCharge; ccharge++) {
 				//double cmass = AAMasses.monoisotopic_nterm_mass;
@@ -356,7 +364,8 @@ public class Spectrum implements Comparable<Spectrum> {
 			}
 		}
 		float cTermMass;
-		for (Character iType : cIonTypes) {
+		for (int t = 0; t < cIonTypes.length(); t++) {
+			char iType = cIonTypes.charAt(t);
 			cTermMass = fragTypeShifts[iType - 'x' + 3];
 			for (int ccharge = 1; ccharge <= maxCharge; ccharge++) {
 				//double cmass = (AAMasses.monoisotopic_cterm_mass + (ccharge + 1) * AAMasses.monoisotopic_nterm_mass) / ccharge;
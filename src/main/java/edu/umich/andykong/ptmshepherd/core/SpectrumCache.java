@@ -0,0 +1,166 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.core;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+
+/**
+ * Process-wide cache of decoded runs shared by every analysis stage. Runs are kept until the byte budget
+ * (spectra_cacheMB) is exceeded, then the least recently used runs are evicted.
+ * Cached spectra are shared, so callers must not modify them in place.
+ */
+public class SpectrumCache {
+
+	private static SpectrumCache instance;
+
+	private final long maxBytes;
+	private long curBytes;
+	private final LinkedHashMap<String, Entry> runs; // access ordered, eldest entry is least recently used
+	private long hits, misses, evictions;
+
+	private static class Entry {
+		final MXMLReader mr;
+		final long bytes;
+
+		Entry(MXMLReader mr, long bytes) {
+			this.mr = mr;
+			this.bytes = bytes;
+		}
+	}
+
+	public SpectrumCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.runs = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	public static synchronized SpectrumCache getInstance() {
+		if (instance == null) {
+			String mb = PTMShepherd.getParam("spectra_cacheMB");
+			instance = new SpectrumCache(mb.isEmpty() ? 0 : Long.parseLong(mb) << 20);
+		}
+		return instance;
+	}
+
+	/* Drops the shared cache, e.g. between independent sessions */
+	public static synchronized void reset() {
+		instance = null;
+	}
+
+	/**
+	 * Returns the fully read spectra of a run, reading the file only if it is not cached
+	 * @param f spectral file of the run
+	 * @param threads threads used for reading
+	 * @return fully read MXMLReader
+	 */
+	public MXMLReader getReader(File f, int threads) throws Exception {
+		return getReader(f, threads, null);
+	}
+
+	/**
+	 * Returns a reader holding at least the given scans of a run. Indexed files (mzBIN) are read partially,
+	 * other formats are read in full.
+	 * @param f spectral file of the run
+	 * @param threads threads used for reading
+	 * @param scanNums sorted scan numbers needed, or null for the whole file
+	 * @return MXMLReader containing the requested scans
+	 */
+	public MXMLReader getReader(File f, int threads, List<Integer> scanNums) throws Exception {
+		String key = f.getAbsolutePath() + "|" + f.lastModified();
+		synchronized (this) {
+			Entry e = runs.get(key);
+			if (e != null && e.mr.hasScans(scanNums)) {
+				hits++;
+				return e.mr;
+			}
+			misses++;
+		}
+
+		MXMLReader mr = read(f, threads, scanNums);
+		long bytes = mr.estimateBytes();
+
+		synchronized (this) {
+			Entry e = runs.get(key);
+			if (e != null && e.mr.hasScans(scanNums)) // read concurrently by another caller
+				return e.mr;
+			if (e != null) { // cached copy is missing some of these scans, replace it
+				runs.remove(key);
+				curBytes -= e.bytes;
+			}
+			if (bytes <= maxBytes) {
+				runs.put(key, new Entry(mr, bytes));
+				curBytes += bytes;
+				evict(key);
+			}
+		}
+		return mr;
+	}
+
+	/* Reads the run from disk, outside of the cache lock */
+	protected MXMLReader read(File f, int threads, List<Integer> scanNums) throws Exception {
+		MXMLReader mr = new MXMLReader(f, threads);
+		if (scanNums == null)
+			mr.readFully();
+		else
+			mr.readScans(scanNums);
+		return mr;
+	}
+
+	/* Evicts least recently used runs until the cache fits its budget, never evicting the run just added */
+	private void evict(String keep) {
+		Iterator<Map.Entry<String, Entry>> it = runs.entrySet().iterator();
+		while (curBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Entry> e = it.next();
+			if (e.getKey().equals(keep))
+				continue;
+			curBytes -= e.getValue().bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		runs.clear();
+		curBytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getCachedBytes() {
+		return curBytes;
+	}
+
+	public synchronized String getStats() {
+		return String.format("Spectrum cache: %d hits, %d misses, %d evictions, %.1f/%.1f MB in use",
+				hits, misses, evictions, curBytes / (double) (1 << 20), maxBytes / (double) (1 << 20));
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.core;
+
+import java.util.Arrays;
+
+/**
+ * Spectrum names reduced to primitive keys: a run id from a process-wide run name table in the upper 32 bits
+ * and the scan number in the lower. psm.tsv names (run.00123.00123.2) and reader names (run.123.123) of the
+ * same scan give the same key, so spectra are matched without building normalized name strings. The charge
+ * is not part of the key, since the spectrum readers do not match on it either.
+ */
+public class SpectrumKey {
+
+	public static final long NONE = -1;
+
+	/* Run names by id and an open addressing table of id + 1 by name hash, replaced as a whole on insert */
+	private static final class Runs {
+		final String [] names;
+		final int [] slots;
+
+		Runs(String [] names, int [] slots) {
+			this.names = names;
+			this.slots = slots;
+		}
+	}
+
+	private static volatile Runs runs = new Runs(new String[0], new int[64]);
+
+	/* Empties the run name table at the start of a run, no keys of the previous run may be kept */
+	public static synchronized void clear() {
+		runs = new Runs(new String[0], new int[64]);
+	}
+
+	public static long of(int runId, int scanNum) {
+		return ((long) runId << 32) | (scanNum & 0xffffffffL);
+	}
+
+	public static int runId(long key) {
+		return (int) (key >>> 32);
+	}
+
+	public static int scanNum(long key) {
+		return (int) key;
+	}
+
+	public static String runName(long key) {
+		return runs.names[runId(key)];
+	}
+
+	/**
+	 * Key of a spectrum name, normalized the same way as PTMShepherd.reNormName: names ending in two equal
+	 * fields are run.scan.scan, anything else is run.scan.scan.charge with a zero-padded scan number.
+	 * @return the key, NONE if the name has no numeric scan field
+	 */
+	public static long parse(String name) {
+		int last = name.lastIndexOf('.');
+		int prev = (last > 0) ? name.lastIndexOf('.', last - 1) : -1;
+		if (prev < 0)
+			return NONE;
+		int runEnd, scanStart, scanEnd;
+		if (last - prev - 1 == name.length() - last - 1 && name.regionMatches(prev + 1, name, last + 1, last - prev - 1)) {
+			// already run.scan.scan
+			runEnd = prev;
+			scanStart = last + 1;
+			scanEnd = name.length();
+		} else {
+			runEnd = name.indexOf('.');
+			scanStart = runEnd + 1;
+			scanEnd = name.indexOf('.', scanStart);
+		}
+		int scan = parseScan(name, scanStart, scanEnd);
+		if (scan < 0)
+			return NONE;
+		return of(runId(name, 0, runEnd), scan);
+	}
+
+	private static int parseScan(String s, int from, int to) {
+		if (from >= to || to - from > 9)
+			return -1;
+		int n = 0;
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	public static int runId(String run) {
+		return runId(run, 0, run.length());
+	}
+
+	/* Id of the run name s[from, to), added to the table on first use */
+	static int runId(String s, int from, int to) {
+		int h = hash(s, from, to);
+		int id = find(runs, s, from, to, h);
+		if (id >= 0)
+			return id;
+		synchronized (SpectrumKey.class) {
+			Runs cur = runs;
+			id = find(cur, s, from, to, h);
+			if (id >= 0)
+				return id;
+			id = cur.names.length;
+			String [] names = Arrays.copyOf(cur.names, id + 1);
+			names[id] = s.substring(from, to);
+			int [] slots = cur.slots;
+			if (2 * names.length > slots.length) {
+				slots = new int[slots.length * 2];
+				for (int i = 0; i < id; i++)
+					insert(slots, hash(names[i], 0, names[i].length()), i);
+			} else {
+				slots = slots.clone();
+			}
+			insert(slots, h, id);
+			runs = new Runs(names, slots);
+			return id;
+		}
+	}
+
+	private static int find(Runs r, String s, int from, int to, int h) {
+		int mask = r.slots.length - 1;
+		for (int i = h & mask; r.slots[i] != 0; i = (i + 1) & mask) {
+			String name = r.names[r.slots[i] - 1];
+			if (name.length() == to - from && name.regionMatches(0, s, from, to - from))
+				return r.slots[i] - 1;
+		}
+		return -1;
+	}
+
+	private static void insert(int [] slots, int h, int id) {
+		int mask = slots.length - 1;
+		int i = h & mask;
+		while (slots[i] != 0)
+			i = (i + 1) & mask;
+		slots[i] = id + 1;
+	}
+
+	private static int hash(String s, int from, int to) {
+		int h = 0;
+		for (int i = from; i < to; i++)
+			h = 31 * h + s.charAt(i);
+		return h ^ (h >>> 16);
+	}
+}
@@ -18,10 +18,16 @@ package edu.umich.andykong.ptmshepherd.diagnosticanalysis;
 
 import edu.umich.andykong.ptmshepherd.PSMFile;
 import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.ShepherdConfig;
 import edu.umich.andykong.ptmshepherd.core.MXMLReader;
 import edu.umich.andykong.ptmshepherd.core.Spectrum;
 import edu.umich.andykong.ptmshepherd.glyco.GlycoProfile;
 import edu.umich.andykong.ptmshepherd.localization.SiteLocalization;
+import edu.umich.andykong.ptmshepherd.pipeline.RunVisitor;
+import edu.umich.andykong.ptmshepherd.pipeline.SpectralPipeline;
+import edu.umich.andykong.ptmshepherd.utils.FixedFormat;
+import edu.umich.andykong.ptmshepherd.utils.IntermediateTable;
+import edu.umich.andykong.ptmshepherd.utils.TableRow;
 import static edu.umich.andykong.ptmshepherd.PTMShepherd.reNormName;
 
 import java.io.*;
@@ -32,10 +38,13 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 
-public class DiagnosticExtractor {
+public class DiagnosticExtractor implements RunVisitor {
     String dsName;
     File rawDiagnosticFile;             // .diagnosticIon.tsv file
     MXMLReader mr;
+    IntermediateTable.Writer diagnosticOut;
+    ArrayList<String> linesWithoutSpectra;
+    public ExecutorService executorService;
     ArrayList<String> lineWithoutSpectra = new ArrayList<>();
     int totalLines;
     HashMap<String, MXMLReader> multiMr;
@@ -46,6 +55,7 @@ public class DiagnosticExtractor {
     double[] capYShifts;// = new double[]{0,203.07937,406.15874,568.21156,730.26438,892.3172,349.137279};
     double[] oxoniumIons;//= new double[]{204.086646,186.076086,168.065526,366.139466,144.0656,138.055,512.197375,292.1026925,274.0921325,657.2349,243.026426,405.079246,485.045576,308.09761};
     double[] remainderMasses;// = new double[]{203.07937,406.15874,568.21156,730.26438,892.3172,349.137279};
+    ShepherdConfig config;
 
     public DiagnosticExtractor(String dsName) {
         this.dsName = dsName;
@@ -54,42 +64,24 @@ public class DiagnosticExtractor {
 
 
     public void extractDiagPSMs(PSMFile pf, HashMap<String, File> mzMappings, ExecutorService executorService, int numThreads) throws Exception {
+        this.executorService = executorService;
+        new SpectralPipeline(this).processPSMFile(pf, mzMappings);
+    }
+
+    public void startPSMFile(PSMFile pf) throws Exception {
+        config = PTMShepherd.getConfig();
+
         //open up output file
-        HashMap<String, ArrayList<Integer>> mappings = new HashMap<>();
-        PrintWriter diagnosticOut = new PrintWriter(new FileWriter(rawDiagnosticFile));
-        ArrayList<String> linesWithoutSpectra = new ArrayList<>();
+        diagnosticOut = IntermediateTable.openWriter(rawDiagnosticFile, false, config.intermediateFormat);
+        linesWithoutSpectra = new ArrayList<>();
 
         //get necessary params
-        ppmTol = Float.parseFloat(PTMShepherd.getParam("spectra_ppmtol"));
-        condPeaks = Integer.parseInt(PTMShepherd.getParam("spectra_condPeaks"));
-        condRatio = Double.parseDouble(PTMShepherd.getParam("spectra_condRatio"));
-        //cap y ions
-        String[] capYstrs;
-        if (PTMShepherd.getParam("cap_y_ions").length() > 0)
-            capYstrs = PTMShepherd.getParam("cap_y_ions").split(",| |/");
-        else
-            capYstrs = new String[0];
-        capYShifts = new double[capYstrs.length];
-        for (int i = 0; i < capYstrs.length; i++)
-            capYShifts[i] = Double.parseDouble(capYstrs[i]);
-        //oxonium ions
-        String[] oxStrs;
-        if (PTMShepherd.getParam("diag_ions").length() > 0)
-            oxStrs = PTMShepherd.getParam("diag_ions").split(",| |/");
-        else
-            oxStrs = new String[0];
-        oxoniumIons = new double[oxStrs.length];
-        for (int i = 0; i < oxStrs.length; i++)
-            oxoniumIons[i] = Double.parseDouble(oxStrs[i]);
-        //remainder masses
-        String[] remainderStrs;
-        if (PTMShepherd.getParam("remainder_masses").length() > 0)
-            remainderStrs = PTMShepherd.getParam("remainder_masses").split(",| |/");
-        else
-            remainderStrs = new String[0];
-        remainderMasses = new double[remainderStrs.length];
-        for (int i = 0; i < remainderStrs.length; i++)
-            remainderMasses[i] = Double.parseDouble(remainderStrs[i]);
+        ppmTol = (float) config.spectraPpmTol;
+        condPeaks = config.spectraCondPeaks;
+        condRatio = config.spectraCondRatio;
+        capYShifts = config.getCapYShifts();
+        oxoniumIons = config.getDiagIons();
+        remainderMasses = config.getRemainderMasses();
 
         //write header
         StringBuilder diagnosticHeader = new StringBuilder(String.format("%s\t%s\t%s\t%s\t%s", "Spectrum", "Peptide", "Mods", "Pep Mass", "Mass Shift"));
@@ -97,7 +89,7 @@ public class DiagnosticExtractor {
         for (double capYShift : capYShifts) diagnosticHeader.append(String.format("\tY_%.4f_intensity", capYShift));
         for (double oxoniumIon : oxoniumIons) diagnosticHeader.append(String.format("\tox_%.4f_intensity", oxoniumIon));
         for (double remainderMass : remainderMasses) diagnosticHeader.append(String.format("\tdeltascore_%.4f\tlocalization_%.4f", remainderMass, remainderMass));
-        diagnosticOut.println(diagnosticHeader);
+        diagnosticOut.writeHeader(diagnosticHeader);
         //get necessary col indices
         specCol = pf.getColumn("Spectrum");
         pepCol = pf.getColumn("Peptide");
@@ -107,49 +99,34 @@ public class DiagnosticExtractor {
         pmassCol = pf.getColumn("Calculated Peptide Mass");
         rtCol = pf.getColumn("Retention");
         intCol = pf.getColumn("Intensity");
+    }
 
-        //map PSMs to file
-        for (int i = 0; i < pf.data.size(); i++) {
-            String[] sp = pf.data.get(i).split("\t");
-            String bn = sp[specCol].substring(0, sp[specCol].indexOf(".")); //fraction
-            if (!mappings.containsKey(bn))
-                mappings.put(bn, new ArrayList<>());
-            mappings.get(bn).add(i);
+    public void visitRun(PSMFile pf, String cf, ArrayList<Integer> clines, MXMLReader mr) throws Exception {
+        this.mr = mr;
+        /* set up parallelization blocks */
+        final int BLOCKSIZE = 100; //number of scans to be parsed per thread (to cut down on thread creation overhead)
+        int nBlocks = clines.size() / (BLOCKSIZE); //number of jobs submitted to queue
+        if (clines.size() % BLOCKSIZE != 0) //if there are missing scans, add one more block
+            nBlocks++;
+
+        ArrayList<Future> futureList = new ArrayList<>(nBlocks);
+        /* Process PSM chunks */
+        for (int i = 0; i < nBlocks; i++) {
+            int startInd = i * BLOCKSIZE;
+            int endInd = Math.min((i + 1) * BLOCKSIZE, clines.size());
+            ArrayList<String> cBlock = new ArrayList<>();
+            for (int j = startInd; j < endInd; j++)
+                cBlock.add(pf.data.get(clines.get(j)));
+            futureList.add(executorService.submit(() -> processLinesBlock(cBlock, diagnosticOut)));
         }
+        /* Wait for all processes to finish */
+        for (Future future : futureList)
+            future.get();
+    }
 
-        /* Loop through spectral files -> indexed lines in PSM -> process each line */
-        for (String cf : mappings.keySet()) { //for file in relevant spectral files
-            long t1 = System.currentTimeMillis();
-            //System.out.println(cf);
-            mr = new MXMLReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")));
-            mr.readFully();
-            long t2 = System.currentTimeMillis();
-            ArrayList<Integer> clines = mappings.get(cf); //lines corr to curr spec file
-
-            /* set up parallelization blocks */
-            final int BLOCKSIZE = 100; //number of scans to be parsed per thread (to cut down on thread creation overhead)
-            int nBlocks = clines.size() / (BLOCKSIZE); //number of jobs submitted to queue
-            if (clines.size() % BLOCKSIZE != 0) //if there are missing scans, add one more block
-                nBlocks++;
-
-            ArrayList<Future> futureList = new ArrayList<>(nBlocks);
-            /* Process PSM chunks */
-            for (int i = 0; i < nBlocks; i++) {
-                int startInd = i * BLOCKSIZE;
-                int endInd = Math.min((i + 1) * BLOCKSIZE, clines.size());
-                ArrayList<String> cBlock = new ArrayList<>();
-                for (int j = startInd; j < endInd; j++)
-                    cBlock.add(pf.data.get(clines.get(j)));
-                futureList.add(executorService.submit(() -> processLinesBlock(cBlock, diagnosticOut)));
-            }
-            /* Wait for all processes to finish */
-            for (Future future : futureList)
-                future.get();
-
-            long t3 = System.currentTimeMillis();
-            PTMShepherd.print(String.format("\t%s - %d (%d ms, %d ms)", cf, clines.size(), t2 - t1, t3 - t2));
-        }
+    public void finishPSMFile(PSMFile pf) throws Exception {
         diagnosticOut.close();
+        this.mr = null;
 
         if (!linesWithoutSpectra.isEmpty()) {
             PTMShepherd.print(String.format("\tCould not find %d/%d (%.1f%%) spectra.\n", linesWithoutSpectra.size(), this.totalLines,
@@ -160,16 +137,21 @@ public class DiagnosticExtractor {
         }
     }
 
-    public void processLinesBlock(ArrayList<String> cBlock, PrintWriter out) {
-        StringBuilder newBlock  = new StringBuilder();
+    public void processLinesBlock(ArrayList<String> cBlock, IntermediateTable.Writer out) {
+        ArrayList<String> newBlock = new ArrayList<>(cBlock.size());
         for (String line : cBlock) {
-            newBlock.append(processLine(line)).append("\n");
+            newBlock.add(processLine(line));
         }
-        printLines(out, newBlock.toString());
+        printLines(out, newBlock);
     }
 
-    private synchronized void printLines(PrintWriter out, String linesBlock) {
-        out.print(linesBlock);
+    private synchronized void printLines(IntermediateTable.Writer out, ArrayList<String> linesBlock) {
+        try {
+            for (String line : linesBlock)
+                out.writeRow(line);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public String processLine(String line) {
@@ -181,13 +163,16 @@ public class DiagnosticExtractor {
         String[] smods = sp[modCol].split(",");
         String specName = sp[specCol];
 
-        diagnosticResultString.append(String.format("%s\t%s\t%s\t%.4f\t%.4f", specName, seq, sp[modCol], pepMass, dmass));
+        diagnosticResultString.append(specName).append('\t').append(seq).append('\t').append(sp[modCol]).append('\t');
+        FixedFormat.append(diagnosticResultString, pepMass, 4).append('\t');
+        FixedFormat.append(diagnosticResultString, dmass, 4);
 
-        Spectrum spec = mr.getSpectrum(reNormName(specName));
+        Spectrum spec = mr.getSpectrum(specName);
         if (spec == null) {
             this.lineWithoutSpectra.add(reNormName(specName));
             return "ERROR";
         }
+        spec = spec.copy();
         spec.conditionOptNorm(condPeaks, condRatio, false);
 
         //System.out.println("got spec");
@@ -197,21 +182,20 @@ public class DiagnosticExtractor {
         oxoniumIonIntensities = findOxoniumIonMasses(spec, pepMass);
 
         for (double capYIonIntensity : capYIonIntensities)
-            diagnosticResultString.append(String.format("\t%.2f", capYIonIntensity));
+            FixedFormat.append(diagnosticResultString.append('\t'), capYIonIntensity, 2);
         for (double oxoniumIonIntensity : oxoniumIonIntensities)
-            diagnosticResultString.append(String.format("\t%.2f", oxoniumIonIntensity));
+            FixedFormat.append(diagnosticResultString.append('\t'), oxoniumIonIntensity, 2);
         float[] deltaScores = new float[remainderMasses.length];
         boolean[][] isMaxScores = localizeRemainderFragments(spec, sp[pepCol], smods, deltaScores);
 
         for (int i = 0; i < remainderMasses.length; i++) {
-            diagnosticResultString.append(String.format("\t%.1f", deltaScores[i]));
-            StringBuilder locSb = new StringBuilder("\t");
+            FixedFormat.append(diagnosticResultString.append('\t'), deltaScores[i], 1);
+            diagnosticResultString.append('\t');
             for (int j = 0; j < seq.length(); j++) {
                 if (isMaxScores[i][j]) {
-                    locSb.append(String.format("%d%c", j + 1, seq.charAt(j))); //position (1 indexed), character
+                    diagnosticResultString.append(j + 1).append(seq.charAt(j)); //position (1 indexed), character
                 }
             }
-            diagnosticResultString.append(locSb);
         }
         return diagnosticResultString.toString();
     }
@@ -219,7 +203,7 @@ public class DiagnosticExtractor {
     public double[] findCapitalYIonMasses(Spectrum spec, double pepMass) {
         //implement charge states //todo
 
-        int normToBasePeak = Integer.parseInt(PTMShepherd.getParam("glyco_cap_y_ions_normalize"));
+        boolean normToBasePeak = config.capYIonsNormalize;
         //System.out.println(normToBasePeak);
 
         //initialize final capYion masses
@@ -230,10 +214,8 @@ public class DiagnosticExtractor {
         //find capital Y ion intensities
         for (int i = 0; i < capYIons.length; i++) {
             //System.out.println(capYIons[i]);
-            capYIonIntensities[i] = spec.findIonNeutral(capYIons[i],
-                    Float.parseFloat(PTMShepherd.getParam("spectra_ppmtol")),
-                    Integer.parseInt(PTMShepherd.getParam("spectra_maxPrecursorCharge"))); //todo simplify parameter calling
-            if (normToBasePeak == 1) {
+            capYIonIntensities[i] = spec.findIonNeutral(capYIons[i], ppmTol, config.spectraMaxPrecursorCharge);
+            if (normToBasePeak) {
                 //System.out.print(capYIonIntensities[i]);
                 //System.out.println(" 1");
                 //System.out.print(spec.findBasePeakInt());
@@ -252,12 +234,12 @@ public class DiagnosticExtractor {
         //initialize capYion masses /todo
         //implement charge states //todo
         //initialize oxonium ion intensities
-        int normToBasePeak = Integer.parseInt(PTMShepherd.getParam("glyco_diag_ions_normalize"));
+        boolean normToBasePeak = config.diagIonsNormalize;
         double[] oxoniumIonIntensities = new double[oxoniumIons.length];
         //for ion in oxonium masses/capYions
         for (int i = 0; i < oxoniumIons.length; i++) {
-            oxoniumIonIntensities[i] = spec.findIon(oxoniumIons[i], Float.parseFloat(PTMShepherd.getParam("spectra_ppmtol"))); //todo simplify parameter calling
-            if (normToBasePeak == 1) {
+            oxoniumIonIntensities[i] = spec.findIon(oxoniumIons[i], ppmTol);
+            if (normToBasePeak) {
                 //System.out.print(oxoniumIonIntensities[i]);
                 //System.out.println(" 1");
                 //System.out.print(spec.findBasePeakInt());
@@ -273,7 +255,7 @@ public class DiagnosticExtractor {
 
     public boolean[][] localizeRemainderFragments(Spectrum spec, String seq, String[] smods, float[] deltaScores) {
         //initialize allowed positions
-        boolean [] allowedPoses = SiteLocalization.parseAllowedPositions(seq, PTMShepherd.getParam("localization_allowed_res"));
+        boolean [] allowedPoses = SiteLocalization.parseAllowedPositions(seq, config.localizationAllowedRes);
         //initialize remainder delta scores
         //double[] remainderDscores = new double[remainderMasses.length];
         //add variable and fixed mods to frag masses for peptide
@@ -355,38 +337,25 @@ public class DiagnosticExtractor {
 
 
     public boolean isDiagnosticComplete() throws Exception {
-        if(rawDiagnosticFile.exists()) {
-            RandomAccessFile raf = new RandomAccessFile(rawDiagnosticFile, "r");
-            raf.seek(Math.max(0, rawDiagnosticFile.length() - 20));
-            String cline;
-            while((cline = raf.readLine())!=null)
-                if(cline.equals("COMPLETE")) {
-                    raf.close();
-                    return true;
-                }
-            raf.close();
-            rawDiagnosticFile.delete();
-        }
+        if (IntermediateTable.isComplete(rawDiagnosticFile))
+            return true;
+        rawDiagnosticFile.delete();
         return false;
     }
     public void completeDiagnostic() throws Exception {
-        PrintWriter out = new PrintWriter(new FileWriter(rawDiagnosticFile,true));
-        out.println("COMPLETE");
-        out.close();
+        IntermediateTable.complete(rawDiagnosticFile);
     }
     public void updateGlycoProfiles(GlycoProfile[] profiles) throws Exception {
-        BufferedReader in = new BufferedReader(new FileReader(rawDiagnosticFile));
-        String cline;
-        in.readLine();
-        while ((cline = in.readLine()) != null) {
-            if (cline.equals("COMPLETE"))
+        IntermediateTable.Reader in = IntermediateTable.openReader(rawDiagnosticFile);
+        TableRow sp;
+        while ((sp = in.next()) != null) {
+            if (sp.lineEquals("COMPLETE"))
                 break;
-            if (cline.startsWith("Spectrum"))
+            if (sp.lineStartsWith("Spectrum"))
                 continue;
-            if (cline.startsWith("ERROR"))
+            if (sp.lineStartsWith("ERROR"))
                 continue;
-            String[] sp = cline.split("\\t");
-            double md = Double.parseDouble(sp[4]);
+            double md = sp.parseDouble(4);
             for (int i = 0; i < profiles.length; i++) {
                 int cind = profiles[i].locate.getIndex(md);
                 if (cind != -1) {
@@ -16,6 +16,8 @@
 
 package edu.umich.andykong.ptmshepherd.diagnosticmining;
 
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -260,7 +262,7 @@ public class DiagBINFile {
                     }
                 } catch (Exception ex) {
                     ex.printStackTrace();
-                    System.exit(1);
+                    PTMShepherd.die("Could not read diagnostic spectra: " + ex);
                 }
                 addSpectra(scans);
             }));
@@ -21,7 +21,8 @@ import edu.umich.andykong.ptmshepherd.PTMShepherd;
 import edu.umich.andykong.ptmshepherd.core.FastLocator;
 import edu.umich.andykong.ptmshepherd.core.MXMLReader;
 import edu.umich.andykong.ptmshepherd.core.Spectrum;
-import static edu.umich.andykong.ptmshepherd.PTMShepherd.reNormName;
+import edu.umich.andykong.ptmshepherd.pipeline.RunVisitor;
+import edu.umich.andykong.ptmshepherd.pipeline.SpectralPipeline;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -29,9 +30,10 @@ import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
-public class DiagnosticAnalysis {
+public class DiagnosticAnalysis implements RunVisitor {
     String dsName;
     MXMLReader mr;
+    public ExecutorService executorService;
     String ionTypes;
     String filterIonTypes;
     float precursorTol, spectraTol;
@@ -65,16 +67,11 @@ public class DiagnosticAnalysis {
 
     /* This function adds a PSM list file to this DiagnosticAnalysis */
     public void diagIonsPSMs(PSMFile pf, HashMap<String, File> mzMappings, ExecutorService executorService, int nThread) throws Exception {
-        /* Map PSM lines to each fraction */
-        HashMap<String, ArrayList<Integer>> mappings = new HashMap<>();
-        for (int i = 0; i < pf.data.size(); i++) {
-            String[] sp = pf.data.get(i).split("\t");
-            String bn = sp[specCol].substring(0, sp[specCol].indexOf(".")); //fraction
-            if (!mappings.containsKey(bn))
-                mappings.put(bn, new ArrayList<>());
-            mappings.get(bn).add(i);
-        }
+        this.executorService = executorService;
+        new SpectralPipeline(this).processPSMFile(pf, mzMappings);
+    }
 
+    public void startPSMFile(PSMFile pf) throws Exception {
         /* Get PSM table headers for parsing */
         specCol = pf.getColumn("Spectrum");
         pepCol = pf.getColumn("Peptide");
@@ -83,52 +80,50 @@ public class DiagnosticAnalysis {
         pmassCol = pf.getColumn("Calculated Peptide Mass");
         intCol = pf.getColumn("Intensity");
         modCol = pf.getColumn("Assigned Modifications");
+    }
 
-        /* Process spectral file one at a time */
-        for (String cf : mappings.keySet()) {
-            if (new File(PTMShepherd.normFName(cf+".diagBIN")).exists()) {
-                System.out.println("\t\tFound existing cached diagnostic data for " + cf);
-                continue;
-            }
-            long t1 = System.currentTimeMillis();
-            /* Initialize new DiagnosticRecord list */
-            this.diagnosticRecords = new ArrayList<>();
-
-            mr = new MXMLReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")));
-            mr.readFully();
-            long t2 = System.currentTimeMillis();
-
-            ArrayList<Integer> clines = mappings.get(cf); //lines corr to curr spec file
-
-            /* set up parallelization blocks */
-            final int BLOCKSIZE = 100; //number of scans to be parsed per thread (to cut down on thread creation overhead)
-            int nBlocks = clines.size() / (BLOCKSIZE); //number of jobs submitted to queue
-            if (clines.size() % BLOCKSIZE != 0) //if there are missing scans, add one more block
-                nBlocks++;
-            ArrayList<Future> futureList = new ArrayList<>(nBlocks);
-
-            /* Process PSM chunks and add them to diagnosticRecords*/
-            for (int i = 0; i < nBlocks; i++) {
-                int startInd = i * BLOCKSIZE;
-                int endInd = Math.min((i + 1) * BLOCKSIZE, clines.size());
-                ArrayList<String> cBlock = new ArrayList<>();
-                for (int j = startInd; j < endInd; j++)
-                    cBlock.add(pf.data.get(clines.get(j)));
-                futureList.add(executorService.submit(() -> processLinesBlock(cBlock)));
-            }
-
-            /* Wait for all processes to finish */
-            for (Future future : futureList)
-                future.get();
-
-            /* Write results to DiagBINFile */
-            DiagBINFile diagBinFile = new DiagBINFile(this.diagnosticRecords, PTMShepherd.normFName(cf+".diagBIN"), this.ionTypes);
-            diagBinFile.writeDiagBinFile();
-
-            long t3 = System.currentTimeMillis();
-            PTMShepherd.print(String.format("\t\t%s - %d lines (%d ms reading, %d ms processing)", cf, clines.size(), t2-t1,t3-t2));
+    public boolean needsRun(String cf) {
+        if (new File(PTMShepherd.normFName(cf+".diagBIN")).exists()) {
+            System.out.println("\t\tFound existing cached diagnostic data for " + cf);
+            return false;
         }
+        return true;
+    }
 
+    public void visitRun(PSMFile pf, String cf, ArrayList<Integer> clines, MXMLReader mr) throws Exception {
+        /* Initialize new DiagnosticRecord list */
+        this.diagnosticRecords = new ArrayList<>();
+        this.mr = mr;
+
+        /* set up parallelization blocks */
+        final int BLOCKSIZE = 100; //number of scans to be parsed per thread (to cut down on thread creation overhead)
+        int nBlocks = clines.size() / (BLOCKSIZE); //number of jobs submitted to queue
+        if (clines.size() % BLOCKSIZE != 0) //if there are missing scans, add one more block
+            nBlocks++;
+        ArrayList<Future> futureList = new ArrayList<>(nBlocks);
+
+        /* Process PSM chunks and add them to diagnosticRecords*/
+        for (int i = 0; i < nBlocks; i++) {
+            int startInd = i * BLOCKSIZE;
+            int endInd = Math.min((i + 1) * BLOCKSIZE, clines.size());
+            ArrayList<String> cBlock = new ArrayList<>();
+            for (int j = startInd; j < endInd; j++)
+                cBlock.add(pf.data.get(clines.get(j)));
+            futureList.add(executorService.submit(() -> processLinesBlock(cBlock)));
+        }
+
+        /* Wait for all processes to finish */
+        for (Future future : futureList)
+            future.get();
+
+        /* Write results to DiagBINFile */
+        DiagBINFile diagBinFile = new DiagBINFile(this.diagnosticRecords, PTMShepherd.normFName(cf+".diagBIN"), this.ionTypes);
+        diagBinFile.writeDiagBinFile();
+        this.diagnosticRecords = null;
+    }
+
+    public void finishPSMFile(PSMFile pf) throws Exception {
+        this.mr = null;
     }
 
     public void processLinesBlock(ArrayList<String> cBlock) {
@@ -159,9 +154,11 @@ public class DiagnosticAnalysis {
         float pepMass = Float.parseFloat(sp[pmassCol]);
 
         /* Prep spec and normalize to base peak */
-        Spectrum spec = mr.getSpectrum(reNormName(specName));
-        if (spec != null)
+        Spectrum spec = mr.getSpectrum(specName);
+        if (spec != null) {
+            spec = spec.copy();
             spec.conditionOptNorm(condPeaks, condRatio, true);
+        }
         else
             return null;
 
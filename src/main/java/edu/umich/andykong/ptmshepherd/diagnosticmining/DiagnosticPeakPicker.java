@@ -21,7 +21,7 @@ import edu.umich.andykong.ptmshepherd.PTMShepherd;
 import edu.umich.andykong.ptmshepherd.core.FastLocator;
 import edu.umich.andykong.ptmshepherd.core.MXMLReader;
 import edu.umich.andykong.ptmshepherd.core.Spectrum;
-import static edu.umich.andykong.ptmshepherd.PTMShepherd.reNormName;
+import edu.umich.andykong.ptmshepherd.core.SpectrumCache;
 
 import java.io.*;
 import java.util.*;
@@ -202,7 +202,7 @@ public class DiagnosticPeakPicker {
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
-                    System.exit(1);
+                    PTMShepherd.die("Diagnostic peak picking failed: " + e);
                 }
             }
             bdMetrics.processPeptideMap(executorService, nThreads, this.minSignal, this.maxPrecursorCharge);
@@ -347,7 +347,7 @@ public class DiagnosticPeakPicker {
 
                 } catch (Exception e) {
                     e.printStackTrace();
-                    System.exit(1);
+                    PTMShepherd.die("Diagnostic peak picking failed: " + e);
                 }
             }
             pct.performTests();
@@ -467,23 +467,16 @@ public class DiagnosticPeakPicker {
         int pepMassCol = pf.getColumn("Calculated Peptide Mass");
 
         /* Map PSM lines to each fraction */
-        HashMap<String, ArrayList<Integer>> mappings = new HashMap<>();
-        for (int i = 0; i < pf.data.size(); i++) {
-            String[] sp = pf.data.get(i).split("\t");
-            String bn = sp[specCol].substring(0, sp[specCol].indexOf(".")); //fraction
-            if (!mappings.containsKey(bn))
-                mappings.put(bn, new ArrayList<>());
-            mappings.get(bn).add(i);
-        }
+        HashMap<String, ArrayList<Integer>> mappings = pf.getTable().getRunMappings();
 
         // Process spectral files one at a time
         for (String cf : mappings.keySet()) {
+            ArrayList<Integer> clines = mappings.get(cf); //lines corr to curr spec file
             long t1 = System.currentTimeMillis();
-            mr = new MXMLReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")));
-            mr.readFully();
+            mr = SpectrumCache.getInstance().getReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")),
+                    pf.getTable().getScanNums(clines));
             long t2 = System.currentTimeMillis();
 
-            ArrayList<Integer> clines = mappings.get(cf); //lines corr to curr spec file
             /* set up parallelization blocks */
             final int BLOCKSIZE = 100; //number of scans to be parsed per thread (to cut down on thread creation overhead)
             int nBlocks = clines.size() / (BLOCKSIZE); //number of jobs submitted to queue
@@ -543,9 +536,10 @@ public class DiagnosticPeakPicker {
         }
 
         // Get spec
-        Spectrum spec = mr.getSpectrum(reNormName(specName));
+        Spectrum spec = mr.getSpectrum(specName);
         if (spec == null)
             return;
+        spec = spec.copy();
         spec.condition(this.condPeaks, this.condRatio);
 
         // Find ions of interest
@@ -16,6 +16,7 @@
 
 package edu.umich.andykong.ptmshepherd.glyco;
 
+import edu.umich.andykong.ptmshepherd.utils.FixedFormat;
 
 public class GlycanAssignmentResult {
     // Glycan Assignment results
@@ -61,7 +62,9 @@ public class GlycanAssignmentResult {
     public String printGlycoFragmentInfo() {
         StringBuilder sb = new StringBuilder();
         // initial spectrum data
-        sb.append(String.format("%s\t%s\t%s\t%.4f\t%.4f", specName, peptide, assignedMods, pepMass, deltaMass));
+        sb.append(specName).append('\t').append(peptide).append('\t').append(assignedMods).append('\t');
+        FixedFormat.append(sb, pepMass, 4).append('\t');
+        FixedFormat.append(sb, deltaMass, 4);
         if (glycanAssignmentString.matches("ERROR")) {
             // spectrum not found - print ERROR
             sb.append("\tERROR\n");
@@ -78,17 +81,19 @@ public class GlycanAssignmentResult {
             // main glycan results
             if (!isDecoyGlycan) {
                 // for target glycans, append best decoy as well
+                appendBestCandidate(sb);
                 if (bestDecoy != null && !Double.isNaN(bestDecoyScore)) {
-                    sb.append(String.format("\t%s\t%.2f\t\t%s\t%.2f", bestCandidate, glycanScore, bestDecoy, bestDecoyScore));
+                    FixedFormat.append(sb.append(bestDecoy).append('\t'), bestDecoyScore, 2);
                 } else {
-                    sb.append(String.format("\t%s\t%.2f\t\t%s\t", bestCandidate, glycanScore, "no decoy matches"));
+                    sb.append("no decoy matches\t");
                 }
             } else {
                 // for decoy glycans, append best target as well
+                appendBestCandidate(sb);
                 if (bestTarget != null && !Double.isNaN(bestTargetScore)) {
-                    sb.append(String.format("\t%s\t%.2f\t\t%s\t%.2f", bestCandidate, glycanScore, bestTarget, bestTargetScore));
+                    FixedFormat.append(sb.append(bestTarget).append('\t'), bestTargetScore, 2);
                 } else {
-                    sb.append(String.format("\t%s\t%.2f\t\t%s\t", bestCandidate, glycanScore, "no target matches"));
+                    sb.append("no target matches\t");
                 }
             }
 
@@ -97,13 +102,13 @@ public class GlycanAssignmentResult {
                 // Y ions
                 for (GlycanFragment ion : bestCandidate.Yfragments.values()) {
                     if (ion.foundIntensity > 0) {
-                        sb.append(String.format("\tY~%s", ion));      // format is [ion type] [ion comp] [found intensity]
+                        sb.append("\tY~").append(ion);      // format is [ion type] [ion comp] [found intensity]
                     }
                 }
                 // oxonium ions
                 for (GlycanFragment ion : bestCandidate.oxoniumFragments.values()) {
                     if (ion.foundIntensity > 0) {
-                        sb.append(String.format("\tOx~%s", ion));      // format is [ion type] [ion comp] [found intensity]
+                        sb.append("\tOx~").append(ion);      // format is [ion type] [ion comp] [found intensity]
                     }
                 }
             }
@@ -112,4 +117,9 @@ public class GlycanAssignmentResult {
         return sb.toString();
     }
 
+    /* best glycan and its score, then an empty column */
+    private void appendBestCandidate(StringBuilder sb) {
+        sb.append('\t').append(bestCandidate).append('\t');
+        FixedFormat.append(sb, glycanScore, 2).append("\t\t");
+    }
 }
@@ -16,6 +16,7 @@
 
 package edu.umich.andykong.ptmshepherd.glyco;
 
+import edu.umich.andykong.ptmshepherd.utils.FixedFormat;
 import umich.ms.glyco.Glycan;
 import umich.ms.glyco.GlycanParser;
 import umich.ms.glyco.GlycanResidue;
@@ -220,7 +221,8 @@ public class GlycanFragment {
      * Output format for printing to .rawglyco file
      */
     public String toString() {
-        return String.format("%s~%.4f", toGlycanString(requiredComposition, neutralMass, isDecoy), foundIntensity);
+        StringBuilder sb = new StringBuilder(toGlycanString(requiredComposition, neutralMass, isDecoy)).append('~');
+        return FixedFormat.append(sb, foundIntensity, 4).toString();
     }
 
     /**
@@ -256,7 +258,8 @@ public class GlycanFragment {
      * @return string of composition + decoy + mass
      */
     public static String toGlycanString(Map<GlycanResidue, Integer> glycanComposition, double mass, boolean isDecoy) {
-        return GlycanFragment.toGlycanCompString(glycanComposition, isDecoy, "") + String.format(" %% %.4f", mass);
+        StringBuilder sb = new StringBuilder(GlycanFragment.toGlycanCompString(glycanComposition, isDecoy, "")).append(" % ");
+        return FixedFormat.append(sb, mass, 4).toString();
     }
 
     /**
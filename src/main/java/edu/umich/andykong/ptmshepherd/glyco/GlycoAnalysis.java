@@ -18,9 +18,15 @@ package edu.umich.andykong.ptmshepherd.glyco;
 
 import edu.umich.andykong.ptmshepherd.PSMFile;
 import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.ShepherdConfig;
 import edu.umich.andykong.ptmshepherd.core.AAMasses;
 import edu.umich.andykong.ptmshepherd.core.MXMLReader;
 import edu.umich.andykong.ptmshepherd.core.Spectrum;
+import edu.umich.andykong.ptmshepherd.pipeline.RunVisitor;
+import edu.umich.andykong.ptmshepherd.pipeline.SpectralPipeline;
+import edu.umich.andykong.ptmshepherd.utils.TsvCursor;
+import edu.umich.andykong.ptmshepherd.utils.FixedFormat;
+import edu.umich.andykong.ptmshepherd.utils.StringDictionary;
 import org.apache.commons.math3.fitting.GaussianCurveFitter;
 import org.apache.commons.math3.fitting.WeightedObservedPoints;
 import umich.ms.glyco.GlycanParser;
@@ -33,10 +39,13 @@ import java.util.concurrent.Future;
 
 import static edu.umich.andykong.ptmshepherd.PTMShepherd.reNormName;
 
-public class GlycoAnalysis {
+public class GlycoAnalysis implements RunVisitor {
     String dsName;
     File glycoFile;                     // .rawglyco file
     MXMLReader mr;
+    PrintWriter glycoOut;
+    ArrayList<String> linesWithoutSpectra;
+    public ExecutorService executorService;
     ArrayList<String> lineWithoutSpectra = new ArrayList<>();
     int totalLines;
     float ppmTol;
@@ -55,7 +64,7 @@ public class GlycoAnalysis {
     public static final double DEFAULT_MASS_PROB_SCALING = 1;
     public static final String GLYCAN_COMP_COL_NAME = "Total Glycan Composition";
     public boolean useFragmentSpecificProbs;
-    public HashMap<Integer, HashMap<String, Integer>> glycanMassBinMap;
+    public HashMap<Integer, HashMap<Integer, Integer>> glycanMassBinMap; // mass bin: StringDictionary.GLYCANS id: count
     public static final int MIN_GLYCO_PSMS_FOR_BOOTSTRAP = 10;      // todo: param
     public double finalGlycoFDR;
     public double defaultPropensity;
@@ -74,15 +83,20 @@ public class GlycoAnalysis {
     }
 
     public void glycoPSMs(PSMFile pf, HashMap<String, File> mzMappings, ExecutorService executorService, int numThreads) throws Exception {
+        this.executorService = executorService;
+        new SpectralPipeline(this).processPSMFile(pf, mzMappings);
+    }
+
+    public void startPSMFile(PSMFile pf) throws Exception {
         //open up output file
-        HashMap<String, ArrayList<Integer>> mappings = new HashMap<>();
-        PrintWriter glycoOut = new PrintWriter(new FileWriter(glycoFile));
-        ArrayList<String> linesWithoutSpectra = new ArrayList<>();
+        glycoOut = new PrintWriter(new FileWriter(glycoFile));
+        linesWithoutSpectra = new ArrayList<>();
 
         //get necessary params
-        ppmTol = Float.parseFloat(PTMShepherd.getParam("spectra_ppmtol"));
-        condPeaks = Integer.parseInt(PTMShepherd.getParam("spectra_condPeaks"));
-        condRatio = Double.parseDouble(PTMShepherd.getParam("spectra_condRatio"));
+        ShepherdConfig config = PTMShepherd.getConfig();
+        ppmTol = (float) config.spectraPpmTol;
+        condPeaks = config.spectraCondPeaks;
+        condRatio = config.spectraCondRatio;
 
         //write header
         glycoOut.println(String.format("%s\t%s\t%s\t%s\t%s", "Spectrum", "Peptide", "Mods", "Pep Mass", "Mass Shift") + String.format("\t%s\tGlycan Score\tGlycan q-value\tBest Target Glycan\tBest Target Score", GLYCAN_COMP_COL_NAME) + "\tFragments:");
@@ -96,51 +110,36 @@ public class GlycoAnalysis {
         pmassCol = pf.getColumn("Calculated Peptide Mass");
         rtCol = pf.getColumn("Retention");
         intCol = pf.getColumn("Intensity");
+    }
 
-        //map PSMs to file
-        for (int i = 0; i < pf.data.size(); i++) {
-            String[] sp = pf.data.get(i).split("\t");
-            String bn = sp[specCol].substring(0, sp[specCol].indexOf(".")); //fraction
-            if (!mappings.containsKey(bn))
-                mappings.put(bn, new ArrayList<>());
-            mappings.get(bn).add(i);
+    public void visitRun(PSMFile pf, String cf, ArrayList<Integer> clines, MXMLReader mr) throws Exception {
+        this.mr = mr;
+        getMassErrorWidth(pf, clines);
+
+        /* set up parallelization blocks */
+        final int BLOCKSIZE = 100; //number of scans to be parsed per thread (to cut down on thread creation overhead)
+        int nBlocks = clines.size() / (BLOCKSIZE); //number of jobs submitted to queue
+        if (clines.size() % BLOCKSIZE != 0) //if there are missing scans, add one more block
+            nBlocks++;
+
+        ArrayList<Future> futureList = new ArrayList<>(nBlocks);
+        /* Process PSM chunks */
+        for (int i = 0; i < nBlocks; i++) {
+            int startInd = i * BLOCKSIZE;
+            int endInd = Math.min((i + 1) * BLOCKSIZE, clines.size());
+            ArrayList<String> cBlock = new ArrayList<>();
+            for (int j = startInd; j < endInd; j++)
+                cBlock.add(pf.data.get(clines.get(j)));
+            futureList.add(executorService.submit(() -> processLinesBlock(cBlock, glycoOut)));
         }
+        /* Wait for all processes to finish */
+        for (Future future : futureList)
+            future.get();
+    }
 
-        /* Loop through spectral files -> indexed lines in PSM -> process each line */
-        for (String cf : mappings.keySet()) { //for file in relevant spectral files
-            long t1 = System.currentTimeMillis();
-            //System.out.println(cf);
-            mr = new MXMLReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")));
-            mr.readFully();
-            long t2 = System.currentTimeMillis();
-            ArrayList<Integer> clines = mappings.get(cf); //lines corr to curr spec file
-
-            getMassErrorWidth(pf, clines);
-
-            /* set up parallelization blocks */
-            final int BLOCKSIZE = 100; //number of scans to be parsed per thread (to cut down on thread creation overhead)
-            int nBlocks = clines.size() / (BLOCKSIZE); //number of jobs submitted to queue
-            if (clines.size() % BLOCKSIZE != 0) //if there are missing scans, add one more block
-                nBlocks++;
-
-            ArrayList<Future> futureList = new ArrayList<>(nBlocks);
-            /* Process PSM chunks */
-            for (int i = 0; i < nBlocks; i++) {
-                int startInd = i * BLOCKSIZE;
-                int endInd = Math.min((i + 1) * BLOCKSIZE, clines.size());
-                ArrayList<String> cBlock = new ArrayList<>();
-                for (int j = startInd; j < endInd; j++)
-                    cBlock.add(pf.data.get(clines.get(j)));
-                futureList.add(executorService.submit(() -> processLinesBlock(cBlock, glycoOut)));
-            }
-            /* Wait for all processes to finish */
-            for (Future future : futureList)
-                future.get();
-
-            long t3 = System.currentTimeMillis();
-            PTMShepherd.print(String.format("\t%s - %d (%d ms, %d ms)", cf, clines.size(), t2 - t1, t3 - t2));
-        }
+    public void finishPSMFile(PSMFile pf) throws Exception {
         glycoOut.close();
+        this.mr = null;
 
         if (!linesWithoutSpectra.isEmpty()) {
             PTMShepherd.print(String.format("\tCould not find %d/%d (%.1f%%) spectra.\n", linesWithoutSpectra.size(), this.totalLines,
@@ -205,16 +204,17 @@ public class GlycoAnalysis {
                 // add to delta mass map for calculating glycan prevalence priors (targets and decoys)
                 double deltaMass = Double.parseDouble(splits[deltaMassCol]);
                 int massBin = (int) Math.floor(deltaMass);
+                int glycanId = StringDictionary.GLYCANS.id(glycanHash);
                 if (glycanMassBinMap.containsKey(massBin)) {
                     // seen this mass bin before. Get the count-by-glycan dict and increment the count for this glycan
-                    HashMap<String, Integer> massBinGlycanCounts = glycanMassBinMap.get(massBin);
-                    int glycanCount = massBinGlycanCounts.getOrDefault(glycanHash, 0);
+                    HashMap<Integer, Integer> massBinGlycanCounts = glycanMassBinMap.get(massBin);
+                    int glycanCount = massBinGlycanCounts.getOrDefault(glycanId, 0);
                     glycanCount++;
-                    massBinGlycanCounts.put(glycanHash, glycanCount);
+                    massBinGlycanCounts.put(glycanId, glycanCount);
                 } else {
                     // New mass bin. Create a new count-by-glycan dict
-                    HashMap<String, Integer> massBinGlycanCounts = new HashMap<>();
-                    massBinGlycanCounts.put(glycanHash, 1);
+                    HashMap<Integer, Integer> massBinGlycanCounts = new HashMap<>();
+                    massBinGlycanCounts.put(glycanId, 1);
                     glycanMassBinMap.put(massBin, massBinGlycanCounts);
                 }
             }
@@ -673,10 +673,10 @@ public class GlycoAnalysis {
         // Get mass errors for PSMs with delta mass in exclusion range (-1.5 to 3.5)
         double minError = 10;
         double maxError = -10;
+        TsvCursor sp = new TsvCursor();
         for (Integer cline : clines) {//for relevant line in curr spec file
-            String line = psmFile.data.get(cline);
-            String[] sp = line.split("\\t");
-            float deltaMass = Float.parseFloat(sp[deltaCol]);
+            sp.reset(psmFile.data.get(cline));
+            float deltaMass = sp.parseFloat(deltaCol);
 //            float pepMass = Float.parseFloat(sp[pmassCol]);
 
             if (deltaMass > -1.5 && deltaMass < 3.5) {
@@ -741,12 +741,13 @@ public class GlycoAnalysis {
         GlycanAssignmentResult glycoResult = new GlycanAssignmentResult(seq, dmass, pepMass, sp[modCol], specName);
 
         // read spectrum and condition
-        Spectrum spec = mr.getSpectrum(reNormName(specName));
+        Spectrum spec = mr.getSpectrum(specName);
         if (spec == null) {
             this.lineWithoutSpectra.add(reNormName(specName));
             glycoResult.glycanAssignmentString = "ERROR";
             return glycoResult;
         }
+        spec = spec.copy();
         spec.conditionOptNorm(condPeaks, condRatio, false);
 
         // do glycan assignment
@@ -780,7 +781,7 @@ public class GlycoAnalysis {
         String output;
         if (searchCandidates.size() > 0) {
             // Search Y and oxonium ions in spectrum for each candidate
-            float ppmTol = Float.parseFloat(PTMShepherd.getParam("spectra_ppmtol"));
+            float ppmTol = (float) PTMShepherd.getConfig().spectraPpmTol;
             for (GlycanCandidate candidate : searchCandidates) {
                 for (GlycanFragment yFragment : candidate.Yfragments.values()) {
                     yFragment.foundIntensity = spec.findIonNeutral(yFragment.neutralMass + glycoResult.pepMass, ppmTol, spec.charge) / spec.basePeakInt;  // sum of charge state intensities if >1 found
@@ -851,7 +852,7 @@ public class GlycoAnalysis {
 
             // output - best glycan, scores, etc back to PSM table
             // write top glycan info
-            output = String.format("\t%s\t%.4f\t", searchCandidates.get(bestCandidateIndex).toString(), absoluteScore);
+            output = FixedFormat.append(new StringBuilder("\t").append(searchCandidates.get(bestCandidateIndex)).append('\t'), absoluteScore, 4).append('\t').toString();
 
             // if top glycan is a decoy, also write best target and best target score to subsequent columns
             boolean bestWasTarget = !searchCandidates.get(bestCandidateIndex).isDecoy;
@@ -888,7 +889,7 @@ public class GlycoAnalysis {
                 } else {
                     bestNextScore = computeAbsoluteScore(nextCandidate, glycoResult.deltaMass, massErrorWidth, meanMassError);
                 }
-                output = String.format("%s\t%s\t%.4f", output, nextCandidate.toString(), bestNextScore);
+                output = FixedFormat.append(new StringBuilder(output).append('\t').append(nextCandidate).append('\t'), bestNextScore, 4).toString();
                 foundNext = true;
                 if (bestWasTarget) {
                     // save best to target, next to decoy
@@ -935,14 +936,15 @@ public class GlycoAnalysis {
         // determine the overall likelihood priors of these glycans given the observed delta mass
         int glyc1Count = 0;
         int totalGlycCountInBin = 0;
-        HashMap<String, Integer> emptyMap = new HashMap<>();
+        HashMap<Integer, Integer> emptyMap = new HashMap<>();
+        int glycan1Id = StringDictionary.GLYCANS.lookup(glycan1.toString()); // -1 if never counted
         // count glycans in this delta mass bin and nearby allowed bins
         for (int isotope : glycoParams.glycoIsotopes) {
             int massBin = (int) Math.floor(deltaMass + isotope);
-            HashMap<String, Integer> glycanCountMap = glycanMassBinMap.getOrDefault(massBin, emptyMap);
+            HashMap<Integer, Integer> glycanCountMap = glycanMassBinMap.getOrDefault(massBin, emptyMap);
             if (glycanCountMap.size() > 0) {
                 // count instances of glycan 1, glycan 2, and all glycans
-                glyc1Count = glyc1Count + glycanCountMap.getOrDefault(glycan1.toString(), 0);
+                glyc1Count = glyc1Count + glycanCountMap.getOrDefault(glycan1Id, 0);
                 for (int glycanCount : glycanCountMap.values()) {
                     totalGlycCountInBin += glycanCount;
                 }
@@ -17,6 +17,7 @@
 package edu.umich.andykong.ptmshepherd.glyco;
 
 import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.utils.TableRow;
 
 public class GlycoRecord {
     double mass;
@@ -55,14 +56,14 @@ public class GlycoRecord {
         this.remFragCounts = new int[remFragStrs.length];
     }
 
-    public void updateWithLine(String [] sp) {
+    public void updateWithLine(TableRow sp) {
         count++;
         double cInt;
         //get instances of Y ion identified
         int startCol = 5;   // 5 columns always padding left side
         int endCol = startCol + capYCounts.length;
         for(int i = startCol; i < endCol; i++) {
-            cInt = Double.parseDouble(sp[i]);
+            cInt = sp.parseDouble(i);
             if (cInt > 0.0) {
                 //System.out.println("*");
                 //System.out.println(this.capYCounts[i-startCol]);
@@ -75,16 +76,16 @@ public class GlycoRecord {
         endCol = startCol + diagIonCounts.length;
         //System.out.printf("%d\t%d\t11111\n",startCol,endCol);
         for(int i = startCol; i < endCol; i++) {
-            cInt = Double.parseDouble(sp[i]);
+            cInt = sp.parseDouble(i);
             if (cInt > 0.0) {
                 this.diagIonCounts[i-startCol]++;
             }
         }
         //get instances of remainder frag identified
         startCol = endCol;
-        endCol = sp.length;
+        endCol = sp.size();
         for(int i = startCol; i < endCol; i++){
-            cInt = Double.parseDouble(sp[i]); //is actually delta score, not intensity
+            cInt = sp.parseDouble(i); //is actually delta score, not intensity
             if (cInt > 0.0) {
                 int t = i;
                 t = t - startCol;
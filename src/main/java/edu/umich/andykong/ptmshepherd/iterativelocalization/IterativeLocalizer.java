@@ -6,6 +6,7 @@ import edu.umich.andykong.ptmshepherd.core.AAMasses;
 import edu.umich.andykong.ptmshepherd.core.FastLocator;
 import edu.umich.andykong.ptmshepherd.core.MXMLReader;
 import edu.umich.andykong.ptmshepherd.core.Spectrum;
+import edu.umich.andykong.ptmshepherd.core.SpectrumCache;
 import edu.umich.andykong.ptmshepherd.utils.Peptide;
 import org.jetbrains.annotations.NotNull;
 
@@ -119,13 +120,13 @@ public class IterativeLocalizer {
             ArrayList<String[]> dsData = this.datasets.get(ds);
             // Loop through PSM files
             for (int i = 0; i < dsData.size(); i++) {
-                PSMFile psmf = new PSMFile(new File(dsData.get(i)[0]));
+                PSMFile psmf = PTMShepherd.getPSMFile(dsData.get(i)[0]);
                 HashMap<String, ArrayList<Integer>> runToLine = psmf.getRunMappings();
                 // Loop through runs
                 for (String cf : runToLine.keySet()) {
                     // Load current run
-                    mr = new MXMLReader(mzMap.get(ds).get(cf), this.nThreads);
-                    mr.readFully();
+                    mr = SpectrumCache.getInstance().getReader(mzMap.get(ds).get(cf), this.nThreads,
+                            psmf.getTable().getScanNums(runToLine.get(cf)));
                     // Get matched ion intensities for unmodified peptides
                     for (int j : runToLine.get(cf)) {
                         PSMFile.PSM psm = psmf.getLine(j);
@@ -138,7 +139,7 @@ public class IterativeLocalizer {
                         String pep = psm.getPep();
                         float[] mods = psm.getModsAsArray();
 
-                        Spectrum spec = mr.getSpectrum(specName);
+                        Spectrum spec = mr.getSpectrum(psm.getSpecKey());
                         if(spec == null) {
                             linesWithoutSpectra.add(specName); //TODO handle this
                             continue;
@@ -282,7 +283,7 @@ public class IterativeLocalizer {
                 // Loop through PSM files
                 for (int i = 0; i < dsData.size(); i++) {
                     String psmfStr = dsData.get(i)[0];
-                    PSMFile psmf = new PSMFile(psmfStr);
+                    PSMFile psmf = PTMShepherd.getPSMFile(psmfStr);
 
                     // Get run to line mappings, if first run calculate, else get preprocessed list to prevent extra parsing
                     HashMap<String, ArrayList<Integer>> runToLine;
@@ -303,9 +304,11 @@ public class IterativeLocalizer {
                     // Loop through runs
                     for (String cf : runToLine.keySet()) {
                         // Load current run
-                        mr = new MXMLReader(mzMap.get(ds).get(cf), this.nThreads);
                         if (epoch == 1 || finalPass) //todo logic too complicated, need to create a state machine
-                            mr.readFully();
+                            mr = SpectrumCache.getInstance().getReader(mzMap.get(ds).get(cf), this.nThreads,
+                                    psmf.getTable().getScanNums(runToLine.get(cf)));
+                        else
+                            mr = new MXMLReader(mzMap.get(ds).get(cf), this.nThreads);
 
                         // Calculate PSM-level localization probabilities
                         for (int j : runToLine.get(cf)) {
@@ -370,7 +373,7 @@ public class IterativeLocalizer {
                             // todo this logic is getting way too complex, need to handle execution states in a static context
                             Spectrum spec = null;
                             if (epoch == 1 || finalPass) { // or out of memory dataset
-                                spec = mr.getSpectrum(specName);
+                                spec = mr.getSpectrum(psm.getSpecKey());
                                 if (spec == null) {
                                     linesWithoutSpectra.add(specName);
                                     continue; // todo handle this error
@@ -434,7 +437,6 @@ public class IterativeLocalizer {
                         //        "delta_mass_entropy", specNames, strEntropies);
                         //psmf.addColumn(psmf.getColumn("PTM-Shepherd Best Localization") + 1,
                         //        "PTM-Shepherd Max Probability", specNames, strMaxProbs2);
-                        psmf.save(true); // Do not overwrite
                         complete = true;
                     }
                 }
@@ -605,7 +607,7 @@ public class IterativeLocalizer {
             for (int i = 0; i < dsData.size(); i++) {
 
                 // Get values we're working with on first pass
-                PSMFile psmf = new PSMFile(new File(dsData.get(i)[0]));
+                PSMFile psmf = PTMShepherd.getPSMFile(dsData.get(i)[0]);
                 ArrayList<String> specs = psmf.getColumnValues("Spectrum");
                 ArrayList<String> peps = psmf.getColumnValues("Peptide");
                 ArrayList<String> maxProbs = psmf.getColumnValues("PTM-Shepherd Best Localization");
@@ -819,7 +821,7 @@ public class IterativeLocalizer {
             for (int i = 0; i < dsData.size(); i++) {
 
                 // Get values to map to q-vals
-                PSMFile psmf = new PSMFile(new File(dsData.get(i)[0]));
+                PSMFile psmf = PTMShepherd.getPSMFile(dsData.get(i)[0]);
                 ArrayList<String> specNames = psmf.getColumnValues("Spectrum");
                 ArrayList<String> maxProbs = psmf.getColumnValues("PTM-Shepherd Best Localization");
                 //ArrayList<String> entropies = psmf.getColumnValues("delta_mass_entropy");
@@ -863,7 +865,6 @@ public class IterativeLocalizer {
                 psmf.addColumn(psmf.getColumn("delta_mass_entropy") + 1, "delta_mass_entropy_decoyAA_q",
                         specNames, entropyDecoyModelVals);
                  **/
-                psmf.save(true); // add columns
             }
         }
 
@@ -1495,7 +1496,7 @@ public class IterativeLocalizer {
             out.close();
         } catch (Exception e) {
             e.printStackTrace();
-            System.exit(1);
+            PTMShepherd.die("Could not write " + fname + ": " + e);
         }
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package edu.umich.andykong.ptmshepherd.iterativelocalization;
 
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -513,7 +515,7 @@ public class MatchedIonDistribution {
             out.close();
         } catch (IOException e) {
           e.printStackTrace();
-          System.exit(1);
+          PTMShepherd.die("Could not write " + fname + ": " + e);
         }
     }
 
@@ -18,10 +18,10 @@ package edu.umich.andykong.ptmshepherd.localization;
 
 import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import edu.umich.andykong.ptmshepherd.PTMShepherd;
 import edu.umich.andykong.ptmshepherd.core.FastLocator;
+import edu.umich.andykong.ptmshepherd.utils.IntList;
 
 public class LocalizationProfile {
 
@@ -32,8 +32,8 @@ public class LocalizationProfile {
 	double [][] peaks; //apex, left, right
 	double peakTol;
 	int precursorUnits;
-	ArrayList<String> globalPepSeqs;
-	ArrayList<String> uniqueGlobalPepSeqs;
+	IntList globalPepSeqs; // StringDictionary.PEPTIDES ids
+	IntList uniqueGlobalPepSeqs;
 
 	static final int [] AAcnts = {3637222,0,1163038,2477586,3690290,1854622,
 			  3426107,1356881,2222643,0,2959209,5141499,
@@ -57,11 +57,11 @@ public class LocalizationProfile {
 	}
 
 	public void collectPeptideSequences() {
-		ArrayList<String> globalPepSeqs = new ArrayList<>();
+		IntList globalPepSeqs = new IntList();
 		for (int i = 0; i < records.length; i++)
 			globalPepSeqs.addAll(records[i].localPepSeqs);
 
-		ArrayList<String> uniqueGlobalPepSeqs = new ArrayList<>(globalPepSeqs.stream().distinct().collect(Collectors.toList()));
+		IntList uniqueGlobalPepSeqs = globalPepSeqs.distinct();
 
 		this.globalPepSeqs = globalPepSeqs;
 		this.uniqueGlobalPepSeqs = uniqueGlobalPepSeqs;
@@ -17,12 +17,9 @@
 package edu.umich.andykong.ptmshepherd.localization;
 
 import edu.umich.andykong.ptmshepherd.PTMShepherd;
-
-import java.lang.reflect.Array;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.stream.Collectors;
+import edu.umich.andykong.ptmshepherd.utils.IntList;
+import edu.umich.andykong.ptmshepherd.utils.StringDictionary;
+import edu.umich.andykong.ptmshepherd.utils.TableRow;
 
 public class LocalizationRecord {
 
@@ -41,15 +38,18 @@ public class LocalizationRecord {
 	
 	int nTerm, improved, total;
 
-	ArrayList<String> localPepSeqs = new ArrayList<>();
-	ArrayList<String> globalPepSeqs = new ArrayList<>();
-	ArrayList<String> uniqueLocalPepSeqs = new ArrayList<>();
-	ArrayList<String> uniqueGlobalPepSeqs = new ArrayList<>();
+	IntList localPepSeqs = new IntList(); // StringDictionary.PEPTIDES ids
+	IntList uniqueLocalPepSeqs = new IntList();
 	double [] localAANorm;
 	static double [] globalAANorm;
 
 	double [] AAnorms;
 
+	/* Forgets the global amino acid norms so the next analysis computes its own */
+	public static void clearGlobalNorms() {
+		globalAANorm = null;
+	}
+
 	public LocalizationRecord(double mass, int originalOrder) {
 		this.mass = mass;
 		this.originalOrder = originalOrder;
@@ -60,17 +60,16 @@ public class LocalizationRecord {
 		nTerm = improved = total = 0;
 	}
 	
-	public void updateWithLine(String [] sp) {
+	public void updateWithLine(TableRow sp) {
 
-		String pep = sp[4];
-		String pepSeq = (sp[1]);
-		//System.out.println(pepSeq);
+		int pepCol = 4; // annotated sequence, localized residues in upper case
+		int pepLen = sp.length(pepCol);
 		
-		double origScore = Double.parseDouble(sp[5]);
-		double bestScore = Double.parseDouble(sp[6]);
+		double origScore = sp.parseDouble(5);
+		double bestScore = sp.parseDouble(6);
 		
-		int origFrag = Integer.parseInt(sp[7]);
-		int bestFrag = Integer.parseInt(sp[8]);
+		int origFrag = sp.parseInt(7);
+		int bestFrag = sp.parseInt(8);
 
 		//check for local or global enrichment calculation, default is global (4)
 		if (backgroundEnrich == 3 || backgroundEnrich == 4 || backgroundEnrich == 7 || backgroundEnrich == 8)
@@ -83,27 +82,27 @@ public class LocalizationRecord {
 		/* include nonlocalized PSMs in localization background */
 		if(bestFrag <= origFrag) {
 			if (nonlocalizedPsms) {
-				localPepSeqs.add(pepSeq);
+				localPepSeqs.add(StringDictionary.PEPTIDES.id(sp.get(1)));
 			}
 		}
 
 		//if "localized"
 		if(bestFrag > origFrag) {
-			localPepSeqs.add(pepSeq);
+			localPepSeqs.add(StringDictionary.PEPTIDES.id(sp.get(1)));
 
 			//calc score diff
 			double improv = bestScore-origScore;
 			if(improv > mostImprovedScore) {
 				mostImprovedScore = improv;
-				mostImprovedSpectrum = sp[0];
+				mostImprovedSpectrum = sp.get(0);
 			}
 			improved++;
 			int cnt = 0;
 			int cntN = 0;
 			boolean noUpper = false;
 			//iterate left to right through sequences
-			for(int i = 0; i < pep.length(); i++) {
-				if(Character.isUpperCase(pep.charAt(i))) {
+			for(int i = 0; i < pepLen; i++) {
+				if(Character.isUpperCase(sp.charAt(pepCol, i))) {
 					//if localized
 					cnt++;
 					if(!noUpper)
@@ -111,9 +110,9 @@ public class LocalizationRecord {
 				} else
 					noUpper = true;
 			}
-			for(int i = 0; i < pep.length(); i++)
-				if(Character.isUpperCase(pep.charAt(i))) {
-					aaScores[pep.charAt(i)-'A'] += 1.0/cnt;
+			for(int i = 0; i < pepLen; i++)
+				if(Character.isUpperCase(sp.charAt(pepCol, i))) {
+					aaScores[sp.charAt(pepCol, i)-'A'] += 1.0/cnt;
 				}
 			if(cnt == cntN)
 				nTerm++;
@@ -121,7 +120,7 @@ public class LocalizationRecord {
 		total++;
 	}
 	
-	public String toString(ArrayList<String> globalPepSeqs, ArrayList<String> uniqueGlobalPepSeqs) {
+	public String toString(IntList globalPepSeqs, IntList uniqueGlobalPepSeqs) {
 		StringBuffer sb = new StringBuffer();
 		
 		/* General stats */ //TODO make this better, how to easily filter N-term enrichment form final results if it doesn't matter?
@@ -149,7 +148,7 @@ public class LocalizationRecord {
 		} else { //if norm at local level
 			if (localAANorm == null) { //if local norms uncomputed
 				if (uniquePeptides == true) { //if norm at peptide level
-					uniqueLocalPepSeqs = new ArrayList<>(localPepSeqs.stream().distinct().collect(Collectors.toList()));
+					uniqueLocalPepSeqs = localPepSeqs.distinct();
 					//calc norm from uniqe local peptide sequences
 					localAANorm = calcNorms(uniqueLocalPepSeqs);
 				} else { //if norm at psm level
@@ -202,11 +201,11 @@ public class LocalizationRecord {
 	}
 
 	//This function takes in a list of relevant background peptides, then calculates its background amino acid content
-	public static double[] calcNorms(ArrayList<String> peps) {
+	public static double[] calcNorms(IntList peps) {
 		int [] AAcnts = new int[26];
 
 		for(int i = 0; i < peps.size(); i++){
-			String pepSeq = peps.get(i);
+			String pepSeq = StringDictionary.PEPTIDES.get(peps.get(i));
 			//System.out.println(i + pepSeq);
 			for(int j = 0; j < pepSeq.length(); j++){
 				//System.out.println("************");
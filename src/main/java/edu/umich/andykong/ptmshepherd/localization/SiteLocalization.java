@@ -21,16 +21,22 @@ import java.util.*;
 
 import edu.umich.andykong.ptmshepherd.*;
 import edu.umich.andykong.ptmshepherd.core.*;
-import static edu.umich.andykong.ptmshepherd.PTMShepherd.reNormName;
+import edu.umich.andykong.ptmshepherd.pipeline.RunVisitor;
+import edu.umich.andykong.ptmshepherd.pipeline.SpectralPipeline;
+import edu.umich.andykong.ptmshepherd.utils.FixedFormat;
+import edu.umich.andykong.ptmshepherd.utils.IntermediateTable;
+import edu.umich.andykong.ptmshepherd.utils.TableRow;
 import org.apache.commons.math3.linear.SparseFieldMatrix;
 
 
-public class SiteLocalization {
+public class SiteLocalization implements RunVisitor {
 
 	String dsName;
 	File localizationFile;
 	MXMLReader mr;
+	IntermediateTable.Writer out;
 	double ppmTol, condRatio;
+	String allowedRes;
 	int condPeaks;
 	int specCol, pepCol, modCol, deltaCol;
 	List<String> linesWithoutSpectra;
@@ -42,91 +48,70 @@ public class SiteLocalization {
 
 	
 	public boolean isComplete() throws Exception {
-		if(localizationFile.exists()) {
-			try (RandomAccessFile raf = new RandomAccessFile(localizationFile, "r")) {
-				raf.seek(Math.max(0, localizationFile.length() - 20));
-				String cline;
-				while ((cline = raf.readLine()) != null)
-					if (cline.equals("COMPLETE")) {
-						raf.close();
-						return true;
-					}
-			}
-			localizationFile.delete();
-		}
+		if(IntermediateTable.isComplete(localizationFile))
+			return true;
+		localizationFile.delete();
 		return false;
 	}
 	
 	public void complete() throws Exception {
-		PrintWriter out = new PrintWriter(new FileWriter(localizationFile,true));
-		out.println("COMPLETE");
-		out.close();
+		IntermediateTable.complete(localizationFile);
 	}
 	
 	
 	public void localizePSMs(PSMFile pf, HashMap<String,File> mzMappings) throws Exception {
-		//assemble PSMs into per file groupings
-		HashMap<String,ArrayList<Integer>> mappings = new HashMap<>();
-		PrintWriter out = new PrintWriter(new FileWriter(localizationFile,true));
+		new SpectralPipeline(this).processPSMFile(pf, mzMappings);
+	}
+
+	public void startPSMFile(PSMFile pf) throws Exception {
+		ShepherdConfig config = PTMShepherd.getConfig();
+		out = IntermediateTable.openWriter(localizationFile, true, config.intermediateFormat);
 
 		//write headers
-		out.printf("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\n","Spectrum","Peptide","Mods","Shift","Localized_Pep",
-				"MaxHyper_Unloc", "MaxHyper_Loc", "MaxPeaks_Unloc", "MaxPeaks_Loc");
+		out.writeHeader(String.join("\t", "Spectrum","Peptide","Mods","Shift","Localized_Pep",
+				"MaxHyper_Unloc", "MaxHyper_Loc", "MaxPeaks_Unloc", "MaxPeaks_Loc"));
 
 		specCol = pf.getColumn("Spectrum");
 		pepCol = pf.getColumn("Peptide");
 		modCol = pf.getColumn("Assigned Modifications");
 		deltaCol = pf.dMassCol;
-		ppmTol = Double.parseDouble(PTMShepherd.getParam("spectra_ppmtol"));
-		condPeaks = Integer.parseInt(PTMShepherd.getParam("spectra_condPeaks"));
-		condRatio = Double.parseDouble(PTMShepherd.getParam("spectra_condRatio"));
+		ppmTol = config.spectraPpmTol;
+		condPeaks = config.spectraCondPeaks;
+		condRatio = config.spectraCondRatio;
+		allowedRes = config.localizationAllowedRes;
 		linesWithoutSpectra = new ArrayList<>();
-		int totalLines;
-
-		for(int i = 0; i < pf.data.size(); i++) {
-			String [] sp = pf.data.get(i).split("\t");
-			String bn = sp[specCol].substring(0,sp[specCol].indexOf("."));
-			if(!mappings.containsKey(bn))
-				mappings.put(bn, new ArrayList<>());
-			mappings.get(bn).add(i);
-		}
-		
-		//iterate and localize each file
-		for(String cf : mappings.keySet()) { //cf = fraction
-			long t1 = System.currentTimeMillis();
-			mr = new MXMLReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")));
-			mr.readFully();
-			long t2 = System.currentTimeMillis();
-			ArrayList<Integer> clines = mappings.get(cf);
-			totalLines = 0;
-			for(int i = 0; i < clines.size(); i++) {
-				try {
-					out.println(annotateLine(pf.data.get(clines.get(i))));
-				} catch(Exception e) {
-					e.printStackTrace();
-					System.out.println("Error in: " +pf.data.get(clines.get(i)));
-				}
-				totalLines++;
-			}
-			totalLines--;
-			out.flush();
-			long t3 = System.currentTimeMillis();
+	}
 
-			if (!linesWithoutSpectra.isEmpty()) {
-				System.out.printf("\tCould not find %d/%d (%.1f%%) spectra.\n", linesWithoutSpectra.size(), totalLines,
-						100.0*((double)linesWithoutSpectra.size()/totalLines));
-				int previewSize = Math.min(linesWithoutSpectra.size(), 5);
-				System.out.printf("\tShowing first %d of %d spectra IDs that could not be found: \n\t%s\n", previewSize, linesWithoutSpectra.size(),
-						String.join("\n\t\t", linesWithoutSpectra.subList(0, previewSize)));
+	public void visitRun(PSMFile pf, String cf, ArrayList<Integer> clines, MXMLReader mr) throws Exception {
+		this.mr = mr;
+		int totalLines = 0;
+		for(int i = 0; i < clines.size(); i++) {
+			try {
+				out.writeRow(annotateLine(pf.data.get(clines.get(i))));
+			} catch(Exception e) {
+				e.printStackTrace();
+				System.out.println("Error in: " +pf.data.get(clines.get(i)));
 			}
-
-			PTMShepherd.print(String.format("\t%s - %d lines (%d ms reading, %d ms processing)", cf, clines.size(), t2-t1,t3-t2));
+			totalLines++;
 		}
+		totalLines--;
+
+		if (!linesWithoutSpectra.isEmpty()) {
+			System.out.printf("\tCould not find %d/%d (%.1f%%) spectra.\n", linesWithoutSpectra.size(), totalLines,
+					100.0*((double)linesWithoutSpectra.size()/totalLines));
+			int previewSize = Math.min(linesWithoutSpectra.size(), 5);
+			System.out.printf("\tShowing first %d of %d spectra IDs that could not be found: \n\t%s\n", previewSize, linesWithoutSpectra.size(),
+					String.join("\n\t\t", linesWithoutSpectra.subList(0, previewSize)));
+		}
+	}
+
+	public void finishPSMFile(PSMFile pf) throws Exception {
 		out.close();
+		this.mr = null;
 	}
 	
 	public String annotateLine(String line) throws Exception {
-		StringBuffer sb = new StringBuffer();
+		StringBuilder sb = new StringBuilder();
 		String [] sp = line.split("\\t");
 		String seq = sp[pepCol];
 		float dmass = Float.parseFloat(sp[deltaCol]);
@@ -135,16 +120,17 @@ public class SiteLocalization {
 		String specName = sp[specCol];
 		String [] smods = sp[modCol].split(",");
 
-		sb.append(String.format("%s\t%s\t%s\t%.4f", specName, seq, sp[modCol], dmass));
+		sb.append(specName).append('\t').append(seq).append('\t').append(sp[modCol]).append('\t');
+		FixedFormat.append(sb, dmass, 4);
 
 		//System.out.println(mr.specs.length);
 		//for(int k = 0; k < mr.specs.length; k++) {
 		//	System.out.println(mr.specs[k].scanName + "\t" + reNormName(specName));
 		//}
-		Spectrum spec = mr.getSpectrum(reNormName(specName));
+		Spectrum spec = mr.getSpectrum(specName);
 		//System.out.println(mr.specs.length);
 
-		boolean [] allowedPoses = parseAllowedPositions(seq, PTMShepherd.getParam("localization_allowed_res"));
+		boolean [] allowedPoses = parseAllowedPositions(seq, allowedRes);
 
 		if(spec == null) {
 			sb.append("\tMISSINGSPECTRA");
@@ -153,6 +139,7 @@ public class SiteLocalization {
 			return sb.toString();
 		}
 		
+		spec = spec.copy();
 		spec.condition(condPeaks, condRatio);
 		
 		float [] mods = new float[seq.length()];
@@ -206,27 +193,29 @@ public class SiteLocalization {
 				annoSeq.append((char)(seq.charAt(i)+('a'-'A')));
 		}
 		
-		sb.append(String.format("\t%s\t%.2f\t%.2f\t%d\t%d",annoSeq.toString(),baseScore,maxScore,baseFrags,maxFrags));
+		sb.append('\t').append(annoSeq).append('\t');
+		FixedFormat.append(sb, baseScore, 2).append('\t');
+		FixedFormat.append(sb, maxScore, 2).append('\t').append(baseFrags).append('\t').append(maxFrags);
 		
-		for(int i = 0; i < scores.length; i++)
-			sb.append(String.format("\t%.2f\t%d", scores[i],frags[i]));
+		for(int i = 0; i < scores.length; i++) {
+			sb.append('\t');
+			FixedFormat.append(sb, scores[i], 2).append('\t').append(frags[i]);
+		}
 		
 		return sb.toString();
 	}
 	
 	public void updateLocalizationProfiles(LocalizationProfile [] profiles) throws Exception {
-		BufferedReader in = new BufferedReader(new FileReader(localizationFile));
-		String cline;
-		in.readLine();
-		while((cline = in.readLine())!= null) {
-			if(cline.equals("COMPLETE"))
+		IntermediateTable.Reader in = IntermediateTable.openReader(localizationFile);
+		TableRow sp;
+		while((sp = in.next()) != null) {
+			if(sp.lineEquals("COMPLETE"))
 				break;
-			if(cline.endsWith("MISSINGSPECTRA"))
+			if(sp.lineEndsWith("MISSINGSPECTRA"))
 				continue;
-			if(cline.startsWith("Spectrum"))
+			if(sp.lineStartsWith("Spectrum"))
 				continue;
-			String [] sp = cline.split("\\t");
-			double md = Double.parseDouble(sp[3]);
+			double md = sp.parseDouble(3);
 			for(int i = 0; i < profiles.length; i++) {
 				int cind = profiles[i].locate.getIndex(md);
 				if(cind != -1)
@@ -33,7 +33,7 @@ public class Histogram {
 	
 	public TreeMap<String,double []> merged;
 	
-	public Histogram(ArrayList<Float> vals, ArrayList<Double> intensities, int expSize, int binDivs, int smoothBins) {
+	public Histogram(float [] vals, double [] intensities, int expSize, int binDivs, int smoothBins) {
 		//System.out.println(smoothBins);
 		double min = 1e100;
 		double max = -1e100;
@@ -41,11 +41,11 @@ public class Histogram {
 		this.expSize = expSize;
 		this.binDivs = binDivs;
 		
-		for(int i = 0; i < vals.size(); i++) {
-			if(vals.get(i) > max)
-				max = vals.get(i);
-			if(vals.get(i) < min)
-				min = vals.get(i);
+		for(int i = 0; i < vals.length; i++) {
+			if(vals[i] > max)
+				max = vals[i];
+			if(vals[i] < min)
+				min = vals[i];
 		}
 		
 		start = (int)(min-5);
@@ -53,10 +53,10 @@ public class Histogram {
 
 		histo = new double[(end-start)*binDivs];
 		calcWeights(smoothBins);
-		for(int i = 0; i < vals.size(); i++) {
-			int cb = (int)(binDivs*(vals.get(i) + Math.random()/1000000 - 0.0000005 - start + 1.0 / binDivs));
+		for(int i = 0; i < vals.length; i++) {
+			int cb = (int)(binDivs*(vals[i] + Math.random()/1000000 - 0.0000005 - start + 1.0 / binDivs));
 			for(int j = cb - smoothBins/2; j <= (cb + smoothBins/2); j++) {
-				histo[j] += intensities.get(i) * gweights[j - (cb - smoothBins/2)];
+				histo[j] += intensities[i] * gweights[j - (cb - smoothBins/2)];
 			}
 		}
 	}
@@ -171,17 +171,100 @@ public class Histogram {
 	}
 
 	public static void calcWeights(int Nbins) {
+		gweights = weights(Nbins);
+	}
+
+	/* Normal smoothing weights over Nbins bins, covering the central gfrac of the distribution */
+	static double [] weights(int Nbins) {
 		NormalDistribution nd = new NormalDistribution();
 		double a = (1-gfrac)/2;
 		double lower = nd.inverseCumulativeProbability(a);
 		double upper = nd.inverseCumulativeProbability(1-a);
 		double width = (upper - lower) / Nbins;
-		gweights = new double[Nbins];
+		double [] res = new double[Nbins];
 		for(int i = 0; i < Nbins; i++) {
 			double lo = nd.cumulativeProbability(lower+i*width);
 			double hi = nd.cumulativeProbability(lower +(i+1)*width);
-			gweights[i] = hi-lo;
+			res[i] = hi-lo;
 			//System.out.println(gweights[i]);
 		}
+		return res;
+	}
+
+	/**
+	 * Builds a histogram from values that arrive in batches without keeping the values. The covered mass range grows
+	 * as values outside of it arrive, and {@link #build} trims it to the range the array constructor would use.
+	 */
+	public static class Accumulator {
+		private final int binDivs, smoothBins;
+		private final double [] weights;
+		private double min = 1e100, max = -1e100;
+		private int lo, hi; // covered range in Da
+		private double [] bins;
+
+		public Accumulator(int binDivs, int smoothBins) {
+			this.binDivs = binDivs;
+			this.smoothBins = smoothBins;
+			this.weights = weights(smoothBins);
+		}
+
+		public void add(float val, double intensity) {
+			if (val < min)
+				min = val;
+			if (val > max)
+				max = val;
+			cover((int)(min-5), (int)(max+5));
+			int cb = (int)(binDivs*(val + Math.random()/1000000 - 0.0000005 - lo + 1.0 / binDivs));
+			for(int j = cb - smoothBins/2; j <= (cb + smoothBins/2); j++)
+				bins[j] += intensity * weights[j - (cb - smoothBins/2)];
+		}
+
+		/* Adds the bins of another accumulator with the same bin width */
+		public void addAll(Accumulator other) {
+			if (other.bins == null)
+				return;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+			cover(other.lo, other.hi);
+			int offset = (other.lo - lo)*binDivs;
+			for (int i = 0; i < other.bins.length; i++)
+				bins[offset + i] += other.bins[i];
+		}
+
+		/* Grows the covered range to include [start, end], at least doubling it so growth stays amortized */
+		private void cover(int start, int end) {
+			if (bins != null && start >= lo && end <= hi)
+				return;
+			int nLo, nHi;
+			if (bins == null) {
+				nLo = start;
+				nHi = end;
+			} else {
+				int width = hi - lo;
+				nLo = (start < lo) ? Math.min(start, lo - width) : lo;
+				nHi = (end > hi) ? Math.max(end, hi + width) : hi;
+			}
+			double [] nBins = new double[(nHi-nLo)*binDivs];
+			if (bins != null)
+				System.arraycopy(bins, 0, nBins, (lo-nLo)*binDivs, bins.length);
+			bins = nBins;
+			lo = nLo;
+			hi = nHi;
+		}
+
+		public boolean isEmpty() {
+			return bins == null;
+		}
+
+		public Histogram build(int expSize) {
+			if (bins == null)
+				return new Histogram(0, 0, binDivs);
+			int start = (int)(min-5);
+			int end = (int)(max+5);
+			Histogram h = new Histogram(start, end, binDivs);
+			h.expSize = expSize;
+			System.arraycopy(bins, (start-lo)*binDivs, h.histo, 0, h.histo.length);
+			return h;
+		}
 	}
 }
@@ -92,8 +92,7 @@ public class MS2Counts {
 					//String f = tempMzbFp;
 					MZBINFile source = new MZBINFile(Integer.parseInt(PTMShepherd.getParam("threads")), tempMzbFp, true);
 				} else {
-					System.out.println("Cannot read .d files without associated .mzBIN");
-					System.exit(1);
+					PTMShepherd.die("Cannot read .d files without associated .mzBIN");
 				}
 			} else if (ext.equals("mzBIN")) {
 				try {
@@ -19,6 +19,7 @@ package edu.umich.andykong.ptmshepherd.peakpicker;
 import java.io.*;
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.umich.andykong.ptmshepherd.PTMShepherd;
 import edu.umich.andykong.ptmshepherd.core.AAMasses;
@@ -38,7 +39,10 @@ public class PeakAnnotator {
 	static final double C13delta = 1.00235;
 	static final double modEqual_tol = 0.001;
 	//static final double mod_tol = 0.01;
-	static final double mod_tol = Double.parseDouble(PTMShepherd.getParam(("annotation_tol")));
+	final double mod_tol = PTMShepherd.getConfig().annotationTol;
+
+	// parsed modification tables by source, kept for later analyses in the same JVM
+	private static final ConcurrentHashMap<String, ModTable> modTables = new ConcurrentHashMap<>();
 	
 	int [] indices;
 	static final int maxDepth = 2;
@@ -271,22 +275,20 @@ public class PeakAnnotator {
 			addMod(vModNames.get(i), vModMasses.get(i));
 		}
 
-		BufferedReader in;
-		if (modSourcePath.equals("") || modSourcePath.toLowerCase().trim().equals("unimod")) {
+		String modSourceKey = modSourcePath.toLowerCase().trim();
+		boolean resource = true;
+		if (modSourcePath.equals("") || modSourceKey.equals("unimod")) {
 			modSource = "unimod_20210623.txt";
-			in = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(modSource)));
-		} else if (modSourcePath.toLowerCase().trim().equals("common")) {
+		} else if (modSourceKey.equals("common")) {
 			modSource = "common_mods_20200813.txt";
-			in = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(modSource)));
-		} else if (modSourcePath.toLowerCase().trim().equals("glyco")) {
+		} else if (modSourceKey.equals("glyco")) {
 			modSource = "glyco_mods_20210127.txt";
-			in = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(modSource)));
 		} else {
 			modSource = modSourcePath.trim();
-			in = new BufferedReader(new FileReader(modSource));
+			resource = false;
 		}
+		ModTable modTable = loadModTable(modSource, resource);
 
-		String cline;
 		//add isotopic peaks to modification list
 		addMod("Isotopic peak error", -1*C13delta);
 		addMod("First isotopic peak",C13delta);
@@ -299,12 +301,8 @@ public class PeakAnnotator {
 			allowed_list.add(i);
 		}
 
-		while((cline = in.readLine())!= null) {
-			String [] sp = cline.split("\\t|%");
-			addMod(sp[0].trim(),Double.parseDouble(sp[1].trim()));
-		}
-
-		in.close();
+		for (int i = 0; i < modTable.names.size(); i++)
+			addMod(modTable.names.get(i), modTable.masses.get(i));
 
 		for(int i = 0; i < AAMasses.monoisotopic_masses.length; i++) {
 			if(AAMasses.monoisotopic_masses[i] > 0) {
@@ -314,6 +312,35 @@ public class PeakAnnotator {
 		}
 	}
 
+	/**
+	 * Returns the parsed modification table of a bundled resource or user file. Files are parsed again when they change.
+	 */
+	private static ModTable loadModTable(String source, boolean resource) throws IOException {
+		String key = resource ? source : source + "\t" + new File(source).lastModified();
+		ModTable cached = modTables.get(key);
+		if (cached != null)
+			return cached;
+		ModTable table = new ModTable();
+		try (BufferedReader in = resource ?
+				new BufferedReader(new InputStreamReader(PeakAnnotator.class.getResourceAsStream(source))) :
+				new BufferedReader(new FileReader(source))) {
+			String cline;
+			while ((cline = in.readLine()) != null) {
+				String [] sp = cline.split("\\t|%");
+				table.names.add(sp[0].trim());
+				table.masses.add(Double.parseDouble(sp[1].trim()));
+			}
+		}
+		modTables.put(key, table);
+		return table;
+	}
+
+	/* Modification names and masses in file order */
+	private static class ModTable {
+		final ArrayList<String> names = new ArrayList<>();
+		final ArrayList<Double> masses = new ArrayList<>();
+	}
+
 	public void loadAnnotatedFile(File fin, double precursorTol, int precursorUnits) throws IOException {
 		/* load annotated file */
 		BufferedReader in = new BufferedReader(new FileReader(fin));
@@ -348,8 +375,8 @@ public class PeakAnnotator {
 		return -1;
 	}
 
-	public String[] getDeltaMassMappings(ArrayList<Float> massdiffs, ArrayList<Float> precursors, double precursorTol, int precursorUnits) {
-		String[] massDiffAnnotations = new String[massdiffs.size()];
+	public String[] getDeltaMassMappings(float [] massdiffs, float [] precursors, double precursorTol, int precursorUnits) {
+		String[] massDiffAnnotations = new String[massdiffs.length];
 
 		/* make temp mass diff instance for sorting */
 		ArrayList<MassDiffAnnotation> mdasUnimod = new ArrayList<>();
@@ -360,8 +387,8 @@ public class PeakAnnotator {
 		/* skip these entries */
 		int zeroBin = this.fastLocator.getIndex(0.0000);
 		/* get mod annotations for each delta mass */
-		for (int i = 0; i < massdiffs.size(); i++) {
-			if (this.fastLocator.getIndex(massdiffs.get(i)) == zeroBin) {
+		for (int i = 0; i < massdiffs.length; i++) {
+			if (this.fastLocator.getIndex(massdiffs[i]) == zeroBin) {
 				massDiffAnnotations[i] = "";
 				continue;
 			}
@@ -373,9 +400,9 @@ public class PeakAnnotator {
 			if (precursorUnits == 0)
 				tol = precursorTol;
 			else if (precursorUnits == 1)
-				tol = precursors.get(i) * precursorTol / 1000000;
-			double lowerBound = massdiffs.get(i) - tol;
-			double upperBound = massdiffs.get(i) + tol;
+				tol = precursors[i] * precursorTol / 1000000;
+			double lowerBound = massdiffs[i] - tol;
+			double upperBound = massdiffs[i] + tol;
 			/* zoom through Unimod annotations */
 			for (int j = 0; j < mdasUnimod.size(); j++) {
 				double cdiff = mdasUnimod.get(j).diff;
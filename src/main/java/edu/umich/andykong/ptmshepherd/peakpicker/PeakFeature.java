@@ -18,18 +18,20 @@ package edu.umich.andykong.ptmshepherd.peakpicker;
 
 import java.util.*;
 
+import edu.umich.andykong.ptmshepherd.utils.IntHashSet;
+
 public class PeakFeature implements Comparable<PeakFeature> {
 	
 	double peakCenter, peakLower, peakUpper, snr, intensity;
 	
-	HashSet<String> peps;
+	IntHashSet peps; // StringDictionary.PEPTIDES ids
 	int psms, order;
 
 	public PeakFeature(double peakCenter, double snr, int order) {
 		this.peakCenter = peakCenter;
 		this.order = order;
 		this.snr = snr;
-		this.peps = new HashSet<>();
+		this.peps = new IntHashSet();
 		this.psms = 0;
 		this.intensity = 0;
 	}
@@ -52,7 +54,7 @@ public class PeakFeature implements Comparable<PeakFeature> {
 	}
 	
 	public void reset() {
-		peps = new HashSet<>();
+		peps = new IntHashSet();
 		psms = 0;
 	}
 	
@@ -20,11 +20,11 @@ import java.io.*;
 import java.util.*;
 
 import edu.umich.andykong.ptmshepherd.PSMFile;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import edu.umich.andykong.ptmshepherd.PSMTable;
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.utils.StringDictionary;
 
 public class PeakSummary {
-	private static final Logger log = LoggerFactory.getLogger(PeakSummary.class);
 
 	ArrayList<PeakFeature> features;
 	PeakFeature topFeature;
@@ -57,8 +57,7 @@ public class PeakSummary {
 		if (!features.isEmpty()) {
 			topFeature = features.get(0);
 		} else {
-			log.warn("Empty peak features encountered, error in peakpicking. Exiting program.");
-			System.exit(1);
+			PTMShepherd.die("Empty peak features encountered, error in peakpicking.");
 		}
 		
 		Collections.sort(features);
@@ -215,7 +214,7 @@ public class PeakSummary {
 		for(int i = 0; i < features.size(); i++) {
 			int countZeroPeps = 0;
 			if (topFeature != null) {
-				for (String cp : features.get(i).peps)
+				for (int cp : features.get(i).peps.toArray())
 					if (topFeature.peps.contains(cp))
 						countZeroPeps++;
 			}
@@ -230,38 +229,36 @@ public class PeakSummary {
 	}
 	
 	public void appendPSMs(PSMFile pf) {
-		int seqcol = pf.getColumn("Peptide");
-		int intcol = pf.getColumn("Intensity");
-		int mdcol = pf.dMassCol;
-//		long stime = System.currentTimeMillis();
-		for(int i = 0; i < pf.data.size(); i++) {
-			String [] sp = pf.data.get(i).split("\t");
-			double md = Double.parseDouble(sp[mdcol]);
+		PSMTable table = pf.getTable();
+		// the column is dictionary encoded already, so each distinct peptide is looked up once
+		int [] pepIds = new int[table.peptide.cardinality()];
+		for (int c = 0; c < pepIds.length; c++)
+			pepIds[c] = StringDictionary.PEPTIDES.id(table.peptide.getValue(c));
+		for(int i = 0; i < table.size; i++)
+			appendPSM(table.deltaMass[i], pepIds[table.peptide.getCode(i)], (table.intensity == null) ? 0 : table.intensity[i]);
+	}
 
-//			for(int j = 0; j < features.size(); j++) {
-//				if(features.get(j).peakLower <= md && features.get(j).peakUpper >= md) {
-//					features.get(j).peps.add(sp[seqcol]);
-//					features.get(j).psms++;
-//					break;
-//				}
-//			}
-			if (topFeature != null) {
-				if (md >= topFeature.peakLower && md <= topFeature.peakUpper) {
-					topFeature.peps.add(sp[seqcol]);
-					topFeature.psms++;
-				} else {
-					PeakFeature fast = PeakFeature.getMatchedFeature(features, md);
-					if (fast != null) {
-						fast.peps.add(sp[seqcol]);
-						fast.psms++;
-						if (this.useIntensity == 1) {
-							fast.intensity += Double.parseDouble(sp[intcol]);
-						}
-					}
+	public void appendPSM(double md, String pep, double intensity) {
+		appendPSM(md, StringDictionary.PEPTIDES.id(pep), intensity);
+	}
+
+	/* Assigns one PSM to the peak its mass shift falls in, if any */
+	public void appendPSM(double md, int pep, double intensity) {
+		if (topFeature == null)
+			return;
+		if (md >= topFeature.peakLower && md <= topFeature.peakUpper) {
+			topFeature.peps.add(pep);
+			topFeature.psms++;
+		} else {
+			PeakFeature fast = PeakFeature.getMatchedFeature(features, md);
+			if (fast != null) {
+				fast.peps.add(pep);
+				fast.psms++;
+				if (this.useIntensity == 1) {
+					fast.intensity += intensity;
 				}
 			}
 		}
-//		System.out.println(pf + " " + (System.currentTimeMillis()-stime));
 	}
 
 }
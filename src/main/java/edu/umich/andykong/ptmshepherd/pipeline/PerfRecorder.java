@@ -0,0 +1,227 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.pipeline;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records wall time, CPU time, allocated bytes, bytes read/written and peak heap of pipeline stages and of the
+ * per-dataset/per-run units inside them, and writes them as JSON.
+ *
+ * CPU, allocation and I/O are process-wide deltas, so they include the inner thread pools a unit uses, but units that
+ * run concurrently are each charged for the others' work. I/O counters are only available on Linux (-1 elsewhere).
+ * Heap usage is sampled every {@link #SAMPLE_MS} ms while a unit runs.
+ */
+public class PerfRecorder {
+
+	public static final long SAMPLE_MS = 50;
+	private static final File procIO = new File("/proc/self/io");
+
+	public static class Entry {
+		public final String kind;
+		public final String name;
+		final String thread;
+		long startMs;
+		long wallMs;
+		long cpuMs;
+		long allocatedBytes;
+		long readBytes;
+		long writtenBytes;
+		final AtomicLong peakHeapBytes = new AtomicLong();
+
+		Entry(String kind, String name) {
+			this.kind = kind;
+			this.name = name;
+			this.thread = Thread.currentThread().getName();
+		}
+
+		public long getWallMs() {
+			return wallMs;
+		}
+	}
+
+	private final long startNanos;
+	private final CopyOnWriteArrayList<Entry> entries;
+	private final CopyOnWriteArrayList<Entry> active;
+	private final Thread sampler;
+
+	public PerfRecorder() {
+		this.startNanos = System.nanoTime();
+		this.entries = new CopyOnWriteArrayList<>();
+		this.active = new CopyOnWriteArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			pool.resetPeakUsage();
+		this.sampler = new Thread(this::sample, "perf-sampler");
+		this.sampler.setDaemon(true);
+		this.sampler.start();
+	}
+
+	/**
+	 * Runs a task and records its cost
+	 * @param kind "stage" or "unit"
+	 * @param name stage name, or stage:dataset / stage:run for units
+	 */
+	public void record(String kind, String name, TaskScheduler.Task task) throws Exception {
+		Entry e = new Entry(kind, name);
+		long t0 = System.nanoTime();
+		long cpu0 = processCpuNanos();
+		long alloc0 = allocatedBytes();
+		long [] io0 = ioBytes();
+		e.startMs = (t0 - startNanos) / 1000000;
+		e.peakHeapBytes.set(usedHeap());
+		active.add(e);
+		try {
+			task.run();
+		} finally {
+			active.remove(e);
+			long [] io1 = ioBytes();
+			e.wallMs = (System.nanoTime() - t0) / 1000000;
+			e.cpuMs = (cpu0 < 0) ? -1 : (processCpuNanos() - cpu0) / 1000000;
+			e.allocatedBytes = (alloc0 < 0) ? -1 : Math.max(0, allocatedBytes() - alloc0); // threads that ended take their counts along
+			e.readBytes = (io0 == null || io1 == null) ? -1 : io1[0] - io0[0];
+			e.writtenBytes = (io0 == null || io1 == null) ? -1 : io1[1] - io0[1];
+			e.peakHeapBytes.accumulateAndGet(usedHeap(), Math::max);
+			entries.add(e);
+		}
+	}
+
+	/* Wraps a task so that running it records it */
+	public TaskScheduler.Task wrap(String kind, String name, TaskScheduler.Task task) {
+		return () -> record(kind, name, task);
+	}
+
+	public ArrayList<Entry> getEntries() {
+		return new ArrayList<>(entries);
+	}
+
+	/* Stops the heap sampler */
+	public void close() {
+		sampler.interrupt();
+	}
+
+	/* Writes every finished entry in completion order, plus run totals, and stops the heap sampler */
+	public void write(File f) throws IOException {
+		close();
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+				peakHeap += pool.getPeakUsage().getUsed();
+		}
+		try (PrintWriter out = new PrintWriter(new FileWriter(f))) {
+			out.println("{");
+			out.printf("  \"wallMs\": %d,\n", (System.nanoTime() - startNanos) / 1000000);
+			out.printf("  \"cpuMs\": %d,\n", Math.max(-1, processCpuNanos() / 1000000));
+			out.printf("  \"peakHeapBytes\": %d,\n", peakHeap);
+			out.printf("  \"maxHeapBytes\": %d,\n", Runtime.getRuntime().maxMemory());
+			out.printf("  \"processors\": %d,\n", Runtime.getRuntime().availableProcessors());
+			out.println("  \"entries\": [");
+			ArrayList<Entry> es = getEntries();
+			for (int i = 0; i < es.size(); i++) {
+				Entry e = es.get(i);
+				out.printf("    {\"kind\": \"%s\", \"name\": \"%s\", \"thread\": \"%s\", \"startMs\": %d, \"wallMs\": %d, " +
+								"\"cpuMs\": %d, \"allocatedBytes\": %d, \"readBytes\": %d, \"writtenBytes\": %d, \"peakHeapBytes\": %d}%s\n",
+						e.kind, escape(e.name), escape(e.thread), e.startMs, e.wallMs, e.cpuMs, e.allocatedBytes,
+						e.readBytes, e.writtenBytes, e.peakHeapBytes.get(), (i < es.size() - 1) ? "," : "");
+			}
+			out.println("  ]");
+			out.println("}");
+		}
+	}
+
+	private void sample() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(SAMPLE_MS);
+				if (active.isEmpty())
+					continue;
+				long used = usedHeap();
+				for (Entry e : active)
+					e.peakHeapBytes.accumulateAndGet(used, Math::max);
+			}
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	private static String escape(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static long usedHeap() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long processCpuNanos() {
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
+	}
+
+	/* Bytes allocated so far by all live threads */
+	private static long allocatedBytes() {
+		ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+		if (!(tmx instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean stmx = (com.sun.management.ThreadMXBean) tmx;
+		if (!stmx.isThreadAllocatedMemorySupported() || !stmx.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long total = 0;
+		for (long b : stmx.getThreadAllocatedBytes(tmx.getAllThreadIds()))
+			total += Math.max(0, b);
+		return total;
+	}
+
+	/* {rchar, wchar} of this process, null if not available */
+	private static long [] ioBytes() {
+		if (!procIO.canRead())
+			return null;
+		long [] res = new long[2];
+		try (BufferedReader in = new BufferedReader(new FileReader(procIO))) {
+			String cline;
+			while ((cline = in.readLine()) != null) {
+				if (cline.startsWith("rchar:"))
+					res[0] = Long.parseLong(cline.substring(6).trim());
+				else if (cline.startsWith("wchar:"))
+					res[1] = Long.parseLong(cline.substring(6).trim());
+			}
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+		return res;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.pipeline;
+
+import java.util.ArrayList;
+
+import edu.umich.andykong.ptmshepherd.PSMFile;
+import edu.umich.andykong.ptmshepherd.core.MXMLReader;
+
+/**
+ * An analysis that processes the PSMs of one run at a time against that run's spectra.
+ * Spectra handed to a visitor are shared with the other visitors of the same {@link SpectralPipeline},
+ * so a visitor must not modify them in place (condition a {@link edu.umich.andykong.ptmshepherd.core.Spectrum#copy()} instead).
+ */
+public interface RunVisitor {
+
+	/* Called once per psm.tsv before any of its runs are visited */
+	void startPSMFile(PSMFile pf) throws Exception;
+
+	/**
+	 * Processes the PSMs of one run
+	 * @param pf psm.tsv the rows come from
+	 * @param run run (spectral file) name
+	 * @param lines row indices in pf belonging to this run
+	 * @param mr spectra of this run, holding at least every scan referenced by lines
+	 */
+	void visitRun(PSMFile pf, String run, ArrayList<Integer> lines, MXMLReader mr) throws Exception;
+
+	/* Called once per psm.tsv after all of its runs have been visited */
+	void finishPSMFile(PSMFile pf) throws Exception;
+
+	/* Visitors that already have results for a run can skip it; the run is not read if nobody needs it */
+	default boolean needsRun(String run) {
+		return true;
+	}
+}
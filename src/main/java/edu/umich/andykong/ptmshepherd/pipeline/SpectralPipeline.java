@@ -0,0 +1,83 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.pipeline;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import edu.umich.andykong.ptmshepherd.PSMFile;
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.core.MXMLReader;
+import edu.umich.andykong.ptmshepherd.core.SpectrumCache;
+
+/**
+ * Reads the spectra of each run once and pushes that run's PSMs through every registered {@link RunVisitor},
+ * so spectral I/O scales with the number of runs rather than runs x enabled analyses.
+ */
+public class SpectralPipeline {
+
+	private final ArrayList<RunVisitor> visitors;
+
+	public SpectralPipeline() {
+		this.visitors = new ArrayList<>();
+	}
+
+	public SpectralPipeline(RunVisitor visitor) {
+		this();
+		visitors.add(visitor);
+	}
+
+	public void addVisitor(RunVisitor visitor) {
+		visitors.add(visitor);
+	}
+
+	public boolean isEmpty() {
+		return visitors.isEmpty();
+	}
+
+	public void processPSMFile(PSMFile pf, HashMap<String, File> mzMappings) throws Exception {
+		if (visitors.isEmpty())
+			return;
+		for (RunVisitor v : visitors)
+			v.startPSMFile(pf);
+
+		HashMap<String, ArrayList<Integer>> mappings = pf.getTable().getRunMappings();
+		int threads = Integer.parseInt(PTMShepherd.getParam("threads"));
+		for (String cf : mappings.keySet()) { //cf = fraction
+			ArrayList<RunVisitor> cVisitors = new ArrayList<>();
+			for (RunVisitor v : visitors) {
+				if (v.needsRun(cf))
+					cVisitors.add(v);
+			}
+			if (cVisitors.isEmpty())
+				continue;
+
+			ArrayList<Integer> clines = mappings.get(cf);
+			long t1 = System.currentTimeMillis();
+			MXMLReader mr = SpectrumCache.getInstance().getReader(mzMappings.get(cf), threads, pf.getTable().getScanNums(clines));
+			long t2 = System.currentTimeMillis();
+			for (RunVisitor v : cVisitors)
+				v.visitRun(pf, cf, clines, mr);
+			long t3 = System.currentTimeMillis();
+			PTMShepherd.print(String.format("\t%s - %d lines (%d ms reading, %d ms processing)", cf, clines.size(), t2-t1, t3-t2));
+		}
+
+		for (RunVisitor v : visitors)
+			v.finishPSMFile(pf);
+	}
+}
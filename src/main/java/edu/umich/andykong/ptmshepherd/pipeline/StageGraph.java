@@ -0,0 +1,139 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Dependency graph of pipeline stages. A stage starts once all of its dependencies have finished, and up to
+ * maxParallel ready stages run at once, so wall-clock time follows the longest branch rather than the sum of all stages.
+ * With maxParallel = 1 stages run on the calling thread in the order they were added (dependencies permitting).
+ */
+public class StageGraph {
+
+	private static class Stage {
+		final String name;
+		final List<String> deps;
+		final TaskScheduler.Task task;
+
+		Stage(String name, List<String> deps, TaskScheduler.Task task) {
+			this.name = name;
+			this.deps = deps;
+			this.task = task;
+		}
+	}
+
+	private final LinkedHashMap<String, Stage> stages;
+	private PerfRecorder recorder;
+
+	public StageGraph() {
+		this.stages = new LinkedHashMap<>();
+	}
+
+	/* Records the cost of every stage, null to disable */
+	public void setRecorder(PerfRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	private void runStage(Stage s) throws Exception {
+		if (recorder == null)
+			s.task.run();
+		else
+			recorder.record("stage", s.name, s.task);
+	}
+
+	/**
+	 * @param name unique stage name
+	 * @param task work done by the stage
+	 * @param deps names of stages that must finish first; they must already have been added
+	 */
+	public void addStage(String name, TaskScheduler.Task task, String... deps) {
+		if (stages.containsKey(name))
+			throw new IllegalArgumentException("Duplicate stage " + name);
+		for (String dep : deps) {
+			if (!stages.containsKey(dep))
+				throw new IllegalArgumentException("Stage " + name + " depends on unknown stage " + dep);
+		}
+		stages.put(name, new Stage(name, Arrays.asList(deps), task));
+	}
+
+	/* Dependencies must be added before their dependents, so the graph is acyclic by construction */
+	private boolean isReady(Stage s, HashSet<String> done) {
+		return done.containsAll(s.deps);
+	}
+
+	/**
+	 * Runs every stage. If a stage fails no further stages are started, running stages are waited for,
+	 * and the first failure is rethrown.
+	 * @param maxParallel maximum number of stages running at once
+	 */
+	public void run(int maxParallel) throws Exception {
+		if (maxParallel <= 1) {
+			for (Stage s : stages.values())
+				runStage(s);
+			return;
+		}
+
+		HashSet<String> done = new HashSet<>();
+		ArrayList<Stage> pending = new ArrayList<>(stages.values());
+		ExecutorService pool = Executors.newFixedThreadPool(maxParallel);
+		ExecutorCompletionService<String> ecs = new ExecutorCompletionService<>(pool);
+		int running = 0;
+		Exception failure = null;
+		try {
+			while (!pending.isEmpty() || running > 0) {
+				if (failure == null) {
+					for (int i = 0; i < pending.size() && running < maxParallel; ) {
+						Stage s = pending.get(i);
+						if (isReady(s, done)) {
+							pending.remove(i);
+							ecs.submit(() -> {
+								runStage(s);
+								return s.name;
+							});
+							running++;
+						} else
+							i++;
+					}
+				}
+				if (running == 0) // only reachable after a failure
+					break;
+				Future<String> f = ecs.take();
+				running--;
+				try {
+					done.add(f.get());
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ *    Copyright 2022 University of Michigan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package edu.umich.andykong.ptmshepherd.pipeline;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+
+/**
+ * Runs independent units of work (datasets or runs) concurrently. At most maxParallel tasks run at once, and a
+ * task is only admitted while the estimated memory of all running tasks fits the budget. A task larger than the
+ * budget still runs, but only on its own. Tasks are admitted in submission order.
+ * Tasks get their own threads, so they may freely use {@link PTMShepherd#executorService} for inner parallelism.
+ */
+public class TaskScheduler {
+
+	public interface Task {
+		void run() throws Exception;
+	}
+
+	private final int maxParallel;
+	private final long memoryBudget;
+	private final ExecutorService pool;
+	private final ArrayList<Future<?>> futures;
+	private int running;
+	private long inFlightBytes;
+	private PerfRecorder recorder;
+
+	/**
+	 * @param maxParallel maximum number of tasks running at once
+	 * @param memoryBudget maximum summed memory estimate of running tasks, in bytes
+	 */
+	public TaskScheduler(int maxParallel, long memoryBudget) {
+		this.maxParallel = Math.max(1, maxParallel);
+		this.memoryBudget = memoryBudget;
+		this.pool = (this.maxParallel == 1) ? null : Executors.newFixedThreadPool(this.maxParallel);
+		this.futures = new ArrayList<>();
+	}
+
+	/* Builds a scheduler from the parallel_tasks and parallel_memoryMB params */
+	public static TaskScheduler fromParams() {
+		int maxParallel = Integer.parseInt(PTMShepherd.getParam("parallel_tasks"));
+		if (maxParallel <= 0)
+			maxParallel = Integer.parseInt(PTMShepherd.getParam("threads"));
+		long memoryMB = Long.parseLong(PTMShepherd.getParam("parallel_memoryMB"));
+		long memoryBudget = (memoryMB > 0) ? memoryMB << 20 : Runtime.getRuntime().maxMemory() / 2;
+		TaskScheduler scheduler = new TaskScheduler(maxParallel, memoryBudget);
+		scheduler.recorder = PTMShepherd.getPerfRecorder();
+		return scheduler;
+	}
+
+	/**
+	 * Rough memory needed to process these spectral files, used as a task's admission weight
+	 */
+	public static long estimateBytes(Collection<File> spectralFiles) {
+		long bytes = 0;
+		for (File f : spectralFiles) {
+			if (f != null)
+				bytes += f.length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Queues a task, blocking until it can be admitted. With a limit of one task it runs on the calling thread.
+	 * @param memoryBytes estimated memory the task needs while it runs
+	 */
+	public void submit(long memoryBytes, Task task) throws Exception {
+		submit(null, memoryBytes, task);
+	}
+
+	/**
+	 * Same as {@link #submit(long, Task)}, recording the task's cost under this unit name if a recorder is set
+	 */
+	public void submit(String unit, long memoryBytes, Task unitTask) throws Exception {
+		Task task = (unit != null && recorder != null) ? recorder.wrap("unit", unit, unitTask) : unitTask;
+		if (pool == null) {
+			task.run();
+			return;
+		}
+		acquire(memoryBytes);
+		futures.add(pool.submit(() -> {
+			try {
+				task.run();
+			} finally {
+				release(memoryBytes);
+			}
+			return null;
+		}));
+	}
+
+	/**
+	 * Waits for every submitted task and shuts the scheduler down. The first task failure is rethrown.
+	 */
+	public void awaitAll() throws Exception {
+		if (pool == null)
+			return;
+		try {
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception)
+						throw (Exception) e.getCause();
+					throw e;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private synchronized void acquire(long memoryBytes) throws InterruptedException {
+		while (running >= maxParallel || (running > 0 && inFlightBytes + memoryBytes > memoryBudget))
+			wait();
+		running++;
+		inFlightBytes += memoryBytes;
+	}
+
+	private synchronized void release(long memoryBytes) {
+		running--;
+		inFlightBytes -= memoryBytes;
+		notifyAll();
+	}
+}
@@ -18,6 +18,7 @@ package edu.umich.andykong.ptmshepherd.specsimilarity;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 
@@ -25,18 +26,26 @@ import edu.umich.andykong.ptmshepherd.PSMFile;
 import edu.umich.andykong.ptmshepherd.PTMShepherd;
 import edu.umich.andykong.ptmshepherd.core.MXMLReader;
 import edu.umich.andykong.ptmshepherd.core.Spectrum;
+import edu.umich.andykong.ptmshepherd.core.SpectrumCache;
+import edu.umich.andykong.ptmshepherd.pipeline.RunVisitor;
+import edu.umich.andykong.ptmshepherd.pipeline.SpectralPipeline;
 import static edu.umich.andykong.ptmshepherd.PTMShepherd.reNormName;
 
+import edu.umich.andykong.ptmshepherd.utils.FixedFormat;
+import edu.umich.andykong.ptmshepherd.utils.IntermediateTable;
+import edu.umich.andykong.ptmshepherd.utils.StringDictionary;
+import edu.umich.andykong.ptmshepherd.utils.TableRow;
 import edu.umich.andykong.ptmshepherd.utils.Variance;
 
 import java.util.List;
 
-public class SimRTAnalysis {
+public class SimRTAnalysis implements RunVisitor {
 
 	String dsName;
 	File simRTFile;
 	MXMLReader mr;
 	HashMap<String, MXMLReader> multiMr;
+	IntermediateTable.Writer out;
 	double ppmTol, condRatio, peakTol;
 	int condPeaks, precursorUnits;
 	int specCol, pepCol, modpepCol, chargeCol, deltaCol, rtCol, intCol;
@@ -44,6 +53,7 @@ public class SimRTAnalysis {
 	boolean calcIntensity;
 	
 	static final int MAX_ZERO_COMPARE = 20;
+	static final double NO_SPECTRUM = Double.NEGATIVE_INFINITY; // similarity of a line whose spectrum is missing
 	
 	public SimRTAnalysis(String dsName) {
 		this.dsName = dsName;
@@ -52,31 +62,51 @@ public class SimRTAnalysis {
 
 	
 	public boolean isComplete() throws Exception {
-		if(simRTFile.exists()) {
-			RandomAccessFile raf = new RandomAccessFile(simRTFile, "r");
-			raf.seek(Math.max(0, simRTFile.length() - 20));
-			String cline;
-			while((cline = raf.readLine())!=null)
-				if(cline.equals("COMPLETE")) {
-					raf.close();
-					return true;
-				}
-			raf.close();
-			simRTFile.delete();
-		}
+		if(IntermediateTable.isComplete(simRTFile))
+			return true;
+		simRTFile.delete();
 		return false;
 	}
 	
 	public void complete() throws Exception {
-		PrintWriter out = new PrintWriter(new FileWriter(simRTFile,true));
-		out.println("COMPLETE");
-		out.close();
+		IntermediateTable.complete(simRTFile);
 	}
 	
 	public void simrtPSMs(PSMFile pf, HashMap<String,File> mzMappings, boolean interRunComparisons) throws Exception {
-		//assemble PSMs into per file groupings
-		HashMap<String,ArrayList<Integer>> mappings = new HashMap<>();
-		PrintWriter out = new PrintWriter(new FileWriter(simRTFile,true));
+		if (!interRunComparisons) {
+			new SpectralPipeline(this).processPSMFile(pf, mzMappings);
+			return;
+		}
+		if (Boolean.parseBoolean(PTMShepherd.getParam("outofcore_mode"))) {
+			simrtPSMsOutOfCore(pf, mzMappings);
+			return;
+		}
+
+		//inter run comparisons need every run in memory at once, all lines are compared against all runs
+		startPSMFile(pf);
+		multiMr = new HashMap<>();
+		long t1 = System.currentTimeMillis();
+		HashMap<String, ArrayList<Integer>> mappings = pf.getTable().getRunMappings();
+		for (String cf : mappings.keySet()) {
+			mr = SpectrumCache.getInstance().getReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")),
+					pf.getTable().getScanNums(mappings.get(cf)));
+			multiMr.put(cf, mr);
+		}
+		long t2 = System.currentTimeMillis();
+		PTMShepherd.print(String.format("\tSpectral data read into memory (%d ms reading)", t2-t1));
+
+		ArrayList<Integer> clines = new ArrayList<>(pf.data.size());
+		for (int i = 0; i < pf.data.size(); i++)
+			clines.add(i);
+		long t3 = System.currentTimeMillis();
+		processLines(pf, clines);
+		long t4 = System.currentTimeMillis();
+		PTMShepherd.print(String.format("\tProcessed - %d lines (%d ms processing)", clines.size(), t4-t3));
+		finishPSMFile(pf);
+	}
+
+	public void startPSMFile(PSMFile pf) throws Exception {
+		out = IntermediateTable.openWriter(simRTFile, true, PTMShepherd.getConfig().intermediateFormat);
 
 		specCol = pf.getColumn("Spectrum");
 		pepCol = pf.getColumn("Peptide");
@@ -91,93 +121,209 @@ public class SimRTAnalysis {
 
 		//Write header
 		if (calcIntensity) {
-			out.printf("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\n", "Spectrum", "Peptide", "Mod_Peptide", "Shift", "Is_Zero_Pep",
-					"rt_shift", "nZeroSpecs_RT_shift", "Avg_Sim", "Avg_ZeroSim", "nZeroSpecs_Sim", "Avg_IntChange", "nZeroSpecs_Int");
+			out.writeHeader(String.join("\t", "Spectrum", "Peptide", "Mod_Peptide", "Shift", "Is_Zero_Pep",
+					"rt_shift", "nZeroSpecs_RT_shift", "Avg_Sim", "Avg_ZeroSim", "nZeroSpecs_Sim", "Avg_IntChange", "nZeroSpecs_Int"));
 		} else {
-			out.printf("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\n", "Spectrum", "Peptide", "Mod_Peptide", "Shift", "Is_Zero_Pep",
-					"rt_shift", "nZeroSpecs_RT_shift", "Avg_Sim", "Avg_ZeroSim", "nZeroSpecs_Sim");
+			out.writeHeader(String.join("\t", "Spectrum", "Peptide", "Mod_Peptide", "Shift", "Is_Zero_Pep",
+					"rt_shift", "nZeroSpecs_RT_shift", "Avg_Sim", "Avg_ZeroSim", "nZeroSpecs_Sim"));
 		}
 		
 		ppmTol = Double.parseDouble(PTMShepherd.getParam("spectra_ppmtol"));
 		condPeaks = Integer.parseInt(PTMShepherd.getParam("spectra_condPeaks"));
 		condRatio = Double.parseDouble(PTMShepherd.getParam("spectra_condRatio"));
 		peakTol = Double.parseDouble(PTMShepherd.getParam("precursor_tol")); //determines zero bin
-		double cPeakTol = peakTol;
 		precursorUnits = Integer.parseInt(PTMShepherd.getParam("precursor_mass_units"));
+	}
 
-		if (!interRunComparisons) {
-			for (int i = 0; i < pf.data.size(); i++) {
-				String[] sp = pf.data.get(i).split("\t");
-				String bn = sp[specCol].substring(0, sp[specCol].indexOf(".")); //fraction
-				if (!mappings.containsKey(bn))
-					mappings.put(bn, new ArrayList<>());
-				mappings.get(bn).add(i);
+	public void visitRun(PSMFile pf, String cf, ArrayList<Integer> clines, MXMLReader mr) throws Exception {
+		multiMr = new HashMap<>();
+		multiMr.put(cf, mr);
+		processLines(pf, clines);
+	}
+
+	public void finishPSMFile(PSMFile pf) throws Exception {
+		out.close();
+		multiMr = null;
+		mr = null;
+	}
+
+	/* Calculates similarity/RT deltas of the given lines against zero bin PSMs among those same lines */
+	private void processLines(PSMFile pf, ArrayList<Integer> clines) throws Exception {
+		ZeroBins zb = new ZeroBins(pf, clines);
+		HashMap<Long,ArrayList<Spectrum>> zTolSpecs = new HashMap<>();
+		for(long pepZ : zb.zTolLines.keySet()) {
+			ArrayList<Spectrum> refs = new ArrayList<>();
+			for(int line : zb.references(pepZ))
+				refs.add(spectrumOf(pf.data.get(line).split("\t")));
+			zTolSpecs.put(pepZ, refs);
+		}
+		writeRows(pf, clines, zb, (line, crow, zKey) -> {
+			Spectrum cspec = spectrumOf(crow);
+			return (cspec == null) ? NO_SPECTRUM : cspec.averageSimilarity(zTolSpecs.get(zKey), ppmTol); //all v all comparison
+		});
+	}
+
+	private Spectrum spectrumOf(String [] crow) {
+		String targetFrac = crow[specCol].substring(0, crow[specCol].indexOf("."));
+		return multiMr.get(targetFrac).getSpectrum(crow[specCol]);
+	}
+
+	/* Inter-run similarity/RT in bounded memory. The zero bin reference spectra are read one run at a time and
+	 * spilled to disk, then loaded back in partitions of peptide and charge keys that fit outofcore_memoryMB. For each
+	 * partition the runs are read again one at a time, only the scans of that partition's lines. */
+	private void simrtPSMsOutOfCore(PSMFile pf, HashMap<String,File> mzMappings) throws Exception {
+		startPSMFile(pf);
+		int threads = Integer.parseInt(PTMShepherd.getParam("threads"));
+		long memoryMB = Long.parseLong(PTMShepherd.getParam("outofcore_memoryMB"));
+		long budget = (memoryMB > 0) ? memoryMB << 20 : Runtime.getRuntime().maxMemory() / 4;
+
+		ArrayList<Integer> clines = new ArrayList<>(pf.data.size());
+		for (int i = 0; i < pf.data.size(); i++)
+			clines.add(i);
+		ZeroBins zb = new ZeroBins(pf, clines);
+		HashMap<String, ArrayList<Integer>> mappings = pf.getTable().getRunMappings();
+
+		// modpep.charge key of every line that has zero bin references, -1 otherwise
+		long [] lineKeys = new long[pf.data.size()];
+		Arrays.fill(lineKeys, -1);
+		HashMap<Integer,Integer> refSlots = new HashMap<>(); // reference line -> position in its key's reference list
+		for (long zKey : zb.zTolLines.keySet()) {
+			for (int line : zb.zTolLines.get(zKey))
+				lineKeys[line] = zKey;
+			List<Integer> refs = zb.references(zKey);
+			for (int i = 0; i < refs.size(); i++)
+				refSlots.put(refs.get(i), i);
+		}
+		for (int line : clines) {
+			if (lineKeys[line] != -1)
+				continue;
+			String [] crow = pf.data.get(line).split("\t");
+			long zKey = pepZKey(pepKey(crow), crow[chargeCol]);
+			if (zb.zTolLines.containsKey(zKey))
+				lineKeys[line] = zKey;
+		}
+
+		File spill = new File(PTMShepherd.normFName(dsName + ".rawsimrt.spill"));
+		try {
+			// spill the reference spectra, missing ones stay null in the reference lists
+			HashMap<Long,Long> keyBytes = new HashMap<>();
+			int nSpilled = 0;
+			try (DataOutputStream so = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill)))) {
+				for (String cf : mappings.keySet()) {
+					ArrayList<Integer> refLines = new ArrayList<>();
+					for (int line : mappings.get(cf))
+						if (refSlots.containsKey(line))
+							refLines.add(line);
+					if (refLines.isEmpty())
+						continue;
+					MXMLReader runMr = SpectrumCache.getInstance().getReader(mzMappings.get(cf), threads, pf.getTable().getScanNums(refLines));
+					for (int line : refLines) {
+						Spectrum spec = runMr.getSpectrum(pf.data.get(line).split("\t")[specCol]);
+						if (spec == null)
+							continue;
+						so.writeLong(lineKeys[line]);
+						so.writeInt(refSlots.get(line));
+						so.writeInt(spec.peakMZ.length);
+						for (int i = 0; i < spec.peakMZ.length; i++) {
+							so.writeFloat(spec.peakMZ[i]);
+							so.writeFloat(spec.peakInt[i]);
+						}
+						keyBytes.merge(lineKeys[line], spec.estimateBytes(), Long::sum);
+						nSpilled++;
+					}
+				}
 			}
-		} else {
-			for (int i = 0; i < pf.data.size(); i++) {
-				String[] sp = pf.data.get(i).split("\t");
-				String bn = sp[specCol].substring(0, sp[specCol].indexOf(".")); //fraction
-				if (!mappings.containsKey(bn))
-					mappings.put(bn, new ArrayList<>());
+
+			// pack keys into partitions whose reference spectra fit the budget
+			HashMap<Long,Integer> keyParts = new HashMap<>();
+			int nParts = 0;
+			long partBytes = 0;
+			for (long zKey : zb.zTolLines.keySet()) {
+				long bytes = keyBytes.getOrDefault(zKey, 0L);
+				if (nParts == 0 || (partBytes > 0 && partBytes + bytes > budget)) {
+					nParts++;
+					partBytes = 0;
+				}
+				keyParts.put(zKey, nParts - 1);
+				partBytes += bytes;
 			}
-			for (int i = 0; i < pf.data.size(); i++) {
-				for (String fraction : mappings.keySet())
-					mappings.get(fraction).add(i);
+			PTMShepherd.print(String.format("\tSpilled %d zero bin spectra, comparing in %d partitions", nSpilled, nParts));
+
+			double [] sims = new double[pf.data.size()];
+			Arrays.fill(sims, NO_SPECTRUM);
+			for (int part = 0; part < nParts; part++) {
+				HashMap<Long,ArrayList<Spectrum>> zTolSpecs = new HashMap<>();
+				for (long zKey : zb.zTolLines.keySet())
+					if (keyParts.get(zKey) == part)
+						zTolSpecs.put(zKey, new ArrayList<>(Collections.nCopies(zb.references(zKey).size(), (Spectrum) null)));
+				try (DataInputStream si = new DataInputStream(new BufferedInputStream(new FileInputStream(spill)))) {
+					for (int n = 0; n < nSpilled; n++) {
+						long zKey = si.readLong();
+						int slot = si.readInt();
+						float [] mz = new float[si.readInt()];
+						float [] in = new float[mz.length];
+						for (int i = 0; i < mz.length; i++) {
+							mz[i] = si.readFloat();
+							in[i] = si.readFloat();
+						}
+						if (zTolSpecs.containsKey(zKey))
+							zTolSpecs.get(zKey).set(slot, new Spectrum("", 0, 0, 2, 0, 0, mz, in));
+					}
+				}
+
+				for (String cf : mappings.keySet()) {
+					ArrayList<Integer> partLines = new ArrayList<>();
+					for (int line : mappings.get(cf))
+						if (lineKeys[line] != -1 && zTolSpecs.containsKey(lineKeys[line]))
+							partLines.add(line);
+					if (partLines.isEmpty())
+						continue;
+					MXMLReader runMr = SpectrumCache.getInstance().getReader(mzMappings.get(cf), threads, pf.getTable().getScanNums(partLines));
+					for (int line : partLines) {
+						Spectrum cspec = runMr.getSpectrum(pf.data.get(line).split("\t")[specCol]);
+						if (cspec != null)
+							sims[line] = cspec.averageSimilarity(zTolSpecs.get(lineKeys[line]), ppmTol);
+					}
+				}
 			}
+			writeRows(pf, clines, zb, (line, crow, zKey) -> sims[line]);
+		} finally {
+			spill.delete();
 		}
+		finishPSMFile(pf);
+	}
 
-		//read all files into memory
-		multiMr = new HashMap<>();
-		long t1 = System.currentTimeMillis();
-		for (String cf : mappings.keySet()) {
-			mr = new MXMLReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")));
-			mr.readFully();
-			multiMr.put(cf, mr);
-		}
-		long t2 = System.currentTimeMillis();
-		PTMShepherd.print(String.format("\tSpectral data read into memory (%d ms reading)", t2-t1));
+	/* Similarity of a line's spectrum to the zero bin spectra of its modpep.charge key, NO_SPECTRUM if it is missing */
+	private interface LineSimilarity {
+		double get(int line, String [] crow, long zKey) throws Exception;
+	}
 
-		//initialize these outside of run interactions for inter run comparisons
-		HashMap<String,ArrayList<Integer>> zTolLines = new HashMap<>();
-		HashMap<String,ArrayList<Spectrum>> zTolSpecs = new HashMap<>();
-		HashMap<String,ArrayList<Double>> zTolRT = new HashMap<>();
-		HashMap<String,ArrayList<Double>> zTolInt = new HashMap<>();
-		HashMap<String,Double> avgzSim = new HashMap<>(); //{modPep.charge:avg zero sim in bin}
-		HashMap<String,Double> avgzRT = new HashMap<>();
-		HashMap<String,Double> avgzInt = new HashMap<>();
-
-		//iterate and calculate similarity/retention time deltas for each file
-		//if inter run comparisons is turned on, this look will be broken after first iteration
-		for(String cf : mappings.keySet()) { //cf = fraction
-			long t3 = System.currentTimeMillis();
-			//leaving this here in case we need a less memory intensive application at some point
-			//mr = new MXMLReader(mzMappings.get(cf), Integer.parseInt(PTMShepherd.getParam("threads")));
-			//mr.readFully();
-			ArrayList<Integer> clines = mappings.get(cf);
-			//if not performing inter run comparisons, need to reset every time
-			if (!interRunComparisons) {
-				zTolLines = new HashMap<>();
-				zTolSpecs = new HashMap<>();
-				zTolRT = new HashMap<>();
-				zTolInt = new HashMap<>();
-				avgzSim = new HashMap<>(); //{modPep.charge:avg zero sim in bin}
-				avgzRT = new HashMap<>();
-				avgzInt = new HashMap<>();
-			}
+	private boolean isZero(String [] crow) {
+		double cPeakTol = peakTol;
+		if(precursorUnits == 1)//ppm
+			cPeakTol = calculatePeakTol(1500, peakTol, 0.0);
+		return (Math.abs(Double.parseDouble(crow[deltaCol])) <= cPeakTol);
+	}
+
+	/* Zero bin PSMs among a set of lines with their RT and intensity baselines. Lines of each modpep.charge key are
+	 * shuffled so the first MAX_ZERO_COMPARE are an unbiased sample of references. */
+	private class ZeroBins {
+		// modpep keys are StringDictionary.MODIFIED_PEPTIDES ids, modpep.charge keys come from pepZKey
+		final HashMap<Long,ArrayList<Integer>> zTolLines = new HashMap<>();
+		final HashMap<Integer,ArrayList<Double>> zTolRT = new HashMap<>();
+		final HashMap<Integer,ArrayList<Double>> zTolInt = new HashMap<>();
+		final HashMap<Integer,Double> avgzRT = new HashMap<>();
+		final HashMap<Integer,Double> avgzInt = new HashMap<>();
 
+		ZeroBins(PSMFile pf, ArrayList<Integer> clines) {
 			//get zero bin data and calculate baselines
 			for(int i = 0; i < clines.size(); i++) {
 				String [] crow = pf.data.get(clines.get(i)).split("\t");
-				if(precursorUnits == 1)//ppm
-					cPeakTol = calculatePeakTol(1500, peakTol, 0.0);
-				boolean isZero = (Math.abs(Double.parseDouble(crow[deltaCol])) <= cPeakTol);
-				if(!isZero)
+				if(!isZero(crow))
 					continue;
-				
-				String key = crow[pepCol].trim(); //using pep seq as key
-				if(crow[modpepCol].trim().length() != 0)
-					key = crow[modpepCol].trim();
-				
+
+				int key = pepKey(crow); //using pep seq as key
+
 				if(!zTolRT.containsKey(key)) //structure {modpep:<rt>}
 					zTolRT.put(key, new ArrayList<>());
 				zTolRT.get(key).add(Double.parseDouble(crow[rtCol]));
@@ -187,54 +333,17 @@ public class SimRTAnalysis {
 						zTolInt.put(key, new ArrayList<>());
 					zTolInt.get(key).add(Double.parseDouble(crow[intCol]));
 				}
-				
-				key += "." + crow[chargeCol]; //structure {modpep.charge:<spec line>}
-				if(!zTolLines.containsKey(key))
-					zTolLines.put(key, new ArrayList<>());
-				zTolLines.get(key).add(clines.get(i));
-			}
-			
-			//calculate zeroSim
-			int totalLines = 0;
-			List<String> linesWithoutSpectra = new ArrayList<>();
-			for(String pepZ : zTolLines.keySet()) {
-				ArrayList<Integer> relLines = zTolLines.get(pepZ);
-				Collections.shuffle(zTolLines.get(pepZ)); //shuffled to remove bias
-				int nComp = Math.min(relLines.size(), MAX_ZERO_COMPARE);
-				zTolSpecs.put(pepZ, new ArrayList<>());
-				for(int i = 0; i < nComp; i++) {
-					String [] crow = pf.data.get(relLines.get(i)).split("\t");
-					String targetFrac = crow[specCol].substring(0, crow[specCol].indexOf("."));
-					zTolSpecs.get(pepZ).add(multiMr.get(targetFrac).getSpectrum(reNormName(crow[specCol])));
-				}
-				
-				double zSimSum = 0;
-				totalLines += relLines.size();
-				for(int i = 0; i < relLines.size(); i++) {
-					String [] crow = pf.data.get(relLines.get(i)).split("\t");
-					String specNormName = reNormName(crow[specCol]);
-					//System.out.println(specNormName);
-					String targetFrac = crow[specCol].substring(0, crow[specCol].indexOf("."));
-					Spectrum cspec = multiMr.get(targetFrac).getSpectrum(specNormName);
-					if (cspec == null) {
-						linesWithoutSpectra.add(specNormName);
-						continue;
-					}
-					zSimSum += cspec.averageSimilarity(zTolSpecs.get(pepZ), ppmTol);
-				}
-				avgzSim.put(pepZ, zSimSum / relLines.size());
-			}
 
-			if (!linesWithoutSpectra.isEmpty()) {
-				System.out.printf("\tCould not find %d/%d (%.1f%%) spectra.\n", linesWithoutSpectra.size(), totalLines,
-						100.0*((double)linesWithoutSpectra.size()/totalLines));
-				int previewSize = Math.min(linesWithoutSpectra.size(), 5);
-				System.out.printf("\tShowing first %d of %d spectra IDs that could not be found: \n\t%s\n", previewSize, linesWithoutSpectra.size(),
-						String.join("\n\t\t", linesWithoutSpectra.subList(0, previewSize)));
+				long zKey = pepZKey(key, crow[chargeCol]); //structure {modpep.charge:<spec line>}
+				if(!zTolLines.containsKey(zKey))
+					zTolLines.put(zKey, new ArrayList<>());
+				zTolLines.get(zKey).add(clines.get(i));
 			}
-			
+			for(ArrayList<Integer> relLines : zTolLines.values())
+				Collections.shuffle(relLines); //shuffled to remove bias
+
 			//calculate zeroRT
-			for(String pep : zTolRT.keySet()) {
+			for(int pep : zTolRT.keySet()) {
 				ArrayList<Double> rts = zTolRT.get(pep);
 				double rtsum = 0;
 				for(double v : rts)
@@ -244,85 +353,110 @@ public class SimRTAnalysis {
 
 			//calculate zeroQuant
 			if (calcIntensity) {
-				for(String pep : zTolInt.keySet()) {
+				for(int pep : zTolInt.keySet()) {
 					Variance ints = new Variance();
 					ints.update(zTolInt.get(pep));
 					//ints.logTransform();
 					avgzInt.put(pep, ints.getMedian());
 				}
 			}
-			
-			//calculate metrics
-			for(int i = 0; i < clines.size(); i++) {
-				String [] crow = pf.data.get(clines.get(i)).split("\t");
-				if(precursorUnits == 1)//ppm
-					cPeakTol = calculatePeakTol(1500, peakTol, 0.0);
-				boolean isZero = (Math.abs(Double.parseDouble(crow[deltaCol])) <= cPeakTol);
-				
-				String key = crow[pepCol].trim();
-				if(crow[modpepCol].trim().length() != 0)
-					key = crow[modpepCol].trim();
-
-				int rtSize = 0, specSimSize = 0, intSize = 0;
-				double rtDelta = -1e20;
-				double intDelta = -1e20;
-				double avgSim = -1e20, avgZeroSim = -1e20;
-				
-				if(zTolRT.containsKey(key)) { //calculated against average RT time
-					rtDelta = Double.parseDouble(crow[rtCol]) - avgzRT.get(key);
-					rtSize = zTolRT.get(key).size();
-				}
+		}
 
-				if (calcIntensity) {
-					if(zTolInt.containsKey(key)) { //calculated against average RT time
-						intDelta = (Double.parseDouble(crow[intCol])) / (avgzInt.get(key));
-						intSize = zTolInt.get(key).size();
-					}
-				}
-				
-				key += "." + crow[chargeCol]; //based on charge state
-				if(zTolSpecs.containsKey(key)) {
-					String targetFrac = crow[specCol].substring(0, crow[specCol].indexOf("."));
-					Spectrum cspec = multiMr.get(targetFrac).getSpectrum(reNormName(crow[specCol]));
-					if(cspec != null) {
-						avgSim = cspec.averageSimilarity(zTolSpecs.get(key), ppmTol); //all v all comparison
-						avgZeroSim = avgzSim.get(key);
-						specSimSize = zTolSpecs.get(key).size();
-					}
-				}
-				if (calcIntensity) {
-					out.printf("%s\t%s\t%s\t%s\t%d\t%.5f\t%d\t%.5f\t%.5f\t%d\t%.5f\t%d\n", crow[specCol], crow[pepCol], crow[modpepCol], crow[deltaCol], isZero ? 1 : 0,
-							rtDelta, rtSize, avgSim, avgZeroSim, specSimSize, intDelta, intSize);
-				} else {
-					out.printf("%s\t%s\t%s\t%s\t%d\t%.5f\t%d\t%.5f\t%.5f\t%d\n",crow[specCol],crow[pepCol],crow[modpepCol],crow[deltaCol],isZero?1:0,
-							rtDelta, rtSize, avgSim, avgZeroSim, specSimSize);
+		/* Lines whose spectra are the zero bin references of a modpep.charge key */
+		List<Integer> references(long zKey) {
+			ArrayList<Integer> relLines = zTolLines.get(zKey);
+			return relLines.subList(0, Math.min(relLines.size(), MAX_ZERO_COMPARE));
+		}
+	}
+
+	/* Calculates the zero bin similarity baselines and writes a row per line */
+	private void writeRows(PSMFile pf, ArrayList<Integer> clines, ZeroBins zb, LineSimilarity sims) throws Exception {
+		HashMap<Long,Double> avgzSim = new HashMap<>(); //{modPep.charge:avg zero sim in bin}
+
+		//calculate zeroSim
+		int totalLines = 0;
+		List<String> linesWithoutSpectra = new ArrayList<>();
+		for(long pepZ : zb.zTolLines.keySet()) {
+			ArrayList<Integer> relLines = zb.zTolLines.get(pepZ);
+			double zSimSum = 0;
+			totalLines += relLines.size();
+			for(int i = 0; i < relLines.size(); i++) {
+				String [] crow = pf.data.get(relLines.get(i)).split("\t");
+				double sim = sims.get(relLines.get(i), crow, pepZ);
+				if (sim == NO_SPECTRUM) {
+					linesWithoutSpectra.add(reNormName(crow[specCol]));
+					continue;
 				}
+				zSimSum += sim;
 			}
+			avgzSim.put(pepZ, zSimSum / relLines.size());
+		}
+
+		if (!linesWithoutSpectra.isEmpty()) {
+			System.out.printf("\tCould not find %d/%d (%.1f%%) spectra.\n", linesWithoutSpectra.size(), totalLines,
+					100.0*((double)linesWithoutSpectra.size()/totalLines));
+			int previewSize = Math.min(linesWithoutSpectra.size(), 5);
+			System.out.printf("\tShowing first %d of %d spectra IDs that could not be found: \n\t%s\n", previewSize, linesWithoutSpectra.size(),
+					String.join("\n\t\t", linesWithoutSpectra.subList(0, previewSize)));
+		}
+
+		//calculate metrics
+		StringBuilder row = new StringBuilder();
+		for(int i = 0; i < clines.size(); i++) {
+			String [] crow = pf.data.get(clines.get(i)).split("\t");
+			boolean isZero = isZero(crow);
 			
-			out.flush();
-			long t4 = System.currentTimeMillis();
+			int key = pepKey(crow);
 
-			if (interRunComparisons) {
-				PTMShepherd.print(String.format("\tProcessed - %d lines (%d ms processing)", clines.size(), t4-t3));
-				break;
+			int rtSize = 0, specSimSize = 0, intSize = 0;
+			double rtDelta = -1e20;
+			double intDelta = -1e20;
+			double avgSim = -1e20, avgZeroSim = -1e20;
+			
+			if(zb.zTolRT.containsKey(key)) { //calculated against average RT time
+				rtDelta = Double.parseDouble(crow[rtCol]) - zb.avgzRT.get(key);
+				rtSize = zb.zTolRT.get(key).size();
+			}
+
+			if (calcIntensity) {
+				if(zb.zTolInt.containsKey(key)) { //calculated against average RT time
+					intDelta = (Double.parseDouble(crow[intCol])) / (zb.avgzInt.get(key));
+					intSize = zb.zTolInt.get(key).size();
+				}
 			}
-			PTMShepherd.print(String.format("\t%s - %d lines (%d ms processing)", cf, clines.size(), t4-t3));
+			
+			long zKey = pepZKey(key, crow[chargeCol]); //based on charge state
+			if(zb.zTolLines.containsKey(zKey)) {
+				double sim = sims.get(clines.get(i), crow, zKey);
+				if(sim != NO_SPECTRUM) {
+					avgSim = sim;
+					avgZeroSim = avgzSim.get(zKey);
+					specSimSize = zb.references(zKey).size();
+				}
+			}
+			row.setLength(0);
+			row.append(crow[specCol]).append('\t').append(crow[pepCol]).append('\t').append(crow[modpepCol]).append('\t')
+					.append(crow[deltaCol]).append('\t').append(isZero ? 1 : 0).append('\t');
+			FixedFormat.append(row, rtDelta, 5).append('\t').append(rtSize).append('\t');
+			FixedFormat.append(row, avgSim, 5).append('\t');
+			FixedFormat.append(row, avgZeroSim, 5).append('\t').append(specSimSize);
+			if (calcIntensity) {
+				row.append('\t');
+				FixedFormat.append(row, intDelta, 5).append('\t').append(intSize);
+			}
+			out.writeRow(row);
 		}
-		
-		out.close();
 	}
 	
 	public void updateSimRTProfiles(SimRTProfile [] profiles) throws Exception {
-		BufferedReader in = new BufferedReader(new FileReader(simRTFile));
-		String cline;
-		in.readLine();
-		while((cline = in.readLine())!= null) {
-			if(cline.equals("COMPLETE"))
+		IntermediateTable.Reader in = IntermediateTable.openReader(simRTFile);
+		TableRow sp;
+		while((sp = in.next()) != null) {
+			if(sp.lineEquals("COMPLETE"))
 				break;
-			if(cline.startsWith("Spectrum"))
+			if(sp.lineStartsWith("Spectrum"))
 				continue;
-			String [] sp = cline.split("\\t");
-			double md = Double.parseDouble(sp[3]);
+			double md = sp.parseDouble(3);
 			for(int i = 0; i < profiles.length; i++) {
 				int cind = profiles[i].locate.getIndex(md);
 				if(cind != -1) 
@@ -332,6 +466,18 @@ public class SimRTAnalysis {
 		in.close();
 	}
 
+	/* Modified peptide of a row, or the peptide if it is unmodified, as a dictionary id */
+	private int pepKey(String [] crow) {
+		String key = crow[modpepCol].trim();
+		if (key.length() == 0)
+			key = crow[pepCol].trim();
+		return StringDictionary.MODIFIED_PEPTIDES.id(key);
+	}
+
+	private static long pepZKey(int pepKey, String charge) {
+		return ((long) pepKey << 32) | (Integer.parseInt(charge.trim()) & 0xffffffffL);
+	}
+
 	public double calculatePeakTol(double pepmass, double ppmtol, double modmass){
 		double peakTol = ((pepmass + modmass) / 1000000.0) * ppmtol;
 		return peakTol;
@@ -340,4 +486,11 @@ public class SimRTAnalysis {
 	public boolean getCalcIntensity() {
 		return calcIntensity;
 	}
+
+	/* Whether the complete table has intensity columns, for tables written by another process */
+	public boolean hasIntensityColumns() throws Exception {
+		try (IntermediateTable.Reader in = IntermediateTable.openReader(simRTFile)) {
+			return Arrays.asList(in.header()).contains("Avg_IntChange");
+		}
+	}
 }
@@ -16,6 +16,7 @@
 
 package edu.umich.andykong.ptmshepherd.specsimilarity;
 
+import edu.umich.andykong.ptmshepherd.utils.TableRow;
 import edu.umich.andykong.ptmshepherd.utils.Variance;
 
 public class SimRTRecord {
@@ -36,15 +37,15 @@ public class SimRTRecord {
 		this.calcIntensity = calcIntensity;
 	}
 	
-	public void updateWithLine(String [] sp) {
+	public void updateWithLine(TableRow sp) {
 		count++;
-		if (Integer.parseInt(sp[6]) > 0) //num zero bin spectra > 0
-			deltart.update(Double.parseDouble(sp[5]));
-		if (Integer.parseInt(sp[9]) > 0) //num zero bin spectra > 0
-			sim.update(Double.parseDouble(sp[7]));
+		if (sp.parseInt(6) > 0) //num zero bin spectra > 0
+			deltart.update(sp.parseDouble(5));
+		if (sp.parseInt(9) > 0) //num zero bin spectra > 0
+			sim.update(sp.parseDouble(7));
 		if (calcIntensity) {
-			if (Integer.parseInt(sp[11]) > 0) // num zero bin spectra > 0
-				intensity.update(Double.parseDouble(sp[10]));
+			if (sp.parseInt(11) > 0) // num zero bin spectra > 0
+				intensity.update(sp.parseDouble(10));
 		}
 	}
 	
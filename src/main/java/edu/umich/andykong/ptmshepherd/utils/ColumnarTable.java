@@ -0,0 +1,679 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary columnar form of the tab-separated intermediate tables. Rows are handed over as text and stored in blocks,
+ * one run of values per column. A field whose text is a plain integer or fixed-point decimal is stored as a varint
+ * (with its number of decimals), anything else as UTF-8, so every field reads back as the same text and numbers are
+ * read back without parsing. Blocks are optionally deflated. {@link #complete(File)} appends a footer indexing the
+ * blocks, and only files with a footer are read.
+ *
+ * Layout: MAGIC, header names, blocks of 'B', codec, rows, columns, raw and stored length (ints) and the stored bytes,
+ * then 'F', block count, offset (varint) and rows of each block, footer offset (long) and END.
+ */
+public class ColumnarTable {
+    private static final byte[] MAGIC = {'S', 'H', 'C', 'T'};
+    private static final byte[] END = {'S', 'H', 'C', 'E'};
+    private static final int BLOCK_HEADER = 18;
+    private static final int BLOCK_ROWS = 4096;
+    private static final int BLOCK_BYTES = 1 << 20;
+    private static final int CODEC_NONE = 0, CODEC_DEFLATE = 1;
+    private static final int STRING = 0, INT = 1, DECIMAL = 2; // a decimal's tag is DECIMAL + its number of decimals
+    private static final int MAX_DECIMALS = 15;
+    private static final long MAX_EXACT_DOUBLE = 1L << 53; // stored digits convert to the same double as the text
+    private static final long MAX_EXACT_FLOAT = 1L << 24;
+    private static final long[] POW10 = new long[MAX_DECIMALS + 1];
+    private static final float[] FLOAT_POW10 = new float[11];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i - 1] * 10;
+        FLOAT_POW10[0] = 1;
+        for (int i = 1; i < FLOAT_POW10.length; i++)
+            FLOAT_POW10[i] = FLOAT_POW10[i - 1] * 10;
+    }
+
+    /* True if f starts like a columnar table */
+    public static boolean isColumnar(File f) throws IOException {
+        if (!f.isFile() || f.length() < MAGIC.length)
+            return false;
+        byte[] b = new byte[MAGIC.length];
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.readFully(b);
+        }
+        return Arrays.equals(b, MAGIC);
+    }
+
+    /* True if f is a columnar table with its footer written */
+    public static boolean isComplete(File f) throws IOException {
+        if (!isColumnar(f) || f.length() < MAGIC.length + 1 + 8 + END.length)
+            return false;
+        byte[] b = new byte[END.length];
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(f.length() - END.length);
+            raf.readFully(b);
+        }
+        return Arrays.equals(b, END);
+    }
+
+    /* Appends the block index, after which the table is read only */
+    public static void complete(File f) throws IOException {
+        if (!f.exists() || f.length() == 0)
+            new Writer(f, false, false).close();
+        if (isComplete(f))
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            Bytes footer = new Bytes();
+            int nBlocks = 0;
+            Bytes index = new Bytes();
+            long pos = skipHeader(raf);
+            long len = raf.length();
+            byte[] bh = new byte[BLOCK_HEADER];
+            while (pos < len) {
+                raf.seek(pos);
+                raf.readFully(bh);
+                ByteBuffer bb = ByteBuffer.wrap(bh);
+                if (bb.get() != 'B')
+                    throw new IOException(String.format("Corrupt block at byte %d of %s", pos, f));
+                bb.get();
+                index.putVarLong(pos);
+                index.putVarLong(bb.getInt());
+                nBlocks++;
+                bb.getInt();
+                bb.getInt();
+                pos += BLOCK_HEADER + bb.getInt();
+            }
+            if (pos != len)
+                throw new IOException(String.format("Truncated block at the end of %s", f));
+            footer.put('F');
+            footer.putVarLong(nBlocks);
+            footer.putBytes(index.buf, 0, index.len);
+            raf.seek(len);
+            raf.write(footer.buf, 0, footer.len);
+            raf.writeLong(len);
+            raf.write(END);
+        }
+    }
+
+    /* Position after the magic and header names */
+    private static long skipHeader(RandomAccessFile raf) throws IOException {
+        raf.seek(MAGIC.length);
+        int n = (int) readVarLong(raf);
+        for (int i = 0; i < n; i++)
+            raf.skipBytes((int) readVarLong(raf));
+        return raf.getFilePointer();
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if (b < 0x80)
+                return v;
+        }
+    }
+
+    /**
+     * Writes rows given as tab-separated text. A file that already holds a columnar table is appended to, keeping its
+     * header. Rows are kept in memory until a block fills up or the writer is closed.
+     */
+    public static class Writer implements IntermediateTable.Writer {
+        private final OutputStream out;
+        private final Deflater deflater;
+        private boolean headerWritten;
+        private final Bytes widths = new Bytes();
+        private Bytes[] cols = new Bytes[0];
+        private int nCols, rows, bytes;
+        private final Bytes raw = new Bytes();
+        private final Bytes scratch = new Bytes();
+        private byte[] stored = new byte[0];
+        private char[] chars = new char[256];
+
+        public Writer(File f, boolean append, boolean deflate) throws IOException {
+            append &= f.exists() && f.length() > 0;
+            if (append && !isColumnar(f))
+                throw new IOException(String.format("%s is not a columnar table", f));
+            if (append && isComplete(f))
+                throw new IOException(String.format("%s is already complete", f));
+            out = new BufferedOutputStream(new FileOutputStream(f, append), 1 << 16);
+            deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+            headerWritten = append;
+            if (!append)
+                out.write(MAGIC);
+        }
+
+        /* Written once, the header of an appended table is kept */
+        public void writeHeader(CharSequence line) throws IOException {
+            if (headerWritten)
+                return;
+            Bytes h = new Bytes();
+            int nFields = 0, from = 0, n = copy(line);
+            for (int i = 0; i <= n && n > 0; i++) {
+                if (i == n || chars[i] == '\t') {
+                    putString(h, chars, from, i);
+                    nFields++;
+                    from = i + 1;
+                }
+            }
+            Bytes count = new Bytes();
+            count.putVarLong(nFields);
+            out.write(count.buf, 0, count.len);
+            out.write(h.buf, 0, h.len);
+            headerWritten = true;
+        }
+
+        public void writeRow(CharSequence line) throws IOException {
+            if (!headerWritten)
+                writeHeader("");
+            int col = 0, from = 0, n = copy(line);
+            for (int i = 0; i <= n; i++) {
+                if (i == n || chars[i] == '\t') {
+                    if (col == cols.length)
+                        cols = Arrays.copyOf(cols, Math.max(16, cols.length * 2));
+                    if (cols[col] == null)
+                        cols[col] = new Bytes();
+                    int before = cols[col].len;
+                    putField(cols[col], chars, from, i);
+                    bytes += cols[col].len - before;
+                    col++;
+                    from = i + 1;
+                }
+            }
+            nCols = Math.max(nCols, col);
+            widths.putVarLong(col);
+            if (++rows == BLOCK_ROWS || bytes >= BLOCK_BYTES)
+                writeBlock();
+        }
+
+        private void writeBlock() throws IOException {
+            raw.len = 0;
+            raw.putBytes(widths.buf, 0, widths.len);
+            for (int j = 0; j < nCols; j++) {
+                raw.putVarLong(cols[j].len);
+                raw.putBytes(cols[j].buf, 0, cols[j].len);
+            }
+            int codec = CODEC_NONE;
+            byte[] data = raw.buf;
+            int dataLen = raw.len;
+            if (deflater != null) {
+                deflater.reset();
+                deflater.setInput(raw.buf, 0, raw.len);
+                deflater.finish();
+                if (stored.length < raw.len + 64)
+                    stored = new byte[raw.len + raw.len / 8 + 64];
+                int n = 0;
+                while (!deflater.finished()) {
+                    n += deflater.deflate(stored, n, stored.length - n);
+                    if (n == stored.length)
+                        stored = Arrays.copyOf(stored, stored.length * 2);
+                }
+                if (n < raw.len) { // incompressible blocks are kept as they are
+                    codec = CODEC_DEFLATE;
+                    data = stored;
+                    dataLen = n;
+                }
+            }
+            ByteBuffer bh = ByteBuffer.allocate(BLOCK_HEADER);
+            bh.put((byte) 'B').put((byte) codec).putInt(rows).putInt(nCols).putInt(raw.len).putInt(dataLen);
+            out.write(bh.array());
+            out.write(data, 0, dataLen);
+            widths.len = 0;
+            for (int j = 0; j < nCols; j++)
+                cols[j].len = 0;
+            nCols = rows = bytes = 0;
+        }
+
+        /* Copies line into chars, returning its length */
+        private int copy(CharSequence line) {
+            int n = line.length();
+            if (chars.length < n)
+                chars = new char[Math.max(n, chars.length * 2)];
+            if (line instanceof String)
+                ((String) line).getChars(0, n, chars, 0);
+            else if (line instanceof StringBuilder)
+                ((StringBuilder) line).getChars(0, n, chars, 0);
+            else
+                for (int i = 0; i < n; i++)
+                    chars[i] = line.charAt(i);
+            return n;
+        }
+
+        /* Stores the field as a number if that gives back the same text, e.g. "12", "-0.50", but not "012", "1e5" or "-0" */
+        private void putField(Bytes col, char[] s, int from, int to) {
+            int p = from;
+            boolean neg = p < to && s[p] == '-';
+            if (neg)
+                p++;
+            int digitsFrom = p, dot = -1;
+            long m = 0;
+            boolean ok = p < to;
+            for (; ok && p < to; p++) {
+                char c = s[p];
+                if (c >= '0' && c <= '9') {
+                    m = m * 10 + (c - '0');
+                    ok = m <= MAX_EXACT_DOUBLE;
+                } else {
+                    ok = c == '.' && dot < 0;
+                    dot = p;
+                }
+            }
+            int intDigits = ((dot < 0) ? to : dot) - digitsFrom;
+            int decimals = (dot < 0) ? 0 : to - dot - 1;
+            ok = ok && intDigits > 0 && (intDigits == 1 || s[digitsFrom] != '0')
+                    && (dot < 0 || (decimals > 0 && decimals <= MAX_DECIMALS)) && !(neg && m == 0);
+            if (ok) {
+                col.put((dot < 0) ? INT : DECIMAL + decimals);
+                long v = neg ? -m : m;
+                col.putVarLong((v << 1) ^ (v >> 63));
+            } else {
+                col.put(STRING);
+                putString(col, s, from, to);
+            }
+        }
+
+        private void putString(Bytes col, char[] s, int from, int to) {
+            scratch.len = 0;
+            scratch.putUtf8(s, from, to);
+            col.putVarLong(scratch.len);
+            col.putBytes(scratch.buf, 0, scratch.len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!headerWritten)
+                    writeHeader("");
+                if (rows > 0)
+                    writeBlock();
+            } finally {
+                out.close();
+                if (deflater != null)
+                    deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Reads a completed table block by block, following the footer index. The row returned by next() is reused.
+     */
+    public static class Reader implements IntermediateTable.Reader {
+        private final RandomAccessFile raf;
+        private final String[] header;
+        private final long[] blockOffsets;
+        private final Inflater inflater = new Inflater();
+        private final Row row = new Row();
+        private int block;
+        private byte[] stored = new byte[0];
+        private byte[] raw = new byte[0];
+        private final byte[] bh = new byte[BLOCK_HEADER];
+        private final File f;
+        private final long rows;
+
+        public Reader(File f) throws IOException {
+            if (!isComplete(f))
+                throw new IOException(String.format("%s is not a complete columnar table", f));
+            this.f = f;
+            raf = new RandomAccessFile(f, "r");
+            try {
+                raf.seek(MAGIC.length);
+                header = new String[(int) readVarLong(raf)];
+                for (int i = 0; i < header.length; i++) {
+                    byte[] b = new byte[(int) readVarLong(raf)];
+                    raf.readFully(b);
+                    header[i] = new String(b, StandardCharsets.UTF_8);
+                }
+                raf.seek(f.length() - END.length - 8);
+                raf.seek(raf.readLong());
+                if (raf.readUnsignedByte() != 'F')
+                    throw new IOException(String.format("Corrupt footer in %s", f));
+                blockOffsets = new long[(int) readVarLong(raf)];
+                long rows = 0;
+                for (int i = 0; i < blockOffsets.length; i++) {
+                    blockOffsets[i] = readVarLong(raf);
+                    rows += readVarLong(raf);
+                }
+                this.rows = rows;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        public String[] header() {
+            return header.clone();
+        }
+
+        /* Number of rows, from the footer */
+        public long rowCount() {
+            return rows;
+        }
+
+        public TableRow next() throws IOException {
+            while (!row.advance()) {
+                if (block == blockOffsets.length)
+                    return null;
+                readBlock(blockOffsets[block++]);
+            }
+            return row;
+        }
+
+        private void readBlock(long offset) throws IOException {
+            raf.seek(offset);
+            raf.readFully(bh);
+            ByteBuffer bb = ByteBuffer.wrap(bh);
+            if (bb.get() != 'B')
+                throw new IOException(String.format("Corrupt block at byte %d of %s", offset, f));
+            int codec = bb.get();
+            int nRows = bb.getInt(), nCols = bb.getInt(), rawLen = bb.getInt(), storedLen = bb.getInt();
+            if (stored.length < storedLen)
+                stored = new byte[storedLen];
+            raf.readFully(stored, 0, storedLen);
+            byte[] data = stored;
+            if (codec == CODEC_DEFLATE) {
+                if (raw.length < rawLen)
+                    raw = new byte[rawLen];
+                inflater.reset();
+                inflater.setInput(stored, 0, storedLen);
+                try {
+                    if (inflater.inflate(raw, 0, rawLen) != rawLen)
+                        throw new IOException(String.format("Corrupt block at byte %d of %s", offset, f));
+                } catch (DataFormatException e) {
+                    throw new IOException(String.format("Corrupt block at byte %d of %s", offset, f), e);
+                }
+                data = raw;
+            } else if (codec != CODEC_NONE) {
+                throw new IOException(String.format("Unknown codec %d in %s", codec, f));
+            }
+            row.load(data, nRows, nCols);
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            raf.close();
+        }
+    }
+
+    /* Rows of one block. A column is decoded the first time one of its fields is read, strings stay as UTF-8 */
+    static final class Row implements TableRow {
+        private static final int STRING_UTF8 = -1; // decoded string with non-ASCII bytes
+        private final Bytes in = new Bytes(new byte[0]);
+        private int nRows, r = -1, width;
+        private int[] widths = new int[0];
+        private int[] colStart = new int[0];
+        private boolean[] decoded = new boolean[0];
+        private byte[][] tags = new byte[0][];
+        private long[][] vals = new long[0][]; // numbers, or offset << 32 | length of a string
+
+        void load(byte[] data, int nRows, int nCols) {
+            in.buf = data;
+            in.pos = 0;
+            if (widths.length < nRows)
+                widths = new int[nRows];
+            for (int i = 0; i < nRows; i++)
+                widths[i] = (int) in.readVarLong();
+            if (colStart.length < nCols) {
+                colStart = new int[nCols];
+                decoded = new boolean[nCols];
+                tags = Arrays.copyOf(tags, nCols);
+                vals = Arrays.copyOf(vals, nCols);
+            }
+            for (int j = 0; j < nCols; j++) {
+                int len = (int) in.readVarLong();
+                colStart[j] = in.pos;
+                in.pos += len;
+                decoded[j] = false;
+            }
+            this.nRows = nRows;
+            r = -1;
+            width = 0;
+        }
+
+        private void decode(int j) {
+            if (tags[j] == null || tags[j].length < nRows) {
+                tags[j] = new byte[Math.max(nRows, BLOCK_ROWS)];
+                vals[j] = new long[tags[j].length];
+            }
+            byte[] t = tags[j];
+            long[] v = vals[j];
+            byte[] b = in.buf;
+            in.pos = colStart[j];
+            for (int i = 0; i < nRows; i++) {
+                if (widths[i] <= j)
+                    continue;
+                int tag = b[in.pos++];
+                if (tag == STRING) {
+                    int len = (int) in.readVarLong();
+                    for (int k = in.pos; k < in.pos + len; k++) {
+                        if (b[k] < 0) {
+                            tag = STRING_UTF8;
+                            break;
+                        }
+                    }
+                    v[i] = ((long) in.pos << 32) | len;
+                    in.pos += len;
+                } else {
+                    long z = in.readVarLong();
+                    v[i] = (z >>> 1) ^ -(z & 1);
+                }
+                t[i] = (byte) tag;
+            }
+            decoded[j] = true;
+        }
+
+        boolean advance() {
+            if (r + 1 >= nRows)
+                return false;
+            width = widths[++r];
+            return true;
+        }
+
+        /* Tag of field i, decoding its column if needed */
+        private int tag(int i) {
+            if (i < 0 || i >= width)
+                throw new ArrayIndexOutOfBoundsException(String.format("Index %d out of bounds for %d fields", i, width));
+            if (!decoded[i])
+                decode(i);
+            return tags[i][r];
+        }
+
+        private int offset(int i) {
+            return (int) (vals[i][r] >>> 32);
+        }
+
+        private int byteLength(int i) {
+            return (int) vals[i][r];
+        }
+
+        public int size() {
+            return width;
+        }
+
+        public int length(int i) {
+            return (tag(i) == STRING) ? byteLength(i) : get(i).length();
+        }
+
+        public char charAt(int i, int pos) {
+            if (tag(i) == STRING) {
+                if (pos < 0 || pos >= byteLength(i))
+                    throw new StringIndexOutOfBoundsException(pos);
+                return (char) in.buf[offset(i) + pos];
+            }
+            return get(i).charAt(pos);
+        }
+
+        public boolean isEmpty(int i) {
+            int tag = tag(i);
+            return tag == STRING && byteLength(i) == 0;
+        }
+
+        public String get(int i) {
+            int tag = tag(i);
+            if (tag == STRING || tag == STRING_UTF8)
+                return new String(in.buf, offset(i), byteLength(i), StandardCharsets.UTF_8);
+            long v = vals[i][r];
+            if (tag == INT)
+                return Long.toString(v);
+            int decimals = tag - DECIMAL;
+            StringBuilder sb = new StringBuilder(24);
+            if (v < 0)
+                sb.append('-');
+            long a = Math.abs(v);
+            sb.append(a / POW10[decimals]).append('.');
+            long f = a % POW10[decimals];
+            for (int d = decimals - 1; d > 0 && f < POW10[d]; d--)
+                sb.append('0');
+            return sb.append(f).toString();
+        }
+
+        public boolean fieldEquals(int i, String s) {
+            return (tag(i) == STRING) ? byteLength(i) == s.length() && asciiMatches(i, 0, s) : get(i).equals(s);
+        }
+
+        private boolean asciiMatches(int i, int from, String s) {
+            int off = offset(i) + from;
+            for (int k = 0; k < s.length(); k++) {
+                if (in.buf[off + k] != s.charAt(k))
+                    return false;
+            }
+            return true;
+        }
+
+        /* Lines are compared by field, the text of the whole line is only built if s spans fields */
+        public boolean lineEquals(String s) {
+            if (s.indexOf('\t') >= 0)
+                return line().equals(s);
+            return width == 1 && fieldEquals(0, s);
+        }
+
+        public boolean lineStartsWith(String s) {
+            if (s.indexOf('\t') >= 0)
+                return line().startsWith(s);
+            if (width == 0)
+                return s.isEmpty();
+            if (tag(0) == STRING)
+                return byteLength(0) >= s.length() && asciiMatches(0, 0, s);
+            return get(0).startsWith(s);
+        }
+
+        public boolean lineEndsWith(String s) {
+            if (s.indexOf('\t') >= 0)
+                return line().endsWith(s);
+            if (width == 0)
+                return s.isEmpty();
+            int last = width - 1;
+            if (tag(last) == STRING)
+                return byteLength(last) >= s.length() && asciiMatches(last, byteLength(last) - s.length(), s);
+            return get(last).endsWith(s);
+        }
+
+        String line() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < width; i++) {
+                if (i > 0)
+                    sb.append('\t');
+                sb.append(get(i));
+            }
+            return sb.toString();
+        }
+
+        /* Same result and exceptions as Integer.parseInt(get(i)) */
+        public int parseInt(int i) {
+            if (tag(i) == INT && vals[i][r] == (int) vals[i][r])
+                return (int) vals[i][r];
+            return Integer.parseInt(get(i));
+        }
+
+        /* Same result and exceptions as Double.parseDouble(get(i)) */
+        public double parseDouble(int i) {
+            int tag = tag(i);
+            if (tag == STRING || tag == STRING_UTF8)
+                return Double.parseDouble(get(i));
+            double v = (double) vals[i][r];
+            return (tag == INT) ? v : v / POW10[tag - DECIMAL];
+        }
+
+        /* Same result and exceptions as Float.parseFloat(get(i)) */
+        public float parseFloat(int i) {
+            int tag = tag(i);
+            if (tag == INT)
+                return (float) vals[i][r];
+            if (tag >= DECIMAL) {
+                long v = vals[i][r];
+                if (Math.abs(v) <= MAX_EXACT_FLOAT && tag - DECIMAL < FLOAT_POW10.length)
+                    return (float) v / FLOAT_POW10[tag - DECIMAL];
+            }
+            return Float.parseFloat(get(i));
+        }
+    }
+
+    /* Growable byte buffer with varints, also read from by the decoder */
+    static final class Bytes {
+        byte[] buf;
+        int len, pos;
+
+        Bytes() {
+            buf = new byte[256];
+        }
+
+        Bytes(byte[] data) {
+            buf = data;
+        }
+
+        void ensure(int n) {
+            if (len + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+        }
+
+        void put(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void putBytes(byte[] b, int from, int n) {
+            ensure(n);
+            System.arraycopy(b, from, buf, len, n);
+            len += n;
+        }
+
+        void putVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[len++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        void putUtf8(char[] s, int from, int to) {
+            ensure(to - from);
+            for (int i = from; i < to; i++) {
+                char c = s[i];
+                if (c >= 0x80) { // rare, encode the rest with the JDK
+                    byte[] b = new String(s, i, to - i).getBytes(StandardCharsets.UTF_8);
+                    putBytes(b, 0, b.length);
+                    return;
+                }
+                buf[len++] = (byte) c;
+            }
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = buf[pos++];
+                v |= (long) (b & 0x7f) << shift;
+                if (b >= 0)
+                    return v;
+            }
+        }
+    }
+}
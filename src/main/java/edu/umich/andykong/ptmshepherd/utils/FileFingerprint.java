@@ -0,0 +1,119 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Content fingerprints of input files. Files are hashed with CRC32C over memory-mapped chunks in parallel, and
+ * fingerprints are remembered in a small sidecar index keyed by path, size and mtime, so unchanged files are
+ * never hashed twice.
+ */
+public class FileFingerprint {
+
+    private static final int CHUNK_SIZE = 16 << 20;
+
+    private final File index;
+    private final HashMap<String, String[]> entries; // path -> {size, mtime, fingerprint}
+    private boolean dirty;
+
+    /**
+     * @param index sidecar file the fingerprints are kept in, may not exist yet
+     */
+    public FileFingerprint(File index) throws IOException {
+        this.index = index;
+        this.entries = new HashMap<>();
+        if (!index.exists())
+            return;
+        try (BufferedReader in = new BufferedReader(new FileReader(index))) {
+            String cline;
+            while ((cline = in.readLine()) != null) {
+                String[] sp = cline.split("\t");
+                if (sp.length == 4)
+                    entries.put(sp[0], new String[]{sp[1], sp[2], sp[3]});
+            }
+        }
+    }
+
+    /**
+     * Returns the fingerprint of a file, only hashing it if it changed since it was last fingerprinted
+     */
+    public synchronized String get(File f) throws IOException {
+        String path = f.getAbsolutePath();
+        String size = String.valueOf(f.length());
+        String mtime = String.valueOf(f.lastModified());
+        String[] e = entries.get(path);
+        if (e != null && e[0].equals(size) && e[1].equals(mtime))
+            return e[2];
+        String fp = compute(f);
+        entries.put(path, new String[]{size, mtime, fp});
+        dirty = true;
+        return fp;
+    }
+
+    /**
+     * Hashes a file's full contents with CRC32C, one memory-mapped chunk per task
+     * @return hex CRC followed by hex length
+     */
+    public static String compute(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            int nChunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            long[] chunkCrcs = new long[nChunks];
+            try {
+                IntStream.range(0, nChunks).parallel().forEach(i -> {
+                    long off = (long) i * CHUNK_SIZE;
+                    try {
+                        CRC32C crc = new CRC32C();
+                        crc.update(ch.map(FileChannel.MapMode.READ_ONLY, off, Math.min(CHUNK_SIZE, size - off)));
+                        chunkCrcs[i] = crc.getValue();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            // combine chunk CRCs in file order
+            CRC32C crc = new CRC32C();
+            ByteBuffer bb = ByteBuffer.allocate(8);
+            for (long c : chunkCrcs) {
+                bb.clear();
+                bb.putLong(c);
+                bb.flip();
+                crc.update(bb);
+            }
+            return Long.toHexString(crc.getValue()) + Long.toHexString(size);
+        }
+    }
+
+    /* Writes the sidecar index if any fingerprint was added */
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+        File tmp = new File(index.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+            TreeMap<String, String[]> sorted = new TreeMap<>(entries);
+            for (String path : sorted.keySet()) {
+                String[] e = sorted.get(path);
+                out.printf("%s\t%s\t%s\t%s\n", path, e[0], e[1], e[2]);
+            }
+        }
+        Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        dirty = false;
+    }
+}
@@ -0,0 +1,67 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Appends numbers with a fixed number of decimals, giving the same text as String.format("%.Nf") without
+ * going through Formatter. Values close to a rounding tie, very large values, NaN, infinities and locales
+ * whose digits are not plain ASCII take the String.format path.
+ */
+public class FixedFormat {
+    private static final int MAX_DECIMALS = 9;
+    private static final double MAX_SCALED = (double) (1L << 43); // keeps the fraction of the scaled value precise
+    private static final long[] POW10 = new long[MAX_DECIMALS + 1];
+    private static final String[] FORMATS = new String[MAX_DECIMALS + 1];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i <= MAX_DECIMALS; i++)
+            POW10[i] = POW10[i - 1] * 10;
+        for (int i = 0; i <= MAX_DECIMALS; i++)
+            FORMATS[i] = "%." + i + "f";
+    }
+
+    private static volatile Locale checkedLocale;
+    private static volatile boolean plainLocale;
+
+    public static StringBuilder append(StringBuilder sb, double v, int decimals) {
+        if (decimals < 0 || decimals > MAX_DECIMALS || !isPlainLocale())
+            return sb.append(String.format("%." + decimals + "f", v));
+        double scaled = Math.abs(v) * POW10[decimals];
+        if (!(scaled < MAX_SCALED)) // NaN, infinite or too large
+            return sb.append(String.format(FORMATS[decimals], v));
+        double floor = Math.floor(scaled);
+        double frac = scaled - floor;
+        // Formatter rounds half up on the decimal digits of v, which only matters within an ulp or so of a tie
+        if (Math.abs(frac - 0.5) <= 8 * Math.ulp(scaled) + 1e-12)
+            return sb.append(String.format(FORMATS[decimals], v));
+        long n = (long) floor + ((frac > 0.5) ? 1 : 0);
+
+        if (v < 0 || (v == 0 && 1 / v < 0))
+            sb.append('-');
+        sb.append(n / POW10[decimals]);
+        if (decimals > 0) {
+            sb.append('.');
+            long f = n % POW10[decimals];
+            for (int d = decimals - 1; d > 0 && f < POW10[d]; d--)
+                sb.append('0');
+            sb.append(f);
+        }
+        return sb;
+    }
+
+    public static String format(double v, int decimals) {
+        return append(new StringBuilder(24), v, decimals).toString();
+    }
+
+    /* Formatter uses the default format locale, the fast path writes '.', '-' and ASCII digits */
+    private static boolean isPlainLocale() {
+        Locale l = Locale.getDefault(Locale.Category.FORMAT);
+        if (l != checkedLocale) {
+            DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance(l);
+            plainLocale = dfs.getDecimalSeparator() == '.' && dfs.getZeroDigit() == '0' && dfs.getMinusSign() == '-';
+            checkedLocale = l;
+        }
+        return plainLocale;
+    }
+}
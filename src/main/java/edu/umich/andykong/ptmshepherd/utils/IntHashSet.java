@@ -0,0 +1,74 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+import java.util.Arrays;
+
+/**
+ * Set of non-negative ints, such as StringDictionary ids, kept in an open addressing table without boxing.
+ */
+public class IntHashSet {
+    private static final int EMPTY = -1;
+
+    private int[] slots;
+    private int size;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    public IntHashSet(int expected) {
+        slots = new int[Math.max(16, Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1)];
+        Arrays.fill(slots, EMPTY);
+    }
+
+    /* Adds v, returns false if it was already present */
+    public boolean add(int v) {
+        if (v < 0)
+            throw new IllegalArgumentException("Negative value " + v);
+        int i = find(slots, v);
+        if (slots[i] == v)
+            return false;
+        slots[i] = v;
+        if (++size * 2 > slots.length)
+            rehash();
+        return true;
+    }
+
+    public boolean contains(int v) {
+        return v >= 0 && slots[find(slots, v)] == v;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* Values in table order */
+    public int[] toArray() {
+        int[] res = new int[size];
+        int n = 0;
+        for (int v : slots) {
+            if (v != EMPTY)
+                res[n++] = v;
+        }
+        return res;
+    }
+
+    /* Slot holding v, or the empty slot where it would go */
+    private static int find(int[] slots, int v) {
+        int mask = slots.length - 1;
+        int h = v * 0x9e3779b9;
+        int i = (h ^ (h >>> 16)) & mask;
+        while (slots[i] != EMPTY && slots[i] != v)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void rehash() {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        Arrays.fill(slots, EMPTY);
+        for (int v : old) {
+            if (v != EMPTY)
+                slots[find(slots, v)] = v;
+        }
+    }
+}
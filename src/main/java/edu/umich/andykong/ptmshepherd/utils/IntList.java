@@ -0,0 +1,53 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of ints.
+ */
+public class IntList {
+    private int[] vals;
+    private int size;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int capacity) {
+        vals = new int[Math.max(capacity, 4)];
+    }
+
+    public void add(int v) {
+        if (size == vals.length)
+            vals = Arrays.copyOf(vals, size * 2);
+        vals[size++] = v;
+    }
+
+    public void addAll(IntList other) {
+        if (size + other.size > vals.length)
+            vals = Arrays.copyOf(vals, Math.max(size + other.size, size * 2));
+        System.arraycopy(other.vals, 0, vals, size, other.size);
+        size += other.size;
+    }
+
+    public int get(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for %d", i, size));
+        return vals[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* Values without repeats, in order of first occurrence */
+    public IntList distinct() {
+        IntHashSet seen = new IntHashSet(size);
+        IntList res = new IntList(size);
+        for (int i = 0; i < size; i++) {
+            if (seen.add(vals[i]))
+                res.add(vals[i]);
+        }
+        return res;
+    }
+}
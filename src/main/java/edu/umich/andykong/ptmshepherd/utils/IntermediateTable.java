@@ -0,0 +1,153 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Per-dataset intermediate tables (.rawlocalize, .rawsimrt, .diagnosticIons.tsv), written as tab-separated text
+ * ending in a COMPLETE line or as a {@link ColumnarTable}, depending on intermediate_format. Readers and the
+ * completeness check look at the file itself, so tables of either format are read back.
+ *
+ * Running this class converts a columnar table to the tab-separated form: IntermediateTable in out
+ */
+public class IntermediateTable {
+    public static final String TSV = "tsv";
+    public static final String BINARY = "binary";
+    public static final String BINARY_DEFLATE = "binary_deflate";
+
+    public interface Writer extends Closeable {
+        /* The column names, tab-separated */
+        void writeHeader(CharSequence line) throws IOException;
+
+        void writeRow(CharSequence line) throws IOException;
+    }
+
+    public interface Reader extends Closeable {
+        String[] header();
+
+        /* The next row after the header, null at the end. The row is reused by the next call */
+        TableRow next() throws IOException;
+    }
+
+    public static boolean isValidFormat(String format) {
+        return format.equals(TSV) || format.equals(BINARY) || format.equals(BINARY_DEFLATE);
+    }
+
+    public static Writer openWriter(File f, boolean append, String format) throws IOException {
+        if (format.equals(TSV))
+            return new TsvWriter(f, append);
+        return new ColumnarTable.Writer(f, append, format.equals(BINARY_DEFLATE));
+    }
+
+    public static Reader openReader(File f) throws IOException {
+        if (ColumnarTable.isColumnar(f))
+            return new ColumnarTable.Reader(f);
+        return new TsvReader(f);
+    }
+
+    public static boolean isComplete(File f) throws IOException {
+        if (!f.exists())
+            return false;
+        if (ColumnarTable.isColumnar(f))
+            return ColumnarTable.isComplete(f);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(Math.max(0, f.length() - 20));
+            String cline;
+            while ((cline = raf.readLine()) != null) {
+                if (cline.equals("COMPLETE"))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public static void complete(File f) throws IOException {
+        if (ColumnarTable.isColumnar(f)) {
+            ColumnarTable.complete(f);
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(f, true))) {
+            out.println("COMPLETE");
+        }
+    }
+
+    /* Writes a complete table of either format as tab-separated text ending in COMPLETE */
+    public static void toTsv(File in, File out) throws IOException {
+        try (Reader r = openReader(in);
+             PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8), 1 << 16))) {
+            String[] header = r.header();
+            if (header.length > 0)
+                pw.println(String.join("\t", header));
+            TableRow row;
+            StringBuilder sb = new StringBuilder();
+            while ((row = r.next()) != null) {
+                if (row.lineEquals("COMPLETE"))
+                    break;
+                sb.setLength(0);
+                for (int i = 0; i < row.size(); i++) {
+                    if (i > 0)
+                        sb.append('\t');
+                    sb.append(row.get(i));
+                }
+                pw.println(sb);
+            }
+            pw.println("COMPLETE");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: IntermediateTable <columnar table> <tsv output>");
+            System.exit(1);
+        }
+        toTsv(new File(args[0]), new File(args[1]));
+    }
+
+    private static class TsvWriter implements Writer {
+        private final PrintWriter out;
+
+        TsvWriter(File f, boolean append) throws IOException {
+            out = new PrintWriter(new BufferedWriter(new FileWriter(f, append), 1 << 16));
+        }
+
+        /* Written each time, like the tables written by several psm.tsv files */
+        public void writeHeader(CharSequence line) {
+            out.append(line).append('\n');
+        }
+
+        public void writeRow(CharSequence line) {
+            out.append(line).append('\n');
+        }
+
+        @Override
+        public void close() {
+            out.close();
+        }
+    }
+
+    private static class TsvReader implements Reader {
+        private final TsvLineReader in;
+        private final TsvCursor sp = new TsvCursor();
+        private final String[] header;
+
+        TsvReader(File f) throws IOException {
+            in = new TsvLineReader(f);
+            header = new String[in.next(sp) ? sp.size() : 0];
+            for (int i = 0; i < header.length; i++)
+                header[i] = sp.get(i);
+        }
+
+        public String[] header() {
+            return header.clone();
+        }
+
+        public TableRow next() throws IOException {
+            return in.next(sp) ? sp : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide dictionary giving each distinct string a dense int id, so peptide-centric sets and lists hold ints and
+ * one shared String per value instead of a copy per PSM. Ids are never reused and stay valid for the whole run.
+ * Safe for concurrent use, except for {@link #clearAll()} between runs.
+ */
+public class StringDictionary {
+    public static final StringDictionary PEPTIDES = new StringDictionary();
+    public static final StringDictionary MODIFIED_PEPTIDES = new StringDictionary();
+    public static final StringDictionary GLYCANS = new StringDictionary();
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private int size;
+
+    /* Id of s, added on first use */
+    public int id(String s) {
+        Integer id = ids.get(s);
+        return (id != null) ? id : add(s);
+    }
+
+    private synchronized int add(String s) {
+        Integer id = ids.get(s);
+        if (id != null)
+            return id;
+        if (size == values.length)
+            values = Arrays.copyOf(values, size * 2);
+        values[size] = s;
+        ids.put(s, size);
+        return size++;
+    }
+
+    /* Id of s, -1 if it was never added */
+    public int lookup(String s) {
+        Integer id = ids.get(s);
+        return (id != null) ? id : -1;
+    }
+
+    public String get(int id) {
+        return values[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private synchronized void clear() {
+        ids.clear();
+        values = new String[64];
+        size = 0;
+    }
+
+    /* Empties the process-wide dictionaries at the start of a run, no ids of the previous run may be kept */
+    public static void clearAll() {
+        PEPTIDES.clear();
+        MODIFIED_PEPTIDES.clear();
+        GLYCANS.clear();
+    }
+}
@@ -0,0 +1,31 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+/**
+ * One row of an intermediate table, read either from tab-separated text ({@link TsvCursor}) or from the binary
+ * columnar format ({@link ColumnarTable}). Fields and their text are the same in both, as are the parsed numbers.
+ */
+public interface TableRow {
+    int size();
+
+    int length(int i);
+
+    char charAt(int i, int pos);
+
+    boolean isEmpty(int i);
+
+    String get(int i);
+
+    boolean fieldEquals(int i, String s);
+
+    boolean lineEquals(String s);
+
+    boolean lineStartsWith(String s);
+
+    boolean lineEndsWith(String s);
+
+    int parseInt(int i);
+
+    double parseDouble(int i);
+
+    float parseFloat(int i);
+}
@@ -0,0 +1,184 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+import java.util.Arrays;
+
+/**
+ * Reusable view of one tab-separated line. Field boundaries are found once per line and numbers are parsed straight
+ * from the characters, so nothing is allocated per line unless a field is asked for as a String.
+ * Fields are counted like String.split("\t", -1), so trailing empty fields are kept.
+ */
+public class TsvCursor implements TableRow {
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+    private static final long MAX_EXACT_FLOAT = 1L << 24;
+    private static final double[] DOUBLE_POW10 = new double[23];
+    private static final float[] FLOAT_POW10 = new float[11];
+    static {
+        DOUBLE_POW10[0] = 1;
+        for (int i = 1; i < DOUBLE_POW10.length; i++)
+            DOUBLE_POW10[i] = DOUBLE_POW10[i - 1] * 10;
+        FLOAT_POW10[0] = 1;
+        for (int i = 1; i < FLOAT_POW10.length; i++)
+            FLOAT_POW10[i] = FLOAT_POW10[i - 1] * 10;
+    }
+
+    private char[] buf;
+    private char[] copy = new char[256]; // holds lines passed as Strings
+    private int lineStart, lineEnd;
+    private int[] ends = new int[32]; // end of field i, the field starts after the tab at ends[i - 1]
+    private int nFields;
+    private int fracDigits; // set by parseMantissa
+    private boolean negative;
+
+    /* Points the cursor at a copy of line */
+    public TsvCursor reset(String line) {
+        if (copy.length < line.length())
+            copy = new char[Math.max(line.length(), copy.length * 2)];
+        line.getChars(0, line.length(), copy, 0);
+        return reset(copy, 0, line.length());
+    }
+
+    /* Points the cursor at chars [from, to) of b, which must not change while the line is read */
+    public TsvCursor reset(char[] b, int from, int to) {
+        this.buf = b;
+        this.lineStart = from;
+        this.lineEnd = to;
+        nFields = 0;
+        for (int i = from; i < to; i++) {
+            if (b[i] == '\t')
+                addField(i);
+        }
+        addField(to);
+        return this;
+    }
+
+    private void addField(int end) {
+        if (nFields == ends.length)
+            ends = Arrays.copyOf(ends, nFields * 2);
+        ends[nFields++] = end;
+    }
+
+    private int fieldStart(int i) {
+        return (i == 0) ? lineStart : ends[i - 1] + 1;
+    }
+
+    private void check(int i) {
+        if (i < 0 || i >= nFields)
+            throw new ArrayIndexOutOfBoundsException(String.format("Index %d out of bounds for %d fields", i, nFields));
+    }
+
+    public int size() {
+        return nFields;
+    }
+
+    public int length(int i) {
+        check(i);
+        return ends[i] - fieldStart(i);
+    }
+
+    public char charAt(int i, int pos) {
+        return buf[fieldStart(i) + pos];
+    }
+
+    public boolean isEmpty(int i) {
+        return length(i) == 0;
+    }
+
+    public String get(int i) {
+        check(i);
+        return new String(buf, fieldStart(i), ends[i] - fieldStart(i));
+    }
+
+    public boolean fieldEquals(int i, String s) {
+        return length(i) == s.length() && regionMatches(fieldStart(i), s);
+    }
+
+    public boolean lineEquals(String s) {
+        return lineEnd - lineStart == s.length() && regionMatches(lineStart, s);
+    }
+
+    public boolean lineStartsWith(String s) {
+        return lineEnd - lineStart >= s.length() && regionMatches(lineStart, s);
+    }
+
+    public boolean lineEndsWith(String s) {
+        return lineEnd - lineStart >= s.length() && regionMatches(lineEnd - s.length(), s);
+    }
+
+    private boolean regionMatches(int from, String s) {
+        for (int j = 0; j < s.length(); j++) {
+            if (buf[from + j] != s.charAt(j))
+                return false;
+        }
+        return true;
+    }
+
+    /* Same result and exceptions as Integer.parseInt(get(i)) */
+    public int parseInt(int i) {
+        check(i);
+        int from = fieldStart(i), to = ends[i];
+        int p = from;
+        boolean neg = false;
+        if (p < to && (buf[p] == '-' || buf[p] == '+'))
+            neg = buf[p++] == '-';
+        if (p == to || to - p > 9)
+            return Integer.parseInt(get(i)); // empty, or long enough to overflow
+        int res = 0;
+        for (; p < to; p++) {
+            int d = buf[p] - '0';
+            if (d < 0 || d > 9)
+                return Integer.parseInt(get(i));
+            res = res * 10 + d;
+        }
+        return neg ? -res : res;
+    }
+
+    /* Same result and exceptions as Double.parseDouble(get(i)) */
+    public double parseDouble(int i) {
+        check(i);
+        int from = fieldStart(i), to = ends[i];
+        long m = parseMantissa(from, to, MAX_EXACT_DOUBLE);
+        // m / 10^k is correctly rounded when both are exact doubles
+        if (m < 0 || fracDigits > 22)
+            return Double.parseDouble(get(i));
+        double res = (double) m / DOUBLE_POW10[fracDigits];
+        return negative ? -res : res;
+    }
+
+    /* Same result and exceptions as Float.parseFloat(get(i)) */
+    public float parseFloat(int i) {
+        check(i);
+        int from = fieldStart(i), to = ends[i];
+        long m = parseMantissa(from, to, MAX_EXACT_FLOAT);
+        if (m < 0 || fracDigits > 10)
+            return Float.parseFloat(get(i));
+        float res = (float) m / FLOAT_POW10[fracDigits];
+        return negative ? -res : res;
+    }
+
+    /* Digits of a plain decimal as an integer below max, -1 if the text needs the full parser */
+    private long parseMantissa(int from, int to, long max) {
+        int p = from;
+        negative = false;
+        fracDigits = 0;
+        if (p < to && (buf[p] == '-' || buf[p] == '+'))
+            negative = buf[p++] == '-';
+        long m = 0;
+        boolean dot = false, digits = false;
+        for (; p < to; p++) {
+            char c = buf[p];
+            if (c >= '0' && c <= '9') {
+                m = m * 10 + (c - '0');
+                if (m > max)
+                    return -1;
+                digits = true;
+                if (dot)
+                    fracDigits++;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                return -1; // exponent, NaN, Infinity, whitespace or invalid
+            }
+        }
+        return digits ? m : -1;
+    }
+}
@@ -0,0 +1,84 @@
+package edu.umich.andykong.ptmshepherd.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads a tab-separated file line by line into one reusable char buffer and points a {@link TsvCursor} at each line,
+ * so no String is created per line. Lines end at \n, \r\n or \r, as with BufferedReader.readLine.
+ */
+public class TsvLineReader implements Closeable {
+    private final Reader in;
+    private char[] buf = new char[1 << 16];
+    private int pos, lim;
+    private boolean eof, skipLf;
+
+    public TsvLineReader(File f) throws IOException {
+        this(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+    }
+
+    public TsvLineReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Moves the cursor to the next line
+     * @return false at the end of the file
+     */
+    public boolean next(TsvCursor cursor) throws IOException {
+        int scan = pos;
+        while (true) {
+            for (; scan < lim; scan++) {
+                char c = buf[scan];
+                if (skipLf) { // second half of a \r\n line break
+                    skipLf = false;
+                    if (c == '\n') {
+                        pos = scan + 1;
+                        continue;
+                    }
+                }
+                if (c == '\n' || c == '\r') {
+                    cursor.reset(buf, pos, scan);
+                    pos = scan + 1;
+                    skipLf = c == '\r';
+                    return true;
+                }
+            }
+            int scanned = scan - pos;
+            if (fill() < 0) {
+                if (lim == pos)
+                    return false;
+                cursor.reset(buf, pos, lim); // last line without a line break
+                pos = lim;
+                return true;
+            }
+            scan = pos + scanned;
+        }
+    }
+
+    /* Moves the unread part of the buffer to the front and reads more, -1 at the end of the file */
+    private int fill() throws IOException {
+        if (eof)
+            return -1;
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, lim - pos);
+            lim -= pos;
+            pos = 0;
+        }
+        if (lim == buf.length)
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        int n = in.read(buf, lim, buf.length - lim);
+        if (n < 0) {
+            eof = true;
+            return -1;
+        }
+        lim += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,55 @@
+import edu.umich.andykong.ptmshepherd.PSMFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PSMColumnJournalTest {
+
+    @Test
+    void editsAreVisibleBeforeSingleWrite(@TempDir Path tmp) throws Exception {
+        File f = tmp.resolve("psm.tsv").toFile();
+        try (PrintWriter out = new PrintWriter(f)) {
+            out.println("Spectrum\tPeptide\tDelta Mass\tAssigned Modifications\tIntensity");
+            out.println("runA.00010.00010.2\tPEPTIDE\t15.9949\t3M(15.9949)\t1000");
+            out.println();
+            out.println("runB.00020.00020.3\tPEPTIDEK\t0.0\t\t");
+        }
+        List<String> original = Files.readAllLines(f.toPath());
+
+        PSMFile pf = new PSMFile(f);
+        pf.annotateMassDiffs(new String[]{"Oxidation", "None"});
+        pf.addColumn(pf.getColumn("Observed Modifications") + 1, "PTM-Shepherd Localization",
+                new ArrayList<>(Arrays.asList("runB.00020.00020.3", "runA.00010.00010.2")), new ArrayList<>(Arrays.asList("b", "a")));
+        pf.addColumn(1, "PTM-Shepherd Localization",
+                new ArrayList<>(Arrays.asList("runA.00010.00010.2", "runB.00020.00020.3")), new ArrayList<>(Arrays.asList("a2", "b2")));
+        pf.preparePsmTableForIonQuant(new double[][]{{15.995}, {15.98}, {16.01}}, 0, 0.02);
+
+        // later stages read the edits from memory while the file is untouched
+        assertEquals(3, pf.getColumn("Observed Modifications"));
+        assertEquals(4, pf.getColumn("PTM-Shepherd Localization"));
+        assertEquals(7, pf.getColumn("Theoretical Modification Mass"));
+        assertEquals(Arrays.asList("a2", "b2"), pf.getColumnValues("PTM-Shepherd Localization"));
+        assertEquals(original, Files.readAllLines(f.toPath()));
+
+        pf.flush();
+        List<String> written = Files.readAllLines(f.toPath());
+        assertEquals(3, written.size());
+        assertEquals("runA.00010.00010.2\tPEPTIDE\t15.9949\tOxidation\ta2\t3M(15.9949)\t1000\t15.9950", written.get(1));
+        assertEquals("runB.00020.00020.3\tPEPTIDEK\t0.0\tNone\tb2\t\t\t0.0000", written.get(2));
+        assertEquals(pf.data, new PSMFile(f).data);
+
+        // nothing pending, so a second flush leaves the file alone
+        long modified = f.lastModified();
+        pf.flush();
+        assertEquals(modified, f.lastModified());
+    }
+}
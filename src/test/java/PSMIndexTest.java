@@ -0,0 +1,72 @@
+import edu.umich.andykong.ptmshepherd.PSMFile;
+import edu.umich.andykong.ptmshepherd.PSMIndex;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PSMIndexTest {
+
+    @Test
+    void findsAndReadsRows(@TempDir Path tmp) throws Exception {
+        File f = tmp.resolve("psm.tsv").toFile();
+        StringBuilder sb = new StringBuilder("Peptide\tSpectrum\tDelta Mass\r\n");
+        for (int i = 0; i < 5000; i++) {
+            sb.append("PEPTIDE").append(i).append("\trun").append(i % 3).append('.')
+                    .append(String.format("%05d.%05d", i, i)).append(".2\t0.0\r\n");
+            if (i % 1000 == 0)
+                sb.append("\r\n");
+        }
+        Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        PSMFile pf = new PSMFile(f);
+        try (PSMIndex idx = PSMIndex.open(f)) {
+            assertTrue(PSMIndex.indexFile(f).isFile());
+            assertEquals(pf.data.size(), idx.size());
+            for (int i = 1; i < idx.size(); i += 7) {
+                String spec = pf.data.get(i).split("\t")[1];
+                assertEquals(i, idx.findRow(spec));
+                assertEquals(i, idx.findRow(String.format("run%d.%d.%d", i % 3, i, i)));
+                assertEquals(pf.data.get(i), idx.readRow(i));
+                assertEquals(i, idx.scanNum(i));
+            }
+            assertEquals(-1, idx.findRow("run9.00001.00001.2"));
+            assertEquals(-1, idx.findRow("nothing"));
+        }
+
+        // a changed table gets a new index
+        Files.write(f.toPath(), "Spectrum\tPeptide\nrunA.00007.00007.3\tPEPTIDE\n".getBytes(StandardCharsets.UTF_8));
+        try (PSMIndex idx = PSMIndex.open(f)) {
+            assertEquals(1, idx.size());
+            assertEquals(0, idx.findRow("runA.7.7"));
+            assertEquals("runA.00007.00007.3\tPEPTIDE", idx.readRow(0));
+        }
+    }
+
+    @Test
+    void flushDropsStaleIndex(@TempDir Path tmp) throws Exception {
+        File f = tmp.resolve("psm.tsv").toFile();
+        Files.write(f.toPath(), Arrays.asList("Spectrum\tPeptide\tDelta Mass",
+                "runA.00010.00010.2\tPEPTIDE\t15.9949", "runB.00020.00020.3\tPEPTIDEK\t0.0"));
+        PSMFile pf = new PSMFile(f);
+        pf.addColumn(2, "Note", new ArrayList<>(Arrays.asList("runB.00020.00020.3", "runA.00010.00010.2")),
+                new ArrayList<>(Arrays.asList("b", "a")));
+        assertTrue(PSMIndex.indexFile(f).isFile());
+        assertThrows(IllegalArgumentException.class, () -> pf.addColumn(2, "Other",
+                new ArrayList<>(Arrays.asList("runC.00030.00030.2", "runA.00010.00010.2")), new ArrayList<>(Arrays.asList("c", "a"))));
+
+        pf.flush();
+        assertFalse(PSMIndex.indexFile(f).exists());
+        try (PSMIndex idx = pf.getIndex()) {
+            assertEquals(1, idx.findRow("runB.00020.00020.3"));
+            assertEquals("runB.00020.00020.3\tPEPTIDEK\tb\t0.0", idx.readRow(1));
+        }
+    }
+}
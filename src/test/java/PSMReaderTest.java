@@ -0,0 +1,77 @@
+import edu.umich.andykong.ptmshepherd.PSMReader;
+import edu.umich.andykong.ptmshepherd.peakpicker.Histogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PSMReaderTest {
+
+    private static File writePsms(Path dir, int n) throws Exception {
+        File f = dir.resolve("psm.tsv").toFile();
+        try (PrintWriter out = new PrintWriter(f)) {
+            out.println("Spectrum\tPeptide\tDelta Mass\tIntensity");
+            for (int i = 0; i < n; i++)
+                out.printf("run%d.%d.%d.2\tPEPTIDE\t%.4f\t%d\n", i % 3, i, i, (i % 50) * 0.1, i);
+        }
+        return f;
+    }
+
+    @Test
+    void readsAllRowsInBatches(@TempDir Path tmp) throws Exception {
+        File f = writePsms(tmp, 1000);
+        int rows = 0, batches = 0;
+        try (PSMReader pr = PSMReader.open(f, 64)) {
+            assertEquals(2, pr.dMassCol);
+            ArrayList<String []> batch;
+            while ((batch = pr.nextBatch()) != null) {
+                assertTrue(batch.size() <= 64);
+                for (String [] sp : batch)
+                    assertEquals("run" + (rows++ % 3), sp[0].substring(0, 4));
+                batches++;
+            }
+            assertNull(pr.nextBatch());
+        }
+        assertEquals(1000, rows);
+        assertEquals(16, batches);
+    }
+
+    @Test
+    void closesBeforeEnd(@TempDir Path tmp) throws Exception {
+        File f = writePsms(tmp, 10000);
+        try (PSMReader pr = PSMReader.open(f, 10)) {
+            assertEquals(10, pr.nextBatch().size());
+        }
+    }
+
+    @Test
+    void accumulatorMatchesArrayHistogram() {
+        Random r = new Random(7);
+        float [] vals = new float[5000];
+        double [] ints = new double[vals.length];
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = (float) (r.nextInt(400) - 100 + 0.00005 + 0.0002 * r.nextInt(4000));
+            ints[i] = 1.0;
+        }
+        Histogram expected = new Histogram(vals, ints, 100, 5000, 7);
+
+        // values arrive in an order that forces the covered range to grow in both directions
+        Histogram.Accumulator acc = new Histogram.Accumulator(5000, 7);
+        Histogram.Accumulator other = new Histogram.Accumulator(5000, 7);
+        for (int i = 0; i < vals.length; i++)
+            ((i % 2 == 0) ? acc : other).add(vals[i], ints[i]);
+        acc.addAll(other);
+        Histogram h = acc.build(100);
+
+        assertEquals(expected.start, h.start);
+        assertEquals(expected.end, h.end);
+        assertEquals(100, h.expSize);
+        assertArrayEquals(expected.histo, h.histo, 1e-9);
+    }
+}
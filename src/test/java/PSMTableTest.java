@@ -0,0 +1,51 @@
+import edu.umich.andykong.ptmshepherd.PSMFile;
+import edu.umich.andykong.ptmshepherd.PSMTable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PSMTableTest {
+
+    @Test
+    void parseColumns(@TempDir Path tmp) throws Exception {
+        File f = tmp.resolve("psm.tsv").toFile();
+        try (PrintWriter out = new PrintWriter(f)) {
+            out.println("Spectrum\tPeptide\tCharge\tRetention\tCalibrated Observed Mass\tDelta Mass\tAssigned Modifications\tIntensity");
+            out.println("runA.00010.00010.2\tPEPTIDE\t2\t100.5\t800.4\t15.9949\t3M(15.9949)\t1000");
+            out.println("runB.00020.00020.3\tPEPTIDEK\t3\t200.5\t927.5\t0.0\t\t");
+            out.println("runA.00030.00030.2\tPEPTIDE\t2\t300.5\t784.4\t-0.0001\t\t2500.5");
+        }
+
+        PSMFile pf = new PSMFile(f);
+        PSMTable table = pf.getTable();
+        assertSame(table, pf.getTable());
+        assertEquals(3, table.size);
+
+        assertArrayEquals(new double[]{15.9949, 0.0, -0.0001}, table.deltaMass);
+        assertArrayEquals(new float[]{800.4f, 927.5f, 784.4f}, table.precursorMass);
+        assertArrayEquals(new double[]{1000, 0, 2500.5}, table.intensity);
+        assertArrayEquals(new int[]{2, 3, 2}, table.charge);
+
+        assertEquals("runB.00020.00020.3", table.spectrum.get(1));
+        assertEquals(2, table.run.cardinality());
+        assertEquals(table.peptide.getCode(0), table.peptide.getCode(2));
+        assertEquals(-1, table.peptide.lookup("MISSING"));
+        assertNull(table.modifiedPeptide);
+
+        HashMap<String, ArrayList<Integer>> mappings = table.getRunMappings();
+        assertEquals(2, mappings.get("runA").size());
+        assertEquals(2, mappings.get("runA").get(1));
+        assertEquals(1, (int) table.getRunCounts().get("runB"));
+
+        assertArrayEquals(new int[]{10, 20, 30}, table.scanNum);
+        assertEquals(Arrays.asList(10, 30), table.getScanNums(mappings.get("runA")));
+    }
+}
@@ -0,0 +1,47 @@
+import edu.umich.andykong.ptmshepherd.ShardCoordinator;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardCoordinatorTest {
+
+    @Test
+    void datasetsSharingRunsStayTogether() {
+        Map<String, Collection<String>> runs = new HashMap<>();
+        runs.put("a", Arrays.asList("r1", "r2"));
+        runs.put("b", Arrays.asList("r3"));
+        runs.put("c", Arrays.asList("r2", "r4"));
+        runs.put("d", Arrays.asList("r4"));
+        runs.put("e", Collections.emptyList());
+        assertEquals(Arrays.asList(Arrays.asList("a", "c", "d"), Arrays.asList("b"), Arrays.asList("e")),
+                ShardCoordinator.groupByRuns(runs));
+    }
+
+    @Test
+    void splitsBySize() {
+        Map<String, Long> bytes = new HashMap<>();
+        bytes.put("a", 100L);
+        bytes.put("b", 60L);
+        bytes.put("c", 50L);
+        bytes.put("d", 40L);
+        bytes.put("e", 0L);
+        List<List<String>> groups = Arrays.asList(Arrays.asList("a"), Arrays.asList("b"), Arrays.asList("c"),
+                Arrays.asList("d"), Arrays.asList("e"));
+        assertEquals(Arrays.asList(Arrays.asList("a", "d"), Arrays.asList("b", "c", "e")),
+                ShardCoordinator.split(groups, bytes, 2));
+        assertEquals(5, ShardCoordinator.split(groups, bytes, 8).size());
+        assertEquals(1, ShardCoordinator.split(groups, bytes, 1).size());
+
+        // empty datasets still get a shard of their own
+        bytes.replaceAll((k, v) -> 0L);
+        for (List<String> shard : ShardCoordinator.split(groups, bytes, 5))
+            assertEquals(1, shard.size());
+    }
+}
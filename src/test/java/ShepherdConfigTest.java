@@ -0,0 +1,68 @@
+import edu.umich.andykong.ptmshepherd.ShepherdConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShepherdConfigTest {
+
+    private static HashMap<String, String> defaults() {
+        HashMap<String, String> params = new HashMap<>();
+        params.put("threads", "4");
+        params.put("precursor_tol", "0.01");
+        params.put("precursor_mass_units", "0");
+        params.put("spectra_ppmtol", "20.0");
+        params.put("spectra_condPeaks", "150");
+        params.put("spectra_condRatio", "0.00001");
+        params.put("spectra_maxfragcharge", "2");
+        params.put("spectra_maxPrecursorCharge", "4");
+        params.put("iontype_a", "0");
+        params.put("iontype_b", "1");
+        params.put("iontype_c", "0");
+        params.put("iontype_x", "0");
+        params.put("iontype_y", "1");
+        params.put("iontype_z", "0");
+        params.put("histo_bindivs", "5000");
+        params.put("histo_smoothbins", "2");
+        params.put("annotation_tol", "0.01");
+        params.put("localization_allowed_res", "");
+        params.put("glyco_cap_y_ions_normalize", "1");
+        params.put("glyco_diag_ions_normalize", "0");
+        params.put("cap_y_ions", "0,203.07937");
+        params.put("diag_ions", "");
+        params.put("remainder_masses", "203.07937");
+        return params;
+    }
+
+    @Test
+    void parsesTypedValues() {
+        ShepherdConfig config = ShepherdConfig.fromParams(defaults());
+        assertEquals(4, config.threads);
+        assertEquals(20.0, config.spectraPpmTol);
+        assertEquals("b", config.nIonTypes);
+        assertEquals("y", config.cIonTypes);
+        assertEquals("by", config.getIonTypes());
+        assertTrue(config.capYIonsNormalize);
+        assertFalse(config.diagIonsNormalize);
+        assertArrayEquals(new double[]{0, 203.07937}, config.getCapYShifts());
+        assertEquals(0, config.getDiagIons().length);
+    }
+
+    @Test
+    void rejectsInvalidValues() {
+        HashMap<String, String> params = defaults();
+        params.put("spectra_ppmtol", "twenty");
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> ShepherdConfig.fromParams(params));
+        assertTrue(e.getMessage().contains("spectra_ppmtol"));
+
+        HashMap<String, String> noIons = defaults();
+        noIons.put("iontype_b", "0");
+        noIons.put("iontype_y", "0");
+        assertThrows(IllegalArgumentException.class, () -> ShepherdConfig.fromParams(noIons));
+
+        HashMap<String, String> badFlag = defaults();
+        badFlag.put("precursor_mass_units", "2");
+        assertThrows(IllegalArgumentException.class, () -> ShepherdConfig.fromParams(badFlag));
+    }
+}
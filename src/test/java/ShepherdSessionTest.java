@@ -0,0 +1,32 @@
+import edu.umich.andykong.ptmshepherd.ShepherdException;
+import edu.umich.andykong.ptmshepherd.ShepherdSession;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShepherdSessionTest {
+
+    @Test
+    void fatalErrorsThrowAndKeepJvm(@TempDir Path tmp) throws Exception {
+        File config = tmp.resolve("config.txt").toFile();
+        Files.write(config.toPath(), ("output_path = " + tmp + "\n").getBytes());
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ShepherdSession session = new ShepherdSession(new PrintStream(log, true));
+
+        ShepherdException e = assertThrows(ShepherdException.class, () -> session.run(config.getPath()));
+        assertTrue(e.getMessage().contains("no datasets"));
+        assertSame(stdout, System.out);
+
+        // a second analysis in the same JVM fails the same way instead of seeing the first one's state
+        assertThrows(ShepherdException.class, () -> session.run(config.getPath(), "--spectra_ppmtol", "10"));
+        assertThrows(IllegalArgumentException.class, () -> session.run("--config"));
+    }
+}
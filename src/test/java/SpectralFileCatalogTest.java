@@ -0,0 +1,49 @@
+import edu.umich.andykong.ptmshepherd.SpectralFileCatalog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpectralFileCatalogTest {
+
+    private static File touch(Path dir, String name) throws Exception {
+        Files.createDirectories(dir);
+        return Files.createFile(dir.resolve(name)).toFile();
+    }
+
+    @Test
+    void extensionPriorities() {
+        assertEquals(20, SpectralFileCatalog.getPriority("run.mzBIN_cache"));
+        assertEquals(13, SpectralFileCatalog.getPriority("run.mzBIN"));
+        assertEquals(19, SpectralFileCatalog.getPriority("run_calibrated.mzML"));
+        assertEquals(15, SpectralFileCatalog.getPriority("run.mzML"));
+        assertEquals(-1, SpectralFileCatalog.getPriority("run.txt"));
+    }
+
+    @Test
+    void resolvesPreferredFile(@TempDir Path tmp) throws Exception {
+        touch(tmp, "a.raw");
+        touch(tmp.resolve("sub"), "a.mzML");
+        File calibrated = touch(tmp.resolve("sub").resolve("deeper"), "a_calibrated.mzML");
+        File b = touch(tmp, "b.mgf");
+        touch(tmp, "c.mzML");
+        touch(tmp, "notes.txt");
+
+        HashMap<String, File> mappings = new HashMap<>();
+        mappings.put("a", null);
+        mappings.put("b", null);
+        mappings.put("d", null);
+        SpectralFileCatalog catalog = SpectralFileCatalog.forPath(tmp.toFile());
+        catalog.resolve(mappings);
+        assertEquals(calibrated, mappings.get("a"));
+        assertEquals(b, mappings.get("b"));
+        assertNull(mappings.get("d"));
+        assertFalse(mappings.containsKey("c"));
+        assertSame(catalog, SpectralFileCatalog.forPath(tmp.resolve("sub").resolve("..").toFile()));
+    }
+}
@@ -0,0 +1,60 @@
+import edu.umich.andykong.ptmshepherd.StageCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StageCacheTest {
+
+    private static void write(File f, String s) throws Exception {
+        try (PrintWriter out = new PrintWriter(f)) {
+            out.print(s);
+        }
+    }
+
+    @Test
+    void keysAndAliases(@TempDir Path tmp) throws Exception {
+        File manifest = tmp.resolve("shepherd_cache.tsv").toFile();
+        File psm = tmp.resolve("psm.tsv").toFile();
+        File run = tmp.resolve("run.mzML").toFile();
+        write(psm, "Spectrum\n");
+        write(run, "spectra");
+        HashMap<String, String> params = new HashMap<>();
+        params.put("precursor_tol", "0.01");
+        params.put("threads", "4");
+
+        StageCache cache = new StageCache(manifest);
+        String key = cache.datasetKey(Collections.singletonList(psm), Collections.singletonList(run), params);
+        String original = cache.psmFingerprint(psm);
+        assertFalse(cache.isValid("ds1", key));
+
+        // performance params do not change the key, result params do
+        params.put("threads", "16");
+        assertEquals(key, cache.datasetKey(Collections.singletonList(psm), Collections.singletonList(run), params));
+        params.put("precursor_tol", "0.02");
+        assertNotEquals(key, cache.datasetKey(Collections.singletonList(psm), Collections.singletonList(run), params));
+        params.put("precursor_tol", "0.01");
+
+        // the run rewrites the psm.tsv, which must still map back to the original input
+        write(psm, "Spectrum\tObserved Modifications\n");
+        assertTrue(psm.setLastModified(psm.lastModified() + 2000));
+        cache.setDatasetKey("ds1", key);
+        cache.setPsmAlias(psm, original);
+        cache.save();
+
+        StageCache reloaded = new StageCache(manifest);
+        assertEquals(original, reloaded.psmFingerprint(psm));
+        assertTrue(reloaded.isValid("ds1", reloaded.datasetKey(Arrays.asList(psm), Arrays.asList(run), params)));
+
+        // a user edit of the psm.tsv invalidates the dataset
+        write(psm, "Spectrum\tPeptide\tObserved Modifications\n");
+        assertFalse(reloaded.isValid("ds1", reloaded.datasetKey(Arrays.asList(psm), Arrays.asList(run), params)));
+    }
+}
@@ -0,0 +1,50 @@
+package core;
+
+import edu.umich.andykong.ptmshepherd.core.MzBinCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MzBinCacheTest {
+
+    private static File makeEntry(File dir, String key, int bytes, long lastModified) throws Exception {
+        File entry = new File(dir, key);
+        assertTrue(entry.mkdirs());
+        Files.write(new File(entry, "run.mzBIN_cache").toPath(), new byte[bytes]);
+        assertTrue(entry.setLastModified(lastModified));
+        return entry;
+    }
+
+    @Test
+    void keyDependsOnConditioning(@TempDir Path tmp) throws Exception {
+        File raw = tmp.resolve("run.mzML").toFile();
+        Files.write(raw.toPath(), new byte[]{1, 2, 3});
+        String key = MzBinCache.key(raw, 150, 0.01);
+        assertEquals(key, MzBinCache.key(raw, 150, 0.01));
+        assertNotEquals(key, MzBinCache.key(raw, 100, 0.01));
+        assertNotEquals(key, MzBinCache.key(raw, 150, 0.02));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed(@TempDir Path tmp) throws Exception {
+        File dir = tmp.resolve("cache").toFile();
+        MzBinCache cache = new MzBinCache(dir, 250);
+        long now = System.currentTimeMillis();
+        File oldest = makeEntry(dir, "a", 100, now - 30000);
+        File middle = makeEntry(dir, "b", 100, now - 20000);
+        File newest = makeEntry(dir, "c", 100, now - 10000);
+
+        cache.evict();
+        assertFalse(oldest.exists());
+        assertTrue(middle.exists());
+        assertTrue(newest.exists());
+        assertTrue(cache.contains(new File(newest, "run.mzBIN_cache")));
+        assertFalse(cache.contains(tmp.resolve("run.mzBIN_cache").toFile()));
+        cache.close();
+    }
+}
@@ -0,0 +1,108 @@
+package core;
+
+import edu.umich.andykong.ptmshepherd.core.MXMLReader;
+import edu.umich.andykong.ptmshepherd.core.SpectrumCache;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpectrumCacheTest {
+
+    /* Reader holding the given scans (all of them if null) with a fixed size */
+    private static class SizedReader extends MXMLReader {
+        final HashSet<Integer> scans;
+        final long bytes;
+
+        SizedReader(File f, List<Integer> scans, long bytes) {
+            super(f, 1);
+            this.scans = (scans == null) ? null : new HashSet<>(scans);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean hasScans(Collection<Integer> scanNums) {
+            return scans == null || (scanNums != null && scans.containsAll(scanNums));
+        }
+
+        @Override
+        public long estimateBytes() {
+            return bytes;
+        }
+    }
+
+    private static class SizedCache extends SpectrumCache {
+        int reads;
+
+        SizedCache(long maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected MXMLReader read(File f, int threads, List<Integer> scanNums) {
+            reads++;
+            return new SizedReader(f, scanNums, f.getName().startsWith("big") ? 200 : 100);
+        }
+    }
+
+    private static final File A = new File("a.mzBIN"), B = new File("b.mzBIN"), C = new File("c.mzBIN");
+
+    @Test
+    void evictsLeastRecentlyUsedOverBudget() throws Exception {
+        SizedCache cache = new SizedCache(250);
+        MXMLReader a = cache.getReader(A, 1);
+        cache.getReader(B, 1);
+        assertEquals(200, cache.getCachedBytes());
+        assertSame(a, cache.getReader(A, 1)); // a is now more recently used than b
+        cache.getReader(C, 1);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(200, cache.getCachedBytes());
+        assertSame(a, cache.getReader(A, 1));
+        cache.getReader(B, 1);
+        assertEquals(4, cache.reads);
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    void keepsTheRunJustAdded() throws Exception {
+        SizedCache cache = new SizedCache(250);
+        cache.getReader(A, 1);
+        MXMLReader big = cache.getReader(new File("big.mzBIN"), 1);
+        assertEquals(200, cache.getCachedBytes());
+        assertSame(big, cache.getReader(new File("big.mzBIN"), 1));
+        assertEquals(1, cache.getEvictions());
+
+        // a run over the whole budget is returned but not kept
+        SizedCache small = new SizedCache(150);
+        small.getReader(A, 1);
+        small.getReader(new File("big.mzBIN"), 1);
+        assertEquals(100, small.getCachedBytes());
+        assertEquals(0, small.getEvictions());
+    }
+
+    @Test
+    void replacesRunsMissingScans() throws Exception {
+        SizedCache cache = new SizedCache(1000);
+        MXMLReader partial = cache.getReader(A, 1, Arrays.asList(1, 2));
+        assertSame(partial, cache.getReader(A, 1, Arrays.asList(2)));
+        MXMLReader other = cache.getReader(A, 1, Arrays.asList(3));
+        assertNotSame(partial, other);
+        assertEquals(100, cache.getCachedBytes());
+        assertSame(other, cache.getReader(A, 1, Arrays.asList(3)));
+
+        MXMLReader full = cache.getReader(A, 1);
+        assertSame(full, cache.getReader(A, 1, Arrays.asList(1, 2, 3)));
+        assertEquals(100, cache.getCachedBytes());
+        assertEquals(3, cache.reads);
+        assertEquals(0, cache.getEvictions());
+
+        cache.clear();
+        assertEquals(0, cache.getCachedBytes());
+    }
+}
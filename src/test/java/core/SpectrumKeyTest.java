@@ -0,0 +1,53 @@
+package core;
+
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.core.SpectrumKey;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpectrumKeyTest {
+
+    @Test
+    void psmAndReaderNamesShareKeys() {
+        String[] names = {"runA.00123.00123.2", "runA.123.123", "runB.00123.00123.3", "run_C-1.4567.4567.10",
+                "runA.99999.99999.4", "runA.1.1"};
+        for (String name : names) {
+            long key = SpectrumKey.parse(name);
+            assertNotEquals(SpectrumKey.NONE, key, name);
+            assertEquals(key, SpectrumKey.parse(PTMShepherd.reNormName(name)), name);
+            String norm = PTMShepherd.reNormName(name);
+            assertEquals(norm.substring(0, norm.indexOf('.')), SpectrumKey.runName(key));
+            assertEquals(Integer.parseInt(norm.substring(norm.lastIndexOf('.') + 1)), SpectrumKey.scanNum(key));
+        }
+        assertEquals(SpectrumKey.parse("runA.00123.00123.2"), SpectrumKey.parse("runA.123.123"));
+        assertNotEquals(SpectrumKey.parse("runA.123.123"), SpectrumKey.parse("runB.123.123"));
+        assertNotEquals(SpectrumKey.parse("runA.123.123"), SpectrumKey.parse("runA.124.124"));
+        assertEquals(SpectrumKey.runId("runA"), SpectrumKey.runId(SpectrumKey.parse("runA.5.5")));
+    }
+
+    @Test
+    void namesWithoutScansHaveNoKey() {
+        assertEquals(SpectrumKey.NONE, SpectrumKey.parse("COMPLETE"));
+        assertEquals(SpectrumKey.NONE, SpectrumKey.parse("run.5"));
+        assertEquals(SpectrumKey.NONE, SpectrumKey.parse("run.ab.ab"));
+        assertEquals(SpectrumKey.NONE, SpectrumKey.parse("run.x12.x12.2"));
+    }
+
+    @Test
+    void clearStartsFreshRunIds() {
+        SpectrumKey.runId("oldRun");
+        SpectrumKey.clear();
+        assertEquals(0, SpectrumKey.runId("newRun"));
+        assertEquals("newRun", SpectrumKey.runName(SpectrumKey.parse("newRun.7.7")));
+        assertEquals(1, SpectrumKey.runId("oldRun"));
+    }
+
+    @Test
+    void manyRuns() {
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, SpectrumKey.scanNum(SpectrumKey.parse("many" + i + "." + i + "." + i)));
+        for (int i = 0; i < 1000; i++)
+            assertEquals("many" + i, SpectrumKey.runName(SpectrumKey.parse("many" + i + ".00001.00001.2")));
+    }
+}
@@ -0,0 +1,40 @@
+package pipeline;
+
+import edu.umich.andykong.ptmshepherd.pipeline.PerfRecorder;
+import edu.umich.andykong.ptmshepherd.pipeline.StageGraph;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PerfRecorderTest {
+
+    @Test
+    void recordsStagesAndWritesJson(@TempDir Path tmp) throws Exception {
+        PerfRecorder perf = new PerfRecorder();
+        StageGraph graph = new StageGraph();
+        graph.setRecorder(perf);
+        graph.addStage("a", () -> Thread.sleep(20));
+        graph.addStage("b", () -> perf.record("unit", "b:\"run\"", () -> {}), "a");
+        graph.run(1);
+
+        ArrayList<PerfRecorder.Entry> entries = perf.getEntries();
+        assertEquals(3, entries.size());
+        assertEquals("a", entries.get(0).name);
+        assertTrue(entries.get(0).getWallMs() >= 20);
+        assertEquals("unit", entries.get(1).kind);
+        assertEquals("b", entries.get(2).name);
+
+        File report = tmp.resolve("shepherd_perf.json").toFile();
+        perf.write(report);
+        String json = new String(Files.readAllBytes(report.toPath()));
+        assertTrue(json.contains("\"name\": \"b:\\\"run\\\"\""));
+        assertTrue(json.contains("\"peakHeapBytes\""));
+        assertTrue(json.trim().endsWith("}"));
+    }
+}
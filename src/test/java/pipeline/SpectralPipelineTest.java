@@ -0,0 +1,120 @@
+package pipeline;
+
+import edu.umich.andykong.ptmshepherd.PSMFile;
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.core.MXMLReader;
+import edu.umich.andykong.ptmshepherd.core.SpectrumCache;
+import edu.umich.andykong.ptmshepherd.pipeline.RunVisitor;
+import edu.umich.andykong.ptmshepherd.pipeline.SpectralPipeline;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpectralPipelineTest {
+
+    private static class RecordingVisitor implements RunVisitor {
+        final List<String> skipped;
+        final TreeMap<String, MXMLReader> visited = new TreeMap<>();
+        final HashMap<String, Integer> lines = new HashMap<>();
+        int started, finished;
+
+        RecordingVisitor(String... skipped) {
+            this.skipped = Arrays.asList(skipped);
+        }
+
+        public void startPSMFile(PSMFile pf) {
+            started++;
+        }
+
+        public void visitRun(PSMFile pf, String run, ArrayList<Integer> clines, MXMLReader mr) {
+            assertNull(visited.put(run, mr), "run visited twice: " + run);
+            lines.put(run, clines.size());
+            for (int line : clines)
+                assertNotNull(mr.getSpectrum(pf.data.get(line).split("\t")[0]));
+        }
+
+        public void finishPSMFile(PSMFile pf) {
+            finished++;
+        }
+
+        @Override
+        public boolean needsRun(String run) {
+            return !skipped.contains(run);
+        }
+    }
+
+    static void writeMgf(File f, String run, int... scans) throws Exception {
+        try (PrintWriter out = new PrintWriter(f)) {
+            for (int scan : scans) {
+                out.println("BEGIN IONS");
+                out.printf("TITLE=%s.%d.%d.2%n", run, scan, scan);
+                out.println("CHARGE=2+");
+                out.println("RTINSECONDS=" + (10 * scan));
+                out.println("PEPMASS=500.25");
+                for (int i = 1; i <= 5; i++)
+                    out.printf("%.4f %.1f%n", 100.0 + 37.1 * i + scan, 10.0 * i);
+                out.println("END IONS");
+            }
+        }
+    }
+
+    static void initParams(Path tmp) throws Exception {
+        File config = tmp.resolve("shepherd.config").toFile();
+        Files.write(config.toPath(), Arrays.asList("output_path = " + tmp.resolve("out"), "threads = 2",
+                "dataset = ds " + tmp.resolve("psm.tsv") + " " + tmp));
+        PTMShepherd.init(new String[] {config.getPath()});
+        SpectrumCache.reset();
+    }
+
+    @Test
+    void readsEachNeededRunOnce(@TempDir Path tmp) throws Exception {
+        initParams(tmp);
+        try {
+            HashMap<String, File> mzMappings = new HashMap<>();
+            for (String run : Arrays.asList("runA", "runB", "runC")) {
+                File mgf = tmp.resolve(run + "_calibrated.mgf").toFile();
+                mzMappings.put(run, mgf);
+                if (!run.equals("runC")) // nobody needs runC, reading it would fail
+                    writeMgf(mgf, run, 1, 2, 3);
+            }
+            File psmf = tmp.resolve("psm.tsv").toFile();
+            Files.write(psmf.toPath(), Arrays.asList("Spectrum\tPeptide\tDelta Mass",
+                    "runA.00001.00001.2\tPEPTIDE\t0.0", "runB.00002.00002.2\tPEPTIDE\t15.9949",
+                    "runA.00003.00003.2\tPEPTIDEK\t0.0", "runC.00001.00001.2\tPEPTIDE\t0.0"));
+            PSMFile pf = new PSMFile(psmf);
+
+            RecordingVisitor all = new RecordingVisitor("runC");
+            RecordingVisitor onlyA = new RecordingVisitor("runB", "runC");
+            SpectralPipeline pipeline = new SpectralPipeline(all);
+            pipeline.addVisitor(onlyA);
+            pipeline.processPSMFile(pf, mzMappings);
+
+            assertEquals(Arrays.asList("runA", "runB"), new ArrayList<>(all.visited.keySet()));
+            assertEquals(Arrays.asList("runA"), new ArrayList<>(onlyA.visited.keySet()));
+            assertSame(all.visited.get("runA"), onlyA.visited.get("runA"));
+            assertEquals(2, (int) all.lines.get("runA"));
+            assertEquals(1, (int) all.lines.get("runB"));
+            for (RecordingVisitor v : Arrays.asList(all, onlyA)) {
+                assertEquals(1, v.started);
+                assertEquals(1, v.finished);
+            }
+
+            new SpectralPipeline().processPSMFile(pf, mzMappings);
+            assertTrue(new SpectralPipeline().isEmpty());
+        } finally {
+            PTMShepherd.executorService.shutdown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package pipeline;
+
+import edu.umich.andykong.ptmshepherd.pipeline.StageGraph;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StageGraphTest {
+
+    @Test
+    void dependenciesRespected() throws Exception {
+        for (int parallel : new int[]{1, 4}) {
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            StageGraph graph = new StageGraph();
+            graph.addStage("a", () -> order.add("a"));
+            graph.addStage("b", () -> order.add("b"), "a");
+            graph.addStage("c", () -> order.add("c"), "a");
+            graph.addStage("d", () -> order.add("d"), "b", "c");
+            graph.run(parallel);
+
+            assertEquals(4, order.size());
+            assertEquals("a", order.get(0));
+            assertEquals("d", order.get(3));
+        }
+    }
+
+    @Test
+    void independentStagesOverlap() throws Exception {
+        // b and c each wait for the other to start, which only completes if they run concurrently
+        CountDownLatch latch = new CountDownLatch(2);
+        StageGraph graph = new StageGraph();
+        graph.addStage("a", () -> {});
+        graph.addStage("b", () -> {
+            latch.countDown();
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }, "a");
+        graph.addStage("c", () -> {
+            latch.countDown();
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }, "a");
+        graph.run(2);
+    }
+
+    @Test
+    void failureStopsDependents() {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        StageGraph graph = new StageGraph();
+        graph.addStage("a", () -> {
+            throw new IOException("missing peaks");
+        });
+        graph.addStage("b", () -> order.add("b"), "a");
+        IOException e = assertThrows(IOException.class, () -> graph.run(2));
+        assertEquals("missing peaks", e.getMessage());
+        assertTrue(order.isEmpty());
+    }
+
+    @Test
+    void unknownDependency() {
+        StageGraph graph = new StageGraph();
+        assertThrows(IllegalArgumentException.class, () -> graph.addStage("b", () -> {}, "a"));
+    }
+}
@@ -0,0 +1,55 @@
+package pipeline;
+
+import edu.umich.andykong.ptmshepherd.pipeline.TaskScheduler;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TaskSchedulerTest {
+
+    private static void runTasks(TaskScheduler scheduler, int nTasks, long taskBytes, AtomicInteger running, AtomicInteger maxRunning) throws Exception {
+        for (int i = 0; i < nTasks; i++) {
+            scheduler.submit(taskBytes, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(20);
+                running.decrementAndGet();
+            });
+        }
+        scheduler.awaitAll();
+    }
+
+    @Test
+    void concurrencyLimit() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        runTasks(new TaskScheduler(3, Long.MAX_VALUE), 12, 1, running, maxRunning);
+        assertTrue(maxRunning.get() <= 3);
+        assertTrue(maxRunning.get() > 1);
+    }
+
+    @Test
+    void memoryAdmission() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        runTasks(new TaskScheduler(8, 100), 8, 40, running, maxRunning);
+        assertTrue(maxRunning.get() <= 2);
+
+        // a task over budget still runs, alone
+        maxRunning.set(0);
+        runTasks(new TaskScheduler(8, 100), 3, 500, running, maxRunning);
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    void failurePropagates() throws Exception {
+        TaskScheduler scheduler = new TaskScheduler(2, Long.MAX_VALUE);
+        scheduler.submit(0, () -> {
+            throw new IOException("bad run");
+        });
+        IOException e = assertThrows(IOException.class, scheduler::awaitAll);
+        assertEquals("bad run", e.getMessage());
+    }
+}
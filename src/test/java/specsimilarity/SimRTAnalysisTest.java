@@ -0,0 +1,120 @@
+package specsimilarity;
+
+import edu.umich.andykong.ptmshepherd.PSMFile;
+import edu.umich.andykong.ptmshepherd.PTMShepherd;
+import edu.umich.andykong.ptmshepherd.core.SpectrumCache;
+import edu.umich.andykong.ptmshepherd.specsimilarity.SimRTAnalysis;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SimRTAnalysisTest {
+
+    // zero bin spectra of ~0.8 MB each key, so a 1 MB budget puts every key in its own partition
+    private static final int BIG_PEAKS = 50000;
+
+    /* Writes scans of a run, scans in big get BIG_PEAKS peaks, half of them shared by every spectrum */
+    static void writeMgf(File f, String run, List<Integer> scans, List<Integer> big) throws Exception {
+        try (PrintWriter out = new PrintWriter(f)) {
+            for (int scan : scans) {
+                Random r = new Random(run.hashCode() * 31L + scan);
+                int n = big.contains(scan) ? BIG_PEAKS : 40;
+                out.println("BEGIN IONS");
+                out.printf("TITLE=%s.%d.%d.2%n", run, scan, scan);
+                out.println("CHARGE=2+");
+                out.println("RTINSECONDS=" + (10 * scan));
+                out.println("PEPMASS=500.25");
+                for (int i = 0; i < n; i++) {
+                    // every other peak sits on a grid common to all spectra, the others are random
+                    double mz = (i % 2 == 0) ? 100 + i * 0.03 : 100 + r.nextDouble() * 1500;
+                    out.printf("%.4f %.1f%n", mz, 1 + r.nextInt(1000) * 1.0);
+                }
+                out.println("END IONS");
+            }
+        }
+    }
+
+    private static List<String> runSimRT(Path tmp, HashMap<String, File> mzMappings, String... extraParams) throws Exception {
+        File config = tmp.resolve("shepherd.config").toFile();
+        List<String> lines = new ArrayList<>(Arrays.asList("output_path = " + tmp.resolve("out"), "threads = 2",
+                "dataset = ds " + tmp.resolve("psm.tsv") + " " + tmp));
+        lines.addAll(Arrays.asList(extraParams));
+        Files.write(config.toPath(), lines);
+        PTMShepherd.init(new String[] {config.getPath()});
+        SpectrumCache.reset();
+        try {
+            new File(PTMShepherd.normFName("")).mkdirs();
+            File table = new File(PTMShepherd.normFName("ds.rawsimrt"));
+            table.delete(); // written by the previous run, the table is appended to
+            SimRTAnalysis sra = new SimRTAnalysis("ds");
+            sra.simrtPSMs(new PSMFile(tmp.resolve("psm.tsv").toFile()), mzMappings, true);
+            sra.complete();
+            List<String> rows = Files.readAllLines(table.toPath());
+            Collections.sort(rows);
+            return rows;
+        } finally {
+            PTMShepherd.executorService.shutdown();
+        }
+    }
+
+    @Test
+    void outOfCoreMatchesInMemory(@TempDir Path tmp) throws Exception {
+        // two zero bin lines per peptide and charge, so every one is a reference and sums do not depend on order
+        HashMap<String, File> mzMappings = new HashMap<>();
+        String[] runs = {"runA", "runB", "runC"};
+        List<List<Integer>> bigScans = Arrays.asList(Arrays.asList(1, 3), Arrays.asList(1, 2), Arrays.asList(2, 3));
+        for (int i = 0; i < runs.length; i++) {
+            File mgf = tmp.resolve(runs[i] + "_calibrated.mgf").toFile();
+            writeMgf(mgf, runs[i], Arrays.asList(1, 2, 3, 4, 5), bigScans.get(i));
+            mzMappings.put(runs[i], mgf);
+        }
+        Files.write(tmp.resolve("psm.tsv"), Arrays.asList(
+                "Spectrum\tPeptide\tModified Peptide\tCharge\tDelta Mass\tRetention\tIntensity",
+                "runA.00001.00001.2\tPEPTIDEA\t\t2\t0.0\t10.0\t1000",
+                "runB.00001.00001.2\tPEPTIDEA\t\t2\t0.001\t12.0\t3000",
+                "runB.00002.00002.2\tPEPTIDEB\tPEPTIDEB[147]\t2\t0.0\t20.0\t500",
+                "runC.00002.00002.2\tPEPTIDEB\tPEPTIDEB[147]\t2\t-0.002\t21.5\t700",
+                "runA.00003.00003.3\tPEPTIDEC\t\t3\t0.0\t30.0\t100",
+                "runC.00003.00003.3\tPEPTIDEC\t\t3\t0.0\t33.0\t200",
+                "runA.00004.00004.2\tPEPTIDEA\t\t2\t15.9949\t14.0\t800",
+                "runC.00004.00004.2\tPEPTIDEB\tPEPTIDEB[147]\t2\t79.9663\t25.0\t900",
+                "runB.00005.00005.3\tPEPTIDEC\t\t3\t42.0106\t35.0\t50",
+                "runB.00004.00004.3\tPEPTIDEA\t\t3\t15.9949\t16.0\t400", // no zero bin spectra at this charge
+                "runB.00009.00009.2\tPEPTIDEB\tPEPTIDEB[147]\t2\t79.9663\t26.0\t600")); // spectrum missing
+
+        List<String> inMemory = runSimRT(tmp, mzMappings);
+
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        List<String> outOfCore;
+        System.setOut(new PrintStream(log, true));
+        try {
+            outOfCore = runSimRT(tmp, mzMappings, "outofcore_mode = true", "outofcore_memoryMB = 1");
+        } finally {
+            System.setOut(stdout);
+        }
+        assertTrue(log.toString().contains("comparing in 3 partitions"), log.toString());
+
+        assertEquals(13, inMemory.size()); // header, rows and COMPLETE
+        assertEquals(inMemory, outOfCore);
+        // similarities were computed against both zero bin spectra
+        String[] shifted = inMemory.stream().filter(row -> row.startsWith("runA.00004.00004.2")).findFirst().get().split("\t");
+        assertTrue(Double.parseDouble(shifted[7]) > 0, String.join("\t", shifted));
+        assertTrue(Double.parseDouble(shifted[8]) > 0, String.join("\t", shifted));
+        assertEquals("2", shifted[9]);
+    }
+}
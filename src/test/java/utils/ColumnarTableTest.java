@@ -0,0 +1,131 @@
+package utils;
+
+import edu.umich.andykong.ptmshepherd.utils.ColumnarTable;
+import edu.umich.andykong.ptmshepherd.utils.IntermediateTable;
+import edu.umich.andykong.ptmshepherd.utils.TableRow;
+import edu.umich.andykong.ptmshepherd.utils.TsvCursor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ColumnarTableTest {
+
+    private static List<String> rows(int n) {
+        Random r = new Random(5);
+        List<String> special = Arrays.asList("-0.00", "012", "1e5", "", "NaN", "-", ".5", "5.", "0.0", "-1",
+                "9007199254740993", "1.1234567890123456", "Seré", "MISSINGSPECTRA");
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            StringBuilder sb = new StringBuilder("run.").append(i).append('.').append(i).append(".2\tPEPTIDE");
+            int width = 2 + r.nextInt(12);
+            for (int j = 0; j < width; j++) {
+                sb.append('\t');
+                switch (r.nextInt(4)) {
+                    case 0: sb.append(String.format("%.4f", (r.nextDouble() - 0.5) * 2000)); break;
+                    case 1: sb.append(r.nextInt(100) - 20); break;
+                    case 2: sb.append(String.format("%.2f", r.nextFloat() * 50)); break;
+                    default: sb.append(special.get(r.nextInt(special.size())));
+                }
+            }
+            rows.add(sb.toString());
+        }
+        return rows;
+    }
+
+    private static void write(File f, List<String> rows, String format) throws Exception {
+        for (int part = 0; part < 2; part++) { // appended like one table per psm.tsv
+            try (IntermediateTable.Writer w = IntermediateTable.openWriter(f, part > 0, format)) {
+                w.writeHeader("Spectrum\tPeptide\tShift");
+                for (String row : rows.subList(part * rows.size() / 2, (part + 1) * rows.size() / 2))
+                    w.writeRow(row);
+            }
+        }
+    }
+
+    @Test
+    void readsBackFieldsAndNumbers(@TempDir Path tmp) throws Exception {
+        List<String> rows = rows(10000);
+        for (String format : Arrays.asList(IntermediateTable.BINARY, IntermediateTable.BINARY_DEFLATE)) {
+            File f = tmp.resolve(format).toFile();
+            write(f, rows, format);
+            assertFalse(IntermediateTable.isComplete(f));
+            IntermediateTable.complete(f);
+            assertTrue(IntermediateTable.isComplete(f));
+
+            TsvCursor expected = new TsvCursor();
+            int n = 0;
+            try (IntermediateTable.Reader in = IntermediateTable.openReader(f)) {
+                assertArrayEquals(new String[]{"Spectrum", "Peptide", "Shift"}, in.header());
+                assertEquals(rows.size(), ((ColumnarTable.Reader) in).rowCount());
+                TableRow row;
+                while ((row = in.next()) != null) {
+                    expected.reset(rows.get(n++));
+                    assertEquals(expected.size(), row.size());
+                    assertTrue(row.lineStartsWith("run."));
+                    assertEquals(expected.lineEndsWith("MISSINGSPECTRA"), row.lineEndsWith("MISSINGSPECTRA"));
+                    for (int i = 0; i < row.size(); i++) {
+                        String v = expected.get(i);
+                        assertEquals(v, row.get(i));
+                        assertEquals(v.isEmpty(), row.isEmpty(i));
+                        if (!v.isEmpty() && !v.equals("-") && !v.startsWith("run") && !v.equals("PEPTIDE")
+                                && !v.startsWith("Ser") && !v.startsWith("MISS")) {
+                            assertEquals(Double.doubleToRawLongBits(Double.parseDouble(v)), Double.doubleToRawLongBits(row.parseDouble(i)), v);
+                            assertEquals(Float.floatToRawIntBits(Float.parseFloat(v)), Float.floatToRawIntBits(row.parseFloat(i)), v);
+                        }
+                        if (v.matches("-?\\d{1,9}"))
+                            assertEquals(Integer.parseInt(v), row.parseInt(i));
+                    }
+                }
+            }
+            assertEquals(rows.size(), n);
+        }
+    }
+
+    @Test
+    void convertsToLegacyTsv(@TempDir Path tmp) throws Exception {
+        List<String> rows = rows(5000);
+        File bin = tmp.resolve("x.rawlocalize").toFile();
+        File tsv = tmp.resolve("x.tsv").toFile();
+        write(bin, rows, IntermediateTable.BINARY_DEFLATE);
+        IntermediateTable.complete(bin);
+        IntermediateTable.toTsv(bin, tsv);
+
+        List<String> expected = new ArrayList<>();
+        expected.add("Spectrum\tPeptide\tShift");
+        expected.addAll(rows);
+        expected.add("COMPLETE");
+        assertEquals(expected, Files.readAllLines(tsv.toPath(), StandardCharsets.UTF_8));
+        assertTrue(IntermediateTable.isComplete(tsv));
+        assertTrue(bin.length() < tsv.length() / 2);
+
+        // the converted text reads back like the binary table
+        try (IntermediateTable.Reader in = IntermediateTable.openReader(tsv)) {
+            assertEquals(rows.get(0), String.join("\t", fields(in.next())));
+        }
+    }
+
+    @Test
+    void rejectsIncompleteTables(@TempDir Path tmp) throws Exception {
+        File f = tmp.resolve("x.rawsimrt").toFile();
+        write(f, rows(10), IntermediateTable.BINARY);
+        assertTrue(ColumnarTable.isColumnar(f));
+        assertThrows(java.io.IOException.class, () -> IntermediateTable.openReader(f));
+    }
+
+    private static List<String> fields(TableRow row) {
+        List<String> res = new ArrayList<>();
+        for (int i = 0; i < row.size(); i++)
+            res.add(row.get(i));
+        return res;
+    }
+}
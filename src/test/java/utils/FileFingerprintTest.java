@@ -0,0 +1,44 @@
+package utils;
+
+import edu.umich.andykong.ptmshepherd.utils.FileFingerprint;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileFingerprintTest {
+
+    @Test
+    void fingerprintAndSidecar(@TempDir Path tmp) throws Exception {
+        byte[] data = new byte[40 << 20]; // spans several chunks
+        new Random(7).nextBytes(data);
+        File f = tmp.resolve("psm.tsv").toFile();
+        Files.write(f.toPath(), data);
+
+        String fp = FileFingerprint.compute(f);
+        assertTrue(fp.endsWith(Long.toHexString(data.length)));
+
+        // a single changed byte in any chunk changes the fingerprint
+        data[data.length - 1] ^= 1;
+        File g = tmp.resolve("psm2.tsv").toFile();
+        Files.write(g.toPath(), data);
+        assertNotEquals(fp, FileFingerprint.compute(g));
+
+        File index = tmp.resolve("fingerprints.tsv").toFile();
+        FileFingerprint fps = new FileFingerprint(index);
+        assertEquals(fp, fps.get(f));
+        fps.save();
+        assertTrue(index.exists());
+
+        // reloaded index answers from the sidecar while size and mtime are unchanged
+        FileFingerprint reloaded = new FileFingerprint(index);
+        assertEquals(fp, reloaded.get(f));
+        Files.write(f.toPath(), new byte[]{1, 2, 3});
+        assertNotEquals(fp, reloaded.get(f));
+    }
+}
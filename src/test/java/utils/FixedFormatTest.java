@@ -0,0 +1,48 @@
+package utils;
+
+import edu.umich.andykong.ptmshepherd.utils.FixedFormat;
+import org.junit.jupiter.api.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FixedFormatTest {
+
+    private static void check(double v, int decimals) {
+        assertEquals(String.format("%." + decimals + "f", v), FixedFormat.format(v, decimals), v + " " + decimals);
+    }
+
+    @Test
+    void matchesStringFormat() {
+        Locale def = Locale.getDefault(Locale.Category.FORMAT);
+        Locale.setDefault(Locale.Category.FORMAT, Locale.US);
+        try {
+            for (double v : new double[]{0, -0.0, -0.00001, 0.125, 1.005, 2.5, -1.5, 0.5, 1e20, -1e20, Double.NaN,
+                    Double.NEGATIVE_INFINITY, 9.99995, 15.9949f, Long.MAX_VALUE})
+                for (int d = 0; d <= 6; d++)
+                    check(v, d);
+            Random r = new Random(3);
+            for (int i = 0; i < 200000; i++) {
+                int d = r.nextInt(7);
+                check((r.nextDouble() - 0.5) * Math.pow(10, r.nextInt(10)), d);
+                check(r.nextFloat() * 2000, d); // float arguments are widened to double by Formatter too
+                check(r.nextInt(200000) / 1000.0 + 0.0005, d); // decimal ties
+            }
+        } finally {
+            Locale.setDefault(Locale.Category.FORMAT, def);
+        }
+    }
+
+    @Test
+    void followsFormatLocale() {
+        Locale def = Locale.getDefault(Locale.Category.FORMAT);
+        Locale.setDefault(Locale.Category.FORMAT, Locale.GERMANY);
+        try {
+            assertEquals("15,9949", FixedFormat.format(15.99490, 4));
+        } finally {
+            Locale.setDefault(Locale.Category.FORMAT, def);
+        }
+    }
+}
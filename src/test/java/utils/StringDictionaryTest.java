@@ -0,0 +1,94 @@
+package utils;
+
+import edu.umich.andykong.ptmshepherd.utils.IntHashSet;
+import edu.umich.andykong.ptmshepherd.utils.IntList;
+import edu.umich.andykong.ptmshepherd.utils.StringDictionary;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StringDictionaryTest {
+
+    @Test
+    void idsAreDenseAndStable() throws Exception {
+        StringDictionary dict = new StringDictionary();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<int[]>> results = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            results.add(pool.submit(() -> {
+                int[] ids = new int[5000];
+                for (int i = 0; i < ids.length; i++)
+                    ids[i] = dict.id(new String("PEPTIDE" + i));
+                return ids;
+            }));
+        }
+        int[] first = results.get(0).get();
+        for (Future<int[]> f : results)
+            assertArrayEquals(first, f.get());
+        pool.shutdown();
+
+        assertEquals(5000, dict.size());
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < first.length; i++) {
+            assertTrue(first[i] >= 0 && first[i] < 5000);
+            assertTrue(seen.add(first[i]));
+            assertEquals("PEPTIDE" + i, dict.get(first[i]));
+            assertSame(dict.get(first[i]), dict.get(dict.id("PEPTIDE" + i)));
+        }
+        assertEquals(-1, dict.lookup("NOTAPEPTIDE"));
+        assertEquals(5000, dict.size());
+    }
+
+    @Test
+    void clearAllStartsFreshIds() {
+        StringDictionary.PEPTIDES.id("PEPTIDEA");
+        StringDictionary.PEPTIDES.id("PEPTIDEB");
+        StringDictionary.GLYCANS.id("HexNAc(2)");
+        StringDictionary.clearAll();
+        assertEquals(0, StringDictionary.PEPTIDES.size());
+        assertEquals(-1, StringDictionary.PEPTIDES.lookup("PEPTIDEA"));
+        assertEquals(-1, StringDictionary.GLYCANS.lookup("HexNAc(2)"));
+        assertEquals(0, StringDictionary.PEPTIDES.id("PEPTIDEB"));
+    }
+
+    @Test
+    void intCollectionsMatchBoxedOnes() {
+        Random r = new Random(3);
+        IntHashSet set = new IntHashSet();
+        Set<Integer> expected = new HashSet<>();
+        IntList list = new IntList();
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            int v = r.nextInt(30000);
+            assertEquals(expected.add(v), set.add(v));
+            list.add(v);
+            if (!order.contains(v) && order.size() < 50)
+                order.add(v);
+        }
+        assertEquals(expected.size(), set.size());
+        for (int v = -1; v < 31000; v++)
+            assertEquals(expected.contains(v), set.contains(v));
+        int[] vals = set.toArray();
+        assertEquals(expected.size(), vals.length);
+
+        IntList distinct = list.distinct();
+        assertEquals(expected.size(), distinct.size());
+        for (int i = 0; i < order.size(); i++)
+            assertEquals((int) order.get(i), distinct.get(i));
+
+        IntList both = new IntList();
+        both.addAll(distinct);
+        both.addAll(distinct);
+        assertEquals(2 * distinct.size(), both.size());
+        assertEquals(distinct.get(7), both.get(distinct.size() + 7));
+    }
+}
@@ -0,0 +1,86 @@
+package utils;
+
+import edu.umich.andykong.ptmshepherd.utils.TsvCursor;
+import edu.umich.andykong.ptmshepherd.utils.TsvLineReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TsvCursorTest {
+
+    @Test
+    void fieldsMatchSplit() {
+        TsvCursor c = new TsvCursor();
+        for (String line : Arrays.asList("a\tb\tc", "a\t\t", "", "\t", "x\t-0.0\t+12")) {
+            String[] sp = line.split("\t", -1);
+            c.reset(line);
+            assertEquals(sp.length, c.size(), line);
+            for (int i = 0; i < sp.length; i++)
+                assertEquals(sp[i], c.get(i));
+        }
+        c.reset("Spectrum\tPeptide");
+        assertTrue(c.lineStartsWith("Spec"));
+        assertTrue(c.lineEndsWith("tide"));
+        assertTrue(c.fieldEquals(1, "Peptide"));
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> c.get(2));
+    }
+
+    @Test
+    void numbersMatchJdkParsers() {
+        Random r = new Random(11);
+        List<String> vals = new ArrayList<>(Arrays.asList("0", "-0.0", "15.9949", "1457750.2", "6.505e-08", "NaN",
+                "-Infinity", "0.1", "5.", ".5", "123456789012345678901", "0.30000000000000004", "2147483647", "-2147483648"));
+        for (int i = 0; i < 20000; i++) {
+            vals.add(String.format("%.4f", (r.nextDouble() - 0.5) * 2000));
+            vals.add(String.valueOf((r.nextDouble() - 0.5) * Math.pow(10, r.nextInt(12))));
+            vals.add(String.valueOf(r.nextFloat() * 1000));
+            vals.add(String.valueOf(r.nextInt() >> r.nextInt(32)));
+        }
+        TsvCursor c = new TsvCursor();
+        for (String v : vals) {
+            c.reset("x\t" + v);
+            assertEquals(Double.doubleToRawLongBits(Double.parseDouble(v)), Double.doubleToRawLongBits(c.parseDouble(1)), v);
+            assertEquals(Float.floatToRawIntBits(Float.parseFloat(v)), Float.floatToRawIntBits(c.parseFloat(1)), v);
+            int parsed;
+            try {
+                parsed = Integer.parseInt(v);
+            } catch (NumberFormatException e) {
+                assertThrows(NumberFormatException.class, () -> c.parseInt(1), v);
+                continue;
+            }
+            assertEquals(parsed, c.parseInt(1), v);
+        }
+        c.reset("x\t\t1.2.3");
+        assertThrows(NumberFormatException.class, () -> c.parseDouble(1));
+        assertThrows(NumberFormatException.class, () -> c.parseFloat(2));
+    }
+
+    @Test
+    void readsLinesAcrossBuffers() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            sb.append("run.").append(i).append("\t").append(i * 0.25).append((i % 3 == 0) ? "\r\n" : "\n");
+        sb.append("\n\rCOMPLETE");
+        TsvCursor c = new TsvCursor();
+        int n = 0;
+        try (TsvLineReader in = new TsvLineReader(new StringReader(sb.toString()))) {
+            while (in.next(c) && !c.lineEquals("")) {
+                assertEquals("run." + n, c.get(0));
+                assertEquals(n * 0.25, c.parseDouble(1));
+                n++;
+            }
+            assertTrue(in.next(c)); // the lone \r ends its own empty line
+            assertEquals(0, c.length(0));
+            assertTrue(in.next(c));
+            assertTrue(c.lineEquals("COMPLETE"));
+            assertFalse(in.next(c));
+        }
+        assertEquals(20000, n);
+    }
+}